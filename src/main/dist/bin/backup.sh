@@ -0,0 +1,6 @@
+#!/usr/bin/env bash
+
+# Usage: backup.sh ledger.backup
+# Restore it by starting a new instance with -Daccountdb.restore=ledger.backup
+
+curl -f -o "${1:-ledger.backup}" http://localhost:8080/api/v1/admin/backup
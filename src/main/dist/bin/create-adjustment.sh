@@ -0,0 +1,7 @@
+#!/usr/bin/env bash
+
+NAME="fee 2026-10"
+RULE="FEE"
+AMOUNT="5.00"
+
+curl -X POST "http://localhost:8080/api/v1/admin/adjustment" -d "{\"name\": \"$NAME\", \"rule\": \"$RULE\", \"amount\": $AMOUNT}"
@@ -0,0 +1,5 @@
+#!/usr/bin/env bash
+
+curl -X POST http://localhost:8080/api/v1/account/batch \
+  -H "Content-Type: application/json" \
+  -d "{ \"ids\": [1, 2, 3], \"consistent\": true }"
\ No newline at end of file
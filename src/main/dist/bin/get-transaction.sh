@@ -0,0 +1,5 @@
+#!/usr/bin/env bash
+
+TRANSACTION_ID="0838c28c-3502-47f1-b2fc-1a664e6db38e"
+
+curl "http://localhost:8080/api/v1/transaction/$TRANSACTION_ID"
\ No newline at end of file
@@ -0,0 +1,16 @@
+#!/usr/bin/env bash
+
+# Usage: import-accounts.sh accounts.csv|accounts.ndjson
+# Prints one line per imported account with its new id.
+
+FILE="$1"
+
+case "$FILE" in
+  *.csv) CONTENT_TYPE="text/csv" ;;
+  *) CONTENT_TYPE="application/x-ndjson" ;;
+esac
+
+curl -N -X POST http://localhost:8080/api/v1/account/import \
+  -H "Content-Type: $CONTENT_TYPE" \
+  -H 'Transfer-Encoding: chunked' \
+  --data-binary "@$FILE"
@@ -1,21 +1,224 @@
 package ru.halcraes.revolut;
 
+import com.google.common.base.Preconditions;
+import com.google.common.net.HostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.halcraes.revolut.db.AccountService;
+import ru.halcraes.revolut.db.AdjustmentJobs;
+import ru.halcraes.revolut.db.AccountVersions;
 import ru.halcraes.revolut.db.Database;
+import ru.halcraes.revolut.db.DatabaseConfig;
+import ru.halcraes.revolut.db.DescriptionIndex;
+import ru.halcraes.revolut.db.HotAccounts;
+import ru.halcraes.revolut.db.Ledger;
+import ru.halcraes.revolut.db.LedgerBackup;
+import ru.halcraes.revolut.db.NettingLedger;
+import ru.halcraes.revolut.db.ReadReplica;
+import ru.halcraes.revolut.db.Reconciliation;
+import ru.halcraes.revolut.db.ShardedLedger;
+import ru.halcraes.revolut.db.StandbyStore;
+import ru.halcraes.revolut.db.StatementProfiler;
+import ru.halcraes.revolut.db.TransactionFeed;
+import ru.halcraes.revolut.db.TransferScheduler;
+import ru.halcraes.revolut.tcp.BinaryServer;
+import ru.halcraes.revolut.tcp.ReplicationServer;
+import ru.halcraes.revolut.tcp.StandbyClient;
 import ru.halcraes.revolut.web.RestApi;
+import ru.halcraes.revolut.web.TransactionCache;
+import ru.halcraes.revolut.web.Warmup;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static spark.Spark.awaitInitialization;
 import static spark.Spark.init;
 import static spark.Spark.port;
 
 public class Main {
-    public static void main(String[] args) {
-        Database database = Database.initialize();
-        AccountService accountService = new AccountService(database.getDataSource());
-        RestApi api = new RestApi(accountService);
-        port(8080);
+    private static final Logger log = LoggerFactory.getLogger(Main.class);
+
+    public static void main(String[] args) throws IOException {
+        loadConfig();
+        var databaseConfig = DatabaseConfig.fromProperties(System.getProperties());
+        int shards = Integer.getInteger("accountdb.shards", 1);
+        StatementProfiler profiler = Boolean.getBoolean("accountdb.sql.profiler.enabled")
+                ? new StatementProfiler(Integer.getInteger("accountdb.sql.slowMillis", 100))
+                : null;
+        port(Integer.getInteger("accountdb.http.port", 8080));
+        List<Database> databases = new ArrayList<>();
+        String standbyOf = System.getProperty("accountdb.standby.of");
+        if (standbyOf != null) {
+            Preconditions.checkArgument(shards == 1, "A standby can only replicate a ledger without shards");
+            var database = Database.initialize(databaseConfig, "accounts", false, profiler);
+            databases.add(database);
+            var primary = HostAndPort.fromString(standbyOf);
+            var standby = StandbyClient.start(new StandbyStore(database.getDataSource()),
+                    primary.getHost(), primary.getPort());
+            RestApi.configureStandby(standby);
+            init();
+            awaitInitialization();
+            log.info("Standby of {} started in {} ms", standbyOf, ManagementFactory.getRuntimeMXBean().getUptime());
+            try {
+                standby.awaitPromotion();
+            } catch (InterruptedException e) {
+                return;
+            }
+        } else if (shards > 1) {
+            for (int i = 0; i < shards; i++) {
+                databases.add(Database.initialize(databaseConfig, "accounts_" + i, i == 0, profiler));
+            }
+        } else {
+            databases.add(Database.initialize(databaseConfig, "accounts", true, profiler));
+        }
+        List<DataSource> dataSources = databases.stream().map(Database::getDataSource).collect(Collectors.toList());
+        String restore = System.getProperty("accountdb.restore");
+        if (restore != null && standbyOf == null) {
+            try (var in = Files.newInputStream(Paths.get(restore))) {
+                LedgerBackup.restore(in, dataSources);
+            }
+        }
+
+        HotAccounts hotAccounts = Boolean.getBoolean("accountdb.hotAccounts.enabled")
+                ? new HotAccounts(Duration.ofSeconds(Integer.getInteger("accountdb.hotAccounts.windowSeconds", 60)),
+                        Integer.getInteger("accountdb.hotAccounts.top", 20))
+                : null;
+        Ledger ledger;
+        AccountService service = null;
+        Long nettingWindow = Long.getLong("accountdb.netting.windowMillis");
+        Preconditions.checkArgument(nettingWindow == null || shards == 1, "Only a ledger without shards can net transfers");
+        if (shards > 1) {
+            var sharded = new ShardedLedger(databases);
+            if (hotAccounts != null) {
+                sharded.trackHotAccounts(hotAccounts);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(sharded::close));
+            ledger = sharded;
+        } else {
+            service = new AccountService(dataSources.get(0));
+            if (hotAccounts != null) {
+                service.trackHotAccounts(hotAccounts);
+            }
+            if (nettingWindow != null) {
+                var netting = NettingLedger.start(service, nettingWindow, Integer.getInteger("accountdb.netting.maxBatch", 1000));
+                Runtime.getRuntime().addShutdownHook(new Thread(netting::close));
+                ledger = netting;
+            } else {
+                ledger = service;
+            }
+        }
+        var backup = new LedgerBackup(dataSources, ledger.getCommitLog());
+        ReplicationServer replication = null;
+        Integer replicationPort = Integer.getInteger("accountdb.replication.port");
+        if (replicationPort != null) {
+            Preconditions.checkArgument(shards == 1, "Only a ledger without shards can be replicated");
+            replication = ReplicationServer.start(ledger.getCommitLog(), backup, replicationPort,
+                    Boolean.getBoolean("accountdb.replication.sync"),
+                    Long.getLong("accountdb.replication.syncTimeoutMillis", 5000));
+            ledger = replication.wrap(ledger);
+        }
+        RestApi api = new RestApi(ledger)
+                .withFeed(new TransactionFeed(ledger.getCommitLog(), dataSources,
+                        Integer.getInteger("accountdb.feed.capacity", 65536)));
+        var reconciliation = new Reconciliation(dataSources, ledger.getCommitLog(),
+                Integer.getInteger("accountdb.reconciliation.threads", Runtime.getRuntime().availableProcessors()));
+        api.withReconciliation(reconciliation);
+        api.withBackup(backup);
+        api.withTransactionCache(new TransactionCache(ledger.getCommitLog(),
+                Long.getLong("accountdb.transactionCache.bytes", 64 << 20)));
+        if (replication != null) {
+            api.withReplication(replication);
+        }
+        api.withVersions(new AccountVersions(ledger.getCommitLog(), Integer.getInteger("accountdb.versions.slots", 1 << 20)));
+        if (Boolean.getBoolean("accountdb.descriptionIndex.enabled")) {
+            api.withDescriptionIndex(DescriptionIndex.load(ledger.getCommitLog(), dataSources));
+        }
+        var scheduler = TransferScheduler.start(ledger, dataSources.get(0),
+                Duration.ofMinutes(Integer.getInteger("accountdb.scheduler.horizonMinutes", 60)),
+                Integer.getInteger("accountdb.scheduler.threads", 4));
+        Runtime.getRuntime().addShutdownHook(new Thread(scheduler::close));
+        api.withScheduler(scheduler);
+        if (profiler != null) {
+            api.withProfiler(profiler);
+        }
+        if (hotAccounts != null) {
+            hotAccounts.registerMBean();
+            api.withHotAccounts(hotAccounts);
+        }
+        if (service != null) {
+            // a sharded ledger has no single database to adjust accounts in
+            var adjustments = AdjustmentJobs.start(service, Integer.getInteger("accountdb.adjustment.threads", 2),
+                    Integer.getInteger("accountdb.adjustment.accountsPerSecond", 10_000));
+            Runtime.getRuntime().addShutdownHook(new Thread(adjustments::close));
+            api.withAdjustments(adjustments);
+        }
+        Integer reconciliationInterval = Integer.getInteger("accountdb.reconciliation.intervalSeconds");
+        if (reconciliationInterval != null) {
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "reconciliation");
+                thread.setDaemon(true);
+                return thread;
+            }).scheduleWithFixedDelay(() -> {
+                try {
+                    reconciliation.runIncremental();
+                } catch (RuntimeException e) {
+                    // a failed run must not cancel the following ones
+                    log.error("Reconciliation failed", e);
+                }
+            }, reconciliationInterval, reconciliationInterval, TimeUnit.SECONDS);
+        }
+
+        if (Boolean.getBoolean("accountdb.replica")) {
+            var replica = ReadReplica.start(
+                    ledger.getCommitLog(),
+                    dataSources,
+                    Database.initialize("accounts_replica", false));
+            api.withReplica(replica, Boolean.getBoolean("accountdb.replica.accounts"));
+        }
+        Integer warmup = Integer.getInteger("accountdb.warmup");
+        if (warmup != null) {
+            Warmup.run(warmup);
+        }
         api.configure();
         init();
+
+        Integer binaryPort = Integer.getInteger("accountdb.binary.port");
+        if (binaryPort != null) {
+            BinaryServer.start(ledger, binaryPort, Integer.getInteger("accountdb.binary.workers", 16));
+        }
+        awaitInitialization();
+        log.info("Started in {} ms", ManagementFactory.getRuntimeMXBean().getUptime());
+        if (Boolean.getBoolean("accountdb.exitAfterStartup")) {
+            // a training run that records loaded classes for the class data sharing archive
+            System.exit(0);
+        }
         // Spark does not have a nice API to wait for it to exit, so main thread ends here.
         // Good news is that H2 will not block shutdown.
     }
+
+    /**
+     * Adds properties from the file named by {@code accountdb.config} to system properties.
+     * Properties given on the command line win.
+     */
+    private static void loadConfig() throws IOException {
+        String path = System.getProperty("accountdb.config");
+        if (path == null) {
+            return;
+        }
+        var properties = new Properties();
+        try (var reader = Files.newBufferedReader(Paths.get(path))) {
+            properties.load(reader);
+        }
+        properties.forEach((key, value) -> System.getProperties().putIfAbsent(key, value));
+    }
 }
@@ -1,6 +1,7 @@
 package ru.halcraes.revolut.db;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Striped;
 import net.jcip.annotations.ThreadSafe;
 import org.h2.api.ErrorCode;
 
@@ -12,50 +13,188 @@ import java.sql.*;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @ThreadSafe
-public class AccountService {
+public class AccountService implements Ledger {
+    private static final int ACCOUNT_LOCK_STRIPES = 1024;
+    /**
+     * Ids in one {@code where id in (...)} of {@link #getAccounts}.
+     */
+    private static final int MAX_ACCOUNT_CHUNK = 128;
+
     private final DataSource dataSource;
+    private final CommitLog commitLog;
+    private final RetryPolicy retryPolicy;
+    /**
+     * Changes of the same account wait for each other here rather than on row locks of H2. When a transaction
+     * that waited for a row lock is rolled back, H2 may restore the row as it was before the commit it waited for,
+     * and money of that commit is lost. Locks of a transfer are taken in stripe order, so transfers can't deadlock.
+     */
+    private final Striped<Lock> accountLocks = Striped.lock(ACCOUNT_LOCK_STRIPES);
+    @Nullable
+    private volatile HotAccounts hotAccounts;
 
     public AccountService(DataSource dataSource) {
+        this(dataSource, CommitLog.recover(List.of(dataSource)));
+    }
+
+    /**
+     * @param commitLog log that orders commits of this database, may be shared with other shards of the ledger
+     */
+    public AccountService(DataSource dataSource, CommitLog commitLog) {
+        this(dataSource, commitLog, new RetryPolicy());
+    }
+
+    /**
+     * @param retryPolicy how to repeat transfers that failed because of lock contention
+     */
+    public AccountService(DataSource dataSource, CommitLog commitLog, RetryPolicy retryPolicy) {
         this.dataSource = dataSource;
+        this.commitLog = commitLog;
+        this.retryPolicy = retryPolicy;
+    }
+
+    @Override
+    public CommitLog getCommitLog() {
+        return commitLog;
+    }
+
+    DataSource getDataSource() {
+        return dataSource;
     }
 
+    /**
+     * Counts transfers of this ledger and waits for locks of its accounts in {@code hotAccounts}.
+     */
+    public void trackHotAccounts(HotAccounts hotAccounts) {
+        setHotAccounts(hotAccounts);
+        commitLog.addListener(hotAccounts);
+    }
+
+    /**
+     * Only reports waits for locks, for shards that share their commit log.
+     */
+    void setHotAccounts(HotAccounts hotAccounts) {
+        this.hotAccounts = hotAccounts;
+    }
+
+    @Override
     public AccountId createAccount(@Nullable String description) {
         try (var conn = dataSource.getConnection();
              var statement = conn.prepareStatement("insert into account (description, money) values ( ?, 0 )", Statement.RETURN_GENERATED_KEYS)
         ) {
+            conn.setAutoCommit(false);
             statement.setString(1, description);
             statement.execute();
             if (!statement.getGeneratedKeys().first()) {
                 throw new InternalException("Database did not return a generated key");
             }
-            long id = statement.getGeneratedKeys().getLong("id");
-            conn.commit();
-            return new AccountId(id);
+            var account = new AccountId(statement.getGeneratedKeys().getLong("id"));
+            commitLog.commitAccount(conn, CommitEvent.Type.ACCOUNT_CREATED, account, description);
+            return account;
         } catch (SQLException e) {
             throw new InternalException(e);
         }
     }
 
+    @Override
+    public List<AccountId> importAccounts(List<OpeningAccount> accounts) {
+        Preconditions.checkArgument(!accounts.isEmpty(), "No accounts to import");
+        for (var account : accounts) {
+            Preconditions.checkArgument(account.getBalance().signum() >= 0,
+                    "Opening balance must not be negative, found %s", account.getBalance());
+        }
+        try (var conn = dataSource.getConnection();
+             var insertAccount = conn.prepareStatement("insert into account (description, money) values (?, ?)",
+                     Statement.RETURN_GENERATED_KEYS);
+             var insertTransaction = conn.prepareStatement(
+                     "insert into transaction(id, from_acc, to_acc, money, time) values(?, null, ?, ?, ?)")
+        ) {
+            try {
+                conn.setAutoCommit(false);
+                for (var account : accounts) {
+                    insertAccount.setString(1, account.getDescription());
+                    insertAccount.setBigDecimal(2, account.getBalance());
+                    insertAccount.addBatch();
+                }
+                insertAccount.executeBatch();
+                List<AccountId> ids = new ArrayList<>(accounts.size());
+                try (var keys = insertAccount.getGeneratedKeys()) {
+                    while (keys.next()) {
+                        ids.add(new AccountId(keys.getLong(1)));
+                    }
+                }
+                if (ids.size() != accounts.size()) {
+                    throw new InternalException("Database did not return all generated keys");
+                }
+
+                var timestamp = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+                List<Transaction> transactions = new ArrayList<>();
+                for (int i = 0; i < accounts.size(); i++) {
+                    var balance = accounts.get(i).getBalance();
+                    if (balance.signum() == 0) {
+                        continue;
+                    }
+                    var transaction = Transaction.builder()
+                            .id(TransactionId.create())
+                            .toAccount(ids.get(i))
+                            .money(balance)
+                            .timestamp(timestamp)
+                            .build();
+                    insertTransaction.setBytes(1, transaction.getId().serialize());
+                    insertTransaction.setLong(2, ids.get(i).getValue());
+                    insertTransaction.setBigDecimal(3, balance);
+                    insertTransaction.setTimestamp(4, Timestamp.from(timestamp));
+                    insertTransaction.addBatch();
+                    transactions.add(transaction);
+                }
+                if (!transactions.isEmpty()) {
+                    insertTransaction.executeBatch();
+                }
+                commitLog.commitImport(conn, ids, accounts, transactions);
+                return ids;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    @Override
     public void updateAccount(AccountId accountId, @Nullable String description) {
+        var locks = lockAccounts(List.of(accountId));
         try (var conn = dataSource.getConnection();
              var statement = conn.prepareStatement("update account set description = ? where id = ?")
         ) {
+            conn.setAutoCommit(false);
             statement.setString(1, description);
             statement.setLong(2, accountId.getValue());
             statement.execute();
             if (statement.getUpdateCount() != 1) {
                 throw new AccountNotFoundException(accountId);
             }
-            conn.commit();
+            commitLog.commitAccount(conn, CommitEvent.Type.ACCOUNT_UPDATED, accountId, description);
         } catch (SQLException e) {
             throw new InternalException(e);
+        } finally {
+            locks.forEach(Lock::unlock);
         }
     }
 
+    @Override
     public Transaction moveMoney(
             @CheckForNull AccountId fromAccount,
             @CheckForNull AccountId toAccount,
@@ -63,98 +202,616 @@ public class AccountService {
             BigDecimal money
     ) {
         Preconditions.checkArgument(toAccount != null || fromAccount != null, "At least one account must be not null");
+        return transfer(fromAccount, toAccount, transactionId, money, Leg.LOCAL, null);
+    }
+
+    /**
+     * First step of a transfer to an account in another shard: takes the money from {@code fromAccount}
+     * and remembers that {@code toAccount} still has to be credited, see {@link #getPendingTransfers()}.
+     */
+    Transaction debitLeg(AccountId fromAccount, AccountId toAccount, TransactionId transactionId, BigDecimal money) {
+        Preconditions.checkNotNull(fromAccount);
+        Preconditions.checkNotNull(toAccount);
+        return transfer(fromAccount, toAccount, transactionId, money, Leg.DEBIT, null);
+    }
+
+    /**
+     * Second step of a transfer from an account in another shard, credits {@code transaction.getToAccount()}.
+     */
+    Transaction creditLeg(Transaction transaction) {
+        Preconditions.checkNotNull(transaction.getFromAccount());
+        Preconditions.checkNotNull(transaction.getToAccount());
+        return transfer(transaction.getFromAccount(), transaction.getToAccount(), transaction.getId(),
+                transaction.getMoney(), Leg.CREDIT, transaction.getTimestamp());
+    }
+
+    /**
+     * Transfers that were debited by {@link #debitLeg} but not yet marked complete.
+     */
+    List<Transaction> getPendingTransfers() {
+        try (Connection conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("select t.* from pending_transfer p join transaction t on t.id = p.id")
+        ) {
+            statement.execute();
+            List<Transaction> transactions = new ArrayList<>();
+            try (var rs = statement.getResultSet()) {
+                while (rs.next()) {
+                    transactions.add(parseTransaction(rs));
+                }
+            }
+            return transactions;
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    void completeTransfer(TransactionId transactionId) {
+        try (Connection conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("delete from pending_transfer where id = ?")
+        ) {
+            statement.setBytes(1, transactionId.serialize());
+            statement.execute();
+            conn.commit();
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Gives the money of a transfer taken by {@link #debitLeg} back to the sender, when the receiver's shard
+     * refused to credit it. The refund is a transfer from the receiver with its own id, and the original
+     * transfer is no longer pending after it. Both steps are idempotent, so a refund can be repeated.
+     */
+    Transaction refundTransfer(Transaction transaction, TransactionId refundId) {
+        Preconditions.checkNotNull(transaction.getFromAccount());
+        Preconditions.checkNotNull(transaction.getToAccount());
+        var refund = transfer(transaction.getToAccount(), transaction.getFromAccount(), refundId,
+                transaction.getMoney(), Leg.CREDIT, null);
+        completeTransfer(transaction.getId());
+        return refund;
+    }
+
+    /**
+     * Claims {@code transactionId} for a transfer in the shard the id belongs to, see {@link ShardedLedger}.
+     * Claiming it again for the same transfer succeeds, so repeated requests go on as usual.
+     *
+     * @throws DuplicateTransactionIdException if the id is claimed for another transfer
+     */
+    void claimTransactionId(
+            TransactionId transactionId,
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            BigDecimal money
+    ) {
+        try (Connection conn = dataSource.getConnection()) {
+            try (var statement = conn.prepareStatement(
+                    "insert into transaction_claim (id, from_acc, to_acc, money) values (?, ?, ?, ?)")) {
+                statement.setBytes(1, transactionId.serialize());
+                setAccount(statement, 2, fromAccount);
+                setAccount(statement, 3, toAccount);
+                statement.setBigDecimal(4, money);
+                statement.execute();
+                return;
+            } catch (SQLException e) {
+                if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+                    throw e;
+                }
+            }
+            try (var statement = conn.prepareStatement("select from_acc, to_acc, money from transaction_claim where id = ?")) {
+                statement.setBytes(1, transactionId.serialize());
+                try (var rs = statement.executeQuery()) {
+                    if (!rs.next()) {
+                        // claims are not expected to disappear from the database
+                        throw new InternalException("Duplicate transaction claim was removed");
+                    }
+                    long from = rs.getLong("from_acc");
+                    AccountId claimedFrom = rs.wasNull() ? null : new AccountId(from);
+                    long to = rs.getLong("to_acc");
+                    AccountId claimedTo = rs.wasNull() ? null : new AccountId(to);
+                    if (!Objects.equals(fromAccount, claimedFrom)
+                            || !Objects.equals(toAccount, claimedTo)
+                            || money.compareTo(rs.getBigDecimal("money")) != 0) {
+                        throw new DuplicateTransactionIdException(transactionId);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Claims ids of transactions stored in this database in the shards they belong to, for databases
+     * that were filled before ids were claimed or restored from a backup.
+     *
+     * @param claims takes a batch of transactions of one shard, only their ids and accounts are used
+     */
+    void claimStoredTransactions(int batchSize, Consumer<List<Transaction>> claims) {
+        try (Connection conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("select id, coalesce(from_acc, remote_acc) as from_acc,"
+                     + " coalesce(to_acc, remote_acc) as to_acc, money from transaction")
+        ) {
+            List<Transaction> batch = new ArrayList<>(batchSize);
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long from = rs.getLong("from_acc");
+                    AccountId fromAcc = rs.wasNull() ? null : new AccountId(from);
+                    long to = rs.getLong("to_acc");
+                    AccountId toAcc = rs.wasNull() ? null : new AccountId(to);
+                    batch.add(Transaction.builder()
+                            .id(TransactionId.deserialize(rs.getBytes("id")))
+                            .fromAccount(fromAcc)
+                            .toAccount(toAcc)
+                            .money(rs.getBigDecimal("money"))
+                            .build());
+                    if (batch.size() == batchSize) {
+                        claims.accept(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                claims.accept(batch);
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Claims ids of other shards in this database, see {@link #claimStoredTransactions}. Both legs of a transfer
+     * between shards claim the same id with the same details, so claims are merged.
+     */
+    void claimTransactionIds(List<Transaction> transactions) {
+        try (Connection conn = dataSource.getConnection();
+             var statement = conn.prepareStatement(
+                     "merge into transaction_claim (id, from_acc, to_acc, money) key (id) values (?, ?, ?, ?)")
+        ) {
+            conn.setAutoCommit(false);
+            for (var transaction : transactions) {
+                statement.setBytes(1, transaction.getId().serialize());
+                setAccount(statement, 2, transaction.getFromAccount());
+                setAccount(statement, 3, transaction.getToAccount());
+                statement.setBigDecimal(4, transaction.getMoney());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Whether ids of this database are claimed already, see {@link #claimStoredTransactions}.
+     */
+    boolean hasTransactionClaims() {
+        try (Connection conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("select exists(select 1 from transaction_claim)");
+             var rs = statement.executeQuery()
+        ) {
+            rs.next();
+            return rs.getBoolean(1);
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static void setAccount(PreparedStatement statement, int index, @CheckForNull AccountId account)
+            throws SQLException {
+        if (account != null) {
+            statement.setLong(index, account.getValue());
+        } else {
+            statement.setNull(index, Types.BIGINT);
+        }
+    }
+
+    /**
+     * Which accounts of a transfer live in this database.
+     */
+    private enum Leg {
+        /**
+         * Both accounts are here, or one of them is external.
+         */
+        LOCAL,
+        /**
+         * Only the sender is here.
+         */
+        DEBIT,
+        /**
+         * Only the receiver is here.
+         */
+        CREDIT,
+    }
+
+    private Transaction transfer(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money,
+            Leg leg,
+            @CheckForNull Instant timestamp
+    ) {
         Preconditions.checkNotNull(transactionId);
+        checkAmount(money);
+
+        AccountId debited = leg == Leg.CREDIT ? null : fromAccount;
+        AccountId credited = leg == Leg.DEBIT ? null : toAccount;
+        AccountId remote = leg == Leg.DEBIT ? toAccount : leg == Leg.CREDIT ? fromAccount : null;
+
+        List<AccountId> accounts = new ArrayList<>(2);
+        if (debited != null) {
+            accounts.add(debited);
+        }
+        if (credited != null) {
+            accounts.add(credited);
+        }
+        var locks = lockAccounts(accounts);
+        try {
+            return retryPolicy.execute(() -> transferOnce(fromAccount, toAccount, transactionId, money, leg, timestamp,
+                    debited, credited, remote));
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    void checkAmount(BigDecimal money) {
         Preconditions.checkNotNull(money);
         Preconditions.checkArgument(money.compareTo(BigDecimal.ZERO) > 0, "Money amount must be positive, found %s", money);
+    }
 
+    private Transaction transferOnce(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money,
+            Leg leg,
+            @CheckForNull Instant timestamp,
+            @CheckForNull AccountId debited,
+            @CheckForNull AccountId credited,
+            @CheckForNull AccountId remote
+    ) throws SQLException {
         try (Connection conn = dataSource.getConnection()) {
             try {
                 conn.setAutoCommit(false);
 
-                Transaction transaction;
-                try {
-                    // This code relies on primary key to prevent duplicate transactions.
-                    transaction = createTransaction(conn, transactionId, fromAccount, toAccount, money);
-                } catch (SQLException e) {
-                    switch (e.getErrorCode()) {
-                        case ErrorCode.DUPLICATE_KEY_1:
-                            Transaction existingTransaction = getTransaction(conn, transactionId);
-                            if (existingTransaction != null) {
-                                if (Objects.equals(fromAccount, existingTransaction.getFromAccount())
-                                        && Objects.equals(toAccount, existingTransaction.getToAccount())
-                                        && money.equals(existingTransaction.getMoney())) {
-                                    // this is a duplicate call
-                                    return existingTransaction;
-                                } else {
-                                    // same id, but different values
-                                    throw new DuplicateTransactionIdException(transactionId);
-                                }
-                            } else {
-                                // transactions are not expected to disappear from the database
-                                throw new InternalException("Duplicate transaction was removed");
-                            }
-                        case ErrorCode.REFERENTIAL_INTEGRITY_VIOLATED_PARENT_MISSING_1:
-                            // A bit fragile, but there's a test.
-                            if (e.getMessage().contains("FOREIGN KEY(FROM_ACC)")) {
-                                throw new AccountNotFoundException(Objects.requireNonNull(fromAccount));
-                            }
-                            if (e.getMessage().contains("FOREIGN KEY(TO_ACC)")) {
-                                throw new AccountNotFoundException(Objects.requireNonNull(toAccount));
-                            }
-                            throw new InternalException("Failed to recognize the violated constraint.");
-                        default:
-                            throw e;
-                    }
-                }
-
-                if (fromAccount != null) {
+                if (debited != null) {
                     try (var statement = conn.prepareStatement("update account set money = money - ? where id = ? and money >= ?")) {
                         statement.setBigDecimal(1, money);
-                        statement.setLong(2, fromAccount.getValue());
+                        statement.setLong(2, debited.getValue());
                         statement.setBigDecimal(3, money);
-                        statement.execute();
-                        if (statement.getUpdateCount() != 1) {
-                            // Note that we have already checked for account existence with a foreign key in the transaction
-                            throw new NotEnoughMoneyException(fromAccount);
+                        if (statement.executeUpdate() != 1) {
+                            return rejected(conn, fromAccount, toAccount, transactionId, money, debited, credited);
                         }
                     }
                 }
 
-                if (toAccount != null) {
+                if (credited != null) {
                     try (var statement = conn.prepareStatement("update account set money = money + ? where id = ?")) {
                         statement.setBigDecimal(1, money);
-                        statement.setLong(2, toAccount.getValue());
-                        statement.execute();
-                        if (statement.getUpdateCount() != 1) {
-                            // this should not really happen as transaction has a foreign key constraint
-                            throw new AccountNotFoundException(toAccount);
+                        statement.setLong(2, credited.getValue());
+                        if (statement.executeUpdate() != 1) {
+                            return rejected(conn, fromAccount, toAccount, transactionId, money, debited, credited);
                         }
                     }
                 }
 
-                conn.commit();
-                return transaction;
+                var transaction = Transaction.builder()
+                        .id(transactionId)
+                        .fromAccount(debited != null ? debited : remote)
+                        .toAccount(credited != null ? credited : remote)
+                        .money(money)
+                        .timestamp(timestamp != null ? timestamp : Instant.ofEpochMilli(System.currentTimeMillis()))
+                        .build();
+                try {
+                    // The row is written with its sequence number, so it is not updated again on commit.
+                    // This code relies on primary key to prevent duplicate transactions.
+                    return commitLog.commitTransfer(conn, transaction, debited, credited,
+                            sequence -> insertTransaction(conn, transaction, debited, credited, remote, leg, sequence));
+                } catch (SQLException e) {
+                    if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+                        throw e;
+                    }
+                    conn.rollback();
+                    Transaction existingTransaction = getTransaction(conn, transactionId);
+                    if (existingTransaction == null) {
+                        // transactions are not expected to disappear from the database
+                        throw new InternalException("Duplicate transaction was removed");
+                    }
+                    return duplicate(existingTransaction, fromAccount, toAccount, money);
+                }
             } catch (Exception e) {
                 conn.rollback();
                 throw e;
             }
+        }
+    }
+
+    /**
+     * Explains why a balance was not changed. A repeated transfer may fail to change balances again,
+     * so it is looked up first and returned if it is the same.
+     */
+    private Transaction rejected(
+            Connection conn,
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money,
+            @CheckForNull AccountId debited,
+            @CheckForNull AccountId credited
+    ) throws SQLException {
+        conn.rollback();
+        Transaction existingTransaction = getTransaction(conn, transactionId);
+        if (existingTransaction != null) {
+            return duplicate(existingTransaction, fromAccount, toAccount, money);
+        }
+        if (debited != null && !accountExists(conn, debited)) {
+            throw new AccountNotFoundException(debited);
+        }
+        if (credited != null && !accountExists(conn, credited)) {
+            throw new AccountNotFoundException(credited);
+        }
+        throw new NotEnoughMoneyException(Objects.requireNonNull(debited));
+    }
+
+    private static Transaction duplicate(
+            Transaction existingTransaction,
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            BigDecimal money
+    ) {
+        if (Objects.equals(fromAccount, existingTransaction.getFromAccount())
+                && Objects.equals(toAccount, existingTransaction.getToAccount())
+                && money.equals(existingTransaction.getMoney())) {
+            // this is a duplicate call
+            return existingTransaction;
+        } else {
+            // same id, but different values
+            throw new DuplicateTransactionIdException(existingTransaction.getId());
+        }
+    }
+
+    /**
+     * Takes locks of the accounts in stripe order. Waits for a lock are reported to {@link #hotAccounts}
+     * for every account of the stripe.
+     */
+    private Iterable<Lock> lockAccounts(Collection<AccountId> accounts) {
+        var locks = accountLocks.bulkGet(accounts.stream().map(AccountId::getValue).collect(Collectors.toList()));
+        var tracker = hotAccounts;
+        Map<Lock, List<AccountId>> accountsOfLock = null;
+        for (var lock : locks) {
+            if (tracker == null) {
+                lock.lock();
+                continue;
+            }
+            if (lock.tryLock()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            lock.lock();
+            long waited = System.nanoTime() - start;
+            if (accountsOfLock == null) {
+                accountsOfLock = new IdentityHashMap<>();
+                for (var account : accounts) {
+                    accountsOfLock.computeIfAbsent(accountLocks.get(account.getValue()), l -> new ArrayList<>(1)).add(account);
+                }
+            }
+            for (var account : accountsOfLock.get(lock)) {
+                tracker.lockWaited(account, waited);
+            }
+        }
+        return locks;
+    }
+
+    /**
+     * Runs a database transaction that changes balances of the accounts, for changes made outside of this class
+     * like {@link AdjustmentJobs}. Transfers of the accounts wait meanwhile.
+     */
+    <T> T changeAccounts(Collection<AccountId> accounts, RetryPolicy.SqlTransaction<T> transaction) {
+        var locks = lockAccounts(accounts);
+        try {
+            return retryPolicy.execute(transaction);
         } catch (SQLException e) {
             throw new InternalException(e);
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    /**
+     * Commits transfers between accounts of this database in one database transaction, for {@link NettingLedger}.
+     * Every transfer gets its own row and sequence number, but each account is updated once, by the sum
+     * of its transfers. Transfers are checked in order against balances that include the transfers accepted
+     * before them, so a rejected transfer does not fail the others and no balance goes negative.
+     * <p>
+     * Decides the outcome of every transfer, see {@link NettingLedger.Transfer}.
+     */
+    void commitNetted(List<NettingLedger.Transfer> transfers) {
+        List<AccountId> accounts = new ArrayList<>();
+        for (var transfer : transfers) {
+            if (transfer.from != null) {
+                accounts.add(transfer.from);
+            }
+            if (transfer.to != null) {
+                accounts.add(transfer.to);
+            }
+        }
+        changeAccounts(accounts, () -> commitNettedOnce(transfers, accounts));
+    }
+
+    private Void commitNettedOnce(List<NettingLedger.Transfer> transfers, List<AccountId> accounts) throws SQLException {
+        // balances can't change meanwhile, all changes of the accounts are under the locks
+        Map<AccountId, BigDecimal> balances = new HashMap<>();
+        readAccounts(accounts).forEach((id, account) -> balances.put(id, account.getBalance()));
+        try (Connection conn = dataSource.getConnection()) {
+            try {
+                conn.setAutoCommit(false);
+                var stored = findTransactions(conn, transfers.stream().map(t -> t.id).collect(Collectors.toList()));
+                Map<TransactionId, NettingLedger.Transfer> accepted = new LinkedHashMap<>();
+                Map<AccountId, BigDecimal> changes = new LinkedHashMap<>();
+                for (var transfer : transfers) {
+                    transfer.reset();
+                    try {
+                        var existing = stored.get(transfer.id);
+                        var earlier = accepted.get(transfer.id);
+                        if (existing != null) {
+                            transfer.transaction = duplicate(existing, transfer.from, transfer.to, transfer.money);
+                        } else if (earlier != null) {
+                            duplicate(earlier.transaction, transfer.from, transfer.to, transfer.money);
+                            transfer.sameAs = earlier;
+                        } else {
+                            accept(transfer, balances, changes);
+                            accepted.put(transfer.id, transfer);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        transfer.rejection = e;
+                    }
+                }
+                if (accepted.isEmpty()) {
+                    conn.rollback();
+                    return null;
+                }
+
+                try (var statement = conn.prepareStatement("update account set money = money + ? where id = ? and money + ? >= 0")) {
+                    for (var change : changes.entrySet()) {
+                        if (change.getValue().signum() == 0) {
+                            // transfers back and forth cancelled out
+                            continue;
+                        }
+                        statement.setBigDecimal(1, change.getValue());
+                        statement.setLong(2, change.getKey().getValue());
+                        statement.setBigDecimal(3, change.getValue());
+                        statement.addBatch();
+                    }
+                    for (int count : statement.executeBatch()) {
+                        if (count != 1) {
+                            throw new InternalException("A balance changed while transfers were netted");
+                        }
+                    }
+                }
+                List<Transaction> transactions = accepted.values().stream()
+                        .map(transfer -> transfer.transaction)
+                        .collect(Collectors.toList());
+                var committed = commitLog.commitTransfers(conn, transactions,
+                        sequence -> insertTransactions(conn, transactions, sequence));
+                int i = 0;
+                for (var transfer : accepted.values()) {
+                    transfer.transaction = committed.get(i++);
+                }
+                return null;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Checks the transfer against the projected balances and adds it to them.
+     */
+    private static void accept(
+            NettingLedger.Transfer transfer,
+            Map<AccountId, BigDecimal> balances,
+            Map<AccountId, BigDecimal> changes
+    ) {
+        if (transfer.from != null && !balances.containsKey(transfer.from)) {
+            throw new AccountNotFoundException(transfer.from);
+        }
+        if (transfer.to != null && !balances.containsKey(transfer.to)) {
+            throw new AccountNotFoundException(transfer.to);
+        }
+        if (transfer.from != null) {
+            if (balances.get(transfer.from).compareTo(transfer.money) < 0) {
+                throw new NotEnoughMoneyException(transfer.from);
+            }
+            balances.merge(transfer.from, transfer.money.negate(), BigDecimal::add);
+            changes.merge(transfer.from, transfer.money.negate(), BigDecimal::add);
+        }
+        if (transfer.to != null) {
+            balances.merge(transfer.to, transfer.money, BigDecimal::add);
+            changes.merge(transfer.to, transfer.money, BigDecimal::add);
+        }
+        transfer.transaction = Transaction.builder()
+                .id(transfer.id)
+                .fromAccount(transfer.from)
+                .toAccount(transfer.to)
+                .money(transfer.money)
+                .timestamp(transfer.timestamp)
+                .build();
+    }
+
+    static Map<TransactionId, Transaction> findTransactions(Connection conn, List<TransactionId> ids)
+            throws SQLException {
+        Map<TransactionId, Transaction> result = new HashMap<>();
+        for (int start = 0; start < ids.size(); start += MAX_ACCOUNT_CHUNK) {
+            var chunk = ids.subList(start, Math.min(start + MAX_ACCOUNT_CHUNK, ids.size()));
+            int size = paddedSize(chunk.size());
+            try (var statement = conn.prepareStatement(
+                    "select * from transaction where id in (" + placeholders(size) + ")")) {
+                for (int i = 0; i < size; i++) {
+                    statement.setBytes(i + 1, chunk.get(Math.min(i, chunk.size() - 1)).serialize());
+                }
+                try (var rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        var transaction = parseTransaction(rs);
+                        result.put(transaction.getId(), transaction);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    static void insertTransactions(Connection conn, List<Transaction> transactions, long firstSequence)
+            throws SQLException {
+        try (var statement = conn.prepareStatement(
+                "insert into transaction(id, from_acc, to_acc, money, time, seq) values(?, ?, ?, ?, ?, ?)")) {
+            long sequence = firstSequence;
+            for (var transaction : transactions) {
+                statement.setBytes(1, transaction.getId().serialize());
+                if (transaction.getFromAccount() != null) {
+                    statement.setLong(2, transaction.getFromAccount().getValue());
+                } else {
+                    statement.setNull(2, Types.BIGINT);
+                }
+                if (transaction.getToAccount() != null) {
+                    statement.setLong(3, transaction.getToAccount().getValue());
+                } else {
+                    statement.setNull(3, Types.BIGINT);
+                }
+                statement.setBigDecimal(4, transaction.getMoney());
+                statement.setTimestamp(5, new Timestamp(transaction.getTimestamp().toEpochMilli()));
+                statement.setLong(6, sequence++);
+                statement.addBatch();
+            }
+            statement.executeBatch();
         }
     }
 
+    private static boolean accountExists(Connection conn, AccountId account) throws SQLException {
+        try (var statement = conn.prepareStatement("select 1 from account where id = ?")) {
+            statement.setLong(1, account.getValue());
+            try (var rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    @Override
     public Account getAccount(AccountId account) {
         Preconditions.checkNotNull(account);
         try (Connection conn = dataSource.getConnection()) {
-            try (var statement = conn.prepareStatement("select * from account where id = ?")) {
+            // columns by position, looking them up by name makes H2 build a map for every result
+            try (var statement = conn.prepareStatement("select description, money from account where id = ?")) {
                 statement.setLong(1, account.getValue());
-                statement.execute();
-                try (var rs = statement.getResultSet()) {
-                    if (!rs.first()) {
+                try (var rs = statement.executeQuery()) {
+                    if (!rs.next()) {
                         throw new AccountNotFoundException(account);
                     }
-                    var balance = rs.getBigDecimal("money");
-                    var description = rs.getString("description");
+                    var description = rs.getString(1);
+                    var balance = rs.getBigDecimal(2);
                     return Account.builder()
                             .id(account)
                             .balance(balance)
@@ -167,10 +824,66 @@ public class AccountService {
         }
     }
 
+    @Override
+    public Map<AccountId, Account> getAccounts(Collection<AccountId> accounts, boolean consistent) {
+        Preconditions.checkNotNull(accounts);
+        if (consistent) {
+            return commitLog.whilePaused(() -> readAccounts(accounts));
+        }
+        return readAccounts(accounts);
+    }
+
+    /**
+     * Reads accounts with {@code where id in (...)} a chunk at a time.
+     */
+    Map<AccountId, Account> readAccounts(Collection<AccountId> accounts) {
+        List<AccountId> ids = accounts.stream().distinct().collect(Collectors.toList());
+        Map<AccountId, Account> result = new HashMap<>();
+        try (Connection conn = dataSource.getConnection()) {
+            for (int start = 0; start < ids.size(); start += MAX_ACCOUNT_CHUNK) {
+                var chunk = ids.subList(start, Math.min(start + MAX_ACCOUNT_CHUNK, ids.size()));
+                int size = paddedSize(chunk.size());
+                try (var statement = conn.prepareStatement(
+                        "select id, description, money from account where id in (" + placeholders(size) + ")")) {
+                    for (int i = 0; i < size; i++) {
+                        statement.setLong(i + 1, chunk.get(Math.min(i, chunk.size() - 1)).getValue());
+                    }
+                    try (var rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            var id = new AccountId(rs.getLong(1));
+                            result.put(id, Account.builder()
+                                    .id(id)
+                                    .description(rs.getString(2))
+                                    .balance(rs.getBigDecimal(3))
+                                    .build());
+                        }
+                    }
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Chunks of {@code in (...)} are padded to a power of two by repeating the last value,
+     * so there are only a few statements for H2 to parse and cache.
+     */
+    private static int paddedSize(int size) {
+        return Integer.highestOneBit(size * 2 - 1);
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    @Override
     public BigDecimal getBalance(AccountId account) {
         return getAccount(account).getBalance();
     }
 
+    @Override
     public List<Transaction> getTransactions(
             AccountId account,
             @CheckForNull Integer limit,
@@ -185,7 +898,7 @@ public class AccountService {
             // I expect the driver or the db to optimize this query, but did not check.
             try (var statement = conn.prepareStatement("select * from transaction where" +
                     " (from_acc = ? or to_acc = ?) and (? is null or time < ?) and (? is null or time > ?)" +
-                    " order by time desc limit ? offset ?")) {
+                    " order by time desc, seq desc limit ? offset ?")) {
                 statement.setLong(1, account.getValue());
                 statement.setLong(2, account.getValue());
                 Timestamp from = fromTimestamp == null ? null : Timestamp.from(fromTimestamp);
@@ -210,6 +923,28 @@ public class AccountService {
         }
     }
 
+    @Override
+    public Transaction getTransaction(TransactionId transactionId) {
+        var transaction = findTransaction(transactionId);
+        if (transaction == null) {
+            throw new TransactionNotFoundException(transactionId);
+        }
+        return transaction;
+    }
+
+    /**
+     * For transfers between shards it is the leg stored in this database.
+     */
+    @CheckForNull
+    Transaction findTransaction(TransactionId transactionId) {
+        Preconditions.checkNotNull(transactionId);
+        try (Connection conn = dataSource.getConnection()) {
+            return getTransaction(conn, transactionId);
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
     @CheckForNull
     private Transaction getTransaction(Connection conn, TransactionId transactionId) throws SQLException {
         try (var statement = conn.prepareStatement("select * from transaction where id = ?")) {
@@ -225,35 +960,43 @@ public class AccountService {
         }
     }
 
-    private static Transaction parseTransaction(ResultSet rs) throws SQLException {
+    static Transaction parseTransaction(ResultSet rs) throws SQLException {
         long fromId = rs.getLong("from_acc");
         AccountId fromAcc = rs.wasNull() ? null : new AccountId(fromId);
         long toId = rs.getLong("to_acc");
         AccountId toAcc = rs.wasNull() ? null : new AccountId(toId);
+        long remoteId = rs.getLong("remote_acc");
+        if (!rs.wasNull()) {
+            // one leg of a transfer between shards, the missing side lives in the other shard
+            if (fromAcc == null) {
+                fromAcc = new AccountId(remoteId);
+            } else {
+                toAcc = new AccountId(remoteId);
+            }
+        }
         return Transaction.builder()
                 .id(TransactionId.deserialize(rs.getBytes("id")))
                 .money(rs.getBigDecimal("money"))
                 .fromAccount(fromAcc)
                 .toAccount(toAcc)
                 .timestamp(rs.getTimestamp("time").toInstant())
+                .sequence(rs.getLong("seq"))
                 .build();
     }
 
-    private Transaction createTransaction(
+    private static void insertTransaction(
             Connection conn,
-            TransactionId transactionId,
+            Transaction transaction,
             @Nullable AccountId from,
             @Nullable AccountId to,
-            BigDecimal money
+            @Nullable AccountId remote,
+            Leg leg,
+            long sequence
     ) throws SQLException {
-        Preconditions.checkNotNull(conn);
-        Preconditions.checkNotNull(transactionId);
-        Preconditions.checkNotNull(money);
-
-        Instant timestamp = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        byte[] id = transaction.getId().serialize();
         try (var statement = conn.prepareStatement(
-                "insert into transaction(id, from_acc, to_acc, money, time) values(?, ?, ?, ?, ?)")) {
-            statement.setBytes(1, transactionId.serialize());
+                "insert into transaction(id, from_acc, to_acc, remote_acc, money, time, seq) values(?, ?, ?, ?, ?, ?, ?)")) {
+            statement.setBytes(1, id);
             if (from != null) {
                 statement.setLong(2, from.getValue());
             } else {
@@ -264,20 +1007,23 @@ public class AccountService {
             } else {
                 statement.setNull(3, Types.BIGINT);
             }
-            statement.setBigDecimal(4, money);
-            statement.setTimestamp(5, Timestamp.from(timestamp));
-            statement.execute();
-            if (statement.getUpdateCount() != 1) {
+            if (remote != null) {
+                statement.setLong(4, remote.getValue());
+            } else {
+                statement.setNull(4, Types.BIGINT);
+            }
+            statement.setBigDecimal(5, transaction.getMoney());
+            statement.setTimestamp(6, new Timestamp(transaction.getTimestamp().toEpochMilli()));
+            statement.setLong(7, sequence);
+            if (statement.executeUpdate() != 1) {
                 throw new InternalException("Failed to create a transaction");
             }
-            return Transaction.builder()
-                    .id(transactionId)
-                    .fromAccount(from)
-                    .toAccount(to)
-                    .money(money)
-                    .timestamp(timestamp)
-                    .build();
+        }
+        if (leg == Leg.DEBIT) {
+            try (var statement = conn.prepareStatement("insert into pending_transfer (id) values (?)")) {
+                statement.setBytes(1, id);
+                statement.execute();
+            }
         }
     }
-
 }
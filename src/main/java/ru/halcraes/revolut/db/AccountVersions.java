@@ -0,0 +1,65 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Version numbers of accounts, so that a client can ask whether an account or its history changed
+ * without the database being read.
+ * <p>
+ * Every committed change of an account bumps its version before the call that made the change returns.
+ * Versions live in a fixed number of slots picked by account id, accounts that share a slot bump each
+ * other's versions. That only costs an occasional full response, a version never stays the same
+ * while its account changes. Counting starts again on every start, so versions are qualified
+ * with a random epoch.
+ */
+@ThreadSafe
+public class AccountVersions implements CommitListener {
+    private final AtomicLongArray versions;
+    private final String epoch = Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, Character.MAX_RADIX);
+
+    /**
+     * @param slots memory is 8 bytes per slot, fewer slots mean more unneeded full responses
+     */
+    public AccountVersions(CommitLog commitLog, int slots) {
+        Preconditions.checkArgument(slots > 0, "Slots must be positive, found %s", slots);
+        this.versions = new AtomicLongArray(slots);
+        commitLog.addListener(this);
+    }
+
+    /**
+     * Identifies the current state of the account and its history. Read it before the account,
+     * then a change that comes in between makes the tag older than the data, and never the other way round.
+     */
+    public String getTag(AccountId account) {
+        return epoch + "-" + Long.toString(account.getValue(), Character.MAX_RADIX)
+                + "-" + Long.toString(versions.get(slot(account)), Character.MAX_RADIX);
+    }
+
+    @Override
+    public void committed(CommitEvent event) {
+        switch (event.getType()) {
+            case ACCOUNT_CREATED:
+            case ACCOUNT_UPDATED:
+                bump(event.getAccount());
+                break;
+            case TRANSFER:
+                bump(event.getDebited());
+                bump(event.getCredited());
+                break;
+        }
+    }
+
+    private void bump(AccountId account) {
+        if (account != null) {
+            versions.incrementAndGet(slot(account));
+        }
+    }
+
+    private int slot(AccountId account) {
+        return (int) Math.floorMod(account.getValue() * 0x9E3779B97F4A7C15L >>> 32, (long) versions.length());
+    }
+}
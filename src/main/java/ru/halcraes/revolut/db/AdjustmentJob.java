@@ -0,0 +1,55 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * A change of every account in a range of ids, made by {@link AdjustmentJobs}, with its progress.
+ */
+@Data
+@Builder
+public class AdjustmentJob {
+    public enum Rule {
+        /**
+         * Takes {@code amount} from every account that has it, others are skipped.
+         */
+        FEE,
+        /**
+         * Gives {@code amount} to every account.
+         */
+        CREDIT,
+        /**
+         * Gives every account its balance times {@code amount}, rounded down to cents.
+         * Accounts that would get nothing are skipped.
+         */
+        INTEREST,
+    }
+
+    private final long id;
+    private final String name;
+    private final Rule rule;
+    private final BigDecimal amount;
+    private final AccountId firstAccount;
+    private final AccountId lastAccount;
+    private final Instant created;
+    private final long chunks;
+    private final long doneChunks;
+    /**
+     * Accounts changed so far.
+     */
+    private final long adjusted;
+    private final long skipped;
+    /**
+     * Money moved so far, in either direction.
+     */
+    private final BigDecimal total;
+    /**
+     * Chunks are being adjusted. A job that is neither running nor done failed and is resumed
+     * by creating it again or by a restart.
+     */
+    private final boolean running;
+    private final boolean done;
+}
@@ -0,0 +1,14 @@
+package ru.halcraes.revolut.db;
+
+public class AdjustmentJobNotFoundException extends IllegalArgumentException {
+    private final long id;
+
+    public AdjustmentJobNotFoundException(long id) {
+        super("Adjustment job not found: " + id);
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+}
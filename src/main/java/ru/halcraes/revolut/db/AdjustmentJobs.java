@@ -0,0 +1,486 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a rule like a monthly fee or interest to every account in a range of ids, see {@link AdjustmentJob.Rule}.
+ * <p>
+ * A job is split into chunks of {@value #CHUNK_ACCOUNTS} account ids that are stored with it. A chunk is adjusted
+ * in one database transaction while transfers of its accounts wait: balances of the whole range are changed
+ * by one {@code update}, every changed account gets its own {@link Transaction} from or to outside, and the chunk
+ * is marked done. After a crash the chunks that are not done are adjusted on start.
+ * <p>
+ * Transaction ids are made of the job name and the account, and a request to create a job with the name
+ * of an existing one returns that job, so a repeated request never adjusts an account twice.
+ * Chunks of all jobs are adjusted by a few threads and no faster than the given number of accounts per second,
+ * so that live transfers are not starved of locks and connections.
+ */
+@ThreadSafe
+public class AdjustmentJobs implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AdjustmentJobs.class);
+    static final int CHUNK_ACCOUNTS = 100;
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final int CENTS = 2;
+
+    private final AccountService ledger;
+    private final DataSource dataSource;
+    private final UUID databaseId;
+    private final int threads;
+    private final ExecutorService workers;
+    private final RateLimiter throttle;
+    /**
+     * Jobs that have workers, so that a job is not run twice at the same time.
+     */
+    private final Set<Long> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private AdjustmentJobs(AccountService ledger, int threads, double accountsPerSecond) {
+        this.ledger = ledger;
+        this.dataSource = ledger.getDataSource();
+        this.databaseId = TransferScheduler.readDatabaseId(dataSource);
+        this.threads = threads;
+        this.throttle = RateLimiter.create(accountsPerSecond);
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "adjustment");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Resumes jobs that are not done.
+     *
+     * @param threads           how many chunks are adjusted at the same time
+     * @param accountsPerSecond how fast all jobs together adjust accounts
+     */
+    public static AdjustmentJobs start(AccountService ledger, int threads, double accountsPerSecond) {
+        Preconditions.checkArgument(threads > 0, "Threads must be positive, found %s", threads);
+        Preconditions.checkArgument(accountsPerSecond > 0, "Accounts per second must be positive, found %s", accountsPerSecond);
+        var jobs = new AdjustmentJobs(ledger, threads, accountsPerSecond);
+        for (long id : jobs.unfinishedJobs()) {
+            log.info("Resuming adjustment job {}", id);
+            jobs.run(id);
+        }
+        return jobs;
+    }
+
+    /**
+     * Creates the job and starts it. The job with the same name is returned as it is if the details match,
+     * and resumed if it failed.
+     *
+     * @param amount       money per account, or the interest rate
+     * @param firstAccount first account of the range, {@code null} for the first account of the ledger
+     * @param lastAccount  last account of the range, {@code null} for the last account created so far
+     * @throws IllegalArgumentException if there is a job with the same name and other details
+     */
+    public synchronized AdjustmentJob create(
+            String name,
+            AdjustmentJob.Rule rule,
+            BigDecimal amount,
+            @CheckForNull AccountId firstAccount,
+            @CheckForNull AccountId lastAccount
+    ) {
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(name), "Name is required");
+        Preconditions.checkArgument(name.length() <= MAX_NAME_LENGTH,
+                "Name must be at most %s characters, found %s", MAX_NAME_LENGTH, name.length());
+        Preconditions.checkNotNull(rule, "Rule is required");
+        Preconditions.checkNotNull(amount, "Amount is required");
+        if (rule == AdjustmentJob.Rule.INTEREST) {
+            Preconditions.checkArgument(amount.signum() > 0, "Interest rate must be positive, found %s", amount);
+        } else {
+            ledger.checkAmount(amount);
+        }
+        Preconditions.checkArgument(firstAccount == null || lastAccount == null
+                        || firstAccount.getValue() <= lastAccount.getValue(),
+                "First account %s is after the last one %s", firstAccount, lastAccount);
+
+        long id;
+        try (var conn = dataSource.getConnection()) {
+            try {
+                conn.setAutoCommit(false);
+                var existing = find(conn, name);
+                if (existing != null) {
+                    conn.rollback();
+                    Preconditions.checkArgument(existing.getRule() == rule
+                                    && existing.getAmount().compareTo(amount) == 0
+                                    && (firstAccount == null || firstAccount.equals(existing.getFirstAccount()))
+                                    && (lastAccount == null || lastAccount.equals(existing.getLastAccount())),
+                            "Adjustment job %s exists with other details", name);
+                    id = existing.getId();
+                } else {
+                    id = insert(conn, name, rule, amount, firstAccount, lastAccount);
+                    conn.commit();
+                }
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+        run(id);
+        return get(id);
+    }
+
+    public AdjustmentJob get(long id) {
+        try (var conn = dataSource.getConnection();
+             var jobStatement = conn.prepareStatement("select * from adjustment_job where id = ?");
+             var chunkStatement = conn.prepareStatement("select count(*), sum(case when done then 1 else 0 end)," +
+                     " sum(adjusted), sum(skipped), sum(total) from adjustment_chunk where job_id = ?")
+        ) {
+            jobStatement.setLong(1, id);
+            AdjustmentJob.AdjustmentJobBuilder job;
+            try (var rs = jobStatement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new AdjustmentJobNotFoundException(id);
+                }
+                job = parse(rs);
+            }
+            chunkStatement.setLong(1, id);
+            try (var rs = chunkStatement.executeQuery()) {
+                rs.next();
+                long chunks = rs.getLong(1);
+                long doneChunks = rs.getLong(2);
+                var total = rs.getBigDecimal(5);
+                return job
+                        .chunks(chunks)
+                        .doneChunks(doneChunks)
+                        .adjusted(rs.getLong(3))
+                        .skipped(rs.getLong(4))
+                        .total(total == null ? BigDecimal.ZERO : total)
+                        .running(running.contains(id))
+                        .done(doneChunks == chunks)
+                        .build();
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    TransactionId transactionId(AdjustmentJob job, AccountId account) {
+        String name = "adjustment/" + databaseId + "/" + job.getName() + "/" + account.getValue();
+        return TransactionId.of(UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @CheckForNull
+    private static AdjustmentJob find(Connection conn, String name) throws SQLException {
+        try (var statement = conn.prepareStatement("select * from adjustment_job where name = ?")) {
+            statement.setString(1, name);
+            try (var rs = statement.executeQuery()) {
+                return rs.next() ? parse(rs).build() : null;
+            }
+        }
+    }
+
+    private static AdjustmentJob.AdjustmentJobBuilder parse(ResultSet rs) throws SQLException {
+        return AdjustmentJob.builder()
+                .id(rs.getLong("id"))
+                .name(rs.getString("name"))
+                .rule(AdjustmentJob.Rule.valueOf(rs.getString("rule")))
+                .amount(rs.getBigDecimal("amount"))
+                .firstAccount(new AccountId(rs.getLong("first_acc")))
+                .lastAccount(new AccountId(rs.getLong("last_acc")))
+                .created(rs.getTimestamp("created").toInstant());
+    }
+
+    /**
+     * Stores the job and its chunks. Chunks only cover ids of accounts that exist, accounts created later
+     * are not adjusted even if they are in the range.
+     */
+    private static long insert(
+            Connection conn,
+            String name,
+            AdjustmentJob.Rule rule,
+            BigDecimal amount,
+            @CheckForNull AccountId firstAccount,
+            @CheckForNull AccountId lastAccount
+    ) throws SQLException {
+        long minId;
+        long maxId;
+        try (var rs = conn.createStatement().executeQuery("select min(id), max(id) from account")) {
+            rs.next();
+            minId = rs.getLong(1);
+            maxId = rs.wasNull() ? minId - 1 : rs.getLong(2);
+        }
+        long first = firstAccount == null ? minId : firstAccount.getValue();
+        long last = lastAccount == null ? maxId : lastAccount.getValue();
+
+        long id;
+        try (var statement = conn.prepareStatement("insert into adjustment_job (name, rule, amount, first_acc, last_acc, created)" +
+                " values (?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+            statement.setString(1, name);
+            statement.setString(2, rule.name());
+            statement.setBigDecimal(3, amount);
+            statement.setLong(4, first);
+            statement.setLong(5, last);
+            statement.setTimestamp(6, new Timestamp(System.currentTimeMillis()));
+            statement.executeUpdate();
+            try (var keys = statement.getGeneratedKeys()) {
+                if (!keys.next()) {
+                    throw new InternalException("Database did not return a generated key");
+                }
+                id = keys.getLong(1);
+            }
+        }
+
+        long to = Math.min(last, maxId);
+        try (var statement = conn.prepareStatement("insert into adjustment_chunk" +
+                " (job_id, first_acc, last_acc, done, adjusted, skipped, total) values (?, ?, ?, false, 0, 0, 0)")) {
+            int batch = 0;
+            for (long start = Math.max(first, minId); start <= to; start += CHUNK_ACCOUNTS) {
+                statement.setLong(1, id);
+                statement.setLong(2, start);
+                statement.setLong(3, Math.min(to, start + CHUNK_ACCOUNTS - 1));
+                statement.addBatch();
+                if (++batch % 1000 == 0) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+        return id;
+    }
+
+    private List<Long> unfinishedJobs() {
+        try (var conn = dataSource.getConnection();
+             var rs = conn.createStatement().executeQuery("select distinct job_id from adjustment_chunk where not done")
+        ) {
+            List<Long> ids = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+            return ids;
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private List<Chunk> pendingChunks(long jobId) {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement(
+                     "select first_acc, last_acc from adjustment_chunk where job_id = ? and not done order by first_acc")
+        ) {
+            statement.setLong(1, jobId);
+            List<Chunk> chunks = new ArrayList<>();
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    chunks.add(new Chunk(rs.getLong(1), rs.getLong(2)));
+                }
+            }
+            return chunks;
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private void run(long jobId) {
+        if (closed || !running.add(jobId)) {
+            return;
+        }
+        var job = get(jobId);
+        var chunks = new ConcurrentLinkedQueue<>(pendingChunks(jobId));
+        int n = Math.max(1, Math.min(threads, chunks.size()));
+        var left = new AtomicInteger(n);
+        for (int i = 0; i < n; i++) {
+            workers.execute(() -> {
+                try {
+                    Chunk chunk;
+                    while (!closed && (chunk = chunks.poll()) != null) {
+                        adjust(job, chunk);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Adjustment job {} failed, it is resumed when it is created again or on restart", jobId, e);
+                } finally {
+                    if (left.decrementAndGet() == 0) {
+                        running.remove(jobId);
+                        if (!closed) {
+                            log.info("Adjustment job {} stopped: {}", jobId, get(jobId));
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void adjust(AdjustmentJob job, Chunk chunk) {
+        List<AccountId> accounts = new ArrayList<>();
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("select id from account where id between ? and ?")
+        ) {
+            statement.setLong(1, chunk.first);
+            statement.setLong(2, chunk.last);
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    accounts.add(new AccountId(rs.getLong(1)));
+                }
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+        throttle.acquire(Math.max(1, accounts.size()));
+        ledger.changeAccounts(accounts, () -> adjustOnce(job, chunk));
+    }
+
+    private Void adjustOnce(AdjustmentJob job, Chunk chunk) throws SQLException {
+        try (var conn = dataSource.getConnection()) {
+            try {
+                conn.setAutoCommit(false);
+                var timestamp = Instant.ofEpochMilli(System.currentTimeMillis());
+                List<Transaction> transactions = new ArrayList<>();
+                long skipped = 0;
+                var total = BigDecimal.ZERO;
+                try (var statement = conn.prepareStatement("select id, money from account where id between ? and ? order by id")) {
+                    statement.setLong(1, chunk.first);
+                    statement.setLong(2, chunk.last);
+                    try (var rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            var account = new AccountId(rs.getLong(1));
+                            var money = amount(job, rs.getBigDecimal(2));
+                            if (money == null) {
+                                skipped++;
+                                continue;
+                            }
+                            boolean fee = job.getRule() == AdjustmentJob.Rule.FEE;
+                            transactions.add(Transaction.builder()
+                                    .id(transactionId(job, account))
+                                    .fromAccount(fee ? account : null)
+                                    .toAccount(fee ? null : account)
+                                    .money(money)
+                                    .timestamp(timestamp)
+                                    .build());
+                            total = total.add(money);
+                        }
+                    }
+                }
+
+                // the same accounts as above, nothing else changes them while their locks are held
+                int updated = update(conn, job, chunk);
+                if (updated != transactions.size()) {
+                    throw new InternalException(String.format("Adjusted %d accounts of %d-%d, expected %d",
+                            updated, chunk.first, chunk.last, transactions.size()));
+                }
+                try (var statement = conn.prepareStatement("update adjustment_chunk set done = true, adjusted = ?," +
+                        " skipped = ?, total = ? where job_id = ? and first_acc = ?")) {
+                    statement.setLong(1, transactions.size());
+                    statement.setLong(2, skipped);
+                    statement.setBigDecimal(3, total);
+                    statement.setLong(4, job.getId());
+                    statement.setLong(5, chunk.first);
+                    statement.executeUpdate();
+                }
+                if (transactions.isEmpty()) {
+                    conn.commit();
+                } else {
+                    // a transaction id that is already there fails the chunk, no account is adjusted twice
+                    ledger.getCommitLog().commitTransfers(conn, transactions,
+                            sequence -> AccountService.insertTransactions(conn, transactions, sequence));
+                }
+                return null;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return what the rule takes from or gives to an account, {@code null} if the account is skipped
+     */
+    @CheckForNull
+    static BigDecimal amount(AdjustmentJob job, BigDecimal balance) {
+        switch (job.getRule()) {
+            case FEE:
+                return balance.compareTo(job.getAmount()) >= 0 ? job.getAmount() : null;
+            case CREDIT:
+                return job.getAmount();
+            case INTEREST:
+                var interest = balance.multiply(job.getAmount()).setScale(CENTS, RoundingMode.DOWN);
+                return interest.signum() > 0 ? interest : null;
+            default:
+                throw new IllegalArgumentException("Unknown rule " + job.getRule());
+        }
+    }
+
+    /**
+     * Changes balances of the chunk with one statement, the same way {@link #amount} computes them.
+     */
+    private static int update(Connection conn, AdjustmentJob job, Chunk chunk) throws SQLException {
+        String sql;
+        switch (job.getRule()) {
+            case FEE:
+                sql = "update account set money = money - ?1 where id between ?2 and ?3 and money >= ?1";
+                break;
+            case CREDIT:
+                sql = "update account set money = money + ?1 where id between ?2 and ?3";
+                break;
+            case INTEREST:
+                // truncate() of H2 goes through double, a cast rounds half up in decimals,
+                // so half a cent less rounds down to cents
+                String interest = "cast(money * ?1 - 0.005 as decimal(38, " + CENTS + "))";
+                sql = "update account set money = money + " + interest + " where id between ?2 and ?3 and " + interest + " > 0";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown rule " + job.getRule());
+        }
+        try (var statement = conn.prepareStatement(sql)) {
+            statement.setBigDecimal(1, job.getAmount());
+            statement.setLong(2, chunk.first);
+            statement.setLong(3, chunk.last);
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Stops adjusting, a job that is not done goes on after a restart.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Adjustment jobs did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while stopping adjustment jobs", e);
+        }
+    }
+
+    private static class Chunk {
+        private final long first;
+        private final long last;
+
+        Chunk(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
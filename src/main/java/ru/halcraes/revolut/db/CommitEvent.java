@@ -0,0 +1,46 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * A change that was committed to the database, published by {@link CommitLog}.
+ */
+@Data
+@Builder
+public class CommitEvent {
+    public enum Type {
+        ACCOUNT_CREATED,
+        ACCOUNT_UPDATED,
+        TRANSFER,
+    }
+
+    private final Type type;
+    /**
+     * For transfers it is the sequence number of the transfer itself,
+     * for account changes it is the last transfer committed before them.
+     */
+    private final long sequence;
+    /**
+     * The account that was created or updated.
+     */
+    @CheckForNull
+    private final AccountId account;
+    @CheckForNull
+    private final String description;
+    @CheckForNull
+    private final Transaction transaction;
+    /**
+     * Account of this database that lost money in the transfer. It may differ from {@code transaction.getFromAccount()}
+     * for transfers between shards, where every shard commits only its own leg.
+     */
+    @CheckForNull
+    private final AccountId debited;
+    /**
+     * Account of this database that got money in the transfer.
+     */
+    @CheckForNull
+    private final AccountId credited;
+}
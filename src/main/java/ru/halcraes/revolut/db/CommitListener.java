@@ -0,0 +1,12 @@
+package ru.halcraes.revolut.db;
+
+/**
+ * Receives every change right after it is committed, in sequence order.
+ * <p>
+ * Listeners are called one event at a time, and a commit returns only after they are done with it,
+ * so they must be fast and should hand any real work over to another thread.
+ */
+@FunctionalInterface
+public interface CommitListener {
+    void committed(CommitEvent event);
+}
@@ -0,0 +1,351 @@
+package ru.halcraes.revolut.db;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Orders all commits of a ledger and tells {@link CommitListener}s about them.
+ * <p>
+ * Every committed transfer gets a global sequence number, stored in {@code transaction.seq}.
+ * Only handing out numbers is serialized, database transactions are committed concurrently, even across
+ * shards that share a log. Each commit takes a ticket along with its numbers, and events are delivered
+ * to listeners in ticket order once every earlier commit is done, so listeners see sequence order.
+ * A commit returns only after its events are delivered, so a caller reads its own change from a listener.
+ * <p>
+ * {@link #getLastSequence()} is the last delivered number, every transfer up to it is committed.
+ * A write that fails after taking its numbers leaves them unused, readers must not expect numbers to be dense.
+ */
+@ThreadSafe
+public class CommitLog {
+    private static final Logger log = LoggerFactory.getLogger(CommitLog.class);
+
+    private final List<CommitListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ReentrantLock sequenceLock = new ReentrantLock();
+    private final Condition resumed = sequenceLock.newCondition();
+    @GuardedBy("sequenceLock")
+    private long nextTicket = 1;
+    @GuardedBy("sequenceLock")
+    private long nextSequence;
+    @GuardedBy("sequenceLock")
+    @CheckForNull
+    private Thread pausedBy;
+
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private final Condition published = publishLock.newCondition();
+    @GuardedBy("publishLock")
+    private final Map<Long, Ticket> done = new HashMap<>();
+    @GuardedBy("publishLock")
+    private long publishedTicket;
+    private volatile long lastSequence;
+
+    public CommitLog(long lastSequence) {
+        this.lastSequence = lastSequence;
+        this.nextSequence = lastSequence + 1;
+    }
+
+    /**
+     * Continues the sequence stored in the given databases.
+     */
+    public static CommitLog recover(Collection<DataSource> dataSources) {
+        long lastSequence = 0;
+        for (var dataSource : dataSources) {
+            try (var conn = dataSource.getConnection();
+                 var statement = conn.prepareStatement("select max(seq) from transaction")
+            ) {
+                statement.execute();
+                try (var rs = statement.getResultSet()) {
+                    rs.next();
+                    lastSequence = Math.max(lastSequence, rs.getLong(1));
+                }
+            } catch (SQLException e) {
+                throw new InternalException(e);
+            }
+        }
+        return new CommitLog(lastSequence);
+    }
+
+    public void addListener(CommitListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CommitListener listener) {
+        listeners.remove(listener);
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Writes the transaction with the next sequence number and commits the connection.
+     *
+     * @param write stores the transaction with the given sequence number, nothing is committed if it fails
+     * @return the transaction with its sequence number
+     */
+    Transaction commitTransfer(
+            Connection conn,
+            Transaction transaction,
+            AccountId debited,
+            AccountId credited,
+            SequencedWrite write
+    ) throws SQLException {
+        var ticket = take(1);
+        try {
+            write.write(ticket.firstSequence);
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            publish(ticket);
+            throw e;
+        }
+        var committed = transaction.toBuilder().sequence(ticket.firstSequence).build();
+        ticket.events.add(CommitEvent.builder()
+                .type(CommitEvent.Type.TRANSFER)
+                .sequence(ticket.firstSequence)
+                .transaction(committed)
+                .debited(debited)
+                .credited(credited)
+                .build());
+        publish(ticket);
+        return committed;
+    }
+
+    /**
+     * Writes transfers between accounts of one database with consecutive sequence numbers and commits
+     * the connection, like {@link #commitTransfer} does for one of them.
+     *
+     * @param write stores the transactions in order, the first one with the given sequence number
+     * @return the transactions with their sequence numbers, in the same order
+     */
+    List<Transaction> commitTransfers(Connection conn, List<Transaction> transactions, SequencedWrite write)
+            throws SQLException {
+        var ticket = take(transactions.size());
+        try {
+            write.write(ticket.firstSequence);
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            publish(ticket);
+            throw e;
+        }
+        List<Transaction> committed = new ArrayList<>(transactions.size());
+        long sequence = ticket.firstSequence;
+        for (var transaction : transactions) {
+            var sequenced = transaction.toBuilder().sequence(sequence).build();
+            committed.add(sequenced);
+            ticket.events.add(CommitEvent.builder()
+                    .type(CommitEvent.Type.TRANSFER)
+                    .sequence(sequence++)
+                    .transaction(sequenced)
+                    .debited(sequenced.getFromAccount())
+                    .credited(sequenced.getToAccount())
+                    .build());
+        }
+        publish(ticket);
+        return committed;
+    }
+
+    /**
+     * Commits the connection and publishes the account change.
+     */
+    void commitAccount(Connection conn, CommitEvent.Type type, AccountId account, String description)
+            throws SQLException {
+        var ticket = take(0);
+        try {
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            publish(ticket);
+            throw e;
+        }
+        ticket.events.add(CommitEvent.builder()
+                .type(type)
+                .sequence(ticket.firstSequence - 1)
+                .account(account)
+                .description(description)
+                .build());
+        publish(ticket);
+    }
+
+    /**
+     * Commits imported accounts and their opening balances, the balances get consecutive sequence numbers.
+     *
+     * @param transactions transfers from outside to some of the accounts
+     */
+    void commitImport(
+            Connection conn,
+            List<AccountId> ids,
+            List<OpeningAccount> accounts,
+            List<Transaction> transactions
+    ) throws SQLException {
+        var ticket = take(transactions.size());
+        try {
+            if (!transactions.isEmpty()) {
+                try (var statement = conn.prepareStatement("update transaction set seq = ? where id = ?")) {
+                    long sequence = ticket.firstSequence;
+                    for (var transaction : transactions) {
+                        statement.setLong(1, sequence++);
+                        statement.setBytes(2, transaction.getId().serialize());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            publish(ticket);
+            throw e;
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            ticket.events.add(CommitEvent.builder()
+                    .type(CommitEvent.Type.ACCOUNT_CREATED)
+                    .sequence(ticket.firstSequence - 1)
+                    .account(ids.get(i))
+                    .description(accounts.get(i).getDescription())
+                    .build());
+        }
+        long sequence = ticket.firstSequence;
+        for (var transaction : transactions) {
+            var committed = transaction.toBuilder().sequence(sequence).build();
+            ticket.events.add(CommitEvent.builder()
+                    .type(CommitEvent.Type.TRANSFER)
+                    .sequence(sequence++)
+                    .transaction(committed)
+                    .credited(committed.getToAccount())
+                    .build());
+        }
+        publish(ticket);
+    }
+
+    /**
+     * Runs the action while nothing can be committed, for example to take a consistent copy of the ledger
+     * and subscribe to the changes after it. Waits for commits in progress and their events first.
+     */
+    public <T> T whilePaused(Supplier<T> action) {
+        long last;
+        sequenceLock.lock();
+        try {
+            if (pausedBy == Thread.currentThread()) {
+                return action.get();
+            }
+            while (pausedBy != null) {
+                resumed.awaitUninterruptibly();
+            }
+            pausedBy = Thread.currentThread();
+            last = nextTicket - 1;
+        } finally {
+            sequenceLock.unlock();
+        }
+        try {
+            publishLock.lock();
+            try {
+                while (publishedTicket < last) {
+                    published.awaitUninterruptibly();
+                }
+            } finally {
+                publishLock.unlock();
+            }
+            return action.get();
+        } finally {
+            sequenceLock.lock();
+            try {
+                pausedBy = null;
+                resumed.signalAll();
+            } finally {
+                sequenceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Hands out the next ticket and sequence numbers, the only step that runs one commit at a time.
+     */
+    private Ticket take(int count) {
+        sequenceLock.lock();
+        try {
+            // the thread that paused the log may still commit, nobody else sees the change until it resumes
+            while (pausedBy != null && pausedBy != Thread.currentThread()) {
+                resumed.awaitUninterruptibly();
+            }
+            var ticket = new Ticket(nextTicket++, nextSequence, count);
+            nextSequence += count;
+            return ticket;
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Queues the events of a finished commit, a failed one has none, and delivers every event whose turn
+     * has come. Returns once the events of the ticket are delivered.
+     */
+    private void publish(Ticket ticket) {
+        publishLock.lock();
+        try {
+            done.put(ticket.number, ticket);
+            Ticket next;
+            while ((next = done.remove(publishedTicket + 1)) != null) {
+                for (var event : next.events) {
+                    deliver(event);
+                }
+                if (next.count > 0) {
+                    lastSequence = next.firstSequence + next.count - 1;
+                }
+                publishedTicket = next.number;
+                published.signalAll();
+            }
+            while (publishedTicket < ticket.number) {
+                published.awaitUninterruptibly();
+            }
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    @GuardedBy("publishLock")
+    private void deliver(CommitEvent event) {
+        for (var listener : listeners) {
+            try {
+                listener.committed(event);
+            } catch (RuntimeException e) {
+                // the change is already committed, a broken listener must not turn it into an error
+                log.error("Commit listener failed on {}", event, e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface SequencedWrite {
+        void write(long sequence) throws SQLException;
+    }
+
+    /**
+     * A commit in progress, with its place in the delivery order and the sequence numbers it took.
+     */
+    private static final class Ticket {
+        final long number;
+        final long firstSequence;
+        final int count;
+        final List<CommitEvent> events = new ArrayList<>();
+
+        Ticket(long number, long firstSequence, int count) {
+            this.number = number;
+            this.firstSequence = firstSequence;
+            this.count = count;
+        }
+    }
+}
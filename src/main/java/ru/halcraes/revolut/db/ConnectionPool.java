@@ -0,0 +1,482 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.h2.engine.Session;
+import org.h2.jdbc.JdbcConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of H2 connections that keeps the statements parsed by a connection for its next user.
+ * <p>
+ * {@link org.h2.jdbcx.JdbcConnectionPool} rolls back every connection it takes back, and in H2 1.4 a rollback
+ * empties the cache of parsed statements of the session even when there is nothing to roll back. So every
+ * transfer parsed all of its SQL again, which was a fifth of what it allocated. Here a connection is rolled back
+ * only if it has uncommitted changes, and the most recently used one is handed out first.
+ */
+@ThreadSafe
+class ConnectionPool implements DataSource {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final int TIMEOUT_SECONDS = 30;
+
+    private final DataSource dataSource;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<JdbcConnection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean disposed;
+
+    /**
+     * @param dataSource makes new H2 connections
+     */
+    ConnectionPool(DataSource dataSource, int maxConnections) {
+        this.dataSource = dataSource;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Waits for a free connection if all of them are in use.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        Preconditions.checkState(!disposed, "The pool is closed");
+        try {
+            if (!permits.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLException("No connection was free for " + TIMEOUT_SECONDS + " s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            var connection = idle.pollFirst();
+            if (connection == null) {
+                connection = dataSource.getConnection().unwrap(JdbcConnection.class);
+            }
+            return new PooledConnection(connection);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Connections of a pool all have the same user");
+    }
+
+    private void release(JdbcConnection connection) {
+        try {
+            if (connection.isClosed()) {
+                // the database was shut down
+                return;
+            }
+            var session = connection.getSession();
+            if (!(session instanceof Session) || ((Session) session).containsUncommitted()) {
+                connection.rollback();
+            }
+            if (!connection.getAutoCommit()) {
+                // commits nothing, but ends the transaction
+                connection.setAutoCommit(true);
+            }
+            idle.offerFirst(connection);
+        } catch (SQLException e) {
+            log.warn("Dropping a connection that failed to reset", e);
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+        if (disposed) {
+            closeIdle();
+        }
+    }
+
+    /**
+     * Closes idle connections, the ones in use are closed when they come back.
+     */
+    void dispose() {
+        disposed = true;
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        JdbcConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close a connection", e);
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return dataSource.isWrapperFor(iface);
+    }
+
+    /**
+     * Handle of a connection for one user, closing it returns the connection to the pool.
+     */
+    @NotThreadSafe
+    private class PooledConnection implements Connection {
+        @Nullable
+        private JdbcConnection connection;
+
+        PooledConnection(JdbcConnection connection) {
+            this.connection = connection;
+        }
+
+        private JdbcConnection connection() throws SQLException {
+            if (connection == null) {
+                throw new SQLException("The connection is closed");
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            if (connection != null) {
+                var released = connection;
+                connection = null;
+                release(released);
+            }
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return connection == null || connection.isClosed();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            return iface.isInstance(this) ? iface.cast(this) : connection().unwrap(iface);
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return iface.isInstance(this) || connection().isWrapperFor(iface);
+        }
+
+        @Override
+        public Statement createStatement() throws SQLException {
+            return connection().createStatement();
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            return connection().prepareStatement(sql);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql) throws SQLException {
+            return connection().prepareCall(sql);
+        }
+
+        @Override
+        public String nativeSQL(String sql) throws SQLException {
+            return connection().nativeSQL(sql);
+        }
+
+        @Override
+        public void setAutoCommit(boolean autoCommit) throws SQLException {
+            connection().setAutoCommit(autoCommit);
+        }
+
+        @Override
+        public boolean getAutoCommit() throws SQLException {
+            return connection().getAutoCommit();
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            connection().commit();
+        }
+
+        @Override
+        public void rollback() throws SQLException {
+            connection().rollback();
+        }
+
+        @Override
+        public DatabaseMetaData getMetaData() throws SQLException {
+            return connection().getMetaData();
+        }
+
+        @Override
+        public void setReadOnly(boolean readOnly) throws SQLException {
+            connection().setReadOnly(readOnly);
+        }
+
+        @Override
+        public boolean isReadOnly() throws SQLException {
+            return connection().isReadOnly();
+        }
+
+        @Override
+        public void setCatalog(String catalog) throws SQLException {
+            connection().setCatalog(catalog);
+        }
+
+        @Override
+        public String getCatalog() throws SQLException {
+            return connection().getCatalog();
+        }
+
+        @Override
+        public void setTransactionIsolation(int level) throws SQLException {
+            connection().setTransactionIsolation(level);
+        }
+
+        @Override
+        public int getTransactionIsolation() throws SQLException {
+            return connection().getTransactionIsolation();
+        }
+
+        @Override
+        public SQLWarning getWarnings() throws SQLException {
+            return connection().getWarnings();
+        }
+
+        @Override
+        public void clearWarnings() throws SQLException {
+            connection().clearWarnings();
+        }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+            return connection().createStatement(resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+                throws SQLException {
+            return connection().prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency)
+                throws SQLException {
+            return connection().prepareCall(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public Map<String, Class<?>> getTypeMap() throws SQLException {
+            return connection().getTypeMap();
+        }
+
+        @Override
+        public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+            connection().setTypeMap(map);
+        }
+
+        @Override
+        public void setHoldability(int holdability) throws SQLException {
+            connection().setHoldability(holdability);
+        }
+
+        @Override
+        public int getHoldability() throws SQLException {
+            return connection().getHoldability();
+        }
+
+        @Override
+        public Savepoint setSavepoint() throws SQLException {
+            return connection().setSavepoint();
+        }
+
+        @Override
+        public Savepoint setSavepoint(String name) throws SQLException {
+            return connection().setSavepoint(name);
+        }
+
+        @Override
+        public void rollback(Savepoint savepoint) throws SQLException {
+            connection().rollback(savepoint);
+        }
+
+        @Override
+        public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+            connection().releaseSavepoint(savepoint);
+        }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+                throws SQLException {
+            return connection().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+                                                  int resultSetHoldability) throws SQLException {
+            return connection().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+                                             int resultSetHoldability) throws SQLException {
+            return connection().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            return connection().prepareStatement(sql, autoGeneratedKeys);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+            return connection().prepareStatement(sql, columnIndexes);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+            return connection().prepareStatement(sql, columnNames);
+        }
+
+        @Override
+        public Clob createClob() throws SQLException {
+            return connection().createClob();
+        }
+
+        @Override
+        public Blob createBlob() throws SQLException {
+            return connection().createBlob();
+        }
+
+        @Override
+        public NClob createNClob() throws SQLException {
+            return connection().createNClob();
+        }
+
+        @Override
+        public SQLXML createSQLXML() throws SQLException {
+            return connection().createSQLXML();
+        }
+
+        @Override
+        public boolean isValid(int timeout) throws SQLException {
+            return connection != null && connection.isValid(timeout);
+        }
+
+        @Override
+        public void setClientInfo(String name, String value) throws SQLClientInfoException {
+            if (connection == null) {
+                throw new SQLClientInfoException();
+            }
+            connection.setClientInfo(name, value);
+        }
+
+        @Override
+        public void setClientInfo(Properties properties) throws SQLClientInfoException {
+            if (connection == null) {
+                throw new SQLClientInfoException();
+            }
+            connection.setClientInfo(properties);
+        }
+
+        @Override
+        public String getClientInfo(String name) throws SQLException {
+            return connection().getClientInfo(name);
+        }
+
+        @Override
+        public Properties getClientInfo() throws SQLException {
+            return connection().getClientInfo();
+        }
+
+        @Override
+        public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+            return connection().createArrayOf(typeName, elements);
+        }
+
+        @Override
+        public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+            return connection().createStruct(typeName, attributes);
+        }
+
+        @Override
+        public void setSchema(String schema) throws SQLException {
+            connection().setSchema(schema);
+        }
+
+        @Override
+        public String getSchema() throws SQLException {
+            return connection().getSchema();
+        }
+
+        @Override
+        public void abort(Executor executor) throws SQLException {
+            connection().abort(executor);
+        }
+
+        @Override
+        public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+            connection().setNetworkTimeout(executor, milliseconds);
+        }
+
+        @Override
+        public int getNetworkTimeout() throws SQLException {
+            return connection().getNetworkTimeout();
+        }
+    }
+}
@@ -1,63 +1,77 @@
 package ru.halcraes.revolut.db;
 
-import liquibase.Liquibase;
-import liquibase.database.DatabaseFactory;
-import liquibase.database.jvm.JdbcConnection;
-import liquibase.exception.LiquibaseException;
-import liquibase.resource.ClassLoaderResourceAccessor;
 import org.h2.jdbcx.JdbcDataSource;
 
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
-import java.sql.SQLException;
 
 public class Database implements AutoCloseable {
-    private final JdbcDataSource dataSource;
+    private static final int MAX_CONNECTIONS = 64;
 
-    private Database(JdbcDataSource dataSource) {
+    private final ConnectionPool pool;
+    private final DataSource dataSource;
+    private final boolean schemaUpdated;
+
+    private Database(ConnectionPool pool, DataSource dataSource, boolean schemaUpdated) {
+        this.pool = pool;
         this.dataSource = dataSource;
+        this.schemaUpdated = schemaUpdated;
     }
 
     public static Database initialize() {
+        return initialize("accounts", true);
+    }
+
+    /**
+     * @param name         name of the in-memory database, databases with different names are independent
+     * @param primaryShard only the primary shard gets the demo accounts
+     */
+    public static Database initialize(String name, boolean primaryShard) {
+        return initialize(DatabaseConfig.inMemory(), name, primaryShard);
+    }
+
+    /**
+     * Opens the database, creating it if needed, and brings its schema up to date.
+     */
+    public static Database initialize(DatabaseConfig config, String name, boolean primaryShard) {
+        return initialize(config, name, primaryShard, null);
+    }
+
+    /**
+     * @param profiler times statements run through {@link #getDataSource()}, schema migration is not timed
+     */
+    public static Database initialize(DatabaseConfig config, String name, boolean primaryShard,
+                                      @Nullable StatementProfiler profiler) {
         var dataSource = new JdbcDataSource();
-        dataSource.setUrl("jdbc:h2:mem:accounts;DB_CLOSE_DELAY=-1");
-        dataSource.setUser("sa");
-        dataSource.setPassword("sa");
-
-        updateSchema(dataSource);
-
-        return new Database(dataSource);
-    }
-
-    private static void updateSchema(JdbcDataSource dataSource) {
-        try {
-            var conn = new JdbcConnection(dataSource.getConnection());
-            conn.setAutoCommit(false);
-            try {
-                var database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(conn);
-                var liquibase = new Liquibase("ru/halcraes/revolut/db/liquibase.xml", new ClassLoaderResourceAccessor(), database);
-                liquibase.update("main");
-                conn.commit();
-            } catch (Exception e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.close();
-            }
-        } catch (SQLException | LiquibaseException e) {
-            throw new InternalException(e);
-        }
+        dataSource.setUrl(config.url(name));
+        dataSource.setUser(config.getUser());
+        dataSource.setPassword(config.getPassword());
+
+        boolean schemaUpdated = SchemaMigration.update(dataSource, primaryShard ? "main" : "shard");
+
+        var pool = new ConnectionPool(dataSource, MAX_CONNECTIONS);
+        return new Database(pool, profiler == null ? pool : profiler.wrap(pool), schemaUpdated);
     }
 
     public DataSource getDataSource() {
         return dataSource;
     }
 
+    /**
+     * Whether opening the database had to run Liquibase, {@code false} when the schema was already current.
+     */
+    public boolean isSchemaUpdated() {
+        return schemaUpdated;
+    }
+
     @Override
     public void close() {
-        try (var conn = dataSource.getConnection()) {
+        try (var conn = pool.getConnection()) {
             conn.prepareCall("shutdown").execute();
         } catch (Exception e) {
             throw new InternalException(e);
+        } finally {
+            pool.dispose();
         }
     }
 }
@@ -0,0 +1,133 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import lombok.Builder;
+import lombok.Data;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Where {@link Database} keeps its data and how H2 stores it.
+ * <p>
+ * Settings left {@code null} keep the H2 defaults. They only affect file-backed databases,
+ * see the profiles in {@code conf/} of the distribution.
+ */
+@Data
+@Builder
+public class DatabaseConfig {
+    public enum Storage {
+        /**
+         * Lost on exit, the default.
+         */
+        MEMORY,
+        /**
+         * One MVStore file per database.
+         */
+        FILE,
+    }
+
+    @Builder.Default
+    private final Storage storage = Storage.MEMORY;
+    /**
+     * Directory of database files.
+     */
+    @Builder.Default
+    private final Path directory = Paths.get("data");
+    @Builder.Default
+    private final String user = "sa";
+    @Builder.Default
+    private final String password = "sa";
+    /**
+     * Page cache of each database, in KB.
+     */
+    @Nullable
+    private final Integer cacheSizeKb;
+    /**
+     * How long committed changes may stay in memory before they are written to the file.
+     * 0 writes every commit, so a crash of the process does not lose it.
+     */
+    @Nullable
+    private final Integer writeDelayMillis;
+    /**
+     * Compresses pages, trading CPU for a smaller file.
+     */
+    @Nullable
+    private final Boolean compress;
+    /**
+     * How long closing the database may spend compacting the file. H2 1.4 does not allow to tune
+     * background compaction, so this is the only way to keep the file from growing between restarts.
+     */
+    @Nullable
+    private final Integer maxCompactTimeMillis;
+
+    public static DatabaseConfig inMemory() {
+        return builder().build();
+    }
+
+    /**
+     * Reads {@code accountdb.db.*} properties, missing ones keep the defaults.
+     */
+    public static DatabaseConfig fromProperties(Properties properties) {
+        var builder = builder();
+        String storage = properties.getProperty("accountdb.db.storage");
+        if (storage != null) {
+            builder.storage(Storage.valueOf(storage.trim().toUpperCase()));
+        }
+        String directory = properties.getProperty("accountdb.db.directory");
+        if (directory != null) {
+            builder.directory(Paths.get(directory.trim()));
+        }
+        String user = properties.getProperty("accountdb.db.user");
+        if (user != null) {
+            builder.user(user);
+        }
+        String password = properties.getProperty("accountdb.db.password");
+        if (password != null) {
+            builder.password(password);
+        }
+        return builder
+                .cacheSizeKb(getInteger(properties, "accountdb.db.cacheSizeKb"))
+                .writeDelayMillis(getInteger(properties, "accountdb.db.writeDelayMillis"))
+                .compress(getBoolean(properties, "accountdb.db.compress"))
+                .maxCompactTimeMillis(getInteger(properties, "accountdb.db.maxCompactTimeMillis"))
+                .build();
+    }
+
+    @Nullable
+    private static Integer getInteger(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        return value == null ? null : Integer.valueOf(value.trim());
+    }
+
+    @Nullable
+    private static Boolean getBoolean(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        return value == null ? null : Boolean.valueOf(value.trim());
+    }
+
+    /**
+     * @param name name of the database, databases with different names are independent
+     */
+    String url(String name) {
+        Preconditions.checkArgument(name.matches("\\w+"), "Invalid database name %s", name);
+        if (storage == Storage.MEMORY) {
+            return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        }
+        // H2 closes the database on exit and writes what is still delayed
+        var url = new StringBuilder("jdbc:h2:file:").append(directory.toAbsolutePath().resolve(name));
+        appendSetting(url, "CACHE_SIZE", cacheSizeKb);
+        appendSetting(url, "WRITE_DELAY", writeDelayMillis);
+        appendSetting(url, "COMPRESS", compress);
+        appendSetting(url, "MAX_COMPACT_TIME", maxCompactTimeMillis);
+        return url.toString();
+    }
+
+    private static void appendSetting(StringBuilder url, String setting, @Nullable Object value) {
+        if (value != null) {
+            url.append(';').append(setting).append('=').append(value.toString().toUpperCase());
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds accounts by the beginning of their description, ignoring case.
+ * <p>
+ * Descriptions are kept in memory sorted, in a compact array of UTF-8 bytes with ids next to them, so a lookup
+ * is a binary search and a scan of the page. Creations and updates come from {@link CommitLog} and go into
+ * a small sorted delta that lookups merge with the array. When the delta grows, it is merged into a new array
+ * on a background thread while a fresh delta takes the changes.
+ * <p>
+ * Memory is about the length of a description plus 12 bytes per account.
+ */
+@ThreadSafe
+public class DescriptionIndex implements CommitListener {
+    private static final Logger log = LoggerFactory.getLogger(DescriptionIndex.class);
+
+    private static final int MIN_DELTA = 65_536;
+    /**
+     * In {@link Delta#current} for accounts that have no description now, compared by identity.
+     */
+    private static final byte[] NONE = new byte[0];
+
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "description-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int minDelta;
+    private volatile State state = new State(Snapshot.EMPTY, new Delta(), new Delta());
+    /**
+     * Set while the array is loaded or merged, the frozen delta is in use then.
+     */
+    @GuardedBy("this")
+    private boolean rebuilding = true;
+
+    private DescriptionIndex(int minDelta) {
+        this.minDelta = minDelta;
+    }
+
+    /**
+     * Loads descriptions of all accounts, changes that are committed meanwhile are not lost.
+     *
+     * @param dataSources all shards of the ledger
+     */
+    public static DescriptionIndex load(CommitLog commitLog, List<DataSource> dataSources) {
+        return load(commitLog, dataSources, MIN_DELTA);
+    }
+
+    /**
+     * @param minDelta changes that are merged into the array at once, at least
+     */
+    static DescriptionIndex load(CommitLog commitLog, List<DataSource> dataSources, int minDelta) {
+        var index = new DescriptionIndex(minDelta);
+        long start = System.nanoTime();
+        commitLog.whilePaused(() -> {
+            commitLog.addListener(index);
+            return null;
+        });
+        // the delta wins over what the scan finds, so the scan does not need commits to be paused
+        var unsorted = new Snapshot.Builder(1024);
+        for (var dataSource : dataSources) {
+            try (var conn = dataSource.getConnection()) {
+                conn.createStatement().execute("set lazy_query_execution true");
+                try (var rs = conn.createStatement().executeQuery(
+                        "select id, description from account where description is not null")) {
+                    while (rs.next()) {
+                        byte[] description = normalize(rs.getString(2));
+                        unsorted.add(description, 0, description.length, rs.getLong(1));
+                    }
+                } finally {
+                    conn.createStatement().execute("set lazy_query_execution false");
+                }
+            } catch (SQLException e) {
+                throw new InternalException(e);
+            }
+        }
+        var snapshot = unsorted.build().sorted();
+        synchronized (index) {
+            var current = index.state;
+            index.state = new State(snapshot, current.frozen, current.active);
+            index.rebuilding = false;
+        }
+        log.info("Indexed {} account descriptions in {} ms", snapshot.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return index;
+    }
+
+    /**
+     * Accounts whose description starts with {@code prefix}, ordered by description and then id.
+     *
+     * @param cursor {@link DescriptionPage#getNextCursor()} of the previous page, {@code null} for the first one
+     */
+    public DescriptionPage find(String prefix, @CheckForNull String cursor, int limit) {
+        Preconditions.checkNotNull(prefix, "Description is required");
+        Preconditions.checkArgument(limit > 0, "Limit must be positive, found %s", limit);
+        byte[] normalized = normalize(prefix);
+        var state = this.state;
+        Key from = cursor == null ? new Key(normalized, Long.MIN_VALUE) : parseCursor(cursor);
+        boolean inclusive = cursor == null;
+
+        var base = new SnapshotCursor(state.base, state.base.search(from, inclusive));
+        var frozen = state.frozen.entries.tailSet(from, inclusive).iterator();
+        var active = state.active.entries.tailSet(from, inclusive).iterator();
+        Key baseKey = base.next();
+        Key frozenKey = next(frozen);
+        Key activeKey = next(active);
+        List<AccountId> accounts = new ArrayList<>(Math.min(limit, 1024));
+        Key last = null;
+        while (true) {
+            Key key = min(baseKey, min(frozenKey, activeKey));
+            if (key == null || !key.startsWith(normalized)) {
+                return new DescriptionPage(accounts, null);
+            }
+            boolean visible;
+            if (key == baseKey) {
+                visible = !state.frozen.current.containsKey(key.id) && !state.active.current.containsKey(key.id);
+                baseKey = base.next();
+            } else if (key == frozenKey) {
+                visible = !state.active.current.containsKey(key.id);
+                frozenKey = next(frozen);
+            } else {
+                byte[] current = state.active.current.get(key.id);
+                visible = current != NONE && Arrays.equals(current, key.bytes);
+                activeKey = next(active);
+            }
+            if (!visible) {
+                continue;
+            }
+            if (accounts.size() == limit) {
+                return new DescriptionPage(accounts, formatCursor(last));
+            }
+            accounts.add(new AccountId(key.id));
+            last = key;
+        }
+    }
+
+    /**
+     * Approximate number of indexed accounts, one changed since the last merge may be counted twice.
+     */
+    public int size() {
+        var state = this.state;
+        return state.base.size() + state.frozen.entries.size() + state.active.entries.size();
+    }
+
+    synchronized boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    @Override
+    public void committed(CommitEvent event) {
+        switch (event.getType()) {
+            case ACCOUNT_CREATED:
+            case ACCOUNT_UPDATED:
+                put(event.getAccount().getValue(), event.getDescription());
+                break;
+        }
+    }
+
+    private synchronized void put(long id, @CheckForNull String description) {
+        var active = state.active;
+        byte[] key = description == null ? NONE : normalize(description);
+        byte[] previous = active.current.put(id, key);
+        if (previous != null && previous != NONE) {
+            active.entries.remove(new Key(previous, id));
+        }
+        if (key != NONE) {
+            active.entries.add(new Key(key, id));
+        }
+        if (!rebuilding && active.current.size() >= Math.max(minDelta, state.base.size() / 8)) {
+            rebuilding = true;
+            var current = state;
+            state = new State(current.base, current.active, new Delta());
+            merger.execute(this::merge);
+        }
+    }
+
+    private void merge() {
+        // nothing but this thread changes the base and the frozen delta while rebuilding
+        var current = state;
+        Snapshot merged;
+        try {
+            merged = Snapshot.merge(current.base, current.frozen);
+        } catch (RuntimeException | OutOfMemoryError e) {
+            // lookups stay correct with the frozen delta, it only stays there
+            log.error("Failed to merge changes into the description index", e);
+            return;
+        }
+        synchronized (this) {
+            state = new State(merged, new Delta(), state.active);
+            rebuilding = false;
+        }
+    }
+
+    static byte[] normalize(String description) {
+        return description.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String formatCursor(Key key) {
+        var buffer = ByteBuffer.allocate(Long.BYTES + key.bytes.length);
+        buffer.putLong(key.id);
+        buffer.put(key.bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    private static Key parseCursor(String cursor) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad cursor: " + cursor);
+        }
+        Preconditions.checkArgument(bytes.length >= Long.BYTES, "Bad cursor: %s", cursor);
+        var buffer = ByteBuffer.wrap(bytes);
+        long id = buffer.getLong();
+        return new Key(Arrays.copyOfRange(bytes, Long.BYTES, bytes.length), id);
+    }
+
+    @CheckForNull
+    private static Key next(Iterator<Key> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @CheckForNull
+    private static Key min(@CheckForNull Key a, @CheckForNull Key b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    @Immutable
+    private static class State {
+        private final Snapshot base;
+        /**
+         * Changes that are being merged into a new base.
+         */
+        private final Delta frozen;
+        private final Delta active;
+
+        State(Snapshot base, Delta frozen, Delta active) {
+            this.base = base;
+            this.frozen = frozen;
+            this.active = active;
+        }
+    }
+
+    /**
+     * Changes since the base was built. An account changed here is hidden in older layers.
+     */
+    private static class Delta {
+        /**
+         * Current description of every changed account, {@link #NONE} for no description.
+         */
+        private final Map<Long, byte[]> current = new ConcurrentHashMap<>();
+        private final NavigableSet<Key> entries = new ConcurrentSkipListSet<>();
+    }
+
+    @Immutable
+    private static class Key implements Comparable<Key> {
+        private final byte[] bytes;
+        private final long id;
+
+        Key(byte[] bytes, long id) {
+            this.bytes = bytes;
+            this.id = id;
+        }
+
+        boolean startsWith(byte[] prefix) {
+            return bytes.length >= prefix.length && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int result = Arrays.compareUnsigned(bytes, other.bytes);
+            return result != 0 ? result : Long.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && id == ((Key) o).id && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(bytes) + Long.hashCode(id);
+        }
+    }
+
+    /**
+     * Sorted descriptions and ids, descriptions are concatenated in one array.
+     */
+    @Immutable
+    private static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new byte[0], new int[1], new long[0]);
+
+        private final byte[] bytes;
+        /**
+         * Description {@code i} is {@code bytes[offsets[i]..offsets[i + 1])}.
+         */
+        private final int[] offsets;
+        private final long[] ids;
+
+        private Snapshot(byte[] bytes, int[] offsets, long[] ids) {
+            this.bytes = bytes;
+            this.offsets = offsets;
+            this.ids = ids;
+        }
+
+        /**
+         * The same keys in order. Positions are sorted rather than keys, so there is no object per key.
+         */
+        Snapshot sorted() {
+            int[] order = new int[size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            sort(order.clone(), order, 0, order.length);
+            var builder = new Builder(size(), bytes.length);
+            for (int i : order) {
+                builder.add(bytes, offsets[i], offsets[i + 1], ids[i]);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Merge sort of positions from {@code source} into {@code target}, both hold the same positions
+         * in the range on entry.
+         */
+        private void sort(int[] source, int[] target, int from, int to) {
+            if (to - from < 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int position = target[i];
+                    int j = i;
+                    for (; j > from && compare(target[j - 1], position) > 0; j--) {
+                        target[j] = target[j - 1];
+                    }
+                    target[j] = position;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            sort(target, source, from, middle);
+            sort(target, source, middle, to);
+            for (int i = from, left = from, right = middle; i < to; i++) {
+                if (right == to || left < middle && compare(source[left], source[right]) <= 0) {
+                    target[i] = source[left++];
+                } else {
+                    target[i] = source[right++];
+                }
+            }
+        }
+
+        private int compare(int i, int j) {
+            int result = Arrays.compareUnsigned(bytes, offsets[i], offsets[i + 1], bytes, offsets[j], offsets[j + 1]);
+            return result != 0 ? result : Long.compare(ids[i], ids[j]);
+        }
+
+        /**
+         * The base without accounts that changed in the delta, and the delta.
+         */
+        static Snapshot merge(Snapshot base, Delta delta) {
+            var builder = new Builder(base.size() + delta.entries.size());
+            var changes = delta.entries.iterator();
+            Key change = next(changes);
+            for (int i = 0; i < base.size(); i++) {
+                if (delta.current.containsKey(base.ids[i])) {
+                    continue;
+                }
+                Key key = base.key(i);
+                while (change != null && change.compareTo(key) < 0) {
+                    builder.add(change);
+                    change = next(changes);
+                }
+                builder.add(key);
+            }
+            while (change != null) {
+                builder.add(change);
+                change = next(changes);
+            }
+            return builder.build();
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        Key key(int i) {
+            return new Key(Arrays.copyOfRange(bytes, offsets[i], offsets[i + 1]), ids[i]);
+        }
+
+        /**
+         * The first position with a key after {@code key}, or at it if {@code inclusive}.
+         */
+        int search(Key key, boolean inclusive) {
+            int low = 0;
+            int high = size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int compare = Arrays.compareUnsigned(bytes, offsets[middle], offsets[middle + 1],
+                        key.bytes, 0, key.bytes.length);
+                if (compare == 0) {
+                    compare = Long.compare(ids[middle], key.id);
+                }
+                if (compare < 0 || compare == 0 && !inclusive) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private static class Builder {
+            private byte[] bytes;
+            private int[] offsets;
+            private long[] ids;
+            private int size;
+
+            Builder(int expectedSize) {
+                this(expectedSize, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, expectedSize * 16L)));
+            }
+
+            Builder(int expectedSize, int expectedBytes) {
+                bytes = new byte[expectedBytes];
+                offsets = new int[expectedSize + 1];
+                ids = new long[expectedSize];
+            }
+
+            void add(Key key) {
+                add(key.bytes, 0, key.bytes.length, key.id);
+            }
+
+            void add(byte[] description, int from, int to, long id) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, Math.max(16, size * 2));
+                    offsets = Arrays.copyOf(offsets, ids.length + 1);
+                }
+                int offset = offsets[size];
+                long end = (long) offset + to - from;
+                if (end > Integer.MAX_VALUE - 8) {
+                    throw new InternalException("Descriptions do not fit in memory");
+                }
+                if (end > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(end, 2L * bytes.length)));
+                }
+                System.arraycopy(description, from, bytes, offset, to - from);
+                ids[size] = id;
+                offsets[++size] = (int) end;
+            }
+
+            Snapshot build() {
+                // sized exactly when the number of keys and bytes was known in advance
+                return new Snapshot(
+                        bytes.length == offsets[size] ? bytes : Arrays.copyOf(bytes, offsets[size]),
+                        offsets.length == size + 1 ? offsets : Arrays.copyOf(offsets, size + 1),
+                        ids.length == size ? ids : Arrays.copyOf(ids, size));
+            }
+        }
+    }
+
+    private static class SnapshotCursor {
+        private final Snapshot snapshot;
+        private int position;
+
+        SnapshotCursor(Snapshot snapshot, int position) {
+            this.snapshot = snapshot;
+            this.position = position;
+        }
+
+        @CheckForNull
+        Key next() {
+            return position < snapshot.size() ? snapshot.key(position++) : null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Data;
+
+import javax.annotation.CheckForNull;
+import java.util.List;
+
+/**
+ * A page of {@link DescriptionIndex#find} results.
+ */
+@Data
+public class DescriptionPage {
+    private final List<AccountId> accounts;
+    /**
+     * Gets the next page, {@code null} on the last one.
+     */
+    @CheckForNull
+    private final String nextCursor;
+}
@@ -0,0 +1,18 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A part of {@link TransactionFeed}.
+ */
+@Data
+public class FeedPage {
+    private final List<CommitEvent> events;
+    /**
+     * Sequence number to continue from. It can be greater than the sequence of the last event
+     * when the following transfers were filtered out.
+     */
+    private final long lastSequence;
+}
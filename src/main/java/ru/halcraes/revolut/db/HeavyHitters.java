@@ -0,0 +1,237 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import lombok.Data;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximately the heaviest keys of a sliding window, in memory that does not depend on the number of keys.
+ * <p>
+ * The window is a ring of slices of equal length. Every slice counts keys in a count-min sketch, which never
+ * underestimates a key, and keeps the keys with the highest estimates of the slice as candidates. A query sums
+ * the sketches of the slices it covers for the candidates of those slices. A key that is heavy over the window
+ * but never among the candidates of any slice is missed, that takes many keys of about the same weight.
+ */
+@ThreadSafe
+class HeavyHitters {
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = {
+            0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L, 0x94d049bb133111ebL, 0x2545f4914f6cdd1dL,
+    };
+
+    private final int width;
+    private final int capacity;
+    private final long sliceMillis;
+    private final Slice[] slices;
+
+    /**
+     * @param slices      slices in the ring, the oldest one is being reset, so queries cover one less
+     * @param sliceMillis length of every slice
+     * @param width       counters in every row of a sketch, a power of two
+     * @param capacity    candidates kept by a slice
+     */
+    HeavyHitters(int slices, long sliceMillis, int width, int capacity) {
+        Preconditions.checkArgument(slices > 1, "At least two slices are required, found %s", slices);
+        Preconditions.checkArgument(sliceMillis > 0, "Slice must be positive, found %s", sliceMillis);
+        Preconditions.checkArgument(Integer.bitCount(width) == 1, "Width must be a power of two, found %s", width);
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive, found %s", capacity);
+        this.width = width;
+        this.capacity = capacity;
+        this.sliceMillis = sliceMillis;
+        this.slices = new Slice[slices];
+        for (int i = 0; i < slices; i++) {
+            this.slices[i] = new Slice();
+        }
+    }
+
+    /**
+     * Slices a query may cover, the whole window.
+     */
+    int getMaxSlices() {
+        return slices.length - 1;
+    }
+
+    long getSliceMillis() {
+        return sliceMillis;
+    }
+
+    void add(long key, long weight, long nowMillis) {
+        long epoch = nowMillis / sliceMillis;
+        slices[(int) Math.floorMod(epoch, (long) slices.length)].add(key, weight, epoch);
+    }
+
+    /**
+     * Sum of all weights of the last slices, exact.
+     *
+     * @param count slices up to and including the current one
+     */
+    long total(int count, long nowMillis) {
+        long total = 0;
+        for (var slice : covered(count, nowMillis)) {
+            total += slice.total.get();
+        }
+        return total;
+    }
+
+    /**
+     * The heaviest keys of the last slices with their estimates, heaviest first.
+     *
+     * @param count slices up to and including the current one
+     */
+    List<Entry> top(int limit, int count, long nowMillis) {
+        var covered = covered(count, nowMillis);
+        Set<Long> keys = new HashSet<>();
+        for (var slice : covered) {
+            keys.addAll(slice.candidates.keySet());
+        }
+        List<Entry> entries = new ArrayList<>(keys.size());
+        for (long key : keys) {
+            long estimate = 0;
+            for (var slice : covered) {
+                estimate += slice.estimate(key);
+            }
+            if (estimate > 0) {
+                entries.add(new Entry(key, estimate));
+            }
+        }
+        entries.sort(Comparator.comparingLong(Entry::getEstimate).reversed().thenComparingLong(Entry::getKey));
+        return entries.size() > limit ? new ArrayList<>(entries.subList(0, limit)) : entries;
+    }
+
+    private List<Slice> covered(int count, long nowMillis) {
+        Preconditions.checkArgument(count > 0 && count <= getMaxSlices(),
+                "Between 1 and %s slices can be covered, found %s", getMaxSlices(), count);
+        long epoch = nowMillis / sliceMillis;
+        List<Slice> covered = new ArrayList<>(count);
+        for (long e = epoch - count + 1; e <= epoch; e++) {
+            var slice = slices[(int) Math.floorMod(e, (long) slices.length)];
+            if (slice.epoch == e) {
+                covered.add(slice);
+            }
+        }
+        return covered;
+    }
+
+    private int index(long key, int row) {
+        // finalizer of MurmurHash3, a different seed makes a different hash for every row
+        long h = key + SEEDS[row];
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return row * width + (int) (h & (width - 1));
+    }
+
+    @Data
+    static final class Entry {
+        private final long key;
+        /**
+         * Never lower than the real weight.
+         */
+        private final long estimate;
+    }
+
+    private final class Slice {
+        /**
+         * Number of the slice since the epoch, the slice is reset when the ring comes back to it.
+         */
+        volatile long epoch = Long.MIN_VALUE;
+        final AtomicLongArray counters = new AtomicLongArray(DEPTH * width);
+        final AtomicLong total = new AtomicLong();
+        final Map<Long, Boolean> candidates = new ConcurrentHashMap<>();
+        /**
+         * Lowest estimate among the candidates once there are as many as they can be, a key needs more to get in.
+         */
+        volatile long threshold;
+
+        void add(long key, long weight, long epoch) {
+            long current = this.epoch;
+            if (current != epoch) {
+                if (epoch < current) {
+                    // a late add of a slice that has already been reused
+                    return;
+                }
+                reset(epoch);
+            }
+            total.addAndGet(weight);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.addAndGet(index(key, row), weight));
+            }
+            if (candidates.containsKey(key) || (candidates.size() >= capacity && estimate <= threshold)) {
+                return;
+            }
+            offer(key, estimate);
+        }
+
+        long estimate(long key) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.get(index(key, row)));
+            }
+            return estimate;
+        }
+
+        private synchronized void reset(long epoch) {
+            if (this.epoch >= epoch) {
+                return;
+            }
+            // adds that raced with the reset may leave a little in the new slice, estimates stay approximate
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+            total.set(0);
+            candidates.clear();
+            threshold = 0;
+            this.epoch = epoch;
+        }
+
+        private synchronized void offer(long key, long estimate) {
+            if (candidates.containsKey(key)) {
+                return;
+            }
+            if (candidates.size() < capacity) {
+                candidates.put(key, Boolean.TRUE);
+                if (candidates.size() == capacity) {
+                    threshold = lowest()[1];
+                }
+                return;
+            }
+            var lowest = lowest();
+            if (estimate > lowest[1]) {
+                candidates.remove(lowest[0]);
+                candidates.put(key, Boolean.TRUE);
+                threshold = lowest()[1];
+            } else {
+                threshold = lowest[1];
+            }
+        }
+
+        /**
+         * The candidate with the lowest estimate and the estimate.
+         */
+        private long[] lowest() {
+            long lowestKey = 0;
+            long lowest = Long.MAX_VALUE;
+            for (long candidate : candidates.keySet()) {
+                long estimate = estimate(candidate);
+                if (estimate < lowest) {
+                    lowest = estimate;
+                    lowestKey = candidate;
+                }
+            }
+            return new long[]{lowestKey, lowest};
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import lombok.Data;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values, such as durations in microseconds or numbers of rows.
+ * <p>
+ * Values below {@value #LINEAR} are counted exactly, larger ones in buckets of 1/{@value #SUB_BUCKETS}
+ * of a power of two, so a percentile is off by at most 12.5% and the histogram takes a few KB
+ * however many values it gets.
+ */
+@ThreadSafe
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        Preconditions.checkArgument(value >= 0, "Negative value %s", value);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The largest value that falls into the bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+        long sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Values recorded while the snapshot is taken may be missing from some of its numbers.
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = counts.get(i);
+            total += buckets[i];
+        }
+        long maxValue = max.get();
+        var nonEmpty = new TreeMap<Long, Long>();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (buckets[i] != 0) {
+                nonEmpty.put(Math.min(upperBound(i), maxValue), buckets[i]);
+            }
+        }
+        return new Snapshot(total, sum.sum(), maxValue,
+                percentile(buckets, total, 0.5, maxValue),
+                percentile(buckets, total, 0.9, maxValue),
+                percentile(buckets, total, 0.99, maxValue),
+                nonEmpty);
+    }
+
+    private static long percentile(long[] buckets, long total, double quantile, long max) {
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return 0;
+    }
+
+    @Data
+    public static class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        /**
+         * Number of values up to each bound, larger than the previous bound. Only non-empty buckets are listed.
+         */
+        private final Map<Long, Long> buckets;
+    }
+}
@@ -0,0 +1,156 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.ThreadSafe;
+
+import javax.annotation.CheckForNull;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Approximately the most active and the most contended accounts over a sliding window,
+ * so hot accounts are seen before latency of their transfers grows.
+ * <p>
+ * Activity is counted from committed transfers, it is a {@link CommitListener}. Contention is reported
+ * by {@link AccountService} whenever a change waits for the lock of its accounts. Both are kept in
+ * {@link HeavyHitters}, so memory is fixed no matter how many accounts there are.
+ */
+@ThreadSafe
+public class HotAccounts implements CommitListener, HotAccountsMXBean {
+    /**
+     * Slices in a window, the ring has one more that is being reset.
+     */
+    private static final int SLICES = 12;
+    private static final int SKETCH_WIDTH = 2048;
+
+    private final Clock clock;
+    private final int top;
+    private final HeavyHitters activity;
+    private final HeavyHitters contention;
+
+    /**
+     * @param window longest window of a report
+     * @param top    most accounts in a report
+     */
+    public HotAccounts(Duration window, int top) {
+        this(window, top, Clock.systemUTC());
+    }
+
+    HotAccounts(Duration window, int top, Clock clock) {
+        Preconditions.checkArgument(window.toMillis() >= SLICES, "Window is too short, found %s", window);
+        Preconditions.checkArgument(top > 0, "Top must be positive, found %s", top);
+        this.clock = clock;
+        this.top = top;
+        long sliceMillis = window.toMillis() / SLICES;
+        // a slice keeps more candidates than a report shows, so accounts hot over several slices are not lost
+        int capacity = Math.max(2 * top, 16);
+        this.activity = new HeavyHitters(SLICES + 1, sliceMillis, SKETCH_WIDTH, capacity);
+        this.contention = new HeavyHitters(SLICES + 1, sliceMillis, SKETCH_WIDTH, capacity);
+    }
+
+    @Override
+    public void committed(CommitEvent event) {
+        if (event.getType() != CommitEvent.Type.TRANSFER) {
+            return;
+        }
+        long now = clock.millis();
+        if (event.getDebited() != null) {
+            activity.add(event.getDebited().getValue(), 1, now);
+        }
+        if (event.getCredited() != null) {
+            activity.add(event.getCredited().getValue(), 1, now);
+        }
+    }
+
+    /**
+     * A change of the account waited for its lock.
+     */
+    void lockWaited(AccountId account, long nanos) {
+        contention.add(account.getValue(), Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos)), clock.millis());
+    }
+
+    /**
+     * @param window up to the window given to the constructor, the whole one by default
+     * @param limit  up to the top given to the constructor, all of it by default
+     */
+    public HotAccountsReport getReport(@CheckForNull Duration window, @CheckForNull Integer limit) {
+        long sliceMillis = activity.getSliceMillis();
+        int slices = SLICES;
+        if (window != null) {
+            Preconditions.checkArgument(!window.isNegative() && !window.isZero(), "Window must be positive, found %s", window);
+            Preconditions.checkArgument(window.toMillis() <= SLICES * sliceMillis,
+                    "Window must be at most %s seconds", SLICES * sliceMillis / 1000);
+            slices = (int) ((window.toMillis() + sliceMillis - 1) / sliceMillis);
+        }
+        int count = top;
+        if (limit != null) {
+            Preconditions.checkArgument(limit > 0 && limit <= top, "Limit must be between 1 and %s, found %s", top, limit);
+            count = limit;
+        }
+        long now = clock.millis();
+        return HotAccountsReport.builder()
+                .seconds(slices * sliceMillis / 1000)
+                .changes(activity.total(slices, now))
+                .lockWaitMicros(contention.total(slices, now))
+                .active(activity.top(count, slices, now).stream()
+                        .map(entry -> HotAccountsReport.Active.builder()
+                                .account(new AccountId(entry.getKey()))
+                                .changes(entry.getEstimate())
+                                .build())
+                        .collect(Collectors.toList()))
+                .contended(contention.top(count, slices, now).stream()
+                        .map(entry -> HotAccountsReport.Contended.builder()
+                                .account(new AccountId(entry.getKey()))
+                                .waitMicros(entry.getEstimate())
+                                .build())
+                        .collect(Collectors.toList()))
+                .build();
+    }
+
+    /**
+     * Publishes {@link HotAccountsMXBean} in the platform MBean server.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("ru.halcraes.revolut:type=HotAccounts"));
+        } catch (JMException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    @Override
+    public long getWindowSeconds() {
+        return SLICES * activity.getSliceMillis() / 1000;
+    }
+
+    @Override
+    public long getChanges() {
+        return activity.total(SLICES, clock.millis());
+    }
+
+    @Override
+    public long getLockWaitMicros() {
+        return contention.total(SLICES, clock.millis());
+    }
+
+    @Override
+    public long[] getMostActiveAccounts() {
+        return keys(activity.top(top, SLICES, clock.millis()));
+    }
+
+    @Override
+    public long[] getMostContendedAccounts() {
+        return keys(contention.top(top, SLICES, clock.millis()));
+    }
+
+    private static long[] keys(List<HeavyHitters.Entry> entries) {
+        return entries.stream().mapToLong(HeavyHitters.Entry::getKey).toArray();
+    }
+}
@@ -0,0 +1,25 @@
+package ru.halcraes.revolut.db;
+
+/**
+ * Metrics of {@link HotAccounts} over the whole window, for JMX clients and exporters.
+ */
+public interface HotAccountsMXBean {
+    long getWindowSeconds();
+
+    /**
+     * Balance changes in the window.
+     */
+    long getChanges();
+
+    long getLockWaitMicros();
+
+    /**
+     * Ids of the most active accounts, most changes first.
+     */
+    long[] getMostActiveAccounts();
+
+    /**
+     * Ids of the most contended accounts, longest waits first.
+     */
+    long[] getMostContendedAccounts();
+}
@@ -0,0 +1,55 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * The most active and the most contended accounts of a window, see {@link HotAccounts}.
+ */
+@Data
+@Builder
+public class HotAccountsReport {
+    /**
+     * Length of the window, the requested one rounded up to whole slices.
+     */
+    private final long seconds;
+    /**
+     * Balance changes in the window, a transfer between two accounts of the ledger is two.
+     */
+    private final long changes;
+    /**
+     * Time transfers waited for locks of their accounts in the window.
+     */
+    private final long lockWaitMicros;
+    /**
+     * Most changes first.
+     */
+    private final List<Active> active;
+    /**
+     * Longest waits first.
+     */
+    private final List<Contended> contended;
+
+    @Data
+    @Builder
+    public static class Active {
+        private final AccountId account;
+        /**
+         * Estimate, it is never lower than the real number.
+         */
+        private final long changes;
+    }
+
+    @Data
+    @Builder
+    public static class Contended {
+        private final AccountId account;
+        /**
+         * Estimate, it is never lower than the real time. Accounts that share a lock stripe
+         * get the waits of each other.
+         */
+        private final long waitMicros;
+    }
+}
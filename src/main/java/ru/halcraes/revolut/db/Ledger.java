@@ -0,0 +1,72 @@
+package ru.halcraes.revolut.db;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accounts and money transfers between them, as seen by the APIs.
+ * <p>
+ * {@link AccountService} keeps everything in one database, {@link ShardedLedger} splits accounts
+ * between several of them.
+ */
+public interface Ledger {
+    AccountId createAccount(@Nullable String description);
+
+    /**
+     * Creates accounts in one database transaction, opening balances become transfers from outside.
+     *
+     * @return ids of the accounts in the same order
+     */
+    List<AccountId> importAccounts(List<OpeningAccount> accounts);
+
+    void updateAccount(AccountId accountId, @Nullable String description);
+
+    Transaction moveMoney(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money
+    );
+
+    Account getAccount(AccountId account);
+
+    /**
+     * Reads many accounts at once, those that do not exist are not in the result.
+     *
+     * @param consistent read all accounts as of one moment, commits wait while they are read
+     */
+    Map<AccountId, Account> getAccounts(Collection<AccountId> accounts, boolean consistent);
+
+    /**
+     * @throws TransactionNotFoundException if there is no such transaction
+     */
+    Transaction getTransaction(TransactionId transactionId);
+
+    /**
+     * Whether the transaction read from this ledger stays as it is. A transfer between shards is not final
+     * until it is credited: its credit may be refused and refunded, and the credit gets its own sequence number.
+     */
+    default boolean isFinal(Transaction transaction) {
+        return true;
+    }
+
+    BigDecimal getBalance(AccountId account);
+
+    List<Transaction> getTransactions(
+            AccountId account,
+            @CheckForNull Integer limit,
+            @CheckForNull Integer offset,
+            @CheckForNull Instant fromTimestamp,
+            @CheckForNull Instant toTimestamp
+    );
+
+    /**
+     * Publishes all changes of the ledger.
+     */
+    CommitLog getCommitLog();
+}
@@ -0,0 +1,707 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copies all shards of a ledger into a stream and loads such a copy into new databases.
+ * <p>
+ * A backup is a consistent cut at one sequence number, taken while transfers go on. Commits are paused once
+ * to note the last sequence number and to start counting how the money of every account changes after it.
+ * Transactions up to that number are then read without pauses. Accounts are read a chunk at a time
+ * while commits are paused, and the changes counted since the cut are taken back out of their balances.
+ * Descriptions are as they were when the chunk was read.
+ * <p>
+ * The stream is gzip of a header and blocks of records. Every block has its length and CRC32C, so a damaged
+ * backup is noticed before anything from the damaged block is loaded. Numbers are variable-length, and ids,
+ * times and sequence numbers are stored as differences from the previous record.
+ */
+@ThreadSafe
+public class LedgerBackup {
+    private static final Logger log = LoggerFactory.getLogger(LedgerBackup.class);
+
+    private static final long MAGIC = 0x4143434442414b50L;
+    private static final int FORMAT = 1;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int ACCOUNT_CHUNK = 1000;
+    /**
+     * Rows loaded in one database transaction.
+     */
+    private static final int RESTORE_BATCH = 10_000;
+
+    private static final int RECORD_ACCOUNT = 1;
+    private static final int RECORD_TRANSACTION = 2;
+    private static final int RECORD_PENDING = 3;
+    /**
+     * Number of accounts and transactions of the shard.
+     */
+    private static final int RECORD_SHARD_END = 4;
+
+    private final List<DataSource> dataSources;
+    private final CommitLog commitLog;
+
+    /**
+     * @param dataSources all shards of the ledger in shard order
+     */
+    public LedgerBackup(List<DataSource> dataSources, CommitLog commitLog) {
+        this.dataSources = List.copyOf(dataSources);
+        this.commitLog = commitLog;
+    }
+
+    /**
+     * Writes a backup of the ledger, does not close the stream.
+     *
+     * @return sequence number of the cut
+     */
+    public long write(OutputStream target) throws IOException {
+        long start = System.nanoTime();
+        var changes = new Changes();
+        List<List<TransactionId>> pending = new ArrayList<>();
+        long sequence = commitLog.whilePaused(() -> {
+            commitLog.addListener(changes);
+            try {
+                for (var dataSource : dataSources) {
+                    pending.add(readPending(dataSource));
+                }
+            } catch (RuntimeException e) {
+                commitLog.removeListener(changes);
+                throw e;
+            }
+            return commitLog.getLastSequence();
+        });
+        long accounts = 0;
+        long transactions = 0;
+        try (var out = new DataOutputStream(new GZIPOutputStream(new NonClosingOutputStream(target), BLOCK_SIZE) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        })) {
+            out.writeLong(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(dataSources.size());
+            out.writeLong(sequence);
+            var blocks = new BlockWriter(out);
+            for (int shard = 0; shard < dataSources.size(); shard++) {
+                long shardAccounts = writeAccounts(dataSources.get(shard), changes, blocks);
+                long shardTransactions = writeTransactions(dataSources.get(shard), sequence, blocks);
+                for (var id : pending.get(shard)) {
+                    blocks.record().writeByte(RECORD_PENDING);
+                    blocks.record().write(id.serialize());
+                    blocks.endRecord();
+                }
+                blocks.record().writeByte(RECORD_SHARD_END);
+                writeVarLong(blocks.record(), shardAccounts);
+                writeVarLong(blocks.record(), shardTransactions);
+                blocks.endRecord();
+                accounts += shardAccounts;
+                transactions += shardTransactions;
+            }
+            blocks.finish();
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        } finally {
+            commitLog.removeListener(changes);
+        }
+        log.info("Backup of {} accounts and {} transactions up to sequence {} took {} ms",
+                accounts, transactions, sequence, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return sequence;
+    }
+
+    private static List<TransactionId> readPending(DataSource dataSource) {
+        try (var conn = dataSource.getConnection();
+             var rs = conn.createStatement().executeQuery("select id from pending_transfer")
+        ) {
+            List<TransactionId> ids = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(TransactionId.deserialize(rs.getBytes(1)));
+            }
+            return ids;
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private long writeAccounts(DataSource dataSource, Changes changes, BlockWriter blocks) throws IOException {
+        long written = 0;
+        long lastId = 0;
+        var chunk = new AccountChunk();
+        do {
+            // balances and the changes counted since the cut only match while commits are paused
+            commitLog.whilePaused(() -> readAccounts(dataSource, changes, chunk));
+            for (var account : chunk.accounts) {
+                long id = account.getId().getValue();
+                var out = blocks.record();
+                out.writeByte(RECORD_ACCOUNT);
+                writeVarLong(out, id - lastId);
+                writeString(out, account.getDescription());
+                writeDecimal(out, account.getBalance());
+                blocks.endRecord();
+                written++;
+                lastId = id;
+            }
+        } while (chunk.more);
+        return written;
+    }
+
+    /**
+     * Reads the chunk after {@code chunk.lastId} and moves it on, skips accounts created after the cut.
+     */
+    @GuardedBy("commitLog")
+    private static AccountChunk readAccounts(DataSource dataSource, Changes changes, AccountChunk chunk) {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement(
+                     "select id, description, money from account where id > ? order by id limit " + ACCOUNT_CHUNK)
+        ) {
+            statement.setLong(1, chunk.lastId);
+            chunk.accounts.clear();
+            int rows = 0;
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    rows++;
+                    long id = rs.getLong(1);
+                    chunk.lastId = id;
+                    if (changes.isCreated(id)) {
+                        continue;
+                    }
+                    chunk.accounts.add(Account.builder()
+                            .id(new AccountId(id))
+                            .description(rs.getString(2))
+                            .balance(rs.getBigDecimal(3).subtract(changes.moneySinceCut(id)))
+                            .build());
+                }
+            }
+            chunk.more = rows == ACCOUNT_CHUNK;
+            return chunk;
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static long writeTransactions(DataSource dataSource, long sequence, BlockWriter blocks)
+            throws SQLException, IOException {
+        try (var conn = dataSource.getConnection()) {
+            // rows are sent as they are read instead of collecting the whole result first
+            conn.createStatement().execute("set lazy_query_execution true");
+            try (var statement = conn.prepareStatement("select id, from_acc, to_acc, remote_acc, money, time, seq" +
+                    " from transaction where seq is null or seq <= ? order by seq")
+            ) {
+                statement.setLong(1, sequence);
+                long written = 0;
+                long lastNanos = 0;
+                long lastSequence = 0;
+                try (var rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        var out = blocks.record();
+                        out.writeByte(RECORD_TRANSACTION);
+                        out.write(rs.getBytes(1));
+                        writeAccountId(out, rs, 2);
+                        writeAccountId(out, rs, 3);
+                        writeAccountId(out, rs, 4);
+                        writeDecimal(out, rs.getBigDecimal(5));
+                        long nanos = toNanos(rs.getTimestamp(6).toInstant());
+                        writeVarLong(out, zigZag(nanos - lastNanos));
+                        long seq = rs.getLong(7);
+                        writeVarLong(out, zigZag(seq - lastSequence));
+                        blocks.endRecord();
+                        lastNanos = nanos;
+                        lastSequence = seq;
+                        written++;
+                    }
+                }
+                return written;
+            } finally {
+                conn.createStatement().execute("set lazy_query_execution false");
+            }
+        }
+    }
+
+    /**
+     * Loads a backup into databases that have no commits yet. Everything in them, including demo accounts,
+     * is replaced. Loading commits a batch at a time, so if it fails half way, the databases must be thrown away.
+     * Their indexes and foreign keys are put back even then.
+     *
+     * @param dataSources as many databases as the backed up ledger had shards, in shard order
+     * @return sequence number of the backup
+     */
+    public static long restore(InputStream source, List<DataSource> dataSources) throws IOException {
+        Preconditions.checkState(CommitLog.recover(dataSources).getLastSequence() == 0,
+                "Backups can only be restored into new databases, these already have commits");
+        long start = System.nanoTime();
+        var in = new DataInputStream(new GZIPInputStream(source, BLOCK_SIZE));
+        if (in.readLong() != MAGIC) {
+            throw new IOException("Not a ledger backup");
+        }
+        int format = in.readInt();
+        if (format != FORMAT) {
+            throw new IOException("Unsupported backup format " + format);
+        }
+        int shards = in.readInt();
+        Preconditions.checkArgument(shards == dataSources.size(),
+                "The backup has %s shards, but %s databases were given", shards, dataSources.size());
+        long sequence = in.readLong();
+        var blocks = new BlockReader(in);
+        long transactions = 0;
+        for (var dataSource : dataSources) {
+            try (var conn = dataSource.getConnection()) {
+                transactions += restoreShard(conn, blocks);
+            } catch (SQLException e) {
+                throw new InternalException(e);
+            }
+        }
+        if (blocks.next() != null) {
+            throw new IOException("Backup is corrupted: data after the last shard");
+        }
+        log.info("Restored {} transactions up to sequence {} in {} ms",
+                transactions, sequence, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return sequence;
+    }
+
+    private static long restoreShard(Connection conn, BlockReader blocks) throws SQLException, IOException {
+        conn.setAutoCommit(false);
+        try (var statement = conn.createStatement()) {
+            statement.execute("delete from pending_transfer");
+            // claims are made again from the restored transactions by ShardedLedger
+            statement.execute("delete from transaction_claim");
+            statement.execute("delete from transaction");
+            statement.execute("delete from account");
+        }
+        List<String> deferred = dropTransactionIndexes(conn);
+        long transactions;
+        try {
+            transactions = loadShard(conn, blocks);
+        } catch (SQLException | IOException | RuntimeException e) {
+            // batches are committed as they go and DDL commits too, so the database is not as it was
+            // and must be thrown away, but it is left with its indexes and foreign keys
+            conn.rollback();
+            try {
+                createAll(conn, deferred);
+            } catch (SQLException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        createAll(conn, deferred);
+        return transactions;
+    }
+
+    private static void createAll(Connection conn, List<String> statements) throws SQLException {
+        try (var statement = conn.createStatement()) {
+            for (var sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private static long loadShard(Connection conn, BlockReader blocks) throws SQLException, IOException {
+        try (var insertAccount = conn.prepareStatement("insert into account (id, description, money) values (?, ?, ?)");
+             var insertTransaction = conn.prepareStatement("insert into transaction" +
+                     " (id, from_acc, to_acc, remote_acc, money, time, seq) values (?, ?, ?, ?, ?, ?, ?)");
+             var insertPending = conn.prepareStatement("insert into pending_transfer (id) values (?)")
+        ) {
+            long accounts = 0;
+            long transactions = 0;
+            long lastId = 0;
+            long lastNanos = 0;
+            long lastSequence = 0;
+            int batched = 0;
+            while (true) {
+                DataInput in = blocks.next();
+                if (in == null) {
+                    throw new IOException("Backup is truncated");
+                }
+                int type = in.readUnsignedByte();
+                if (type == RECORD_SHARD_END) {
+                    long expectedAccounts = readVarLong(in);
+                    long expectedTransactions = readVarLong(in);
+                    if (accounts != expectedAccounts || transactions != expectedTransactions) {
+                        throw new IOException(String.format("Backup is corrupted: %d accounts and %d transactions" +
+                                        " instead of %d and %d", accounts, transactions,
+                                expectedAccounts, expectedTransactions));
+                    }
+                    break;
+                }
+                switch (type) {
+                    case RECORD_ACCOUNT:
+                        lastId += readVarLong(in);
+                        insertAccount.setLong(1, lastId);
+                        insertAccount.setString(2, readString(in));
+                        insertAccount.setBigDecimal(3, readDecimal(in));
+                        insertAccount.addBatch();
+                        accounts++;
+                        break;
+                    case RECORD_TRANSACTION:
+                        insertTransaction.setBytes(1, readId(in));
+                        readAccountId(in, insertTransaction, 2);
+                        readAccountId(in, insertTransaction, 3);
+                        readAccountId(in, insertTransaction, 4);
+                        insertTransaction.setBigDecimal(5, readDecimal(in));
+                        lastNanos += unZigZag(readVarLong(in));
+                        insertTransaction.setTimestamp(6, Timestamp.from(fromNanos(lastNanos)));
+                        lastSequence += unZigZag(readVarLong(in));
+                        if (lastSequence == 0) {
+                            insertTransaction.setNull(7, Types.BIGINT);
+                        } else {
+                            insertTransaction.setLong(7, lastSequence);
+                        }
+                        insertTransaction.addBatch();
+                        transactions++;
+                        break;
+                    case RECORD_PENDING:
+                        insertPending.setBytes(1, readId(in));
+                        insertPending.addBatch();
+                        break;
+                    default:
+                        throw new IOException("Backup is corrupted: unknown record " + type);
+                }
+                if (++batched == RESTORE_BATCH) {
+                    // accounts first, transactions refer to them
+                    insertAccount.executeBatch();
+                    insertTransaction.executeBatch();
+                    insertPending.executeBatch();
+                    conn.commit();
+                    batched = 0;
+                }
+            }
+            insertAccount.executeBatch();
+            insertTransaction.executeBatch();
+            insertPending.executeBatch();
+            try (var statement = conn.createStatement()) {
+                if (accounts > 0) {
+                    // DDL does not take parameters, but this is just a number
+                    statement.execute("alter table account alter column id restart with " + (lastId + 1));
+                }
+                // files kept next to the old database, like balance stores, must not be taken for this one's
+                statement.execute("update database_id set id = random_uuid()");
+            }
+            conn.commit();
+            return transactions;
+        }
+    }
+
+    /**
+     * Drops foreign keys and secondary indexes of the transaction table. Building them once after loading
+     * is several times faster than updating them on every row.
+     *
+     * @return statements that create them again, as H2 reports them
+     */
+    private static List<String> dropTransactionIndexes(Connection conn) throws SQLException {
+        List<String> create = new ArrayList<>();
+        try (var statement = conn.createStatement()) {
+            List<String> constraints = new ArrayList<>();
+            try (var rs = statement.executeQuery("select constraint_name, sql from information_schema.constraints" +
+                    " where table_name = 'TRANSACTION' and constraint_type = 'REFERENTIAL'")) {
+                while (rs.next()) {
+                    constraints.add(rs.getString(1));
+                    create.add(rs.getString(2));
+                }
+            }
+            List<String> indexes = new ArrayList<>();
+            try (var rs = statement.executeQuery("select distinct index_name, sql from information_schema.indexes" +
+                    " where table_name = 'TRANSACTION' and not primary_key")) {
+                while (rs.next()) {
+                    indexes.add(rs.getString(1));
+                    // indexes first, foreign keys use them
+                    create.add(indexes.size() - 1, rs.getString(2));
+                }
+            }
+            for (var constraint : constraints) {
+                statement.execute("alter table transaction drop constraint \"" + constraint + "\"");
+            }
+            for (var index : indexes) {
+                statement.execute("drop index if exists \"" + index + "\"");
+            }
+        }
+        return create;
+    }
+
+    private static void writeAccountId(DataOutput out, ResultSet rs, int column) throws SQLException, IOException {
+        long id = rs.getLong(column);
+        writeVarLong(out, rs.wasNull() ? 0 : id + 1);
+    }
+
+    private static void readAccountId(DataInput in, PreparedStatement statement, int column)
+            throws SQLException, IOException {
+        long value = readVarLong(in);
+        if (value == 0) {
+            statement.setNull(column, Types.BIGINT);
+        } else {
+            statement.setLong(column, value - 1);
+        }
+    }
+
+    private static byte[] readId(DataInput in) throws IOException {
+        var id = new byte[16];
+        in.readFully(id);
+        return id;
+    }
+
+    private static void writeString(DataOutput out, @CheckForNull String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    @CheckForNull
+    private static String readString(DataInput in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        var bytes = new byte[Math.toIntExact(length - 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDecimal(DataOutput out, BigDecimal value) throws IOException {
+        writeVarLong(out, zigZag(value.scale()));
+        byte[] unscaled = value.unscaledValue().toByteArray();
+        writeVarLong(out, unscaled.length);
+        out.write(unscaled);
+    }
+
+    private static BigDecimal readDecimal(DataInput in) throws IOException {
+        int scale = Math.toIntExact(unZigZag(readVarLong(in)));
+        var unscaled = new byte[Math.toIntExact(readVarLong(in))];
+        in.readFully(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+
+    private static long toNanos(Instant instant) {
+        return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+    }
+
+    private static Instant fromNanos(long nanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Seven bits per byte, the lowest first, the high bit is set on all bytes but the last.
+     */
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Backup is corrupted: number is too long");
+    }
+
+    /**
+     * Counts changes committed after the cut. It is only touched by one thread at a time: by the listener
+     * as the commit log delivers changes and by readers while commits are paused.
+     */
+    private static class Changes implements CommitListener {
+        @GuardedBy("commitLog")
+        private final Map<Long, BigDecimal> money = new HashMap<>();
+        @GuardedBy("commitLog")
+        private final Set<Long> created = new HashSet<>();
+
+        @Override
+        public void committed(CommitEvent event) {
+            switch (event.getType()) {
+                case ACCOUNT_CREATED:
+                    created.add(event.getAccount().getValue());
+                    break;
+                case TRANSFER:
+                    var amount = event.getTransaction().getMoney();
+                    if (event.getDebited() != null) {
+                        money.merge(event.getDebited().getValue(), amount.negate(), BigDecimal::add);
+                    }
+                    if (event.getCredited() != null) {
+                        money.merge(event.getCredited().getValue(), amount, BigDecimal::add);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @GuardedBy("commitLog")
+        BigDecimal moneySinceCut(long account) {
+            return money.getOrDefault(account, BigDecimal.ZERO);
+        }
+
+        @GuardedBy("commitLog")
+        boolean isCreated(long account) {
+            return created.contains(account);
+        }
+    }
+
+    private static class AccountChunk {
+        private final List<Account> accounts = new ArrayList<>(ACCOUNT_CHUNK);
+        private long lastId = -1;
+        private boolean more;
+    }
+
+    /**
+     * Collects records into blocks: length, CRC32C and the records.
+     */
+    private static class BlockWriter {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        private final DataOutputStream record = new DataOutputStream(block);
+        private final CRC32C crc = new CRC32C();
+
+        BlockWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        DataOutputStream record() {
+            return record;
+        }
+
+        void endRecord() throws IOException {
+            if (block.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        /**
+         * Writes the last block and an empty one that ends the backup.
+         */
+        void finish() throws IOException {
+            if (block.size() > 0) {
+                flushBlock();
+            }
+            out.writeInt(0);
+        }
+
+        private void flushBlock() throws IOException {
+            byte[] bytes = block.toByteArray();
+            crc.reset();
+            crc.update(bytes);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+            block.reset();
+        }
+    }
+
+    private static class BlockReader {
+        private final DataInputStream in;
+        private final CRC32C crc = new CRC32C();
+        private DataInputStream block;
+        private ByteArrayInputStream blockBytes;
+        private boolean finished;
+
+        BlockReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return input positioned at the next record, {@code null} after the last one
+         */
+        @CheckForNull
+        DataInput next() throws IOException {
+            if (blockBytes != null && blockBytes.available() > 0) {
+                return block;
+            }
+            if (finished) {
+                return null;
+            }
+            try {
+                int length = in.readInt();
+                if (length == 0) {
+                    finished = true;
+                    return null;
+                }
+                if (length < 0 || length > BLOCK_SIZE * 16) {
+                    throw new IOException("Backup is corrupted: block of " + length + " bytes");
+                }
+                int expectedCrc = in.readInt();
+                var bytes = new byte[length];
+                in.readFully(bytes);
+                crc.reset();
+                crc.update(bytes);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException("Backup is corrupted: checksum mismatch");
+                }
+                blockBytes = new ByteArrayInputStream(bytes);
+                block = new DataInputStream(blockBytes);
+                return block;
+            } catch (EOFException e) {
+                throw new IOException("Backup is truncated", e);
+            }
+        }
+    }
+
+    /**
+     * Lets the gzip stream be finished without closing the stream it writes to.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nets transfers of a ledger in one database: transfers that arrive within a window are committed together,
+ * and every account is updated once by the sum of them, see {@link AccountService#commitNetted}.
+ * <p>
+ * Every transfer still gets its own {@link Transaction} with its id and sequence number, and it is checked
+ * against the balance that includes the transfers accepted before it in the window, so a transfer is rejected
+ * exactly when it would have been without netting. Many transfers between the same few accounts then cost
+ * one lock and one update per account and window, at the price of waiting up to the window for the commit.
+ * <p>
+ * All transfers of the ledger must go through this class while it is running, a transfer made directly
+ * with the same transaction id as a netted one fails its whole window.
+ */
+@ThreadSafe
+public class NettingLedger implements Ledger, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(NettingLedger.class);
+    private static final int MAX_QUEUED = 1 << 16;
+
+    private final AccountService ledger;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Transfer> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private final Thread thread;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong transfers = new AtomicLong();
+    private volatile boolean running = true;
+
+    private NettingLedger(AccountService ledger, long windowMillis, int maxBatch) {
+        this.ledger = ledger;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatch = maxBatch;
+        this.thread = new Thread(this::run, "netting");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @param windowMillis how long a transfer waits for others to be committed with, {@code 0} only takes
+     *                     those that are already waiting
+     * @param maxBatch     most transfers committed together
+     */
+    public static NettingLedger start(AccountService ledger, long windowMillis, int maxBatch) {
+        Preconditions.checkArgument(windowMillis >= 0, "Window must not be negative, found %s", windowMillis);
+        Preconditions.checkArgument(maxBatch > 0, "Batch size must be positive, found %s", maxBatch);
+        var netting = new NettingLedger(ledger, windowMillis, maxBatch);
+        netting.thread.start();
+        log.info("Netting transfers in windows of {} ms, up to {} transfers", windowMillis, maxBatch);
+        return netting;
+    }
+
+    /**
+     * Windows committed so far.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Transfers committed or rejected so far.
+     */
+    public long getTransfers() {
+        return transfers.get();
+    }
+
+    @Override
+    public Transaction moveMoney(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money
+    ) {
+        var result = submit(fromAccount, toAccount, transactionId, money);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while waiting for a netted transfer, it may still be committed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new InternalException(e.getCause());
+        }
+    }
+
+    /**
+     * Queues the transfer for the next window.
+     */
+    CompletableFuture<Transaction> submit(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money
+    ) {
+        Preconditions.checkArgument(toAccount != null || fromAccount != null, "At least one account must be not null");
+        Preconditions.checkNotNull(transactionId);
+        ledger.checkAmount(money);
+        if (!running) {
+            throw new InternalException("Netting is stopped");
+        }
+        var transfer = new Transfer(fromAccount, toAccount, transactionId, money);
+        try {
+            queue.put(transfer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while queueing a transfer", e);
+        }
+        if (!running) {
+            // closed meanwhile, nothing takes the queue anymore
+            failQueued();
+        }
+        return transfer.result;
+    }
+
+    private void run() {
+        List<Transfer> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running) {
+                var first = queue.take();
+                batch.add(first);
+                long deadline = first.queuedNanos + windowNanos;
+                while (batch.size() < maxBatch) {
+                    var next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+        var stopped = new InternalException("Netting is stopped");
+        batch.forEach(transfer -> transfer.result.completeExceptionally(stopped));
+        failQueued();
+    }
+
+    private void commit(List<Transfer> batch) {
+        try {
+            ledger.commitNetted(batch);
+        } catch (RuntimeException e) {
+            log.error("Failed to commit {} netted transfers", batch.size(), e);
+            batch.forEach(transfer -> transfer.result.completeExceptionally(e));
+            return;
+        }
+        batches.incrementAndGet();
+        transfers.addAndGet(batch.size());
+        batch.forEach(Transfer::complete);
+    }
+
+    private void failQueued() {
+        var stopped = new InternalException("Netting is stopped");
+        Transfer transfer;
+        while ((transfer = queue.poll()) != null) {
+            transfer.result.completeExceptionally(stopped);
+        }
+    }
+
+    /**
+     * Stops netting, queued transfers fail. Transfers that are being committed are still committed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while stopping netting", e);
+        }
+    }
+
+    @Override
+    public AccountId createAccount(@Nullable String description) {
+        return ledger.createAccount(description);
+    }
+
+    @Override
+    public List<AccountId> importAccounts(List<OpeningAccount> accounts) {
+        return ledger.importAccounts(accounts);
+    }
+
+    @Override
+    public void updateAccount(AccountId accountId, @Nullable String description) {
+        ledger.updateAccount(accountId, description);
+    }
+
+    @Override
+    public Account getAccount(AccountId account) {
+        return ledger.getAccount(account);
+    }
+
+    @Override
+    public Map<AccountId, Account> getAccounts(Collection<AccountId> accounts, boolean consistent) {
+        return ledger.getAccounts(accounts, consistent);
+    }
+
+    @Override
+    public Transaction getTransaction(TransactionId transactionId) {
+        return ledger.getTransaction(transactionId);
+    }
+
+    @Override
+    public boolean isFinal(Transaction transaction) {
+        return ledger.isFinal(transaction);
+    }
+
+    @Override
+    public BigDecimal getBalance(AccountId account) {
+        return ledger.getBalance(account);
+    }
+
+    @Override
+    public List<Transaction> getTransactions(
+            AccountId account,
+            @CheckForNull Integer limit,
+            @CheckForNull Integer offset,
+            @CheckForNull Instant fromTimestamp,
+            @CheckForNull Instant toTimestamp
+    ) {
+        return ledger.getTransactions(account, limit, offset, fromTimestamp, toTimestamp);
+    }
+
+    @Override
+    public CommitLog getCommitLog() {
+        return ledger.getCommitLog();
+    }
+
+    /**
+     * A transfer waiting for its window. Its outcome is set by {@link AccountService#commitNetted}
+     * and only read by the netting thread.
+     */
+    static final class Transfer {
+        @CheckForNull
+        final AccountId from;
+        @CheckForNull
+        final AccountId to;
+        final TransactionId id;
+        final BigDecimal money;
+        final Instant timestamp = Instant.ofEpochMilli(System.currentTimeMillis());
+        final long queuedNanos = System.nanoTime();
+        final CompletableFuture<Transaction> result = new CompletableFuture<>();
+        /**
+         * The committed transaction, or the one stored before if the transfer is repeated.
+         */
+        @CheckForNull
+        Transaction transaction;
+        /**
+         * An earlier transfer of the window with the same id and details.
+         */
+        @CheckForNull
+        Transfer sameAs;
+        @CheckForNull
+        RuntimeException rejection;
+
+        Transfer(@CheckForNull AccountId from, @CheckForNull AccountId to, TransactionId id, BigDecimal money) {
+            this.from = from;
+            this.to = to;
+            this.id = id;
+            this.money = money;
+        }
+
+        void reset() {
+            transaction = null;
+            sameAs = null;
+            rejection = null;
+        }
+
+        private void complete() {
+            if (rejection != null) {
+                result.completeExceptionally(rejection);
+            } else {
+                result.complete(sameAs != null ? sameAs.transaction : transaction);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+
+/**
+ * An account to create by {@link Ledger#importAccounts}.
+ */
+@Data
+@Builder
+public class OpeningAccount {
+    @Nullable
+    private final String description;
+    /**
+     * Recorded as a transfer from outside, no transfer for zero.
+     */
+    @Builder.Default
+    private final BigDecimal balance = BigDecimal.ZERO;
+}
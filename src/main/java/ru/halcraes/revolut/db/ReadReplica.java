@@ -0,0 +1,275 @@
+package ru.halcraes.revolut.db;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-only copy of the ledger in a separate database, so history scans do not compete with transfers.
+ * <p>
+ * The replica starts with a copy of the primary databases taken while {@link CommitLog} is paused,
+ * and then applies every committed change in commit order on its own thread, many changes per transaction.
+ * Transfers between shards are stored as one transaction with both accounts.
+ * <p>
+ * Reads are eventually consistent. A client that needs to see its own transfer can wait for the
+ * {@link Transaction#getSequence() sequence number} of that transfer, see {@link #awaitSequence}.
+ */
+@ThreadSafe
+public class ReadReplica implements CommitListener, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ReadReplica.class);
+    private static final int MAX_BATCH = 1000;
+    private static final int COPY_BATCH = 1000;
+
+    private final CommitLog commitLog;
+    private final AccountService reader;
+    private final DataSource dataSource;
+    private final BlockingQueue<PendingChange> queue = new LinkedBlockingQueue<>();
+    private final Thread applier;
+    private final Object appliedMonitor = new Object();
+    private volatile long appliedSequence;
+    private volatile long applyingSinceNanos;
+
+    private ReadReplica(CommitLog commitLog, Database replica) {
+        this.commitLog = commitLog;
+        this.dataSource = replica.getDataSource();
+        this.reader = new AccountService(dataSource, new CommitLog(0));
+        this.applier = new Thread(this::run, "read-replica");
+        applier.setDaemon(true);
+    }
+
+    /**
+     * @param commitLog log of the primary ledger
+     * @param primary   databases of the primary ledger, all shards of it
+     * @param replica   an empty database that was initialized without demo accounts
+     */
+    public static ReadReplica start(CommitLog commitLog, List<DataSource> primary, Database replica) {
+        var result = new ReadReplica(commitLog, replica);
+        commitLog.whilePaused(() -> {
+            result.copy(primary);
+            result.appliedSequence = commitLog.getLastSequence();
+            commitLog.addListener(result);
+            return null;
+        });
+        result.applier.start();
+        return result;
+    }
+
+    /**
+     * Reads from the replica. Writes to it are not replicated anywhere and must not be done.
+     */
+    public Ledger getLedger() {
+        return reader;
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Waits until the replica has applied the given sequence number.
+     *
+     * @return {@code false} if the replica did not catch up in time
+     */
+    public boolean awaitSequence(long sequence, long timeoutMillis) throws InterruptedException {
+        if (appliedSequence >= sequence) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (appliedMonitor) {
+            while (appliedSequence < sequence) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(appliedMonitor, left);
+            }
+            return true;
+        }
+    }
+
+    public ReplicaStatus getStatus() {
+        long now = System.nanoTime();
+        long oldest = applyingSinceNanos;
+        var head = queue.peek();
+        if (oldest == 0 && head != null) {
+            oldest = head.committedNanos;
+        }
+        return ReplicaStatus.builder()
+                .committedSequence(commitLog.getLastSequence())
+                .appliedSequence(appliedSequence)
+                .pendingChanges(queue.size())
+                .lagMillis(oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(now - oldest))
+                .build();
+    }
+
+    @Override
+    public void committed(CommitEvent event) {
+        queue.add(new PendingChange(event, System.nanoTime()));
+    }
+
+    private void run() {
+        List<PendingChange> batch = new ArrayList<>(MAX_BATCH);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                applyingSinceNanos = batch.get(0).committedNanos;
+                apply(batch);
+                batch.clear();
+                applyingSinceNanos = 0;
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException | SQLException e) {
+                // keep the batch, the lag will show that the replica is stuck
+                log.error("Failed to apply {} changes to the replica, retrying", batch.size(), e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(List<PendingChange> batch) throws SQLException {
+        long sequence = appliedSequence;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (var createAccount = conn.prepareStatement("insert into account (id, description, money) values (?, ?, 0)");
+                 var updateAccount = conn.prepareStatement("update account set description = ? where id = ?");
+                 var transaction = prepareTransactionMerge(conn);
+                 var updateMoney = conn.prepareStatement("update account set money = money + ? where id = ?")
+            ) {
+                for (var change : batch) {
+                    CommitEvent event = change.event;
+                    switch (event.getType()) {
+                        case ACCOUNT_CREATED:
+                            createAccount.setLong(1, event.getAccount().getValue());
+                            createAccount.setString(2, event.getDescription());
+                            createAccount.execute();
+                            break;
+                        case ACCOUNT_UPDATED:
+                            updateAccount.setString(1, event.getDescription());
+                            updateAccount.setLong(2, event.getAccount().getValue());
+                            updateAccount.execute();
+                            break;
+                        case TRANSFER:
+                            var t = event.getTransaction();
+                            mergeTransaction(transaction, t);
+                            if (event.getDebited() != null) {
+                                updateMoney.setBigDecimal(1, t.getMoney().negate());
+                                updateMoney.setLong(2, event.getDebited().getValue());
+                                updateMoney.execute();
+                            }
+                            if (event.getCredited() != null) {
+                                updateMoney.setBigDecimal(1, t.getMoney());
+                                updateMoney.setLong(2, event.getCredited().getValue());
+                                updateMoney.execute();
+                            }
+                            break;
+                    }
+                    sequence = Math.max(sequence, event.getSequence());
+                }
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        synchronized (appliedMonitor) {
+            appliedSequence = sequence;
+            appliedMonitor.notifyAll();
+        }
+    }
+
+    private static PreparedStatement prepareTransactionMerge(Connection conn) throws SQLException {
+        // both legs of a transfer between shards end up in the same row
+        return conn.prepareStatement("merge into transaction (id, from_acc, to_acc, money, time, seq) key (id)" +
+                " values (?, ?, ?, ?, ?, ?)");
+    }
+
+    private static void mergeTransaction(PreparedStatement statement, Transaction t) throws SQLException {
+        statement.setBytes(1, t.getId().serialize());
+        if (t.getFromAccount() != null) {
+            statement.setLong(2, t.getFromAccount().getValue());
+        } else {
+            statement.setNull(2, Types.BIGINT);
+        }
+        if (t.getToAccount() != null) {
+            statement.setLong(3, t.getToAccount().getValue());
+        } else {
+            statement.setNull(3, Types.BIGINT);
+        }
+        statement.setBigDecimal(4, t.getMoney());
+        statement.setTimestamp(5, Timestamp.from(t.getTimestamp()));
+        statement.setLong(6, t.getSequence());
+        statement.execute();
+    }
+
+    private void copy(List<DataSource> primary) {
+        try (Connection target = dataSource.getConnection()) {
+            target.setAutoCommit(false);
+            try (var insert = target.prepareStatement("insert into account (id, description, money) values (?, ?, ?)")) {
+                for (var source : primary) {
+                    try (var conn = source.getConnection();
+                         var rs = conn.createStatement().executeQuery("select id, description, money from account")
+                    ) {
+                        int rows = 0;
+                        while (rs.next()) {
+                            insert.setLong(1, rs.getLong(1));
+                            insert.setString(2, rs.getString(2));
+                            insert.setBigDecimal(3, rs.getBigDecimal(3));
+                            insert.addBatch();
+                            if (++rows % COPY_BATCH == 0) {
+                                insert.executeBatch();
+                            }
+                        }
+                        insert.executeBatch();
+                    }
+                }
+            }
+            try (var merge = prepareTransactionMerge(target)) {
+                for (var source : primary) {
+                    try (var conn = source.getConnection();
+                         var rs = conn.createStatement().executeQuery("select * from transaction")
+                    ) {
+                        while (rs.next()) {
+                            mergeTransaction(merge, AccountService.parseTransaction(rs));
+                        }
+                    }
+                }
+            }
+            target.commit();
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        commitLog.removeListener(this);
+        applier.interrupt();
+    }
+
+    private static class PendingChange {
+        private final CommitEvent event;
+        private final long committedNanos;
+
+        PendingChange(CommitEvent event, long committedNanos) {
+            this.event = event;
+            this.committedNanos = committedNanos;
+        }
+    }
+}
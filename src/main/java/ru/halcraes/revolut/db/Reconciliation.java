@@ -0,0 +1,306 @@
+package ru.halcraes.revolut.db;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the balance of every account equals its credits minus its debits.
+ * <p>
+ * The id space of every database is split into ranges that are checked in parallel without locks, so
+ * transfers go on during the check. A query may see a balance and the transactions of an account at
+ * slightly different moments, so every suspected mismatch is checked again while commits are paused,
+ * which only holds them for one indexed query and only when something looks wrong.
+ * Incremental runs only check accounts that took part in transfers since the previous run.
+ */
+@ThreadSafe
+public class Reconciliation {
+    private static final Logger log = LoggerFactory.getLogger(Reconciliation.class);
+
+    static final int MAX_MISMATCH_TRANSACTIONS = 1000;
+    private static final long RANGE_SIZE = 10_000;
+    private static final int CHUNK_SIZE = 1000;
+    private static final String CHECK = "select a.id, a.money," +
+            " coalesce((select sum(t.money) from transaction t where t.to_acc = a.id), 0)" +
+            " - coalesce((select sum(t.money) from transaction t where t.from_acc = a.id), 0)" +
+            " from ";
+
+    private final List<DataSource> dataSources;
+    private final CommitLog commitLog;
+    private final ForkJoinPool pool;
+    @GuardedBy("this")
+    private long lastSequence = -1;
+
+    /**
+     * @param dataSources all shards of the ledger
+     * @param parallelism how many ranges to check at the same time, each takes a database connection
+     */
+    public Reconciliation(List<DataSource> dataSources, CommitLog commitLog, int parallelism) {
+        this.dataSources = List.copyOf(dataSources);
+        this.commitLog = commitLog;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Checks all accounts.
+     */
+    public synchronized ReconciliationReport run() {
+        long start = System.nanoTime();
+        // every transfer up to it is committed and visible to the snapshots taken below
+        long sequence = commitLog.getLastSequence();
+        List<ReconciliationReport.Mismatch> mismatches = new ArrayList<>();
+        int checked = 0;
+        for (var dataSource : dataSources) {
+            long[] bounds = idBounds(dataSource);
+            if (bounds == null) {
+                continue;
+            }
+            var result = pool.invoke(new RangeCheck(dataSource, bounds[0], bounds[1] + 1));
+            mismatches.addAll(result.mismatches);
+            checked += result.checked;
+        }
+        return finish(false, sequence, checked, mismatches, start);
+    }
+
+    /**
+     * Checks accounts that took part in transfers since the previous run, or all of them on the first run.
+     */
+    public synchronized ReconciliationReport runIncremental() {
+        if (lastSequence < 0) {
+            return run();
+        }
+        long start = System.nanoTime();
+        long sequence = commitLog.getLastSequence();
+        List<ReconciliationReport.Mismatch> mismatches = new ArrayList<>();
+        int checked = 0;
+        for (var dataSource : dataSources) {
+            long[] changed = changedAccounts(dataSource, lastSequence, sequence);
+            if (changed.length == 0) {
+                continue;
+            }
+            var result = pool.invoke(new ListCheck(dataSource, changed, 0, changed.length));
+            mismatches.addAll(result.mismatches);
+            checked += result.checked;
+        }
+        return finish(true, sequence, checked, mismatches, start);
+    }
+
+    @GuardedBy("this")
+    private ReconciliationReport finish(
+            boolean incremental,
+            long sequence,
+            int checked,
+            List<ReconciliationReport.Mismatch> mismatches,
+            long start
+    ) {
+        lastSequence = sequence;
+        if (!mismatches.isEmpty()) {
+            log.warn("Reconciliation found {} accounts with wrong balances", mismatches.size());
+        }
+        return ReconciliationReport.builder()
+                .incremental(incremental)
+                .sequence(sequence)
+                .accountsChecked(checked)
+                .durationMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .mismatches(mismatches)
+                .build();
+    }
+
+    private static long[] idBounds(DataSource dataSource) {
+        try (var conn = dataSource.getConnection();
+             var rs = conn.createStatement().executeQuery("select min(id), max(id) from account")
+        ) {
+            rs.next();
+            long min = rs.getLong(1);
+            return rs.wasNull() ? null : new long[]{min, rs.getLong(2)};
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static long[] changedAccounts(DataSource dataSource, long afterSequence, long lastSequence) {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("select from_acc, to_acc from transaction where seq > ? and seq <= ?")
+        ) {
+            statement.setLong(1, afterSequence);
+            statement.setLong(2, lastSequence);
+            var ids = new TreeSet<Long>();
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    for (int column = 1; column <= 2; column++) {
+                        long id = rs.getLong(column);
+                        if (!rs.wasNull()) {
+                            ids.add(id);
+                        }
+                    }
+                }
+            }
+            return ids.stream().mapToLong(Long::longValue).toArray();
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private CheckResult check(DataSource dataSource, String from, StatementSetter setter) {
+        var result = new CheckResult();
+        List<AccountId> suspects = new ArrayList<>();
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement(CHECK + from)
+        ) {
+            setter.set(statement);
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.checked++;
+                    if (rs.getBigDecimal(2).compareTo(rs.getBigDecimal(3)) != 0) {
+                        suspects.add(new AccountId(rs.getLong(1)));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+        for (var account : suspects) {
+            var mismatch = commitLog.whilePaused(() -> confirm(dataSource, account));
+            if (mismatch != null) {
+                result.mismatches.add(mismatch);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks one account again, must be called while commits are paused.
+     */
+    @CheckForNull
+    private static ReconciliationReport.Mismatch confirm(DataSource dataSource, AccountId account) {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement(CHECK + "account a where a.id = ?")
+        ) {
+            statement.setLong(1, account.getValue());
+            try (var rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                var balance = rs.getBigDecimal(2);
+                var expected = rs.getBigDecimal(3);
+                if (balance.compareTo(expected) == 0) {
+                    return null;
+                }
+                return ReconciliationReport.Mismatch.builder()
+                        .account(account)
+                        .balance(balance)
+                        .expected(expected)
+                        .transactions(transactions(conn, account))
+                        .build();
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static List<Transaction> transactions(Connection conn, AccountId account) throws SQLException {
+        try (var statement = conn.prepareStatement("select * from transaction where from_acc = ? or to_acc = ?" +
+                " order by time desc, seq desc limit " + MAX_MISMATCH_TRANSACTIONS)) {
+            statement.setLong(1, account.getValue());
+            statement.setLong(2, account.getValue());
+            List<Transaction> transactions = new ArrayList<>();
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    transactions.add(AccountService.parseTransaction(rs));
+                }
+            }
+            return Collections.unmodifiableList(transactions);
+        }
+    }
+
+    @FunctionalInterface
+    private interface StatementSetter {
+        void set(PreparedStatement statement) throws SQLException;
+    }
+
+    private static class CheckResult {
+        private final List<ReconciliationReport.Mismatch> mismatches = new ArrayList<>();
+        private int checked;
+
+        CheckResult merge(CheckResult other) {
+            mismatches.addAll(other.mismatches);
+            checked += other.checked;
+            return this;
+        }
+    }
+
+    /**
+     * Accounts with ids in {@code [from, to)}.
+     */
+    private class RangeCheck extends RecursiveTask<CheckResult> {
+        private final DataSource dataSource;
+        private final long from;
+        private final long to;
+
+        RangeCheck(DataSource dataSource, long from, long to) {
+            this.dataSource = dataSource;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CheckResult compute() {
+            if (to - from <= RANGE_SIZE) {
+                return check(dataSource, "account a where a.id >= ? and a.id < ?", statement -> {
+                    statement.setLong(1, from);
+                    statement.setLong(2, to);
+                });
+            }
+            long middle = from + (to - from) / 2;
+            var left = new RangeCheck(dataSource, from, middle);
+            left.fork();
+            var right = new RangeCheck(dataSource, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    /**
+     * Accounts {@code ids[from..to)}.
+     */
+    private class ListCheck extends RecursiveTask<CheckResult> {
+        private final DataSource dataSource;
+        private final long[] ids;
+        private final int from;
+        private final int to;
+
+        ListCheck(DataSource dataSource, long[] ids, int from, int to) {
+            this.dataSource = dataSource;
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CheckResult compute() {
+            if (to - from <= CHUNK_SIZE) {
+                return check(dataSource, "table(x bigint = ?) c join account a on a.id = c.x", statement ->
+                        statement.setObject(1, Arrays.stream(ids, from, to).boxed().toArray()));
+            }
+            int middle = (from + to) >>> 1;
+            var left = new ListCheck(dataSource, ids, from, middle);
+            left.fork();
+            var right = new ListCheck(dataSource, ids, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@Data
+@Builder
+public class ReconciliationReport {
+    /**
+     * Only accounts changed since the previous run were checked.
+     */
+    private final boolean incremental;
+    /**
+     * All transfers up to this sequence number were checked, the next incremental run starts after it.
+     */
+    private final long sequence;
+    private final int accountsChecked;
+    private final long durationMillis;
+    private final List<Mismatch> mismatches;
+
+    @Data
+    @Builder
+    public static class Mismatch {
+        private final AccountId account;
+        private final BigDecimal balance;
+        /**
+         * Credits minus debits of the account.
+         */
+        private final BigDecimal expected;
+        /**
+         * Most recent first, at most {@link Reconciliation#MAX_MISMATCH_TRANSACTIONS}.
+         */
+        private final List<Transaction> transactions;
+    }
+}
@@ -0,0 +1,25 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class ReplicaStatus {
+    /**
+     * Last sequence number committed by the primary.
+     */
+    private final long committedSequence;
+    /**
+     * Last sequence number visible in the replica.
+     */
+    private final long appliedSequence;
+    /**
+     * Changes received by the replica, but not yet applied.
+     */
+    private final int pendingChanges;
+    /**
+     * How long ago the oldest pending change was committed, {@code 0} when the replica is up to date.
+     */
+    private final long lagMillis;
+}
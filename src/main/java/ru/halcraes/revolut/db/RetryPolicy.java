@@ -0,0 +1,96 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.ThreadSafe;
+import org.h2.api.ErrorCode;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Repeats a database transaction that failed because of lock contention.
+ * <p>
+ * Delays grow exponentially and are randomized, so that transactions that collided once
+ * do not collide again on the next attempt.
+ */
+@ThreadSafe
+public class RetryPolicy {
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 2;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 100;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final AtomicLong retries = new AtomicLong();
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxAttempts     how many times to try, 1 disables retries
+     * @param baseDelayMillis upper bound of the delay before the second attempt, doubled for every next one
+     * @param maxDelayMillis  upper bound of any delay
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        Preconditions.checkArgument(maxAttempts > 0, "Max attempts must be positive, found %s", maxAttempts);
+        Preconditions.checkArgument(baseDelayMillis >= 0 && maxDelayMillis >= baseDelayMillis,
+                "Invalid delays %s and %s", baseDelayMillis, maxDelayMillis);
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * How many times transactions were repeated so far.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Runs the transaction, repeating it while it fails with {@link #isTransient transient} errors.
+     * The transaction must roll back its changes before throwing.
+     */
+    public <T> T execute(SqlTransaction<T> transaction) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transaction.run();
+            } catch (SQLException e) {
+                if (attempt >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                sleep(attempt);
+            }
+        }
+    }
+
+    static boolean isTransient(SQLException e) {
+        switch (e.getErrorCode()) {
+            case ErrorCode.LOCK_TIMEOUT_1:
+            case ErrorCode.DEADLOCK_1:
+            case ErrorCode.CONCURRENT_UPDATE_1:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void sleep(int attempt) {
+        long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface SqlTransaction<T> {
+        T run() throws SQLException;
+    }
+}
@@ -0,0 +1,38 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+import javax.annotation.CheckForNull;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * A transfer that {@link TransferScheduler} makes at a later time, once or repeatedly.
+ */
+@Data
+@Builder(toBuilder = true)
+public class ScheduledTransfer {
+    private final long id;
+    @CheckForNull
+    private final AccountId fromAccount;
+    @CheckForNull
+    private final AccountId toAccount;
+    private final BigDecimal money;
+    private final Instant nextTime;
+    /**
+     * Time between firings, {@code null} for a transfer that happens once.
+     */
+    @CheckForNull
+    private final Duration period;
+    /**
+     * Firings left, {@code null} for a recurring transfer that goes on until it is cancelled.
+     */
+    @CheckForNull
+    private final Long remaining;
+    /**
+     * Firings so far.
+     */
+    private final long occurrence;
+}
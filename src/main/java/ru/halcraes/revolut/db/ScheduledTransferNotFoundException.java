@@ -0,0 +1,14 @@
+package ru.halcraes.revolut.db;
+
+public class ScheduledTransferNotFoundException extends IllegalArgumentException {
+    private final long id;
+
+    public ScheduledTransferNotFoundException(long id) {
+        super("Scheduled transfer not found: " + id);
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+}
@@ -0,0 +1,96 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+import liquibase.Liquibase;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.h2.api.ErrorCode;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Brings the schema up to date with Liquibase.
+ * <p>
+ * Parsing the change log and checking it against the database takes a noticeable part of startup,
+ * so the checksum of the change log is stored in the database after every update, and the next start
+ * with the same change log skips Liquibase. Liquibase classes are not even loaded then.
+ */
+final class SchemaMigration {
+    private static final String CHANGE_LOG = "ru/halcraes/revolut/db/liquibase.xml";
+
+    private SchemaMigration() {
+    }
+
+    /**
+     * @return {@code false} if the schema was already up to date
+     */
+    static boolean update(DataSource dataSource, String contexts) {
+        String checksum = checksum(contexts);
+        try (Connection conn = dataSource.getConnection()) {
+            if (checksum.equals(storedChecksum(conn))) {
+                return false;
+            }
+            conn.setAutoCommit(false);
+            try {
+                runLiquibase(conn, contexts);
+                try (var delete = conn.prepareStatement("delete from schema_checksum");
+                     var insert = conn.prepareStatement("insert into schema_checksum (checksum) values (?)")
+                ) {
+                    delete.execute();
+                    insert.setString(1, checksum);
+                    insert.execute();
+                }
+                conn.commit();
+                return true;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException | LiquibaseException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static void runLiquibase(Connection conn, String contexts) throws LiquibaseException {
+        var database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(conn));
+        var liquibase = new Liquibase(CHANGE_LOG, new ClassLoaderResourceAccessor(), database);
+        liquibase.update(contexts);
+    }
+
+    private static String storedChecksum(Connection conn) throws SQLException {
+        try (var statement = conn.prepareStatement("select checksum from schema_checksum");
+             var rs = statement.executeQuery()
+        ) {
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException e) {
+            if (e.getErrorCode() == ErrorCode.TABLE_OR_VIEW_NOT_FOUND_1) {
+                // a new database
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Contexts are a part of the checksum, they decide which change sets apply.
+     */
+    static String checksum(String contexts) {
+        try {
+            byte[] changeLog = Resources.toByteArray(Resources.getResource(CHANGE_LOG));
+            return Hashing.sha256().newHasher()
+                    .putBytes(changeLog)
+                    .putString(contexts, StandardCharsets.UTF_8)
+                    .hash()
+                    .toString();
+        } catch (IOException e) {
+            throw new InternalException(e);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Splits accounts between several independent databases.
+ * <p>
+ * Every shard owns a range of account ids: ids of shard {@code i} start at {@code i << SHARD_ID_BITS},
+ * so any request can be routed by its {@link AccountId} alone. Transfers within one shard are a single
+ * database transaction as usual.
+ * <p>
+ * A transfer between shards is a saga of two local transactions. The sender's shard takes the money
+ * and records a pending transfer, then the receiver's shard gets the money and the pending record is removed.
+ * Both legs are stored under the same {@link TransactionId}, so each of them is idempotent on its own.
+ * If the second leg fails for infrastructure reasons, the transfer is still committed: pending transfers
+ * are retried in the background until they complete. If the receiver's shard refuses the second leg,
+ * the money is given back to the sender with a refund transfer and the transfer fails.
+ * <p>
+ * Transaction ids are unique in the whole ledger, like in a single database. Before any money moves,
+ * the id of every transfer is claimed in the shard picked by the id, see {@link AccountService#claimTransactionId},
+ * so a repeated request is recognized whichever shard its accounts live in. An id stays claimed by its transfer
+ * even if the transfer is rejected, a repeated request with the same details is tried again.
+ */
+@ThreadSafe
+public class ShardedLedger implements Ledger, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ShardedLedger.class);
+
+    static final int SHARD_ID_BITS = 40;
+    private static final int CLAIM_BATCH = 1000;
+
+    private final List<AccountService> shards;
+    private final CommitLog commitLog;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final ScheduledExecutorService recovery = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "pending-transfers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param shards databases in shard order, the order must not change between restarts
+     */
+    public ShardedLedger(List<Database> shards) {
+        Preconditions.checkArgument(!shards.isEmpty(), "At least one shard is required");
+        Preconditions.checkArgument(shards.size() <= 1 << (Long.SIZE - 1 - SHARD_ID_BITS), "Too many shards");
+        for (int i = 0; i < shards.size(); i++) {
+            reserveAccountIds(shards.get(i), i);
+        }
+        this.commitLog = CommitLog.recover(shards.stream().map(Database::getDataSource).collect(Collectors.toList()));
+        this.shards = shards.stream()
+                .map(database -> new AccountService(database.getDataSource(), commitLog))
+                .collect(Collectors.toUnmodifiableList());
+        claimStoredTransactions();
+        completePendingTransfers();
+        recovery.scheduleWithFixedDelay(this::completePendingTransfers, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static void reserveAccountIds(Database database, int shard) {
+        long firstId = (long) shard << SHARD_ID_BITS;
+        try (var conn = database.getDataSource().getConnection();
+             var statement = conn.prepareStatement("select max(id) from account")
+        ) {
+            statement.execute();
+            try (var rs = statement.getResultSet()) {
+                rs.next();
+                if (rs.getLong(1) < firstId) {
+                    // DDL does not take parameters, but this is just a number
+                    try (var alter = conn.prepareStatement("alter table account alter column id restart with " + firstId)) {
+                        alter.execute();
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Claims ids of transactions that were stored before ids were claimed, or restored from a backup.
+     */
+    private void claimStoredTransactions() {
+        if (shards.stream().anyMatch(AccountService::hasTransactionClaims)) {
+            return;
+        }
+        for (var shard : shards) {
+            shard.claimStoredTransactions(CLAIM_BATCH, transactions -> {
+                Map<AccountService, List<Transaction>> byHome = new HashMap<>();
+                for (var transaction : transactions) {
+                    byHome.computeIfAbsent(homeOf(transaction.getId()), home -> new ArrayList<>()).add(transaction);
+                }
+                byHome.forEach(AccountService::claimTransactionIds);
+            });
+        }
+    }
+
+    /**
+     * The shard that claims the id.
+     */
+    private AccountService homeOf(TransactionId transactionId) {
+        return shards.get(Math.floorMod(transactionId.getValue().hashCode(), shards.size()));
+    }
+
+    /**
+     * Id of the transfer that gives the money of a refused transfer back to the sender.
+     */
+    static TransactionId refundId(TransactionId transactionId) {
+        return TransactionId.of(UUID.nameUUIDFromBytes(
+                ("refund/" + transactionId.asString()).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private AccountService shardOf(AccountId account) {
+        long shard = account.getValue() >>> SHARD_ID_BITS;
+        if (shard >= shards.size()) {
+            // ids outside of any shard never exist
+            throw new AccountNotFoundException(account);
+        }
+        return shards.get((int) shard);
+    }
+
+    @Override
+    public AccountId createAccount(@Nullable String description) {
+        int shard = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        return shards.get(shard).createAccount(description);
+    }
+
+    /**
+     * The whole batch goes into one shard, so it stays one transaction. Batches take turns like single accounts.
+     */
+    @Override
+    public List<AccountId> importAccounts(List<OpeningAccount> accounts) {
+        int shard = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        return shards.get(shard).importAccounts(accounts);
+    }
+
+    @Override
+    public void updateAccount(AccountId accountId, @Nullable String description) {
+        shardOf(accountId).updateAccount(accountId, description);
+    }
+
+    @Override
+    public Transaction moveMoney(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money
+    ) {
+        Preconditions.checkArgument(toAccount != null || fromAccount != null, "At least one account must be not null");
+        Preconditions.checkNotNull(transactionId);
+        Preconditions.checkNotNull(money);
+        homeOf(transactionId).claimTransactionId(transactionId, fromAccount, toAccount, money);
+        if (fromAccount == null) {
+            return shardOf(toAccount).moveMoney(null, toAccount, transactionId, money);
+        }
+        var fromShard = shardOf(fromAccount);
+        if (toAccount == null) {
+            return fromShard.moveMoney(fromAccount, null, transactionId, money);
+        }
+        var toShard = shardOf(toAccount);
+        if (fromShard == toShard) {
+            return fromShard.moveMoney(fromAccount, toAccount, transactionId, money);
+        }
+
+        // fails with AccountNotFoundException before any money is taken
+        toShard.getAccount(toAccount);
+        Transaction transaction = fromShard.debitLeg(fromAccount, toAccount, transactionId, money);
+        try {
+            // the credit is committed last, so its sequence number covers the whole transfer
+            return completeTransfer(fromShard, toShard, transaction);
+        } catch (IllegalArgumentException e) {
+            // refused and refunded
+            throw e;
+        } catch (RuntimeException e) {
+            log.warn("Transfer {} will be completed in background", transactionId, e);
+            return transaction;
+        }
+    }
+
+    /**
+     * Credits a debited transfer. If the receiver's shard refuses it, like when the id is taken there,
+     * retrying won't help, so the sender gets the money back and the refusal is thrown.
+     */
+    private Transaction completeTransfer(AccountService fromShard, AccountService toShard, Transaction transaction) {
+        Transaction credited;
+        try {
+            credited = toShard.creditLeg(transaction);
+        } catch (IllegalArgumentException e) {
+            var refundId = refundId(transaction.getId());
+            homeOf(refundId).claimTransactionId(refundId, transaction.getToAccount(), transaction.getFromAccount(),
+                    transaction.getMoney());
+            fromShard.refundTransfer(transaction, refundId);
+            log.warn("Transfer {} was refused by the receiver's shard and refunded as {}", transaction.getId(), refundId, e);
+            throw e;
+        }
+        fromShard.completeTransfer(transaction.getId());
+        return credited;
+    }
+
+    /**
+     * Credits all transfers between shards that were interrupted after the money was taken.
+     */
+    void completePendingTransfers() {
+        for (var fromShard : shards) {
+            try {
+                for (var transaction : fromShard.getPendingTransfers()) {
+                    try {
+                        completeTransfer(fromShard, shardOf(transaction.getToAccount()), transaction);
+                    } catch (IllegalArgumentException e) {
+                        // refunded, nothing to retry
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.error("Failed to complete pending transfers", e);
+            }
+        }
+    }
+
+    @Override
+    public Account getAccount(AccountId account) {
+        Preconditions.checkNotNull(account);
+        return shardOf(account).getAccount(account);
+    }
+
+    @Override
+    public Transaction getTransaction(TransactionId transactionId) {
+        for (var shard : shards) {
+            var transaction = shard.findTransaction(transactionId);
+            if (transaction == null) {
+                continue;
+            }
+            if (transaction.getFromAccount() != null && transaction.getToAccount() != null) {
+                // the credit leg of a transfer between shards has the sequence number of the whole transfer
+                var toShard = shardOf(transaction.getToAccount());
+                if (toShard != shard) {
+                    var credited = toShard.findTransaction(transactionId);
+                    if (credited != null) {
+                        return credited;
+                    }
+                    if (shard.findTransaction(refundId(transactionId)) != null) {
+                        // the receiver's shard refused the transfer, so it did not happen
+                        throw new TransactionNotFoundException(transactionId);
+                    }
+                    return transaction;
+                }
+            }
+            return transaction;
+        }
+        throw new TransactionNotFoundException(transactionId);
+    }
+
+    @Override
+    public boolean isFinal(Transaction transaction) {
+        if (transaction.getFromAccount() == null || transaction.getToAccount() == null) {
+            return true;
+        }
+        var toShard = shardOf(transaction.getToAccount());
+        return toShard == shardOf(transaction.getFromAccount()) || toShard.findTransaction(transaction.getId()) != null;
+    }
+
+    @Override
+    public Map<AccountId, Account> getAccounts(Collection<AccountId> accounts, boolean consistent) {
+        Preconditions.checkNotNull(accounts);
+        // shards share the commit log, so pausing it stops commits in all of them
+        if (consistent) {
+            return commitLog.whilePaused(() -> readAccounts(accounts));
+        }
+        return readAccounts(accounts);
+    }
+
+    private Map<AccountId, Account> readAccounts(Collection<AccountId> accounts) {
+        Map<Integer, List<AccountId>> byShard = new HashMap<>();
+        for (var account : accounts) {
+            long shard = account.getValue() >>> SHARD_ID_BITS;
+            // ids outside of any shard never exist
+            if (shard < shards.size()) {
+                byShard.computeIfAbsent((int) shard, s -> new ArrayList<>()).add(account);
+            }
+        }
+        Map<AccountId, Account> result = new HashMap<>();
+        byShard.forEach((shard, ids) -> result.putAll(shards.get(shard).readAccounts(ids)));
+        return result;
+    }
+
+    @Override
+    public BigDecimal getBalance(AccountId account) {
+        return getAccount(account).getBalance();
+    }
+
+    @Override
+    public List<Transaction> getTransactions(
+            AccountId account,
+            @CheckForNull Integer limit,
+            @CheckForNull Integer offset,
+            @CheckForNull Instant fromTimestamp,
+            @CheckForNull Instant toTimestamp
+    ) {
+        Preconditions.checkNotNull(account);
+        return shardOf(account).getTransactions(account, limit, offset, fromTimestamp, toTimestamp);
+    }
+
+    @Override
+    public CommitLog getCommitLog() {
+        return commitLog;
+    }
+
+    /**
+     * Counts transfers of all shards and waits for locks of their accounts in {@code hotAccounts}.
+     */
+    public void trackHotAccounts(HotAccounts hotAccounts) {
+        shards.forEach(shard -> shard.setHotAccounts(hotAccounts));
+        commitLog.addListener(hotAccounts);
+    }
+
+    @Override
+    public void close() {
+        recovery.shutdownNow();
+    }
+}
@@ -0,0 +1,37 @@
+package ru.halcraes.revolut.db;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class SqlProfile {
+    /**
+     * From taking a connection from the pool until returning it.
+     */
+    private final Histogram.Snapshot connectionHoldMicros;
+    /**
+     * Most time consuming first.
+     */
+    private final List<Statement> statements;
+
+    @Data
+    @Builder
+    public static class Statement {
+        /**
+         * Text of the statement with literals replaced by {@code ?}.
+         */
+        private final String sql;
+        /**
+         * Executions that failed, they are not in the histograms.
+         */
+        private final long errors;
+        private final Histogram.Snapshot micros;
+        /**
+         * Rows read by the caller from a query, rows changed by an update or by a whole batch.
+         */
+        private final Histogram.Snapshot rows;
+    }
+}
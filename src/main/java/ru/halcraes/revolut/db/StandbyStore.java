@@ -0,0 +1,159 @@
+package ru.halcraes.revolut.db;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * The database of a standby: a full copy of a single-database ledger that follows the changes committed
+ * by the primary and can take its place.
+ * <p>
+ * The copy starts from a {@link LedgerBackup} and is then kept up to date with {@link CommitEvent}s.
+ * Changes committed shortly before the backup may come again after it. They are recognized and skipped,
+ * so the primary does not have to find the exact cut of the backup in its stream of changes.
+ */
+@NotThreadSafe
+public class StandbyStore {
+    private final DataSource dataSource;
+    private long snapshotSequence;
+    private volatile long appliedSequence;
+
+    public StandbyStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Last transfer that is in this database.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Replaces everything in the database with a backup of the primary.
+     *
+     * @return sequence number of the backup
+     */
+    public long load(InputStream backup) throws IOException {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.createStatement()
+        ) {
+            statement.execute("delete from pending_transfer");
+            statement.execute("delete from transaction");
+            statement.execute("delete from account");
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+        appliedSequence = 0;
+        snapshotSequence = LedgerBackup.restore(backup, List.of(dataSource));
+        appliedSequence = snapshotSequence;
+        return snapshotSequence;
+    }
+
+    /**
+     * Applies changes of the primary in one database transaction, in the order they were committed.
+     */
+    public void apply(List<CommitEvent> events) {
+        long sequence = appliedSequence;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (var createAccount = conn.prepareStatement("insert into account (id, description, money)" +
+                    " select ?, ?, 0 from dual where not exists (select 1 from account where id = ?)");
+                 var updateAccount = conn.prepareStatement("update account set description = ? where id = ?");
+                 var insertTransaction = conn.prepareStatement("insert into transaction" +
+                         " (id, from_acc, to_acc, money, time, seq) values (?, ?, ?, ?, ?, ?)");
+                 var updateMoney = conn.prepareStatement("update account set money = money + ? where id = ?")
+            ) {
+                for (var event : events) {
+                    switch (event.getType()) {
+                        case ACCOUNT_CREATED:
+                            // an account created before the backup is already there with its latest description
+                            createAccount.setLong(1, event.getAccount().getValue());
+                            createAccount.setString(2, event.getDescription());
+                            createAccount.setLong(3, event.getAccount().getValue());
+                            createAccount.execute();
+                            break;
+                        case ACCOUNT_UPDATED:
+                            updateAccount.setString(1, event.getDescription());
+                            updateAccount.setLong(2, event.getAccount().getValue());
+                            updateAccount.execute();
+                            break;
+                        case TRANSFER:
+                            if (event.getSequence() <= snapshotSequence) {
+                                continue;
+                            }
+                            var t = event.getTransaction();
+                            insertTransaction.setBytes(1, t.getId().serialize());
+                            setAccountId(insertTransaction, 2, t.getFromAccount());
+                            setAccountId(insertTransaction, 3, t.getToAccount());
+                            insertTransaction.setBigDecimal(4, t.getMoney());
+                            insertTransaction.setTimestamp(5, Timestamp.from(t.getTimestamp()));
+                            insertTransaction.setLong(6, t.getSequence());
+                            insertTransaction.execute();
+                            if (event.getDebited() != null) {
+                                updateMoney.setBigDecimal(1, t.getMoney().negate());
+                                updateMoney.setLong(2, event.getDebited().getValue());
+                                updateMoney.execute();
+                            }
+                            if (event.getCredited() != null) {
+                                updateMoney.setBigDecimal(1, t.getMoney());
+                                updateMoney.setLong(2, event.getCredited().getValue());
+                                updateMoney.execute();
+                            }
+                            sequence = Math.max(sequence, event.getSequence());
+                            break;
+                    }
+                }
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+        appliedSequence = sequence;
+    }
+
+    /**
+     * Prepares the database to be used by an {@link AccountService}: new accounts get ids after
+     * those that came from the primary.
+     */
+    public void promote() {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.createStatement()
+        ) {
+            long lastId;
+            try (var rs = statement.executeQuery("select coalesce(max(id), 0) from account")) {
+                rs.next();
+                lastId = rs.getLong(1);
+            }
+            // DDL does not take parameters, but this is just a number
+            statement.execute("alter table account alter column id restart with " + (lastId + 1));
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static void setAccountId(PreparedStatement statement, int index, @CheckForNull AccountId account)
+            throws SQLException {
+        if (account != null) {
+            statement.setLong(index, account.getValue());
+        } else {
+            statement.setNull(index, Types.BIGINT);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Times every statement run through the data sources it {@link #wrap wraps}, grouped by SQL text
+ * with literals replaced by {@code ?}, and how long connections are held.
+ * <p>
+ * Statements slower than the threshold are logged with their bind parameters and the plan H2 chose for them.
+ * The plan comes from {@code EXPLAIN} run on the same connection after the statement, so it is what H2 would
+ * do now rather than exactly what it did.
+ */
+@ThreadSafe
+public class StatementProfiler {
+    private static final Logger log = LoggerFactory.getLogger(StatementProfiler.class);
+    /**
+     * Statements beyond this many distinct texts are counted together, so that SQL built from data
+     * cannot fill the memory.
+     */
+    private static final int MAX_STATEMENTS = 1000;
+    private static final String OTHER = "(other)";
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern EXPLAINABLE = Pattern.compile("^\\s*(select|insert|update|delete|merge)\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    private final long slowNanos;
+    private final Histogram connectionHold = new Histogram();
+    private final ConcurrentMap<String, StatementStats> statements = new ConcurrentHashMap<>();
+    private final Cache<String, String> normalized = CacheBuilder.newBuilder()
+            .maximumSize(MAX_STATEMENTS)
+            .build();
+
+    /**
+     * @param slowMillis statements that take longer are logged, {@code 0} logs all of them
+     */
+    public StatementProfiler(long slowMillis) {
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    }
+
+    public DataSource wrap(DataSource dataSource) {
+        return new ProfilingDataSource(dataSource);
+    }
+
+    /**
+     * Durations are in microseconds, statements are ordered by the total time they took.
+     */
+    public SqlProfile getProfile() {
+        var profiles = statements.entrySet().stream()
+                .map(entry -> SqlProfile.Statement.builder()
+                        .sql(entry.getKey())
+                        .errors(entry.getValue().errors.sum())
+                        .micros(entry.getValue().micros.snapshot())
+                        .rows(entry.getValue().rows.snapshot())
+                        .build())
+                .sorted(Comparator.comparingLong((SqlProfile.Statement s) -> s.getMicros().getSum()).reversed())
+                .collect(Collectors.toList());
+        return SqlProfile.builder()
+                .connectionHoldMicros(connectionHold.snapshot())
+                .statements(profiles)
+                .build();
+    }
+
+    /**
+     * Collapses whitespace and replaces literals and lists of parameters with a single {@code ?}.
+     */
+    static String normalize(String sql) {
+        String result = STRING_LITERAL.matcher(sql).replaceAll("?");
+        result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+        result = PARAMETER_LIST.matcher(result).replaceAll("?");
+        return WHITESPACE.matcher(result).replaceAll(" ").trim();
+    }
+
+    private StatementStats stats(String sql) {
+        String key = normalized.getIfPresent(sql);
+        if (key == null) {
+            key = normalize(sql);
+            normalized.put(sql, key);
+        }
+        var stats = statements.get(key);
+        if (stats != null) {
+            return stats;
+        }
+        if (statements.size() >= MAX_STATEMENTS) {
+            key = OTHER;
+        }
+        return statements.computeIfAbsent(key, k -> new StatementStats());
+    }
+
+    private static Object invoke(Object target, Method method, @Nullable Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StatementProfiler.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private void logSlow(Connection connection, String sql, List<Object> parameters, long nanos) {
+        String plan;
+        if (!EXPLAINABLE.matcher(sql).find()) {
+            plan = "not available for this statement";
+        } else if (parameters.stream().anyMatch(p -> p instanceof InputStream || p instanceof Reader)) {
+            plan = "not available, a parameter is a stream";
+        } else {
+            try (var explain = connection.prepareStatement("explain " + sql)) {
+                for (int i = 0; i < parameters.size(); i++) {
+                    explain.setObject(i + 1, parameters.get(i));
+                }
+                try (var rs = explain.executeQuery()) {
+                    var lines = new StringBuilder();
+                    while (rs.next()) {
+                        lines.append(rs.getString(1));
+                    }
+                    plan = lines.toString();
+                }
+            } catch (SQLException e) {
+                plan = "not available, " + e.getMessage();
+            }
+        }
+        log.warn("Slow statement took {} ms: {}\nParameters: {}\nPlan: {}",
+                TimeUnit.NANOSECONDS.toMillis(nanos), sql, parameters, plan);
+    }
+
+    private static class StatementStats {
+        final Histogram micros = new Histogram();
+        final Histogram rows = new Histogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private class ProfilingDataSource implements DataSource {
+        private final DataSource dataSource;
+
+        ProfilingDataSource(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return profile(dataSource.getConnection());
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return profile(dataSource.getConnection(username, password));
+        }
+
+        private Connection profile(Connection connection) {
+            return proxy(Connection.class, new ConnectionHandler(connection));
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return dataSource.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            dataSource.setLogWriter(out);
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            dataSource.setLoginTimeout(seconds);
+        }
+
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return dataSource.getLoginTimeout();
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            return dataSource.getParentLogger();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            return dataSource.unwrap(iface);
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return dataSource.isWrapperFor(iface);
+        }
+    }
+
+    /**
+     * Connections are used by one thread at a time, so are the statements and result sets made from them.
+     */
+    @NotThreadSafe
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection connection;
+        private final long openedAt = System.nanoTime();
+        private boolean closed;
+
+        ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "createStatement":
+                    return proxy(Statement.class,
+                            new StatementHandler(connection, (Statement) StatementProfiler.invoke(connection, method, args), null));
+                case "prepareStatement":
+                    return proxy(PreparedStatement.class,
+                            new StatementHandler(connection, (Statement) StatementProfiler.invoke(connection, method, args), (String) args[0]));
+                case "prepareCall":
+                    return proxy(CallableStatement.class,
+                            new StatementHandler(connection, (Statement) StatementProfiler.invoke(connection, method, args), (String) args[0]));
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        connectionHold.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - openedAt));
+                    }
+                    return StatementProfiler.invoke(connection, method, args);
+                default:
+                    return StatementProfiler.invoke(connection, method, args);
+            }
+        }
+    }
+
+    @NotThreadSafe
+    private class StatementHandler implements InvocationHandler {
+        private final Connection connection;
+        private final Statement statement;
+        /**
+         * SQL of a prepared statement, {@code null} for a plain one, which gets SQL with each execution.
+         */
+        @Nullable
+        private final String preparedSql;
+        private final List<Object> parameters = new ArrayList<>();
+        @Nullable
+        private String lastSql;
+        /**
+         * First SQL added to the batch of a plain statement, the batch is counted as this statement.
+         */
+        @Nullable
+        private String batchSql;
+        @Nullable
+        private ResultSetHandler resultSet;
+
+        StatementHandler(Connection connection, Statement statement, @Nullable String preparedSql) {
+            this.connection = connection;
+            this.statement = statement;
+            this.preparedSql = preparedSql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && method.getParameterTypes()[0] == int.class
+                    && preparedSql != null) {
+                int index = (Integer) args[0] - 1;
+                while (parameters.size() <= index) {
+                    parameters.add(null);
+                }
+                parameters.set(index, name.equals("setNull") ? null : args[1]);
+                return StatementProfiler.invoke(statement, method, args);
+            }
+            switch (name) {
+                case "clearParameters":
+                    parameters.clear();
+                    return StatementProfiler.invoke(statement, method, args);
+                case "addBatch":
+                    if (preparedSql == null && batchSql == null) {
+                        batchSql = (String) args[0];
+                    }
+                    return StatementProfiler.invoke(statement, method, args);
+                case "clearBatch":
+                    batchSql = null;
+                    return StatementProfiler.invoke(statement, method, args);
+                case "execute":
+                case "executeQuery":
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                case "executeBatch":
+                case "executeLargeBatch":
+                    return execute(method, args);
+                case "getResultSet":
+                    var rs = (ResultSet) StatementProfiler.invoke(statement, method, args);
+                    return rs == null || lastSql == null ? rs : profile(rs);
+                case "close":
+                    finishResultSet();
+                    return StatementProfiler.invoke(statement, method, args);
+                default:
+                    return StatementProfiler.invoke(statement, method, args);
+            }
+        }
+
+        private Object execute(Method method, @Nullable Object[] args) throws Throwable {
+            finishResultSet();
+            String sql = preparedSql;
+            if (sql == null) {
+                sql = args != null && args.length > 0 ? (String) args[0] : batchSql;
+                batchSql = null;
+            }
+            lastSql = sql;
+            if (sql == null) {
+                return StatementProfiler.invoke(statement, method, args);
+            }
+            var stats = stats(sql);
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = StatementProfiler.invoke(statement, method, args);
+            } catch (Throwable e) {
+                stats.errors.increment();
+                throw e;
+            }
+            long nanos = System.nanoTime() - start;
+            stats.micros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+            if (result instanceof ResultSet) {
+                result = profile((ResultSet) result);
+            } else if (result instanceof Integer || result instanceof Long) {
+                stats.rows.record(Math.max(0, ((Number) result).longValue()));
+            } else if (result instanceof int[]) {
+                stats.rows.record(rows((int[]) result));
+            } else if (result instanceof long[]) {
+                stats.rows.record(rows((long[]) result));
+            }
+            if (nanos >= slowNanos) {
+                logSlow(connection, sql, parameters, nanos);
+            }
+            return result;
+        }
+
+        private long rows(int[] counts) {
+            long total = 0;
+            for (int count : counts) {
+                total += Math.max(0, count);
+            }
+            return total;
+        }
+
+        private long rows(long[] counts) {
+            long total = 0;
+            for (long count : counts) {
+                total += Math.max(0, count);
+            }
+            return total;
+        }
+
+        private ResultSet profile(ResultSet rs) {
+            finishResultSet();
+            resultSet = new ResultSetHandler(rs, stats(lastSql));
+            return proxy(ResultSet.class, resultSet);
+        }
+
+        private void finishResultSet() {
+            if (resultSet != null) {
+                resultSet.finish();
+                resultSet = null;
+            }
+        }
+    }
+
+    /**
+     * Counts rows the caller reads and records them when the result set or its statement is closed.
+     */
+    @NotThreadSafe
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet rs;
+        private final StatementStats stats;
+        private long rows;
+        private boolean finished;
+
+        ResultSetHandler(ResultSet rs, StatementStats stats) {
+            this.rs = rs;
+            this.stats = stats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = StatementProfiler.invoke(rs, method, args);
+            switch (method.getName()) {
+                case "next":
+                    if ((Boolean) result) {
+                        rows++;
+                    }
+                    break;
+                case "close":
+                    finish();
+                    break;
+                default:
+                    break;
+            }
+            return result;
+        }
+
+        void finish() {
+            if (!finished) {
+                finished = true;
+                stats.rows.record(rows);
+            }
+        }
+    }
+}
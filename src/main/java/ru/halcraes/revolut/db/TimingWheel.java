@@ -0,0 +1,127 @@
+package ru.halcraes.revolut.db;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Items that become due at certain ticks.
+ * <p>
+ * A hierarchical timing wheel: every level has {@value #SIZE} buckets, a bucket of level {@code n}
+ * covers {@code SIZE^n} ticks. An item waits in the level of the highest digit in which its tick differs
+ * from the current one, and moves a level down when the current tick reaches its bucket. Adding an item
+ * and advancing by a tick take constant time no matter how many items wait, an item moves at most
+ * once per level.
+ */
+@NotThreadSafe
+final class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = (Long.SIZE + BITS - 1) / BITS;
+
+    /**
+     * Levels and their buckets, both created when the first item gets there.
+     */
+    private final List<List<ArrayDeque<Entry<T>>>> buckets = new ArrayList<>(Collections.nCopies(LEVELS, null));
+    /**
+     * Items added for the current tick or earlier, they expire on the next advance.
+     */
+    private final ArrayDeque<Entry<T>> overdue = new ArrayDeque<>();
+    private long tick;
+    private int size;
+
+    TimingWheel(long tick) {
+        this.tick = tick;
+    }
+
+    long getTick() {
+        return tick;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(long dueTick, T item) {
+        place(new Entry<>(dueTick, item));
+        size++;
+    }
+
+    /**
+     * Moves to {@code until} and passes items that are due by then to {@code expired}, earlier ticks first.
+     */
+    void advance(long until, Consumer<T> expired) {
+        expire(overdue, expired);
+        while (tick < until) {
+            tick++;
+            int top = Math.min(Long.numberOfTrailingZeros(tick) / BITS, LEVELS - 1);
+            // higher levels first, they may move items into the lower buckets that follow
+            for (int level = top; level > 0; level--) {
+                var bucket = bucket(level, tick);
+                if (bucket != null) {
+                    Entry<T> entry;
+                    while ((entry = bucket.poll()) != null) {
+                        place(entry);
+                    }
+                }
+            }
+            expire(overdue, expired);
+            var bucket = bucket(0, tick);
+            if (bucket != null) {
+                expire(bucket, expired);
+            }
+        }
+    }
+
+    private void expire(ArrayDeque<Entry<T>> entries, Consumer<T> expired) {
+        Entry<T> entry;
+        while ((entry = entries.poll()) != null) {
+            size--;
+            expired.accept(entry.item);
+        }
+    }
+
+    private void place(Entry<T> entry) {
+        if (entry.tick <= tick) {
+            overdue.add(entry);
+            return;
+        }
+        int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(entry.tick ^ tick)) / BITS;
+        var levelBuckets = buckets.get(level);
+        if (levelBuckets == null) {
+            levelBuckets = new ArrayList<>(Collections.nCopies(SIZE, null));
+            buckets.set(level, levelBuckets);
+        }
+        int index = index(level, entry.tick);
+        var bucket = levelBuckets.get(index);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            levelBuckets.set(index, bucket);
+        }
+        bucket.add(entry);
+    }
+
+    private ArrayDeque<Entry<T>> bucket(int level, long tick) {
+        var levelBuckets = buckets.get(level);
+        return levelBuckets == null ? null : levelBuckets.get(index(level, tick));
+    }
+
+    private static int index(int level, long tick) {
+        return (int) (tick >>> (level * BITS)) & MASK;
+    }
+
+    private static class Entry<T> {
+        private final long tick;
+        private final T item;
+
+        Entry(long tick, T item) {
+            this.tick = tick;
+            this.item = item;
+        }
+    }
+}
@@ -2,16 +2,24 @@ package ru.halcraes.revolut.db;
 
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 
 import java.math.BigDecimal;
 import java.time.Instant;
 
 @Data
-@Builder
+@Builder(toBuilder = true)
 public class Transaction {
     private final TransactionId id;
     private final AccountId fromAccount;
     private final AccountId toAccount;
     private final BigDecimal money;
     private final Instant timestamp;
+    /**
+     * Position in the {@link CommitLog}, {@code 0} for transactions created before it existed.
+     * Legs of a transfer between shards are committed separately and have different numbers,
+     * so it is not a part of the transaction identity.
+     */
+    @EqualsAndHashCode.Exclude
+    private final long sequence;
 }
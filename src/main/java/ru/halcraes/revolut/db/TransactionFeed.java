@@ -0,0 +1,169 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.ThreadSafe;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Committed transfers in {@link CommitLog} order, for consumers that follow all activity instead of polling
+ * history of every account.
+ * <p>
+ * Recent transfers are kept in a ring buffer indexed by sequence number. Consumers that fell behind the buffer
+ * are served from the {@code transaction} table. Every shard commits its own leg of a transfer between shards,
+ * so such transfers appear twice, once for each account.
+ */
+@ThreadSafe
+public class TransactionFeed implements CommitListener {
+    private final CommitLog commitLog;
+    private final List<DataSource> dataSources;
+    private final AtomicReferenceArray<CommitEvent> ring;
+    private final Object monitor = new Object();
+    private volatile long lastSequence;
+    /**
+     * Transfers up to it were committed before the feed started, they are only in storage.
+     */
+    private final long startSequence;
+
+    /**
+     * @param dataSources all shards of the ledger, for consumers that are behind the buffer
+     * @param capacity    how many recent transfers to keep in memory
+     */
+    public TransactionFeed(CommitLog commitLog, List<DataSource> dataSources, int capacity) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive, found %s", capacity);
+        this.commitLog = commitLog;
+        this.dataSources = List.copyOf(dataSources);
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.startSequence = commitLog.whilePaused(() -> {
+            lastSequence = commitLog.getLastSequence();
+            commitLog.addListener(this);
+            return lastSequence;
+        });
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public void committed(CommitEvent event) {
+        if (event.getType() != CommitEvent.Type.TRANSFER) {
+            return;
+        }
+        ring.set(slot(event.getSequence()), event);
+        synchronized (monitor) {
+            lastSequence = event.getSequence();
+            monitor.notifyAll();
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % ring.length());
+    }
+
+    /**
+     * Waits until there is a transfer after the given sequence number.
+     *
+     * @return {@code false} if nothing was committed in time
+     */
+    public boolean await(long afterSequence, long timeoutMillis) throws InterruptedException {
+        if (lastSequence > afterSequence) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (monitor) {
+            while (lastSequence <= afterSequence) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(monitor, left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns transfers committed after the given sequence number, oldest first.
+     *
+     * @param account only transfers that moved money of this account
+     * @param limit   maximum number of transfers to look at, filtered out ones included
+     */
+    public FeedPage read(long afterSequence, @CheckForNull AccountId account, int limit) {
+        Preconditions.checkArgument(limit > 0, "Limit must be positive, found %s", limit);
+        long last = Math.min(lastSequence, afterSequence + limit);
+        if (afterSequence < startSequence) {
+            return readStorage(afterSequence, account, limit);
+        }
+        List<CommitEvent> events = new ArrayList<>();
+        for (long sequence = afterSequence + 1; sequence <= last; sequence++) {
+            CommitEvent event = ring.get(slot(sequence));
+            if (event != null && event.getSequence() > sequence) {
+                // overwritten by newer transfers
+                return readStorage(afterSequence, account, limit);
+            }
+            if (event == null || event.getSequence() < sequence) {
+                // the number was left unused by a failed commit
+                continue;
+            }
+            if (matches(event, account)) {
+                events.add(event);
+            }
+        }
+        return new FeedPage(events, Math.max(afterSequence, last));
+    }
+
+    private static boolean matches(CommitEvent event, @CheckForNull AccountId account) {
+        return account == null || account.equals(event.getDebited()) || account.equals(event.getCredited());
+    }
+
+    private FeedPage readStorage(long afterSequence, @CheckForNull AccountId account, int limit) {
+        List<CommitEvent> events = new ArrayList<>();
+        long last = afterSequence;
+        for (var dataSource : dataSources) {
+            try (var conn = dataSource.getConnection();
+                 var statement = conn.prepareStatement("select * from transaction where seq > ? and seq <= ? order by seq")
+            ) {
+                statement.setLong(1, afterSequence);
+                statement.setLong(2, afterSequence + limit);
+                statement.execute();
+                try (var rs = statement.getResultSet()) {
+                    while (rs.next()) {
+                        long from = rs.getLong("from_acc");
+                        AccountId debited = rs.wasNull() ? null : new AccountId(from);
+                        long to = rs.getLong("to_acc");
+                        AccountId credited = rs.wasNull() ? null : new AccountId(to);
+                        Transaction transaction = AccountService.parseTransaction(rs);
+                        last = Math.max(last, transaction.getSequence());
+                        var event = CommitEvent.builder()
+                                .type(CommitEvent.Type.TRANSFER)
+                                .sequence(transaction.getSequence())
+                                .transaction(transaction)
+                                .debited(debited)
+                                .credited(credited)
+                                .build();
+                        if (matches(event, account)) {
+                            events.add(event);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                throw new InternalException(e);
+            }
+        }
+        events.sort(Comparator.comparingLong(CommitEvent::getSequence));
+        // numbers are delivered in order, so nothing up to the last delivered one can be committed later
+        return new FeedPage(events, Math.max(last, Math.min(lastSequence, afterSequence + limit)));
+    }
+
+    public void close() {
+        commitLog.removeListener(this);
+    }
+}
@@ -1,5 +1,6 @@
 package ru.halcraes.revolut.db;
 
+import com.google.common.base.Preconditions;
 import lombok.Data;
 import net.jcip.annotations.Immutable;
 
@@ -14,8 +15,16 @@ public class TransactionId {
         this.value = value;
     }
 
+    /**
+     * Creates a new time-ordered id, see {@link UuidUtil#createTimeOrdered()}.
+     */
     public static TransactionId create() {
-        return new TransactionId(UUID.randomUUID());
+        return new TransactionId(UuidUtil.createTimeOrdered());
+    }
+
+    public static TransactionId of(UUID value) {
+        Preconditions.checkNotNull(value);
+        return new TransactionId(value);
     }
 
     public static TransactionId deserialize(byte[] bytes) {
@@ -0,0 +1,14 @@
+package ru.halcraes.revolut.db;
+
+public class TransactionNotFoundException extends IllegalArgumentException {
+    private final TransactionId transactionId;
+
+    public TransactionNotFoundException(TransactionId transactionId) {
+        super("Transaction not found: " + transactionId.toString());
+        this.transactionId = transactionId;
+    }
+
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+}
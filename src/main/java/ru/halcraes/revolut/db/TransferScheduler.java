@@ -0,0 +1,456 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes transfers at a later time, once or repeatedly.
+ * <p>
+ * Scheduled transfers are stored in the database, only those due within the horizon are kept in memory
+ * in a {@link TimingWheel}. The horizon is loaded a chunk per tick as it moves, so neither ticks nor loading
+ * depend on how many transfers are scheduled further away.
+ * <p>
+ * Due transfers are made by {@link Ledger#moveMoney} in batches, and the batch is then recorded
+ * in one database transaction. The transaction id of a firing is made of the schedule and the number
+ * of the firing, so a firing that was made but not recorded before a crash is not repeated after a restart.
+ * A firing that fails because of the accounts, like not enough money, is skipped.
+ */
+@ThreadSafe
+public class TransferScheduler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(TransferScheduler.class);
+
+    static final long TICK_MILLIS = 100;
+    private static final int LOAD_CHUNK = 10_000;
+    private static final int FIRE_BATCH = 1000;
+    private static final long RETRY_MILLIS = 5000;
+    private static final Duration MIN_PERIOD = Duration.ofSeconds(1);
+
+    private final Ledger ledger;
+    private final DataSource dataSource;
+    private final Clock clock;
+    private final Duration horizon;
+    private final ExecutorService firing;
+    private final ScheduledExecutorService ticker;
+    private final UUID databaseId;
+    @GuardedBy("this")
+    private final TimingWheel<ScheduledTransfer> wheel;
+    /**
+     * Transfers in the wheel by id, a cancelled transfer leaves the wheel when it is due.
+     */
+    @GuardedBy("this")
+    private final Map<Long, ScheduledTransfer> pending = new HashMap<>();
+    /**
+     * Everything before it is in memory, {@code null} when nothing was loaded yet.
+     */
+    @GuardedBy("this")
+    @CheckForNull
+    private Instant loadedTime;
+    @GuardedBy("this")
+    private long loadedId;
+
+    /**
+     * @param dataSource  where the schedules are, the first shard of the ledger
+     * @param horizon     how far ahead transfers are kept in memory
+     * @param parallelism how many transfers of a batch are made at the same time
+     */
+    public TransferScheduler(Ledger ledger, DataSource dataSource, Clock clock, Duration horizon, int parallelism) {
+        Preconditions.checkArgument(horizon.toMillis() >= 2 * TICK_MILLIS, "Horizon is too short: %s", horizon);
+        this.ledger = ledger;
+        this.dataSource = dataSource;
+        this.clock = clock;
+        this.horizon = horizon;
+        this.wheel = new TimingWheel<>(toTick(clock.instant()));
+        this.databaseId = readDatabaseId(dataSource);
+        this.firing = Executors.newFixedThreadPool(parallelism, runnable -> {
+            var thread = new Thread(runnable, "transfer-scheduler-firing");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "transfer-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static TransferScheduler start(Ledger ledger, DataSource dataSource, Duration horizon, int parallelism) {
+        var result = new TransferScheduler(ledger, dataSource, Clock.systemUTC(), horizon, parallelism);
+        result.ticker.scheduleWithFixedDelay(() -> {
+            try {
+                result.tick();
+            } catch (RuntimeException e) {
+                // a failed tick must not cancel the following ones
+                log.error("Scheduled transfers failed", e);
+            }
+        }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * @param time   of the first transfer, a time in the past means as soon as possible
+     * @param period time between transfers, {@code null} for a single transfer
+     * @param times  how many transfers to make, {@code null} for no limit
+     */
+    public ScheduledTransfer schedule(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            BigDecimal money,
+            Instant time,
+            @CheckForNull Duration period,
+            @CheckForNull Long times
+    ) {
+        Preconditions.checkNotNull(money, "Amount is required");
+        Preconditions.checkNotNull(time, "Time is required");
+        Preconditions.checkArgument(money.signum() > 0, "Amount must be positive, found %s", money);
+        Preconditions.checkArgument(fromAccount != null || toAccount != null, "At least one account is required");
+        Preconditions.checkArgument(!Objects.equals(fromAccount, toAccount), "Accounts must be different");
+        Preconditions.checkArgument(period == null || period.compareTo(MIN_PERIOD) >= 0,
+                "Period must be at least %s, found %s", MIN_PERIOD, period);
+        Preconditions.checkArgument(times == null || times > 0, "Times must be positive, found %s", times);
+        Preconditions.checkArgument(period != null || times == null || times == 1, "Times need a period");
+        // fails for unknown accounts now rather than at the first firing
+        if (fromAccount != null) {
+            ledger.getAccount(fromAccount);
+        }
+        if (toAccount != null) {
+            ledger.getAccount(toAccount);
+        }
+
+        synchronized (this) {
+            try (var conn = dataSource.getConnection();
+                 var statement = conn.prepareStatement("insert into scheduled_transfer" +
+                         " (from_acc, to_acc, money, next_time, period_ms, remaining, occurrence)" +
+                         " values (?, ?, ?, ?, ?, ?, 0)", Statement.RETURN_GENERATED_KEYS)
+            ) {
+                setAccount(statement, 1, fromAccount);
+                setAccount(statement, 2, toAccount);
+                statement.setBigDecimal(3, money);
+                statement.setTimestamp(4, Timestamp.from(time));
+                statement.setObject(5, period == null ? null : period.toMillis(), Types.BIGINT);
+                statement.setObject(6, period == null ? null : times, Types.BIGINT);
+                statement.execute();
+                long id;
+                try (var rs = statement.getGeneratedKeys()) {
+                    rs.next();
+                    id = rs.getLong(1);
+                }
+                var result = ScheduledTransfer.builder()
+                        .id(id)
+                        .fromAccount(fromAccount)
+                        .toAccount(toAccount)
+                        .money(money)
+                        .nextTime(time)
+                        .period(period)
+                        .remaining(period == null ? null : times)
+                        .occurrence(0)
+                        .build();
+                addIfLoaded(result);
+                return result;
+            } catch (SQLException e) {
+                throw new InternalException(e);
+            }
+        }
+    }
+
+    public ScheduledTransfer get(long id) {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("select * from scheduled_transfer where id = ?")
+        ) {
+            statement.setLong(1, id);
+            try (var rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    throw new ScheduledTransferNotFoundException(id);
+                }
+                return parse(rs);
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Stops further firings, one that is being made may still happen.
+     */
+    public synchronized void cancel(long id) {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("delete from scheduled_transfer where id = ?")
+        ) {
+            statement.setLong(1, id);
+            if (statement.executeUpdate() == 0) {
+                throw new ScheduledTransferNotFoundException(id);
+            }
+            pending.remove(id);
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Transfers that are due within the horizon and wait in memory.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Loads the horizon and makes the transfers that are due.
+     */
+    void tick() {
+        Instant now = clock.instant();
+        List<ScheduledTransfer> due = new ArrayList<>();
+        synchronized (this) {
+            load(now);
+            wheel.advance(toTick(now), transfer -> {
+                if (pending.remove(transfer.getId(), transfer)) {
+                    due.add(transfer);
+                }
+            });
+        }
+        for (int from = 0; from < due.size(); from += FIRE_BATCH) {
+            fire(due.subList(from, Math.min(from + FIRE_BATCH, due.size())));
+        }
+    }
+
+    /**
+     * Loads a chunk of transfers that are due within the horizon and are not loaded yet.
+     */
+    @GuardedBy("this")
+    private void load(Instant now) {
+        Instant until = now.plus(horizon);
+        // a new chunk when half of the horizon is left, so that the database is not queried on every tick
+        if (loadedTime != null && loadedTime.isAfter(now.plus(horizon.dividedBy(2)))) {
+            return;
+        }
+        try (var conn = dataSource.getConnection();
+             var statement = conn.prepareStatement("select * from scheduled_transfer" +
+                     " where (? is null or next_time > ? or next_time = ? and id >= ?) and next_time < ?" +
+                     " order by next_time, id limit " + LOAD_CHUNK)
+        ) {
+            Timestamp from = loadedTime == null ? null : Timestamp.from(loadedTime);
+            statement.setTimestamp(1, from);
+            statement.setTimestamp(2, from);
+            statement.setTimestamp(3, from);
+            statement.setLong(4, loadedId);
+            statement.setTimestamp(5, Timestamp.from(until));
+            int count = 0;
+            ScheduledTransfer last = null;
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    last = parse(rs);
+                    add(last);
+                    count++;
+                }
+            }
+            if (count < LOAD_CHUNK) {
+                loadedTime = until;
+                loadedId = Long.MIN_VALUE;
+            } else {
+                loadedTime = last.getNextTime();
+                loadedId = last.getId() + 1;
+            }
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Puts a transfer that was stored outside of {@link #load} into the wheel, if loading has passed it.
+     */
+    @GuardedBy("this")
+    private void addIfLoaded(ScheduledTransfer transfer) {
+        if (loadedTime == null) {
+            return;
+        }
+        int compare = transfer.getNextTime().compareTo(loadedTime);
+        if (compare < 0 || compare == 0 && transfer.getId() < loadedId) {
+            add(transfer);
+        }
+    }
+
+    @GuardedBy("this")
+    private void add(ScheduledTransfer transfer) {
+        pending.put(transfer.getId(), transfer);
+        wheel.add(toTick(transfer.getNextTime()), transfer);
+    }
+
+    private void fire(List<ScheduledTransfer> batch) {
+        List<Future<?>> firings = new ArrayList<>(batch.size());
+        for (var transfer : batch) {
+            firings.add(firing.submit(() -> fireOne(transfer)));
+        }
+        List<ScheduledTransfer> done = new ArrayList<>(batch.size());
+        List<ScheduledTransfer> retry = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                firings.get(i).get();
+                done.add(batch.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                retry.add(batch.get(i));
+            } catch (ExecutionException e) {
+                log.error("Scheduled transfer {} failed, retrying", batch.get(i).getId(), e.getCause());
+                retry.add(batch.get(i));
+            }
+        }
+        synchronized (this) {
+            try {
+                record(done);
+            } catch (SQLException | RuntimeException e) {
+                // the firings have ids, making them again only records them
+                log.error("Failed to record {} scheduled transfers, retrying", done.size(), e);
+                retry.addAll(done);
+            }
+            Instant retryTime = clock.instant().plusMillis(RETRY_MILLIS);
+            for (var transfer : retry) {
+                pending.put(transfer.getId(), transfer);
+                wheel.add(toTick(retryTime), transfer);
+            }
+        }
+    }
+
+    private void fireOne(ScheduledTransfer transfer) {
+        try {
+            ledger.moveMoney(transfer.getFromAccount(), transfer.getToAccount(), transactionId(transfer), transfer.getMoney());
+        } catch (IllegalArgumentException e) {
+            // not enough money, a closed account and the like, the next firing may be fine
+            log.warn("Scheduled transfer {} failed at {}: {}", transfer.getId(), transfer.getNextTime(), e.getMessage());
+        }
+    }
+
+    /**
+     * Moves fired transfers to their next firings, unless they were cancelled meanwhile.
+     */
+    @GuardedBy("this")
+    private void record(List<ScheduledTransfer> fired) throws SQLException {
+        if (fired.isEmpty()) {
+            return;
+        }
+        List<ScheduledTransfer> next = new ArrayList<>(fired.size());
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (var update = conn.prepareStatement("update scheduled_transfer" +
+                    " set next_time = ?, remaining = ?, occurrence = occurrence + 1 where id = ? and occurrence = ?");
+                 var delete = conn.prepareStatement("delete from scheduled_transfer where id = ? and occurrence = ?")
+            ) {
+                List<ScheduledTransfer> updated = new ArrayList<>(fired.size());
+                for (var transfer : fired) {
+                    var remaining = transfer.getRemaining();
+                    if (transfer.getPeriod() == null || remaining != null && remaining <= 1) {
+                        delete.setLong(1, transfer.getId());
+                        delete.setLong(2, transfer.getOccurrence());
+                        delete.addBatch();
+                    } else {
+                        var following = transfer.toBuilder()
+                                .nextTime(transfer.getNextTime().plus(transfer.getPeriod()))
+                                .remaining(remaining == null ? null : remaining - 1)
+                                .occurrence(transfer.getOccurrence() + 1)
+                                .build();
+                        update.setTimestamp(1, Timestamp.from(following.getNextTime()));
+                        update.setObject(2, following.getRemaining(), Types.BIGINT);
+                        update.setLong(3, transfer.getId());
+                        update.setLong(4, transfer.getOccurrence());
+                        update.addBatch();
+                        updated.add(following);
+                    }
+                }
+                delete.executeBatch();
+                int[] counts = update.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    // nothing updated for a cancelled transfer
+                    if (counts[i] > 0) {
+                        next.add(updated.get(i));
+                    }
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        next.forEach(this::addIfLoaded);
+    }
+
+    TransactionId transactionId(ScheduledTransfer transfer) {
+        String name = "scheduled-transfer/" + databaseId + "/" + transfer.getId() + "/" + transfer.getOccurrence();
+        return TransactionId.of(UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static long toTick(Instant time) {
+        return Math.floorDiv(time.toEpochMilli(), TICK_MILLIS);
+    }
+
+    private static void setAccount(PreparedStatement statement, int index, @CheckForNull AccountId account)
+            throws SQLException {
+        statement.setObject(index, account == null ? null : account.getValue(), Types.BIGINT);
+    }
+
+    private static ScheduledTransfer parse(ResultSet rs) throws SQLException {
+        long from = rs.getLong("from_acc");
+        boolean noFrom = rs.wasNull();
+        long to = rs.getLong("to_acc");
+        boolean noTo = rs.wasNull();
+        long period = rs.getLong("period_ms");
+        boolean once = rs.wasNull();
+        long remaining = rs.getLong("remaining");
+        boolean unlimited = rs.wasNull();
+        return ScheduledTransfer.builder()
+                .id(rs.getLong("id"))
+                .fromAccount(noFrom ? null : new AccountId(from))
+                .toAccount(noTo ? null : new AccountId(to))
+                .money(rs.getBigDecimal("money"))
+                .nextTime(rs.getTimestamp("next_time").toInstant())
+                .period(once ? null : Duration.ofMillis(period))
+                .remaining(unlimited ? null : remaining)
+                .occurrence(rs.getLong("occurrence"))
+                .build();
+    }
+
+    static UUID readDatabaseId(DataSource dataSource) {
+        try (var conn = dataSource.getConnection();
+             var rs = conn.createStatement().executeQuery("select id from database_id")
+        ) {
+            if (!rs.next()) {
+                throw new InternalException("Database id is missing");
+            }
+            return rs.getObject(1, UUID.class);
+        } catch (SQLException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        firing.shutdownNow();
+    }
+}
@@ -1,18 +1,63 @@
 package ru.halcraes.revolut.db;
 
-import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UuidUtil {
+    /**
+     * Last issued Unix millisecond timestamp shifted left by 12 bits, plus the counter in the lower 12 bits.
+     */
+    private static final AtomicLong lastTimeOrdered = new AtomicLong();
+
     public static byte[] serialize(UUID uuid) {
-        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-        return bb.array();
+        byte[] bytes = new byte[16];
+        serialize(uuid, bytes, 0);
+        return bytes;
+    }
+
+    public static void serialize(UUID uuid, byte[] target, int offset) {
+        putLong(target, offset, uuid.getMostSignificantBits());
+        putLong(target, offset + 8, uuid.getLeastSignificantBits());
     }
 
     public static UUID deserialize(byte[] bytes) {
-        ByteBuffer bb = ByteBuffer.wrap(bytes);
-        return new UUID(bb.getLong(), bb.getLong());
+        return deserialize(bytes, 0);
+    }
+
+    public static UUID deserialize(byte[] bytes, int offset) {
+        return new UUID(getLong(bytes, offset), getLong(bytes, offset + 8));
+    }
+
+    /**
+     * Creates a UUID version 7: a 48 bit Unix timestamp in milliseconds, a 12 bit counter and 62 random bits.
+     * <p>
+     * IDs issued by this JVM are strictly increasing, even within one millisecond or when the clock goes back,
+     * so rows keyed by them are appended to the right edge of an index instead of random pages.
+     * Random bits come from a non-cryptographic generator, the IDs only need to be unique, not secret.
+     */
+    public static UUID createTimeOrdered() {
+        long now = System.currentTimeMillis() << 12;
+        long state = lastTimeOrdered.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+        long timestamp = state >>> 12;
+        long counter = state & 0xFFF;
+        long msb = (timestamp << 16) | 0x7000 | counter;
+        long lsb = (ThreadLocalRandom.current().nextLong() >>> 2) | 0x8000000000000000L;
+        return new UUID(msb, lsb);
+    }
+
+    private static void putLong(byte[] target, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            target[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
     }
 }
@@ -0,0 +1,154 @@
+package ru.halcraes.revolut.tcp;
+
+import net.jcip.annotations.ThreadSafe;
+import ru.halcraes.revolut.db.*;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static ru.halcraes.revolut.tcp.BinaryProtocol.*;
+
+/**
+ * Client for {@link BinaryServer} over a single persistent connection.
+ * <p>
+ * Requests are written as soon as they are made and are matched to responses by correlation id,
+ * so callers can keep many of them in flight. Errors are reported with the same exceptions
+ * {@link Ledger} throws.
+ */
+@ThreadSafe
+public class BinaryClient implements AutoCloseable {
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final Map<Long, PendingRequest<?>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong correlationIds = new AtomicLong();
+    private final Thread reader;
+
+    public BinaryClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.reader = new Thread(this::readResponses, "binary-client-" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public CompletableFuture<Transaction> moveMoney(
+            @Nullable AccountId fromAccount,
+            @Nullable AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money
+    ) {
+        return send(OP_MOVE_MONEY, out -> {
+            writeTransactionId(out, transactionId);
+            writeAccountId(out, fromAccount);
+            writeAccountId(out, toAccount);
+            writeDecimal(out, money);
+        }, in -> Transaction.builder()
+                .id(readTransactionId(in))
+                .fromAccount(readAccountId(in))
+                .toAccount(readAccountId(in))
+                .money(readDecimal(in))
+                .timestamp(Instant.ofEpochMilli(in.getLong()))
+                .build());
+    }
+
+    public CompletableFuture<Account> getAccount(AccountId account) {
+        return send(OP_GET_ACCOUNT, out -> out.writeLong(account.getValue()), in -> Account.builder()
+                .id(new AccountId(in.getLong()))
+                .balance(readDecimal(in))
+                .description(readString(in))
+                .build());
+    }
+
+    public CompletableFuture<TransactionId> createTransactionId() {
+        return send(OP_CREATE_TRANSACTION_ID, out -> {
+        }, BinaryProtocol::readTransactionId);
+    }
+
+    private <T> CompletableFuture<T> send(byte operation, PayloadWriter payload, Function<ByteBuffer, T> parser) {
+        long correlationId = correlationIds.incrementAndGet();
+        var request = new PendingRequest<>(parser);
+        pending.put(correlationId, request);
+        ByteBuffer frame = frame(correlationId, operation, payload);
+        try {
+            synchronized (output) {
+                output.write(frame.array(), frame.arrayOffset(), frame.remaining());
+                output.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(correlationId);
+            request.future.completeExceptionally(new InternalException(e));
+        }
+        return request.future;
+    }
+
+    private void readResponses() {
+        try (var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                int length = input.readInt();
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                ByteBuffer frame = ByteBuffer.wrap(bytes);
+                long correlationId = frame.getLong();
+                byte status = frame.get();
+                PendingRequest<?> request = pending.remove(correlationId);
+                if (request != null) {
+                    request.complete(status, frame);
+                }
+            }
+        } catch (IOException e) {
+            var failure = new InternalException("Connection closed", e);
+            pending.values().forEach(request -> request.future.completeExceptionally(failure));
+            pending.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private static class PendingRequest<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final Function<ByteBuffer, T> parser;
+
+        PendingRequest(Function<ByteBuffer, T> parser) {
+            this.parser = parser;
+        }
+
+        void complete(byte status, ByteBuffer payload) {
+            try {
+                switch (status) {
+                    case STATUS_OK:
+                        future.complete(parser.apply(payload));
+                        break;
+                    case STATUS_ACCOUNT_NOT_FOUND:
+                        future.completeExceptionally(new AccountNotFoundException(new AccountId(payload.getLong())));
+                        break;
+                    case STATUS_NOT_ENOUGH_MONEY:
+                        future.completeExceptionally(new NotEnoughMoneyException(new AccountId(payload.getLong())));
+                        break;
+                    case STATUS_DUPLICATE_TRANSACTION_ID:
+                        future.completeExceptionally(new DuplicateTransactionIdException(readTransactionId(payload)));
+                        break;
+                    case STATUS_BAD_REQUEST:
+                        future.completeExceptionally(new IllegalArgumentException(readString(payload)));
+                        break;
+                    default:
+                        future.completeExceptionally(new InternalException(readString(payload)));
+                }
+            } catch (RuntimeException e) {
+                future.completeExceptionally(new InternalException("Malformed response", e));
+            }
+        }
+    }
+}
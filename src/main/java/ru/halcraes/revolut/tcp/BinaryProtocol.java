@@ -0,0 +1,157 @@
+package ru.halcraes.revolut.tcp;
+
+import ru.halcraes.revolut.db.AccountId;
+import ru.halcraes.revolut.db.TransactionId;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Wire format shared by {@link BinaryServer} and {@link BinaryClient}.
+ * <p>
+ * Every frame starts with a 4 byte length of the rest of the frame and an 8 byte correlation id chosen
+ * by the client. A request then has an operation code and a response has a status code, both one byte,
+ * followed by the payload. Responses carry the correlation id of their request and may come in any order,
+ * so a client can pipeline requests over one connection. The server executes up to
+ * {@link BinaryServer#MAX_IN_FLIGHT} of them at a time and stops reading the connection meanwhile.
+ * All numbers are big-endian.
+ */
+final class BinaryProtocol {
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * Payload: transaction id, from account, to account, amount.
+     * Response: transaction id, from account, to account, amount, timestamp in epoch millis.
+     */
+    static final byte OP_MOVE_MONEY = 1;
+    /**
+     * Payload: account id as a plain long. Response: account id, balance, description.
+     */
+    static final byte OP_GET_ACCOUNT = 2;
+    /**
+     * No payload. Response: transaction id.
+     */
+    static final byte OP_CREATE_TRANSACTION_ID = 3;
+
+    static final byte STATUS_OK = 0;
+    /**
+     * Payload: account id as a plain long.
+     */
+    static final byte STATUS_ACCOUNT_NOT_FOUND = 1;
+    /**
+     * Payload: account id as a plain long.
+     */
+    static final byte STATUS_NOT_ENOUGH_MONEY = 2;
+    /**
+     * Payload: transaction id.
+     */
+    static final byte STATUS_DUPLICATE_TRANSACTION_ID = 3;
+    /**
+     * Payload: message.
+     */
+    static final byte STATUS_BAD_REQUEST = 4;
+    /**
+     * Payload: message.
+     */
+    static final byte STATUS_INTERNAL_ERROR = 5;
+
+    private BinaryProtocol() {
+    }
+
+    @FunctionalInterface
+    interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Builds a complete frame, ready to be written into a channel.
+     */
+    static ByteBuffer frame(long correlationId, byte code, PayloadWriter payload) {
+        var bytes = new ByteArrayOutputStream(64);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeLong(correlationId);
+            out.writeByte(code);
+            payload.write(out);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.remaining() - Integer.BYTES);
+        return frame;
+    }
+
+    static void writeTransactionId(DataOutputStream out, TransactionId transactionId) throws IOException {
+        out.writeLong(transactionId.getValue().getMostSignificantBits());
+        out.writeLong(transactionId.getValue().getLeastSignificantBits());
+    }
+
+    static TransactionId readTransactionId(ByteBuffer in) {
+        return TransactionId.of(new UUID(in.getLong(), in.getLong()));
+    }
+
+    /**
+     * Optional account ids are a presence byte followed by the id.
+     */
+    static void writeAccountId(DataOutputStream out, @Nullable AccountId accountId) throws IOException {
+        out.writeBoolean(accountId != null);
+        out.writeLong(accountId == null ? 0 : accountId.getValue());
+    }
+
+    @CheckForNull
+    static AccountId readAccountId(ByteBuffer in) {
+        boolean present = in.get() != 0;
+        long value = in.getLong();
+        return present ? new AccountId(value) : null;
+    }
+
+    /**
+     * Decimals are a 4 byte scale, followed by a 2 byte length and the two's-complement unscaled value.
+     */
+    static void writeDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+        byte[] unscaled = value.unscaledValue().toByteArray();
+        out.writeInt(value.scale());
+        out.writeShort(unscaled.length);
+        out.write(unscaled);
+    }
+
+    static BigDecimal readDecimal(ByteBuffer in) {
+        int scale = in.getInt();
+        byte[] unscaled = new byte[in.getShort() & 0xFFFF];
+        in.get(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+
+    /**
+     * Strings are a 4 byte length of UTF-8 bytes followed by the bytes, {@code -1} stands for {@code null}.
+     */
+    static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @CheckForNull
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,337 @@
+package ru.halcraes.revolut.tcp;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.halcraes.revolut.db.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.halcraes.revolut.tcp.BinaryProtocol.*;
+
+/**
+ * A NIO listener for {@link BinaryProtocol}, an alternative to the REST API for high-volume clients.
+ * <p>
+ * One selector thread does all socket IO and splits incoming bytes into frames. Requests are executed
+ * on a worker pool because {@link Ledger} calls block on JDBC, so pipelined requests of one connection
+ * run concurrently and their responses are written as soon as they are ready.
+ */
+@ThreadSafe
+public class BinaryServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(BinaryServer.class);
+    /**
+     * Requests of one connection that are queued or executed at a time. Further requests wait in socket buffers,
+     * so a pipelining client is held back by TCP flow control.
+     */
+    static final int MAX_IN_FLIGHT = 64;
+    /**
+     * Requests waiting for a worker, of all connections. Requests beyond it are answered with an error right away.
+     */
+    private static final int MAX_QUEUED = 4096;
+
+    private final Ledger ledger;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    private BinaryServer(Ledger ledger, int port, int workerThreads) throws IOException {
+        this.ledger = ledger;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED));
+        this.selectorThread = new Thread(this::run, "binary-server-" + getPort());
+    }
+
+    /**
+     * @param port port to listen on, {@code 0} picks any free port
+     */
+    public static BinaryServer start(Ledger ledger, int port, int workerThreads) {
+        try {
+            var server = new BinaryServer(ledger, port, workerThreads);
+            server.selectorThread.start();
+            log.info("Binary protocol listening on port {}", server.getPort());
+            return server;
+        } catch (IOException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Connection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    try {
+                        connection.resume();
+                    } catch (ProtocolException e) {
+                        log.debug("Closing binary connection {}", connection, e);
+                        connection.close();
+                    }
+                }
+                var keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    var conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.write();
+                        }
+                    } catch (IOException | ProtocolException e) {
+                        log.debug("Closing binary connection {}", conn, e);
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Binary server selector failed", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        var connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private ByteBuffer execute(long correlationId, byte operation, ByteBuffer payload) {
+        try {
+            switch (operation) {
+                case OP_MOVE_MONEY: {
+                    TransactionId transactionId = readTransactionId(payload);
+                    AccountId from = readAccountId(payload);
+                    AccountId to = readAccountId(payload);
+                    var amount = readDecimal(payload);
+                    Transaction t = ledger.moveMoney(from, to, transactionId, amount);
+                    return frame(correlationId, STATUS_OK, out -> {
+                        writeTransactionId(out, t.getId());
+                        writeAccountId(out, t.getFromAccount());
+                        writeAccountId(out, t.getToAccount());
+                        writeDecimal(out, t.getMoney());
+                        out.writeLong(t.getTimestamp().toEpochMilli());
+                    });
+                }
+                case OP_GET_ACCOUNT: {
+                    Account account = ledger.getAccount(new AccountId(payload.getLong()));
+                    return frame(correlationId, STATUS_OK, out -> {
+                        out.writeLong(account.getId().getValue());
+                        writeDecimal(out, account.getBalance());
+                        writeString(out, account.getDescription());
+                    });
+                }
+                case OP_CREATE_TRANSACTION_ID: {
+                    TransactionId transactionId = TransactionId.create();
+                    return frame(correlationId, STATUS_OK, out -> writeTransactionId(out, transactionId));
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation);
+            }
+        } catch (AccountNotFoundException e) {
+            return frame(correlationId, STATUS_ACCOUNT_NOT_FOUND, out -> out.writeLong(e.getAccountId().getValue()));
+        } catch (NotEnoughMoneyException e) {
+            return frame(correlationId, STATUS_NOT_ENOUGH_MONEY, out -> out.writeLong(e.getAccount().getValue()));
+        } catch (DuplicateTransactionIdException e) {
+            return frame(correlationId, STATUS_DUPLICATE_TRANSACTION_ID, out -> writeTransactionId(out, e.getTransactionId()));
+        } catch (IllegalArgumentException | NullPointerException | BufferUnderflowException e) {
+            return frame(correlationId, STATUS_BAD_REQUEST, out -> writeString(out, String.valueOf(e.getMessage())));
+        } catch (Exception e) {
+            log.error("Binary request {} failed", correlationId, e);
+            return frame(correlationId, STATUS_INTERNAL_ERROR, out -> writeString(out, String.valueOf(e.getMessage())));
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+            workers.shutdown();
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+            for (var key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            throw new InternalException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class ProtocolException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * State of one client connection. Reads and writes happen on the selector thread only,
+     * workers just append complete responses to {@link #responses}.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_FRAME_LENGTH + Integer.BYTES);
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        private final Queue<ByteBuffer> writing = new ArrayDeque<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private SelectionKey key;
+        /**
+         * The connection is not read because {@link #MAX_IN_FLIGHT} of its requests are in flight.
+         */
+        private boolean paused;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException, ProtocolException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            dispatch();
+        }
+
+        /**
+         * Hands complete frames of the read buffer over to workers, up to {@link #MAX_IN_FLIGHT} requests.
+         * Frames beyond that stay in the buffer and reading pauses until responses come back.
+         */
+        private void dispatch() throws ProtocolException {
+            readBuffer.flip();
+            while (inFlight.get() < MAX_IN_FLIGHT && readBuffer.remaining() >= Integer.BYTES) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < Long.BYTES + 1 || length > MAX_FRAME_LENGTH) {
+                    throw new ProtocolException("Invalid frame length " + length);
+                }
+                if (readBuffer.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                readBuffer.getInt();
+                long correlationId = readBuffer.getLong();
+                byte operation = readBuffer.get();
+                byte[] payload = new byte[length - Long.BYTES - 1];
+                readBuffer.get(payload);
+                inFlight.incrementAndGet();
+                try {
+                    workers.execute(() -> respond(execute(correlationId, operation, ByteBuffer.wrap(payload))));
+                } catch (RejectedExecutionException e) {
+                    respond(frame(correlationId, STATUS_INTERNAL_ERROR, out -> writeString(out, "Server is busy")));
+                }
+            }
+            readBuffer.compact();
+            paused = inFlight.get() >= MAX_IN_FLIGHT;
+            updateInterest();
+        }
+
+        private void respond(ByteBuffer response) {
+            responses.add(response);
+            inFlight.decrementAndGet();
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Called on the selector thread when responses are ready: writes them and reads again if reading paused.
+         */
+        void resume() throws ProtocolException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (paused && inFlight.get() < MAX_IN_FLIGHT) {
+                // frames that waited in the buffer go first, the socket is read when OP_READ fires
+                dispatch();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = paused ? 0 : SelectionKey.OP_READ;
+            if (!writing.isEmpty() || !responses.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void write() throws IOException {
+            ByteBuffer response;
+            while ((response = responses.poll()) != null) {
+                writing.add(response);
+            }
+            while (!writing.isEmpty()) {
+                ByteBuffer head = writing.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    // socket buffer is full, wait for the next OP_WRITE
+                    return;
+                }
+                writing.poll();
+            }
+            // a worker may have added a response after the queue was drained
+            updateInterest();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close binary connection", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+    }
+}
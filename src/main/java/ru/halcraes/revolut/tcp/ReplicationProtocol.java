@@ -0,0 +1,254 @@
+package ru.halcraes.revolut.tcp;
+
+import ru.halcraes.revolut.db.AccountId;
+import ru.halcraes.revolut.db.CommitEvent;
+import ru.halcraes.revolut.db.Transaction;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+import static ru.halcraes.revolut.tcp.BinaryProtocol.*;
+
+/**
+ * Wire format between {@link ReplicationServer} and {@link StandbyClient}.
+ * <p>
+ * Messages are frames of {@link BinaryProtocol}, the correlation id is a position in the stream of changes
+ * of the primary: every change committed since the primary started has the next position. When a standby
+ * connects, the primary sends a backup of the ledger in {@link #MSG_BACKUP} frames and {@link #MSG_BACKUP_END}
+ * with the position the backup covers, followed by all changes after that position. The standby answers
+ * with {@link #MSG_ACK} of the position it has committed.
+ */
+final class ReplicationProtocol {
+    /**
+     * Payload: a part of the backup.
+     */
+    static final byte MSG_BACKUP = 1;
+    /**
+     * Position: changes up to it are in the backup, no payload.
+     */
+    static final byte MSG_BACKUP_END = 2;
+    /**
+     * Payload: sequence, account, description.
+     */
+    static final byte MSG_ACCOUNT_CREATED = 3;
+    /**
+     * Payload: sequence, account, description.
+     */
+    static final byte MSG_ACCOUNT_UPDATED = 4;
+    /**
+     * Payload: transaction id, from account, to account, debited account, credited account, amount,
+     * timestamp as epoch seconds and nanoseconds, sequence.
+     */
+    static final byte MSG_TRANSFER = 5;
+    /**
+     * Sent by an idle primary every {@link #HEARTBEAT_MILLIS}. Position: the last change of the primary.
+     */
+    static final byte MSG_HEARTBEAT = 6;
+    /**
+     * Sent by the standby. Position: all changes up to it are committed by the standby.
+     */
+    static final byte MSG_ACK = 7;
+
+    static final int HEARTBEAT_MILLIS = 1000;
+    /**
+     * A connection that was silent for this long is considered dead.
+     */
+    static final int TIMEOUT_MILLIS = 5 * HEARTBEAT_MILLIS;
+    static final int BACKUP_PART = 32 * 1024;
+
+    private ReplicationProtocol() {
+    }
+
+    /**
+     * A message without payload.
+     */
+    static ByteBuffer message(long position, byte code) {
+        return frame(position, code, out -> {
+        });
+    }
+
+    static ByteBuffer change(long position, CommitEvent event) {
+        switch (event.getType()) {
+            case ACCOUNT_CREATED:
+            case ACCOUNT_UPDATED:
+                byte code = event.getType() == CommitEvent.Type.ACCOUNT_CREATED ? MSG_ACCOUNT_CREATED : MSG_ACCOUNT_UPDATED;
+                return frame(position, code, out -> {
+                    out.writeLong(event.getSequence());
+                    out.writeLong(event.getAccount().getValue());
+                    writeString(out, event.getDescription());
+                });
+            case TRANSFER:
+                var t = event.getTransaction();
+                return frame(position, MSG_TRANSFER, out -> {
+                    writeTransactionId(out, t.getId());
+                    writeAccountId(out, t.getFromAccount());
+                    writeAccountId(out, t.getToAccount());
+                    writeAccountId(out, event.getDebited());
+                    writeAccountId(out, event.getCredited());
+                    writeDecimal(out, t.getMoney());
+                    out.writeLong(t.getTimestamp().getEpochSecond());
+                    out.writeInt(t.getTimestamp().getNano());
+                    out.writeLong(t.getSequence());
+                });
+            default:
+                throw new IllegalArgumentException("Unknown change " + event.getType());
+        }
+    }
+
+    static CommitEvent readChange(byte code, ByteBuffer in) throws ProtocolException {
+        switch (code) {
+            case MSG_ACCOUNT_CREATED:
+            case MSG_ACCOUNT_UPDATED:
+                return CommitEvent.builder()
+                        .type(code == MSG_ACCOUNT_CREATED ? CommitEvent.Type.ACCOUNT_CREATED : CommitEvent.Type.ACCOUNT_UPDATED)
+                        .sequence(in.getLong())
+                        .account(new AccountId(in.getLong()))
+                        .description(readString(in))
+                        .build();
+            case MSG_TRANSFER:
+                var builder = Transaction.builder()
+                        .id(readTransactionId(in))
+                        .fromAccount(readAccountId(in))
+                        .toAccount(readAccountId(in));
+                AccountId debited = readAccountId(in);
+                AccountId credited = readAccountId(in);
+                var transaction = builder
+                        .money(readDecimal(in))
+                        .timestamp(Instant.ofEpochSecond(in.getLong(), in.getInt()))
+                        .sequence(in.getLong())
+                        .build();
+                return CommitEvent.builder()
+                        .type(CommitEvent.Type.TRANSFER)
+                        .sequence(transaction.getSequence())
+                        .transaction(transaction)
+                        .debited(debited)
+                        .credited(credited)
+                        .build();
+            default:
+                throw new ProtocolException("Unknown replication message " + code);
+        }
+    }
+
+    static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    /**
+     * Reads the next frame, without its length.
+     */
+    static ByteBuffer read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < Long.BYTES + 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Frame length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Sends what is written as {@link #MSG_BACKUP} frames of up to {@link #BACKUP_PART} bytes.
+     */
+    static class BackupOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] part = new byte[BACKUP_PART];
+        private int length;
+
+        BackupOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, part.length - length);
+                System.arraycopy(b, off, part, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == part.length) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Sends the collected bytes, but does not flush the connection.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                ReplicationProtocol.write(out, frame(0, MSG_BACKUP, payload -> payload.write(part, 0, length)));
+                length = 0;
+            }
+        }
+    }
+
+    /**
+     * The backup as a stream, it ends at {@link #MSG_BACKUP_END} and leaves the rest of the frames to the caller.
+     */
+    static class BackupInputStream extends InputStream {
+        private final DataInputStream in;
+        private ByteBuffer part = ByteBuffer.allocate(0);
+        private long position = -1;
+
+        BackupInputStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Position of the last change in the backup, {@code -1} until the end of the backup is read.
+         */
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (!part.hasRemaining()) {
+                if (position >= 0) {
+                    return -1;
+                }
+                ByteBuffer frame = ReplicationProtocol.read(in);
+                long framePosition = frame.getLong();
+                byte code = frame.get();
+                if (code == MSG_BACKUP_END) {
+                    position = framePosition;
+                } else if (code == MSG_BACKUP) {
+                    part = frame;
+                } else {
+                    throw new ProtocolException("Unexpected message " + code + " in a backup");
+                }
+            }
+            int n = Math.min(len, part.remaining());
+            part.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * Skips whatever the reader of the backup left, up to the end of it.
+         */
+        void finish() throws IOException {
+            byte[] skipped = new byte[BACKUP_PART];
+            while (read(skipped, 0, skipped.length) >= 0) {
+                // nothing
+            }
+        }
+    }
+}
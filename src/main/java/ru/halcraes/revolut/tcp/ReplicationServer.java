@@ -0,0 +1,326 @@
+package ru.halcraes.revolut.tcp;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.halcraes.revolut.db.CommitEvent;
+import ru.halcraes.revolut.db.CommitListener;
+import ru.halcraes.revolut.db.CommitLog;
+import ru.halcraes.revolut.db.InternalException;
+import ru.halcraes.revolut.db.Ledger;
+import ru.halcraes.revolut.db.LedgerBackup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ru.halcraes.revolut.tcp.ReplicationProtocol.*;
+
+/**
+ * The primary side of replication: sends every committed change of a single-database ledger to a standby,
+ * see {@link ReplicationProtocol}.
+ * <p>
+ * There is one standby at a time, a new connection replaces the previous one. Every connection starts with
+ * a {@link LedgerBackup}, so a standby that lost its connection copies the whole ledger again.
+ * Changes are queued for the standby by the {@link CommitLog} listener and written by a thread of the
+ * connection. A standby that falls more than {@link #MAX_PENDING} changes behind is disconnected.
+ * <p>
+ * In synchronous mode {@link #wrap(Ledger)} makes every write wait until the standby has committed it.
+ * The write is committed by the primary either way, a write the standby did not confirm in time fails
+ * with {@link InternalException} and should be repeated by the client like any other failed write.
+ */
+@ThreadSafe
+public class ReplicationServer implements CommitListener, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ReplicationServer.class);
+    private static final int MAX_PENDING = 1 << 20;
+    private static final int MAX_BATCH = 1000;
+
+    private final CommitLog commitLog;
+    private final LedgerBackup backup;
+    private final boolean synchronous;
+    private final long syncTimeoutMillis;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Object acknowledgedMonitor = new Object();
+    /**
+     * Only written by the listener, which {@link CommitLog} calls one event at a time.
+     */
+    private volatile long committedPosition;
+    private volatile long acknowledgedPosition;
+    /**
+     * Only written while {@link CommitLog} is paused, so a new standby starts at an exact position.
+     */
+    private volatile Standby standby;
+    private volatile boolean running = true;
+
+    private ReplicationServer(CommitLog commitLog, LedgerBackup backup, int port,
+                              boolean synchronous, long syncTimeoutMillis) throws IOException {
+        this.commitLog = commitLog;
+        this.backup = backup;
+        this.synchronous = synchronous;
+        this.syncTimeoutMillis = syncTimeoutMillis;
+        this.serverSocket = new ServerSocket(port);
+        this.acceptor = new Thread(this::accept, "replication-" + getPort());
+        acceptor.setDaemon(true);
+    }
+
+    /**
+     * @param backup            backs up the ledger of the commit log
+     * @param port              port for the standby to connect to, {@code 0} picks any free port
+     * @param synchronous       writes wait for the standby
+     * @param syncTimeoutMillis how long a write waits for the standby in synchronous mode
+     */
+    public static ReplicationServer start(CommitLog commitLog, LedgerBackup backup, int port,
+                                          boolean synchronous, long syncTimeoutMillis) {
+        try {
+            var server = new ReplicationServer(commitLog, backup, port, synchronous, syncTimeoutMillis);
+            commitLog.addListener(server);
+            server.acceptor.start();
+            log.info("Replication listening on port {}, {}", server.getPort(), synchronous ? "synchronous" : "asynchronous");
+            return server;
+        } catch (IOException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * The ledger to serve writes with: in synchronous mode its writes return once the standby has them.
+     */
+    public Ledger wrap(Ledger ledger) {
+        return synchronous ? new SynchronousLedger(ledger, this) : ledger;
+    }
+
+    public ReplicationStatus getStatus() {
+        var current = standby;
+        return ReplicationStatus.builder()
+                .synchronous(synchronous)
+                .standby(current == null ? null : current.socket.getRemoteSocketAddress().toString())
+                .committedPosition(committedPosition)
+                .acknowledgedPosition(acknowledgedPosition)
+                .pendingChanges(current == null ? 0 : current.queue.size())
+                .build();
+    }
+
+    @Override
+    public void committed(CommitEvent event) {
+        long position = committedPosition + 1;
+        committedPosition = position;
+        var current = standby;
+        if (current != null && !current.queue.offer(new PendingChange(position, event))) {
+            log.warn("Standby {} is more than {} changes behind, disconnecting it", current, MAX_PENDING);
+            current.close();
+        }
+    }
+
+    /**
+     * Waits until the standby has committed everything the primary committed so far.
+     *
+     * @throws InternalException if the standby did not confirm it in time
+     */
+    void awaitStandby() {
+        long position = committedPosition;
+        try {
+            if (!awaitAcknowledged(position, syncTimeoutMillis)) {
+                throw new InternalException(String.format(
+                        "Committed, but the standby did not confirm it in %d ms", syncTimeoutMillis));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Committed, but interrupted while waiting for the standby", e);
+        }
+    }
+
+    /**
+     * @return {@code false} if the standby did not get to the position in time
+     */
+    public boolean awaitAcknowledged(long position, long timeoutMillis) throws InterruptedException {
+        if (acknowledgedPosition >= position) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (acknowledgedMonitor) {
+            while (acknowledgedPosition < position) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(acknowledgedMonitor, left);
+            }
+            return true;
+        }
+    }
+
+    private void acknowledged(long position) {
+        synchronized (acknowledgedMonitor) {
+            if (position > acknowledgedPosition) {
+                acknowledgedPosition = position;
+                acknowledgedMonitor.notifyAll();
+            }
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                var thread = new Thread(new Standby(socket)::run, "replication-to-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Failed to accept a standby", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        commitLog.removeListener(this);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the replication port", e);
+        }
+        var current = standby;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private static class PendingChange {
+        private final long position;
+        private final CommitEvent event;
+
+        PendingChange(long position, CommitEvent event) {
+            this.position = position;
+            this.event = event;
+        }
+    }
+
+    /**
+     * A connection to a standby.
+     */
+    private class Standby {
+        private final Socket socket;
+        private final BlockingQueue<PendingChange> queue = new LinkedBlockingQueue<>(MAX_PENDING);
+        private volatile boolean open = true;
+
+        Standby(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            log.info("Standby {} connected", this);
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                var out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                long position = commitLog.whilePaused(() -> {
+                    var previous = standby;
+                    if (previous != null) {
+                        log.info("Standby {} replaces {}", this, previous);
+                        previous.close();
+                    }
+                    standby = this;
+                    return committedPosition;
+                });
+                // changes since the position are queued meanwhile, those committed while the backup
+                // is taken may be in both and are skipped by the standby
+                var backupOut = new BackupOutputStream(out);
+                long sequence = backup.write(backupOut);
+                backupOut.flush();
+                write(out, message(position, MSG_BACKUP_END));
+                out.flush();
+                log.info("Sent a backup up to sequence {} to standby {}", sequence, this);
+
+                var reader = new Thread(this::readAcknowledgements, "replication-from-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+                sendChanges(out);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                if (open) {
+                    log.warn("Replication to standby {} failed", this, e);
+                }
+            } finally {
+                close();
+                commitLog.whilePaused(() -> {
+                    if (standby == this) {
+                        standby = null;
+                    }
+                    return null;
+                });
+                log.info("Standby {} disconnected", this);
+            }
+        }
+
+        private void sendChanges(OutputStream out) throws IOException, InterruptedException {
+            List<PendingChange> batch = new ArrayList<>(MAX_BATCH);
+            while (open) {
+                var first = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    write(out, message(committedPosition, MSG_HEARTBEAT));
+                } else {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (var change : batch) {
+                        write(out, change(change.position, change.event));
+                    }
+                    batch.clear();
+                }
+                out.flush();
+            }
+        }
+
+        private void readAcknowledgements() {
+            try (var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                while (open) {
+                    var frame = read(in);
+                    long position = frame.getLong();
+                    byte code = frame.get();
+                    if (code != MSG_ACK) {
+                        throw new ProtocolException("Unexpected message " + code + " from a standby");
+                    }
+                    acknowledged(position);
+                }
+            } catch (IOException e) {
+                if (open && !(e instanceof SocketException || e instanceof EOFException)) {
+                    log.warn("Lost standby {}", this, e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            open = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Failed to close standby connection {}", this, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(socket.getRemoteSocketAddress());
+        }
+    }
+}
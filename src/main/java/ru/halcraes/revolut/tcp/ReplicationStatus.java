@@ -0,0 +1,32 @@
+package ru.halcraes.revolut.tcp;
+
+import lombok.Builder;
+import lombok.Data;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Replication as seen by the primary, positions count the changes committed since the primary started.
+ */
+@Data
+@Builder
+public class ReplicationStatus {
+    private final boolean synchronous;
+    /**
+     * Address of the connected standby.
+     */
+    @CheckForNull
+    private final String standby;
+    /**
+     * Position of the last committed change.
+     */
+    private final long committedPosition;
+    /**
+     * Position up to which the standby has committed all changes.
+     */
+    private final long acknowledgedPosition;
+    /**
+     * Changes waiting to be sent to the standby.
+     */
+    private final int pendingChanges;
+}
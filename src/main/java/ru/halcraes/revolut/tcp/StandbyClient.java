@@ -0,0 +1,223 @@
+package ru.halcraes.revolut.tcp;
+
+import com.google.common.base.Preconditions;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.halcraes.revolut.db.CommitEvent;
+import ru.halcraes.revolut.db.InternalException;
+import ru.halcraes.revolut.db.StandbyStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static ru.halcraes.revolut.tcp.ReplicationProtocol.*;
+
+/**
+ * The standby side of replication: keeps a {@link StandbyStore} up to date with a {@link ReplicationServer}
+ * until it is promoted.
+ * <p>
+ * A lost connection is opened again and the store is loaded from scratch. Changes that arrive together
+ * are applied in one database transaction and acknowledged after it is committed.
+ * <p>
+ * Promotion stops replication for good. It is only allowed once the store has a complete copy of the ledger,
+ * and the old primary must not take writes anymore, nothing reconciles two primaries.
+ */
+@ThreadSafe
+public class StandbyClient implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(StandbyClient.class);
+    private static final int RECONNECT_MILLIS = 1000;
+    private static final int MAX_BATCH = 1000;
+
+    private final StandbyStore store;
+    private final String host;
+    private final int port;
+    private final Thread thread;
+    /**
+     * Held while the store is changed, promotion waits for it.
+     */
+    private final Object storeLock = new Object();
+    private final CountDownLatch promotion = new CountDownLatch(1);
+    /**
+     * Only written while holding {@link #storeLock}.
+     */
+    private volatile boolean ready;
+    private volatile boolean running = true;
+    private volatile boolean promoted;
+    private volatile Socket socket;
+    private volatile long primaryPosition;
+    private volatile long appliedPosition;
+    private volatile int copies;
+
+    private StandbyClient(StandbyStore store, String host, int port) {
+        this.store = store;
+        this.host = host;
+        this.port = port;
+        this.thread = new Thread(this::run, "standby-of-" + host + ":" + port);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @param store a database that was initialized without demo accounts, everything in it is replaced
+     */
+    public static StandbyClient start(StandbyStore store, String host, int port) {
+        var client = new StandbyClient(store, host, port);
+        client.thread.start();
+        return client;
+    }
+
+    public StandbyStatus getStatus() {
+        return StandbyStatus.builder()
+                .primary(host + ":" + port)
+                .connected(socket != null)
+                .ready(ready)
+                .promoted(promoted)
+                .primaryPosition(primaryPosition)
+                .appliedPosition(appliedPosition)
+                .appliedSequence(store.getAppliedSequence())
+                .copies(copies)
+                .build();
+    }
+
+    /**
+     * Stops replication and makes the store ready to serve as the primary.
+     *
+     * @throws IllegalStateException if the store does not have a complete copy of the ledger yet
+     */
+    public StandbyStatus promote() {
+        synchronized (storeLock) {
+            if (promoted) {
+                return getStatus();
+            }
+            Preconditions.checkState(ready, "The standby does not have a complete copy of the ledger yet");
+            running = false;
+            disconnect();
+            store.promote();
+            promoted = true;
+        }
+        log.info("Promoted at position {}, sequence {}", appliedPosition, store.getAppliedSequence());
+        promotion.countDown();
+        return getStatus();
+    }
+
+    /**
+     * Blocks until {@link #promote()} is done.
+     */
+    public void awaitPromotion() throws InterruptedException {
+        promotion.await();
+    }
+
+    private void run() {
+        while (running) {
+            try (var connection = new Socket()) {
+                connection.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(TIMEOUT_MILLIS);
+                socket = connection;
+                if (!running) {
+                    // promoted while connecting
+                    return;
+                }
+                log.info("Connected to primary {}:{}", host, port);
+                replicate(new DataInputStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024)),
+                        new BufferedOutputStream(connection.getOutputStream()));
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    log.warn("Replication from {}:{} failed, reconnecting", host, port, e);
+                }
+            } finally {
+                socket = null;
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void replicate(DataInputStream in, OutputStream out) throws IOException {
+        synchronized (storeLock) {
+            if (!running) {
+                return;
+            }
+            ready = false;
+            var backup = new BackupInputStream(in);
+            long sequence = store.load(backup);
+            backup.finish();
+            appliedPosition = backup.getPosition();
+            primaryPosition = Math.max(primaryPosition, appliedPosition);
+            copies++;
+            ready = true;
+            log.info("Loaded a copy of the primary up to sequence {}", sequence);
+        }
+        acknowledge(out);
+
+        List<CommitEvent> batch = new ArrayList<>(MAX_BATCH);
+        long batchPosition = appliedPosition;
+        while (running) {
+            var frame = read(in);
+            long position = frame.getLong();
+            byte code = frame.get();
+            if (code == MSG_HEARTBEAT) {
+                primaryPosition = position;
+            } else {
+                batch.add(readChange(code, frame));
+                batchPosition = position;
+                primaryPosition = Math.max(primaryPosition, position);
+            }
+            if (batch.size() < MAX_BATCH && in.available() > 0) {
+                continue;
+            }
+            if (!batch.isEmpty()) {
+                synchronized (storeLock) {
+                    if (!running) {
+                        return;
+                    }
+                    store.apply(batch);
+                    appliedPosition = batchPosition;
+                }
+                batch.clear();
+            }
+            // also answers heartbeats, the primary takes a silent standby for a dead one
+            acknowledge(out);
+        }
+    }
+
+    private void acknowledge(OutputStream out) throws IOException {
+        write(out, message(appliedPosition, MSG_ACK));
+        out.flush();
+    }
+
+    private void disconnect() {
+        var current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the connection to the primary", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        disconnect();
+        thread.interrupt();
+        try {
+            thread.join(TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while stopping the standby", e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ru.halcraes.revolut.tcp;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Replication as seen by the standby.
+ */
+@Data
+@Builder
+public class StandbyStatus {
+    /**
+     * Address of the primary, {@code host:port}.
+     */
+    private final String primary;
+    private final boolean connected;
+    /**
+     * The standby has a complete copy of the ledger and can be promoted.
+     */
+    private final boolean ready;
+    private final boolean promoted;
+    /**
+     * Position of the last change of the primary the standby knows about.
+     */
+    private final long primaryPosition;
+    /**
+     * Position up to which the standby has committed all changes.
+     */
+    private final long appliedPosition;
+    /**
+     * Sequence number of the last transfer the standby has.
+     */
+    private final long appliedSequence;
+    /**
+     * How many times the standby loaded a full copy of the ledger, once per connection to the primary.
+     */
+    private final int copies;
+}
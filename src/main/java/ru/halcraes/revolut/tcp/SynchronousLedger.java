@@ -0,0 +1,107 @@
+package ru.halcraes.revolut.tcp;
+
+import net.jcip.annotations.ThreadSafe;
+import ru.halcraes.revolut.db.Account;
+import ru.halcraes.revolut.db.AccountId;
+import ru.halcraes.revolut.db.CommitLog;
+import ru.halcraes.revolut.db.Ledger;
+import ru.halcraes.revolut.db.OpeningAccount;
+import ru.halcraes.revolut.db.Transaction;
+import ru.halcraes.revolut.db.TransactionId;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Returns from writes once the standby has committed them, see {@link ReplicationServer#wrap(Ledger)}.
+ * A write that fails on the primary does not wait.
+ */
+@ThreadSafe
+class SynchronousLedger implements Ledger {
+    private final Ledger ledger;
+    private final ReplicationServer replication;
+
+    SynchronousLedger(Ledger ledger, ReplicationServer replication) {
+        this.ledger = ledger;
+        this.replication = replication;
+    }
+
+    @Override
+    public AccountId createAccount(@Nullable String description) {
+        var account = ledger.createAccount(description);
+        replication.awaitStandby();
+        return account;
+    }
+
+    @Override
+    public List<AccountId> importAccounts(List<OpeningAccount> accounts) {
+        var ids = ledger.importAccounts(accounts);
+        replication.awaitStandby();
+        return ids;
+    }
+
+    @Override
+    public void updateAccount(AccountId accountId, @Nullable String description) {
+        ledger.updateAccount(accountId, description);
+        replication.awaitStandby();
+    }
+
+    @Override
+    public Transaction moveMoney(
+            @CheckForNull AccountId fromAccount,
+            @CheckForNull AccountId toAccount,
+            TransactionId transactionId,
+            BigDecimal money
+    ) {
+        // a repeated transfer waits as well, the first attempt may have failed waiting for the standby
+        var transaction = ledger.moveMoney(fromAccount, toAccount, transactionId, money);
+        replication.awaitStandby();
+        return transaction;
+    }
+
+    @Override
+    public Account getAccount(AccountId account) {
+        return ledger.getAccount(account);
+    }
+
+    @Override
+    public Map<AccountId, Account> getAccounts(Collection<AccountId> accounts, boolean consistent) {
+        return ledger.getAccounts(accounts, consistent);
+    }
+
+    @Override
+    public Transaction getTransaction(TransactionId transactionId) {
+        return ledger.getTransaction(transactionId);
+    }
+
+    @Override
+    public boolean isFinal(Transaction transaction) {
+        return ledger.isFinal(transaction);
+    }
+
+    @Override
+    public BigDecimal getBalance(AccountId account) {
+        return ledger.getBalance(account);
+    }
+
+    @Override
+    public List<Transaction> getTransactions(
+            AccountId account,
+            @CheckForNull Integer limit,
+            @CheckForNull Integer offset,
+            @CheckForNull Instant fromTimestamp,
+            @CheckForNull Instant toTimestamp
+    ) {
+        return ledger.getTransactions(account, limit, offset, fromTimestamp, toTimestamp);
+    }
+
+    @Override
+    public CommitLog getCommitLog() {
+        return ledger.getCommitLog();
+    }
+}
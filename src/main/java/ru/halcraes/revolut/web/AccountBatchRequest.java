@@ -0,0 +1,15 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+import ru.halcraes.revolut.db.AccountId;
+
+import java.util.List;
+
+@Data
+public class AccountBatchRequest {
+    private List<AccountId> ids;
+    /**
+     * Read all accounts as of one moment.
+     */
+    private boolean consistent;
+}
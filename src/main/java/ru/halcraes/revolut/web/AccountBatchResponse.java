@@ -0,0 +1,23 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+import ru.halcraes.revolut.db.AccountId;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@Data
+public class AccountBatchResponse {
+    /**
+     * An entry for every requested id, in the order of the request.
+     */
+    private List<Account> accounts;
+
+    @Data
+    public static class Account {
+        private AccountId id;
+        private boolean found;
+        private BigDecimal balance;
+        private String description;
+    }
+}
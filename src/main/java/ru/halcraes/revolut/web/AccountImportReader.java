@@ -0,0 +1,180 @@
+package ru.halcraes.revolut.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.Data;
+
+import javax.annotation.CheckForNull;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads accounts to import from NDJSON, one {@link ImportAccountRequest} per line, or from CSV with a header
+ * that names some of the {@code ref}, {@code description} and {@code balance} columns.
+ * Values in CSV may be quoted, quotes inside them are doubled.
+ */
+class AccountImportReader {
+    private static final List<String> CSV_COLUMNS = List.of("ref", "description", "balance");
+
+    private final BufferedReader reader;
+    private final boolean csv;
+    private final ObjectReader jsonReader;
+    /**
+     * Index of every known CSV column in a row, -1 for missing ones.
+     */
+    private int[] columns;
+    private long line = 1;
+    /**
+     * Where the last CSV record started.
+     */
+    private long recordLine;
+
+    AccountImportReader(Reader reader, boolean csv, ObjectReader jsonReader) {
+        this.reader = new BufferedReader(reader);
+        this.csv = csv;
+        this.jsonReader = jsonReader;
+    }
+
+    /**
+     * @return up to {@code max} next accounts, empty at the end of input
+     */
+    List<Entry> read(int max) throws IOException {
+        List<Entry> entries = new ArrayList<>(max);
+        while (entries.size() < max) {
+            var entry = csv ? readCsv() : readJson();
+            if (entry == null) {
+                break;
+            }
+            if (entry.request.getBalance() != null && entry.request.getBalance().signum() < 0) {
+                throw new IllegalArgumentException(String.format("Line %d: opening balance must not be negative, found %s",
+                        entry.line, entry.request.getBalance()));
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @CheckForNull
+    private Entry readJson() throws IOException {
+        String text;
+        do {
+            text = reader.readLine();
+            if (text == null) {
+                return null;
+            }
+            line++;
+        } while (text.isBlank());
+        try {
+            return new Entry(line - 1, jsonReader.readValue(text));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(String.format("Line %d: %s", line - 1, e.getOriginalMessage()));
+        }
+    }
+
+    @CheckForNull
+    private Entry readCsv() throws IOException {
+        if (columns == null) {
+            var header = readCsvRecord();
+            if (header == null) {
+                return null;
+            }
+            columns = new int[CSV_COLUMNS.size()];
+            Arrays.fill(columns, -1);
+            for (int i = 0; i < header.size(); i++) {
+                int column = CSV_COLUMNS.indexOf(header.get(i).trim().toLowerCase(Locale.ROOT));
+                if (column < 0) {
+                    throw new IllegalArgumentException(String.format("Line 1: unknown column '%s', expected some of %s",
+                            header.get(i), CSV_COLUMNS));
+                }
+                columns[column] = i;
+            }
+        }
+        var record = readCsvRecord();
+        if (record == null) {
+            return null;
+        }
+        var request = new ImportAccountRequest();
+        request.setRef(field(record, 0));
+        request.setDescription(field(record, 1));
+        String balance = field(record, 2);
+        if (balance != null && !balance.isBlank()) {
+            try {
+                request.setBalance(new BigDecimal(balance.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Line %d: '%s' is not a number", recordLine, balance));
+            }
+        }
+        return new Entry(recordLine, request);
+    }
+
+    @CheckForNull
+    private String field(List<String> record, int column) {
+        int index = columns[column];
+        return index >= 0 && index < record.size() ? record.get(index) : null;
+    }
+
+    /**
+     * @return values of the next non-empty record, {@code null} at the end of input
+     */
+    @CheckForNull
+    private List<String> readCsvRecord() throws IOException {
+        int c;
+        do {
+            c = reader.read();
+            if (c == '\n') {
+                line++;
+            }
+        } while (c == '\n' || c == '\r');
+        if (c == -1) {
+            return null;
+        }
+        recordLine = line;
+        List<String> fields = new ArrayList<>();
+        var field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IllegalArgumentException(String.format("Line %d: unterminated quote", recordLine));
+                }
+                if (c == '"') {
+                    c = reader.read();
+                    if (c != '"') {
+                        quoted = false;
+                        // the character after the closing quote
+                        continue;
+                    }
+                } else if (c == '\n') {
+                    line++;
+                }
+                field.append((char) c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == -1) {
+                if (c == '\n') {
+                    line++;
+                }
+                fields.add(field.toString());
+                return fields;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+
+    @Data
+    static class Entry {
+        private final long line;
+        private final ImportAccountRequest request;
+    }
+}
@@ -0,0 +1,14 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class AccountListResponse {
+    private List<AccountResponse> accounts;
+    /**
+     * Pass it as {@code cursor} to get the next page, none on the last page.
+     */
+    private String nextCursor;
+}
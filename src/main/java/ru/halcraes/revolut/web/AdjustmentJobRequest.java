@@ -0,0 +1,28 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+import ru.halcraes.revolut.db.AccountId;
+import ru.halcraes.revolut.db.AdjustmentJob;
+
+import java.math.BigDecimal;
+
+@Data
+public class AdjustmentJobRequest {
+    /**
+     * Identifies the job, a request with the same name returns the same job.
+     */
+    private String name;
+    private AdjustmentJob.Rule rule;
+    /**
+     * Money per account, or the interest rate.
+     */
+    private BigDecimal amount;
+    /**
+     * First account to adjust, none for the first account of the ledger.
+     */
+    private AccountId from;
+    /**
+     * Last account to adjust, none for the last account created so far.
+     */
+    private AccountId to;
+}
@@ -14,4 +14,8 @@ public class CreateTransactionResponse {
     private AccountId from;
     private AccountId to;
     private Instant timestamp;
+    /**
+     * Pass it as {@code minSequence} to reads that must see this transaction.
+     */
+    private long sequence;
 }
@@ -0,0 +1,28 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+import ru.halcraes.revolut.db.AccountId;
+import ru.halcraes.revolut.db.TransactionId;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+
+@Data
+public class FeedResponse {
+    private List<Transaction> transactions;
+    /**
+     * Pass it as {@code after} to get the next part of the feed.
+     */
+    private long lastSequence;
+
+    @Data
+    public static class Transaction {
+        private long sequence;
+        private TransactionId id;
+        private BigDecimal amount;
+        private AccountId from;
+        private AccountId to;
+        private Instant timestamp;
+    }
+}
@@ -0,0 +1,18 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+
+import java.math.BigDecimal;
+
+/**
+ * One line of an NDJSON account import or one row of a CSV one.
+ */
+@Data
+public class ImportAccountRequest {
+    /**
+     * The id of the account in the source system, copied to the response.
+     */
+    private String ref;
+    private String description;
+    private BigDecimal balance;
+}
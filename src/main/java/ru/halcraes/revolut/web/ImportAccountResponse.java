@@ -0,0 +1,24 @@
+package ru.halcraes.revolut.web;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+import ru.halcraes.revolut.db.AccountId;
+
+/**
+ * One line of the account import response: the created account, or the error that stopped the import.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImportAccountResponse {
+    /**
+     * Line of the request, starting with 1.
+     */
+    private long line;
+    private String ref;
+    private AccountId id;
+    private String error;
+    /**
+     * Line of the last committed account, only in an error.
+     */
+    private Long lastCommittedLine;
+}
@@ -0,0 +1,105 @@
+package ru.halcraes.revolut.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.eclipse.jetty.http.HttpStatus;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the result of a route straight into the servlet output stream.
+ * <p>
+ * Spark's {@code ResponseTransformer} has to return a {@code String}, so every response used to be rendered
+ * in memory first and then copied into the output. Here Jackson writes through its own recycled buffers
+ * with a serializer that is resolved once for the response type.
+ * <p>
+ * Nothing is written when the route answered {@code 304 Not Modified}. Large responses can be compressed
+ * for clients that accept gzip.
+ */
+public class JsonRoute implements Route {
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    private final ObjectWriter writer;
+    private final Route route;
+    @Nullable
+    private final Predicate<Object> compress;
+
+    public JsonRoute(ObjectWriter writer, Route route) {
+        this(writer, route, null);
+    }
+
+    /**
+     * @param compress tells whether a response is large enough to be worth compressing
+     */
+    public JsonRoute(ObjectWriter writer, Route route, @Nullable Predicate<Object> compress) {
+        this.writer = writer.without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.route = route;
+        this.compress = compress;
+    }
+
+    @Override
+    public Object handle(Request request, Response response) throws Exception {
+        Object model = route.handle(request, response);
+        if (response.raw().getStatus() == HttpStatus.NOT_MODIFIED_304) {
+            return "";
+        }
+        response.type("application/json");
+        if (compress == null) {
+            writer.writeValue(response.raw().getOutputStream(), model);
+        } else {
+            response.header("Vary", "Accept-Encoding");
+            if (compress.test(model) && acceptsGzip(request.headers("Accept-Encoding"))) {
+                response.header("Content-Encoding", "gzip");
+                try (var out = new FinishingGzipStream(response.raw().getOutputStream())) {
+                    writer.writeValue(out, model);
+                }
+            } else {
+                writer.writeValue(response.raw().getOutputStream(), model);
+            }
+        }
+        // Spark needs some body to consider the route matched, an empty one adds nothing to the output.
+        return "";
+    }
+
+    static boolean acceptsGzip(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].replace(" ", "");
+                refused |= parameter.equals("q=0") || parameter.matches("q=0\\.0*");
+            }
+            return !refused;
+        }
+        return false;
+    }
+
+    /**
+     * Closing it finishes the gzip stream and leaves the servlet stream open, Spark still writes to it.
+     */
+    private static class FinishingGzipStream extends GZIPOutputStream {
+        FinishingGzipStream(OutputStream out) throws IOException {
+            super(out, GZIP_BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            def.end();
+        }
+    }
+}
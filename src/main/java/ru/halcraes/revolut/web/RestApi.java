@@ -2,13 +2,31 @@ package ru.halcraes.revolut.web;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Preconditions;
 import org.eclipse.jetty.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.halcraes.revolut.db.*;
+import ru.halcraes.revolut.tcp.ReplicationServer;
+import ru.halcraes.revolut.tcp.ReplicationStatus;
+import ru.halcraes.revolut.tcp.StandbyClient;
+import ru.halcraes.revolut.tcp.StandbyStatus;
 import spark.Request;
 import spark.Response;
+import spark.Route;
 
+import javax.annotation.Nullable;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Objects;
@@ -17,21 +35,241 @@ import java.util.stream.Collectors;
 import static spark.Spark.*;
 
 public class RestApi {
-    private final AccountService accountService;
+    private static final Logger log = LoggerFactory.getLogger(RestApi.class);
+
+    private static final int MAX_TRANSACTION_ID_BATCH = 10_000;
+    /**
+     * How long a read with {@code minSequence} waits for the replica before going to the primary.
+     */
+    private static final long REPLICA_WAIT_MILLIS = 500;
+    private static final int MAX_FEED_LIMIT = 10_000;
+    private static final long MAX_FEED_WAIT_MILLIS = 30_000;
+    /**
+     * How often an idle event stream sends a comment, so proxies and clients do not drop it.
+     */
+    private static final long STREAM_HEARTBEAT_MILLIS = 15_000;
+    /**
+     * Accounts imported in one database transaction.
+     */
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+    /**
+     * Shorter histories are not worth compressing.
+     */
+    private static final int GZIP_MIN_TRANSACTIONS = 20;
+    private static final int MAX_SEARCH_LIMIT = 1000;
+    private static final int MAX_ACCOUNT_BATCH = 1000;
+
+    private final Ledger ledger;
+    @Nullable
+    private ReadReplica replica;
+    private boolean replicaAccountReads;
+    @Nullable
+    private TransactionFeed feed;
+    @Nullable
+    private Reconciliation reconciliation;
+    @Nullable
+    private LedgerBackup backup;
+    @Nullable
+    private AccountVersions versions;
+    @Nullable
+    private TransferScheduler scheduler;
+    @Nullable
+    private DescriptionIndex descriptionIndex;
+    @Nullable
+    private StatementProfiler profiler;
+    @Nullable
+    private ReplicationServer replication;
+    @Nullable
+    private TransactionCache transactionCache;
+    @Nullable
+    private AdjustmentJobs adjustments;
+    @Nullable
+    private HotAccounts hotAccounts;
     private final ObjectMapper objectMapper = SerializationUtil.getObjectMapper();
+    private final ObjectReader createAccountReader = objectMapper.readerFor(CreateAccountRequest.class);
+    private final ObjectReader accountBatchReader = objectMapper.readerFor(AccountBatchRequest.class);
+    private final ObjectReader createTransactionReader = objectMapper.readerFor(CreateTransactionRequest.class);
+    private final ObjectReader scheduleTransferReader = objectMapper.readerFor(ScheduleTransferRequest.class);
+    private final ObjectReader adjustmentJobReader = objectMapper.readerFor(AdjustmentJobRequest.class);
+    private final ObjectWriter transactionWriter = objectMapper.writerFor(CreateTransactionResponse.class);
+    private final ObjectWriter feedTransactionWriter = objectMapper.writerFor(FeedResponse.Transaction.class);
+    private final ObjectReader importAccountReader = objectMapper.readerFor(ImportAccountRequest.class);
+    private final ObjectWriter importAccountWriter = objectMapper.writerFor(ImportAccountResponse.class);
+
+    public RestApi(Ledger ledger) {
+        this.ledger = ledger;
+    }
+
+    /**
+     * Serves transaction history from the replica.
+     *
+     * @param accountReads serve accounts from the replica as well
+     */
+    public RestApi withReplica(ReadReplica replica, boolean accountReads) {
+        this.replica = replica;
+        this.replicaAccountReads = accountReads;
+        return this;
+    }
+
+    /**
+     * Serves the feed of committed transfers.
+     */
+    public RestApi withFeed(TransactionFeed feed) {
+        this.feed = feed;
+        return this;
+    }
+
+    /**
+     * Lets administrators run reconciliation of balances with transactions.
+     */
+    public RestApi withReconciliation(Reconciliation reconciliation) {
+        this.reconciliation = reconciliation;
+        return this;
+    }
+
+    /**
+     * Lets administrators download a backup of the ledger.
+     */
+    public RestApi withBackup(LedgerBackup backup) {
+        this.backup = backup;
+        return this;
+    }
+
+    /**
+     * Tags account and history responses with versions of the account and answers conditional reads
+     * of unchanged accounts with {@code 304 Not Modified}.
+     */
+    public RestApi withVersions(AccountVersions versions) {
+        this.versions = versions;
+        return this;
+    }
+
+    public RestApi withScheduler(TransferScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    public RestApi withDescriptionIndex(DescriptionIndex descriptionIndex) {
+        this.descriptionIndex = descriptionIndex;
+        return this;
+    }
 
-    public RestApi(AccountService accountService) {
-        this.accountService = accountService;
+    /**
+     * Lets administrators see how long SQL statements take.
+     */
+    public RestApi withProfiler(StatementProfiler profiler) {
+        this.profiler = profiler;
+        return this;
+    }
+
+    /**
+     * Lets administrators see how far behind the standby is.
+     */
+    public RestApi withReplication(ReplicationServer replication) {
+        this.replication = replication;
+        return this;
+    }
+
+    /**
+     * Serves single transactions from memory.
+     */
+    public RestApi withTransactionCache(TransactionCache transactionCache) {
+        this.transactionCache = transactionCache;
+        return this;
+    }
+
+    /**
+     * Lets administrators adjust many accounts at once, like charging a fee.
+     */
+    public RestApi withAdjustments(AdjustmentJobs adjustments) {
+        this.adjustments = adjustments;
+        return this;
+    }
+
+    /**
+     * Lets administrators see which accounts are the most active and the most contended.
+     */
+    public RestApi withHotAccounts(HotAccounts hotAccounts) {
+        this.hotAccounts = hotAccounts;
+        return this;
+    }
+
+    /**
+     * Routes of a standby, that has no ledger to serve until it is promoted.
+     */
+    public static void configureStandby(StandbyClient standby) {
+        var objectMapper = SerializationUtil.getObjectMapper();
+        var statusWriter = objectMapper.writerFor(StandbyStatus.class);
+        get("/api/v1/admin/standby", "application/json", new JsonRoute(statusWriter, (request, response) ->
+                standby.getStatus()));
+        post("/api/v1/admin/standby/promote", "application/json", (request, response) -> {
+            response.type("application/json");
+            try {
+                return statusWriter.writeValueAsString(standby.promote());
+            } catch (IllegalStateException e) {
+                response.status(HttpStatus.CONFLICT_409);
+                return objectMapper.writeValueAsString(ErrorResponse.builder().message(e.getMessage()).build());
+            }
+        });
     }
 
     public void configure() {
-        JsonTransformer transformer = new JsonTransformer(objectMapper);
-        get("/api/v1/account/:id", "application/json", this::getAccount, transformer);
+        get("/api/v1/account/:id", "application/json", json(AccountResponse.class, this::getAccount));
         put("/api/v1/account/:id", "application/json", this::updateAccount);
-        post("/api/v1/account", "application/json", this::createAccount, transformer);
-        get("/api/v1/transaction", "application/json", this::getTransactions, transformer);
-        post("/api/v1/transaction", "application/json", this::send, transformer);
+        post("/api/v1/account", "application/json", json(AccountResponse.class, this::createAccount));
+        post("/api/v1/account/import", this::importAccounts);
+        post("/api/v1/account/batch", "application/json", json(AccountBatchResponse.class, this::getAccounts));
+        if (descriptionIndex != null) {
+            get("/api/v1/account", "application/json", json(AccountListResponse.class, this::findAccounts));
+        }
+        get("/api/v1/transaction", "application/json", new JsonRoute(
+                objectMapper.writerFor(TransactionListResponse.class), this::getTransactions,
+                model -> ((TransactionListResponse) model).getTransactions().size() >= GZIP_MIN_TRANSACTIONS));
+        get("/api/v1/transaction/:id", "application/json", this::getTransaction);
+        post("/api/v1/transaction", "application/json", this::send);
         post("/api/v1/transaction/id", "text/plain", this::generateTransactionId, Objects::toString);
+        post("/api/v1/transaction/id/batch", "application/json", json(TransactionId[].class, this::generateTransactionIds));
+        if (scheduler != null) {
+            post("/api/v1/schedule", "application/json", json(ScheduledTransferResponse.class, this::scheduleTransfer));
+            get("/api/v1/schedule/:id", "application/json", json(ScheduledTransferResponse.class, (request, response) ->
+                    toScheduledTransferResponse(scheduler.get(Long.parseLong(request.params("id"))))));
+            delete("/api/v1/schedule/:id", (request, response) -> {
+                scheduler.cancel(Long.parseLong(request.params("id")));
+                response.status(HttpStatus.NO_CONTENT_204);
+                return "";
+            });
+        }
+        if (replica != null) {
+            get("/api/v1/admin/replica", "application/json", json(ReplicaStatus.class, (request, response) -> replica.getStatus()));
+        }
+        if (feed != null) {
+            get("/api/v1/feed", "application/json", json(FeedResponse.class, this::getFeed));
+            get("/api/v1/feed/stream", this::streamFeed);
+        }
+        if (reconciliation != null) {
+            post("/api/v1/admin/reconciliation", "application/json", json(ReconciliationReport.class, (request, response) ->
+                    Boolean.parseBoolean(request.queryParams("incremental"))
+                            ? reconciliation.runIncremental()
+                            : reconciliation.run()));
+        }
+        if (backup != null) {
+            get("/api/v1/admin/backup", this::writeBackup);
+        }
+        if (replication != null) {
+            get("/api/v1/admin/replication", "application/json", json(ReplicationStatus.class, (request, response) ->
+                    replication.getStatus()));
+        }
+        if (adjustments != null) {
+            post("/api/v1/admin/adjustment", "application/json", json(AdjustmentJob.class, this::createAdjustment));
+            get("/api/v1/admin/adjustment/:id", "application/json", json(AdjustmentJob.class, (request, response) ->
+                    adjustments.get(Long.parseLong(request.params("id")))));
+        }
+        if (hotAccounts != null) {
+            get("/api/v1/admin/hot-accounts", "application/json", json(HotAccountsReport.class, this::getHotAccounts));
+        }
+        if (profiler != null) {
+            get("/api/v1/admin/sql", "application/json", json(SqlProfile.class, (request, response) -> profiler.getProfile()));
+        }
 
         exception(AccountNotFoundException.class, (exception, request, response) -> {
             var error = ErrorResponse.builder()
@@ -39,6 +277,24 @@ public class RestApi {
                     .build();
             sendError(HttpStatus.NOT_FOUND_404, error, response);
         });
+        exception(TransactionNotFoundException.class, (exception, request, response) -> {
+            var error = ErrorResponse.builder()
+                    .message(String.format("Transaction %s not found.", exception.getTransactionId()))
+                    .build();
+            sendError(HttpStatus.NOT_FOUND_404, error, response);
+        });
+        exception(ScheduledTransferNotFoundException.class, (exception, request, response) -> {
+            var error = ErrorResponse.builder()
+                    .message(String.format("Scheduled transfer %s not found.", exception.getId()))
+                    .build();
+            sendError(HttpStatus.NOT_FOUND_404, error, response);
+        });
+        exception(AdjustmentJobNotFoundException.class, (exception, request, response) -> {
+            var error = ErrorResponse.builder()
+                    .message(String.format("Adjustment job %s not found.", exception.getId()))
+                    .build();
+            sendError(HttpStatus.NOT_FOUND_404, error, response);
+        });
         exception(NotEnoughMoneyException.class, (exception, request, response) -> {
             var error = ErrorResponse.builder()
                     .message(String.format("Account %s does not have enough funds.", exception.getAccount()))
@@ -62,6 +318,10 @@ public class RestApi {
         });
     }
 
+    private Route json(Class<?> responseType, Route route) {
+        return new JsonRoute(objectMapper.writerFor(responseType), route);
+    }
+
     private void sendError(int status, ErrorResponse error, Response response) {
         response.status(status);
         response.type("application/json");
@@ -73,8 +333,8 @@ public class RestApi {
     }
 
     private AccountResponse createAccount(Request request, Response response) throws IOException {
-        CreateAccountRequest car = objectMapper.readValue(request.body(), CreateAccountRequest.class);
-        AccountId account = accountService.createAccount(car.getDescription());
+        CreateAccountRequest car = createAccountReader.readValue(body(request));
+        AccountId account = ledger.createAccount(car.getDescription());
         var result = new AccountResponse();
         result.setId(account);
         result.setBalance(BigDecimal.ZERO);
@@ -83,16 +343,144 @@ public class RestApi {
         return result;
     }
 
+    /**
+     * Streams the ids of imported accounts as NDJSON, a chunk at a time as they are committed.
+     * An error before anything was imported is a normal error response, a later one is the last line
+     * of the stream, its {@code line} is the first one that was not imported and its {@code lastCommittedLine}
+     * is the last one that was.
+     */
+    private Object importAccounts(Request request, Response response) throws IOException {
+        String contentType = request.contentType();
+        boolean csv = contentType != null && contentType.startsWith("text/csv");
+        var reader = new AccountImportReader(
+                new InputStreamReader(body(request), StandardCharsets.UTF_8), csv, importAccountReader);
+        response.type("application/x-ndjson");
+        OutputStream out = null;
+        long nextLine = 1;
+        long lastCommittedLine = 0;
+        while (true) {
+            List<AccountImportReader.Entry> chunk;
+            List<AccountId> ids;
+            try {
+                chunk = reader.read(IMPORT_CHUNK_SIZE);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                nextLine = chunk.get(0).getLine();
+                ids = ledger.importAccounts(chunk.stream()
+                        .map(entry -> OpeningAccount.builder()
+                                .description(entry.getRequest().getDescription())
+                                .balance(Objects.requireNonNullElse(entry.getRequest().getBalance(), BigDecimal.ZERO))
+                                .build())
+                        .collect(Collectors.toList()));
+            } catch (IllegalArgumentException e) {
+                if (out == null) {
+                    throw e;
+                }
+                writeImportError(out, nextLine, lastCommittedLine, e.getMessage());
+                break;
+            } catch (InternalException | IOException e) {
+                if (out == null) {
+                    throw e;
+                }
+                // the status is already sent, the client learns what was committed from the last line
+                log.error("Import failed at line {}", nextLine, e);
+                writeImportError(out, nextLine, lastCommittedLine, "Internal error");
+                break;
+            }
+            if (out == null) {
+                out = response.raw().getOutputStream();
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                var result = new ImportAccountResponse();
+                result.setLine(chunk.get(i).getLine());
+                result.setRef(chunk.get(i).getRequest().getRef());
+                result.setId(ids.get(i));
+                out.write(importAccountWriter.writeValueAsBytes(result));
+                out.write('\n');
+            }
+            out.flush();
+            lastCommittedLine = chunk.get(chunk.size() - 1).getLine();
+            nextLine = lastCommittedLine + 1;
+        }
+        return "";
+    }
+
+    private void writeImportError(OutputStream out, long line, long lastCommittedLine, String message)
+            throws IOException {
+        var error = new ImportAccountResponse();
+        error.setLine(line);
+        error.setLastCommittedLine(lastCommittedLine);
+        error.setError(message);
+        out.write(importAccountWriter.writeValueAsBytes(error));
+        out.write('\n');
+    }
+
     private Object updateAccount(Request request, Response response) throws IOException {
-        CreateAccountRequest car = objectMapper.readValue(request.body(), CreateAccountRequest.class);
+        CreateAccountRequest car = createAccountReader.readValue(body(request));
         AccountId account = AccountId.parse(request.params("id"));
-        accountService.updateAccount(account, car.getDescription());
+        ledger.updateAccount(account, car.getDescription());
         return "";
     }
 
-    private AccountResponse getAccount(Request request, Response response) {
+    @Nullable
+    private AccountResponse getAccount(Request request, Response response) throws InterruptedException {
         AccountId id = AccountId.parse(request.params("id"));
-        Account account = accountService.getAccount(id);
+        String tag = versionTag(id);
+        if (notModified(request, response, tag)) {
+            return null;
+        }
+        var source = readLedger(request, replicaAccountReads);
+        var result = toAccountResponse(source.getAccount(id));
+        // the replica may not have applied the change the tag stands for yet
+        if (tag != null && source == ledger) {
+            setVersionTag(response, tag);
+        }
+        return result;
+    }
+
+    private AccountBatchResponse getAccounts(Request request, Response response) throws IOException {
+        AccountBatchRequest abr = accountBatchReader.readValue(body(request));
+        Preconditions.checkArgument(abr.getIds() != null && !abr.getIds().isEmpty(), "Ids are required");
+        Preconditions.checkArgument(abr.getIds().size() <= MAX_ACCOUNT_BATCH,
+                "At most %s accounts can be read at once, found %s", MAX_ACCOUNT_BATCH, abr.getIds().size());
+        var accounts = ledger.getAccounts(abr.getIds(), abr.isConsistent());
+        var result = new AccountBatchResponse();
+        result.setAccounts(abr.getIds().stream()
+                .map(id -> {
+                    var entry = new AccountBatchResponse.Account();
+                    entry.setId(id);
+                    var account = accounts.get(id);
+                    if (account != null) {
+                        entry.setFound(true);
+                        entry.setBalance(account.getBalance());
+                        entry.setDescription(account.getDescription());
+                    }
+                    return entry;
+                })
+                .collect(Collectors.toList()));
+        return result;
+    }
+
+    /**
+     * Accounts by the beginning of their description, a page at a time.
+     */
+    private AccountListResponse findAccounts(Request request, Response response) {
+        String description = request.queryParams("description");
+        Preconditions.checkArgument(description != null, "Description is required");
+        int limit = (int) parseLong(request.queryParams("limit"), 20);
+        Preconditions.checkArgument(limit > 0 && limit <= MAX_SEARCH_LIMIT,
+                "Limit must be between 1 and %s, found %s", MAX_SEARCH_LIMIT, limit);
+        var page = descriptionIndex.find(description, request.queryParams("cursor"), limit);
+        var result = new AccountListResponse();
+        result.setAccounts(page.getAccounts().stream()
+                .map(id -> toAccountResponse(ledger.getAccount(id)))
+                .collect(Collectors.toList()));
+        result.setNextCursor(page.getNextCursor());
+        return result;
+    }
+
+    static AccountResponse toAccountResponse(Account account) {
         AccountResponse result = new AccountResponse();
         result.setBalance(account.getBalance());
         result.setId(account.getId());
@@ -100,8 +488,14 @@ public class RestApi {
         return result;
     }
 
-    private TransactionListResponse getTransactions(Request request, Response response) {
+    @Nullable
+    private TransactionListResponse getTransactions(Request request, Response response) throws InterruptedException {
         AccountId id = AccountId.parse(request.queryParams("account"));
+        String tag = versionTag(id);
+        if (notModified(request, response, tag)) {
+            return null;
+        }
+        long committed = ledger.getCommitLog().getLastSequence();
         String limitStr = request.queryParams("limit");
         Integer limit = limitStr == null ? null : Integer.valueOf(limitStr);
         String offsetStr = request.queryParams("offset");
@@ -110,8 +504,52 @@ public class RestApi {
         Instant from = fromStr == null ? null : Instant.parse(fromStr);
         String toStr = request.queryParams("to");
         Instant to = fromStr == null ? null : Instant.parse(toStr);
+        var source = readLedger(request, true);
+        List<Transaction> transactions = source.getTransactions(id, limit, offset, from, to);
+        // history only changes with transfers, the replica has all of them that the tag stands for
+        if (tag != null && (source == ledger || replica.getAppliedSequence() >= committed)) {
+            setVersionTag(response, tag);
+        }
+        return toTransactionListResponse(id, transactions);
+    }
+
+    @Nullable
+    private String versionTag(AccountId account) {
+        // weak, so that gzipped and plain responses share it
+        return versions == null ? null : "W/\"" + versions.getTag(account) + "\"";
+    }
+
+    private static void setVersionTag(Response response, String tag) {
+        response.header("ETag", tag);
+        response.header("Cache-Control", "no-cache");
+    }
+
+    /**
+     * Answers {@code 304 Not Modified} if the client already has the version.
+     */
+    private static boolean notModified(Request request, Response response, @Nullable String tag) {
+        String ifNoneMatch = request.headers("If-None-Match");
+        if (tag == null || ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // weak comparison, the W/ prefix does not matter
+            if (candidate.equals("*") || stripWeak(candidate).equals(stripWeak(tag))) {
+                response.status(HttpStatus.NOT_MODIFIED_304);
+                setVersionTag(response, tag);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    static TransactionListResponse toTransactionListResponse(AccountId id, List<Transaction> transactions) {
         var result = new TransactionListResponse();
-        List<Transaction> transactions = accountService.getTransactions(id, limit, offset, from, to);
         result.setTransactions(transactions.stream().map(t -> {
             var m = new TransactionListResponse.Transaction();
             m.setId(t.getId());
@@ -124,21 +562,222 @@ public class RestApi {
         return result;
     }
 
-    private CreateTransactionResponse send(Request request, Response response) throws IOException {
-        var tr = objectMapper.readValue(request.body(), CreateTransactionRequest.class);
-        var t = accountService.moveMoney(tr.getFrom(), tr.getTo(), tr.getId(), tr.getAmount());
+    /**
+     * Picks the replica for a read if it is enabled and has caught up with {@code minSequence}
+     * that the client got from one of its transfers.
+     */
+    private Ledger readLedger(Request request, boolean replicaAllowed) throws InterruptedException {
+        if (replica == null || !replicaAllowed) {
+            return ledger;
+        }
+        String minSequenceStr = request.queryParams("minSequence");
+        if (minSequenceStr == null || replica.awaitSequence(Long.parseLong(minSequenceStr), REPLICA_WAIT_MILLIS)) {
+            return replica.getLedger();
+        }
+        return ledger;
+    }
+
+    private Object send(Request request, Response response) throws IOException {
+        CreateTransactionRequest tr = createTransactionReader.readValue(body(request));
+        var t = ledger.moveMoney(tr.getFrom(), tr.getTo(), tr.getId(), tr.getAmount());
+        response.status(HttpStatus.CREATED_201);
+        return writeJson(response, renderTransaction(t));
+    }
+
+    private Object getTransaction(Request request, Response response) throws IOException {
+        TransactionId id = TransactionId.parse(request.params("id"));
+        byte[] body = transactionCache == null ? null : transactionCache.get(id, this::renderTransaction);
+        if (body == null) {
+            var t = ledger.getTransaction(id);
+            body = renderTransaction(t);
+            // committed before the cache was there or evicted since, a transfer between shards may be not final yet
+            if (transactionCache != null && ledger.isFinal(t)) {
+                transactionCache.put(t, body);
+            }
+        }
+        return writeJson(response, body);
+    }
+
+    private byte[] renderTransaction(Transaction t) {
+        try {
+            return transactionWriter.writeValueAsBytes(toCreateTransactionResponse(t));
+        } catch (JsonProcessingException e) {
+            throw new InternalException(e);
+        }
+    }
+
+    private static Object writeJson(Response response, byte[] body) throws IOException {
+        response.type("application/json");
+        response.raw().setContentLength(body.length);
+        response.raw().getOutputStream().write(body);
+        // Spark needs some body to consider the route matched, an empty one adds nothing to the output.
+        return "";
+    }
+
+    static CreateTransactionResponse toCreateTransactionResponse(Transaction t) {
         var result = new CreateTransactionResponse();
         result.setId(t.getId());
         result.setAmount(t.getMoney());
         result.setFrom(t.getFromAccount());
         result.setTo(t.getToAccount());
         result.setTimestamp(t.getTimestamp());
+        result.setSequence(t.getSequence());
+        return result;
+    }
+
+    private ScheduledTransferResponse scheduleTransfer(Request request, Response response) throws IOException {
+        ScheduleTransferRequest str = scheduleTransferReader.readValue(body(request));
+        var transfer = scheduler.schedule(str.getFrom(), str.getTo(), str.getAmount(), str.getTime(),
+                str.getPeriodSeconds() == null ? null : Duration.ofSeconds(str.getPeriodSeconds()), str.getTimes());
         response.status(HttpStatus.CREATED_201);
+        return toScheduledTransferResponse(transfer);
+    }
+
+    private AdjustmentJob createAdjustment(Request request, Response response) throws IOException {
+        AdjustmentJobRequest ajr = adjustmentJobReader.readValue(body(request));
+        var job = adjustments.create(ajr.getName(), ajr.getRule(), ajr.getAmount(), ajr.getFrom(), ajr.getTo());
+        // the job goes on in the background
+        response.status(HttpStatus.ACCEPTED_202);
+        return job;
+    }
+
+    private HotAccountsReport getHotAccounts(Request request, Response response) {
+        String seconds = request.queryParams("seconds");
+        String limit = request.queryParams("limit");
+        return hotAccounts.getReport(
+                seconds == null ? null : Duration.ofSeconds(Long.parseLong(seconds)),
+                limit == null ? null : Integer.valueOf(limit));
+    }
+
+    static ScheduledTransferResponse toScheduledTransferResponse(ScheduledTransfer transfer) {
+        var result = new ScheduledTransferResponse();
+        result.setId(transfer.getId());
+        result.setFrom(transfer.getFromAccount());
+        result.setTo(transfer.getToAccount());
+        result.setAmount(transfer.getMoney());
+        result.setNextTime(transfer.getNextTime());
+        result.setPeriodSeconds(transfer.getPeriod() == null ? null : transfer.getPeriod().getSeconds());
+        result.setRemaining(transfer.getRemaining());
+        result.setOccurrence(transfer.getOccurrence());
+        return result;
+    }
+
+    /**
+     * Long poll: returns what is there after {@code after}, or waits up to {@code wait} milliseconds
+     * for a matching transfer.
+     */
+    private FeedResponse getFeed(Request request, Response response) throws InterruptedException {
+        long after = parseLong(request.queryParams("after"), 0);
+        AccountId account = parseAccount(request.queryParams("account"));
+        int limit = (int) parseLong(request.queryParams("limit"), 1000);
+        Preconditions.checkArgument(limit > 0 && limit <= MAX_FEED_LIMIT,
+                "Limit must be between 1 and %s, found %s", MAX_FEED_LIMIT, limit);
+        long wait = Math.min(parseLong(request.queryParams("wait"), 0), MAX_FEED_WAIT_MILLIS);
+        long deadline = System.currentTimeMillis() + wait;
+
+        FeedPage page = feed.read(after, account, limit);
+        long left;
+        while (page.getEvents().isEmpty() && (left = deadline - System.currentTimeMillis()) > 0) {
+            feed.await(page.getLastSequence(), left);
+            page = feed.read(page.getLastSequence(), account, limit);
+        }
+        var result = new FeedResponse();
+        result.setTransactions(page.getEvents().stream().map(RestApi::toFeedTransaction).collect(Collectors.toList()));
+        result.setLastSequence(page.getLastSequence());
+        return result;
+    }
+
+    /**
+     * Server-sent events, one per transfer, until the client disconnects. It takes a server thread
+     * per client, so it is meant for a few internal consumers. A reconnecting client continues
+     * from {@code Last-Event-ID}.
+     */
+    private Object streamFeed(Request request, Response response) throws InterruptedException {
+        String lastEventId = request.headers("Last-Event-ID");
+        long after = parseLong(lastEventId != null ? lastEventId : request.queryParams("after"), 0);
+        AccountId account = parseAccount(request.queryParams("account"));
+
+        response.type("text/event-stream");
+        response.header("Cache-Control", "no-cache");
+        try {
+            OutputStream out = response.raw().getOutputStream();
+            response.raw().flushBuffer();
+            while (true) {
+                FeedPage page = feed.read(after, account, MAX_FEED_LIMIT);
+                for (var event : page.getEvents()) {
+                    out.write(("id: " + event.getSequence() + "\ndata: ").getBytes(StandardCharsets.UTF_8));
+                    out.write(feedTransactionWriter.writeValueAsBytes(toFeedTransaction(event)));
+                    out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+                }
+                after = page.getLastSequence();
+                if (!page.getEvents().isEmpty()) {
+                    out.flush();
+                }
+                if (after >= feed.getLastSequence() && !feed.await(after, STREAM_HEARTBEAT_MILLIS)) {
+                    out.write(":\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+            return "";
+        }
+    }
+
+    private Object writeBackup(Request request, Response response) throws IOException {
+        response.type("application/octet-stream");
+        response.header("Content-Disposition", "attachment; filename=\"ledger.backup\"");
+        backup.write(response.raw().getOutputStream());
+        return "";
+    }
+
+    private static FeedResponse.Transaction toFeedTransaction(CommitEvent event) {
+        var t = event.getTransaction();
+        var result = new FeedResponse.Transaction();
+        result.setSequence(event.getSequence());
+        result.setId(t.getId());
+        result.setAmount(t.getMoney());
+        result.setFrom(t.getFromAccount());
+        result.setTo(t.getToAccount());
+        result.setTimestamp(t.getTimestamp());
         return result;
     }
 
+    /**
+     * Body of the request as it arrives. Spark wraps the servlet request into one that copies the whole body
+     * into an array on the first read unless the body is chunked, so the wrapper is skipped.
+     */
+    private static InputStream body(Request request) throws IOException {
+        ServletRequest raw = request.raw();
+        if (raw instanceof ServletRequestWrapper) {
+            raw = ((ServletRequestWrapper) raw).getRequest();
+        }
+        return raw.getInputStream();
+    }
+
+    private static long parseLong(@Nullable String value, long defaultValue) {
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    @Nullable
+    private static AccountId parseAccount(@Nullable String value) {
+        return value == null ? null : AccountId.parse(value);
+    }
+
     private String generateTransactionId(Request request, Response response) {
         response.type("text/plain");
         return TransactionId.create().asString();
     }
+
+    private TransactionId[] generateTransactionIds(Request request, Response response) {
+        String countStr = request.queryParams("count");
+        int count = countStr == null ? 100 : Integer.parseInt(countStr);
+        Preconditions.checkArgument(count > 0 && count <= MAX_TRANSACTION_ID_BATCH,
+                "Count must be between 1 and %s, found %s", MAX_TRANSACTION_ID_BATCH, count);
+        var ids = new TransactionId[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = TransactionId.create();
+        }
+        return ids;
+    }
 }
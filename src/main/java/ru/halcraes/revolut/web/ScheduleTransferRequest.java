@@ -0,0 +1,26 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+import ru.halcraes.revolut.db.AccountId;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+@Data
+public class ScheduleTransferRequest {
+    private AccountId from;
+    private AccountId to;
+    private BigDecimal amount;
+    /**
+     * Of the first transfer.
+     */
+    private Instant time;
+    /**
+     * Seconds between transfers, none for a single transfer.
+     */
+    private Long periodSeconds;
+    /**
+     * How many transfers to make, none for no limit.
+     */
+    private Long times;
+}
@@ -0,0 +1,25 @@
+package ru.halcraes.revolut.web;
+
+import lombok.Data;
+import ru.halcraes.revolut.db.AccountId;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+@Data
+public class ScheduledTransferResponse {
+    private long id;
+    private AccountId from;
+    private AccountId to;
+    private BigDecimal amount;
+    private Instant nextTime;
+    private Long periodSeconds;
+    /**
+     * Transfers left, none for no limit.
+     */
+    private Long remaining;
+    /**
+     * Transfers made so far.
+     */
+    private long occurrence;
+}
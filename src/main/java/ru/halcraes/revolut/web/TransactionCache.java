@@ -0,0 +1,100 @@
+package ru.halcraes.revolut.web;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.jcip.annotations.ThreadSafe;
+import ru.halcraes.revolut.db.CommitEvent;
+import ru.halcraes.revolut.db.CommitListener;
+import ru.halcraes.revolut.db.CommitLog;
+import ru.halcraes.revolut.db.Ledger;
+import ru.halcraes.revolut.db.Transaction;
+import ru.halcraes.revolut.db.TransactionId;
+
+import javax.annotation.CheckForNull;
+import java.util.function.Function;
+
+/**
+ * Serialized responses of single transactions, up to a total size in bytes.
+ * <p>
+ * Only final transactions are kept, see {@link Ledger#isFinal}, they never change, so entries are never
+ * invalidated, only the least recently used ones are evicted when the cache is full. Every committed transfer
+ * is added by the listener, whoever made it, and rendered when it is read for the first time. The debit leg
+ * of a transfer between shards is left out: its credit may still be refused and refunded, and the credit leg
+ * is the one that stands for the transfer.
+ */
+@ThreadSafe
+public class TransactionCache implements CommitListener {
+    /**
+     * Rough size of the key, the entry and the array header, counted along with the bytes of the response.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    /**
+     * Expected size of the response of a transaction that is not rendered yet.
+     */
+    private static final int RESPONSE_SIZE = 200;
+
+    private final Cache<TransactionId, Entry> cache;
+
+    public TransactionCache(CommitLog commitLog, long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((TransactionId id, Entry entry) -> entry.weight())
+                .build();
+        commitLog.addListener(this);
+    }
+
+    @Override
+    public void committed(CommitEvent event) {
+        if (event.getType() != CommitEvent.Type.TRANSFER) {
+            return;
+        }
+        var transaction = event.getTransaction();
+        if (event.getCredited() == null && transaction.getToAccount() != null) {
+            // money went to an account of another shard, which has not credited it yet
+            return;
+        }
+        cache.put(transaction.getId(), new Entry(transaction, null));
+    }
+
+    /**
+     * @param render makes the response of a transaction that was added by the listener
+     */
+    @CheckForNull
+    byte[] get(TransactionId transactionId, Function<Transaction, byte[]> render) {
+        var entry = cache.getIfPresent(transactionId);
+        return entry == null ? null : entry.response(render);
+    }
+
+    /**
+     * Adds a transaction that was read from the ledger, it must be final.
+     */
+    void put(Transaction transaction, byte[] response) {
+        cache.put(transaction.getId(), new Entry(transaction, response));
+    }
+
+    private static class Entry {
+        private final Transaction transaction;
+        @CheckForNull
+        private volatile byte[] response;
+
+        Entry(Transaction transaction, @CheckForNull byte[] response) {
+            this.transaction = transaction;
+            this.response = response;
+        }
+
+        int weight() {
+            var rendered = response;
+            return (rendered != null ? rendered.length : RESPONSE_SIZE) + ENTRY_OVERHEAD;
+        }
+
+        byte[] response(Function<Transaction, byte[]> render) {
+            var rendered = response;
+            if (rendered == null) {
+                // two readers may both render it, the result is the same
+                rendered = render.apply(transaction);
+                response = rendered;
+            }
+            return rendered;
+        }
+    }
+}
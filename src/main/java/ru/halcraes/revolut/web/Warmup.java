@@ -0,0 +1,56 @@
+package ru.halcraes.revolut.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ru.halcraes.revolut.db.AccountService;
+import ru.halcraes.revolut.db.Database;
+import ru.halcraes.revolut.db.InternalException;
+import ru.halcraes.revolut.db.TransactionId;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+
+/**
+ * Runs the code behind the busiest routes on a throwaway database before the server starts, so that
+ * the first real requests do not pay for class loading and interpreted code. Jetty itself is not warmed up.
+ */
+public final class Warmup {
+    private Warmup() {
+    }
+
+    public static void run(int iterations) {
+        ObjectMapper objectMapper = SerializationUtil.getObjectMapper();
+        var requestWriter = objectMapper.writerFor(CreateTransactionRequest.class);
+        var requestReader = objectMapper.readerFor(CreateTransactionRequest.class);
+        var transactionWriter = objectMapper.writerFor(CreateTransactionResponse.class);
+        var accountWriter = objectMapper.writerFor(AccountResponse.class);
+        var historyWriter = objectMapper.writerFor(TransactionListResponse.class);
+        OutputStream out = OutputStream.nullOutputStream();
+
+        try (var database = Database.initialize("warmup", false)) {
+            var ledger = new AccountService(database.getDataSource());
+            var first = ledger.createAccount("warmup");
+            var second = ledger.createAccount("warmup");
+            ledger.moveMoney(null, first, TransactionId.create(), BigDecimal.ONE);
+            for (int i = 0; i < iterations; i++) {
+                var request = new CreateTransactionRequest();
+                request.setId(TransactionId.create());
+                // back and forth, so that the money never runs out
+                request.setFrom(i % 2 == 0 ? first : second);
+                request.setTo(i % 2 == 0 ? second : first);
+                request.setAmount(BigDecimal.ONE);
+                CreateTransactionRequest parsed = requestReader.readValue(requestWriter.writeValueAsBytes(request));
+
+                var t = ledger.moveMoney(parsed.getFrom(), parsed.getTo(), parsed.getId(), parsed.getAmount());
+                transactionWriter.writeValue(out, RestApi.toCreateTransactionResponse(t));
+                accountWriter.writeValue(out, RestApi.toAccountResponse(ledger.getAccount(parsed.getTo())));
+                if (i % 10 == 0) {
+                    var history = ledger.getTransactions(parsed.getTo(), null, null, null, null);
+                    historyWriter.writeValue(out, RestApi.toTransactionListResponse(parsed.getTo(), history));
+                }
+            }
+        } catch (IOException e) {
+            throw new InternalException(e);
+        }
+    }
+}
@@ -5,6 +5,13 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -25,6 +32,64 @@ public class AccountServiceTest {
         return new AccountService(database.getDataSource());
     }
 
+    @Test
+    public void getAccounts() {
+        AccountService accountService = getAccountService();
+        List<AccountId> ids = new ArrayList<>();
+        // more than one chunk, the last one padded
+        for (int i = 0; i < 200; i++) {
+            var account = accountService.createAccount("account " + i);
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal(i + 1));
+            ids.add(account);
+        }
+        var missing = new AccountId(Long.MAX_VALUE);
+        List<AccountId> request = new ArrayList<>(ids);
+        request.add(missing);
+        request.add(ids.get(0));
+
+        for (boolean consistent : new boolean[]{false, true}) {
+            var accounts = accountService.getAccounts(request, consistent);
+            assertEquals(ids.size(), accounts.size());
+            assertFalse(accounts.containsKey(missing));
+            for (int i = 0; i < ids.size(); i++) {
+                var account = accounts.get(ids.get(i));
+                assertEquals("account " + i, account.getDescription());
+                assertEquals(0, new BigDecimal(i + 1).compareTo(account.getBalance()));
+            }
+        }
+    }
+
+    @Test
+    public void importAccounts() {
+        AccountService accountService = getAccountService();
+        List<CommitEvent> events = new ArrayList<>();
+        CommitListener listener = events::add;
+        accountService.getCommitLog().addListener(listener);
+        try {
+            var ids = accountService.importAccounts(List.of(
+                    OpeningAccount.builder().description("foo").balance(new BigDecimal("10.50")).build(),
+                    OpeningAccount.builder().description("bar").build()));
+            assertEquals(2, ids.size());
+            assertEquals("foo", accountService.getAccount(ids.get(0)).getDescription());
+            assertEquals(new BigDecimal("10.50"), accountService.getBalance(ids.get(0)));
+            assertEquals(BigDecimal.ZERO, accountService.getBalance(ids.get(1)));
+
+            var transactions = accountService.getTransactions(ids.get(0), null, null, null, null);
+            assertEquals(1, transactions.size());
+            assertNull(transactions.get(0).getFromAccount());
+            assertEquals(new BigDecimal("10.50"), transactions.get(0).getMoney());
+            assertTrue(accountService.getTransactions(ids.get(1), null, null, null, null).isEmpty());
+
+            assertEquals(3, events.size());
+            assertEquals(CommitEvent.Type.ACCOUNT_CREATED, events.get(1).getType());
+            assertEquals(ids.get(1), events.get(1).getAccount());
+            assertEquals(CommitEvent.Type.TRANSFER, events.get(2).getType());
+            assertEquals(transactions.get(0).getSequence(), events.get(2).getSequence());
+        } finally {
+            accountService.getCommitLog().removeListener(listener);
+        }
+    }
+
     @Test
     public void addMoney() {
         AccountService accountService = getAccountService();
@@ -225,4 +290,76 @@ public class AccountServiceTest {
             assertEquals(accountTo, e.getAccountId());
         }
     }
+
+    @Test
+    public void opposingTransfersDoNotDeadlock() throws Exception {
+        // no retries, so that a deadlock or a lock timeout fails the test
+        var accountService = new AccountService(database.getDataSource(),
+                CommitLog.recover(List.of(database.getDataSource())), new RetryPolicy(1, 0, 0));
+        var a = accountService.createAccount("foo");
+        var b = accountService.createAccount("bar");
+        accountService.moveMoney(null, a, TransactionId.create(), new BigDecimal("1000.00"));
+        accountService.moveMoney(null, b, TransactionId.create(), new BigDecimal("1000.00"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            boolean forward = t % 2 == 0;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    if (forward) {
+                        accountService.moveMoney(a, b, TransactionId.create(), BigDecimal.ONE);
+                    } else {
+                        accountService.moveMoney(b, a, TransactionId.create(), BigDecimal.ONE);
+                    }
+                }
+            }));
+        }
+        for (var future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(new BigDecimal("1000.00"), accountService.getBalance(a));
+        assertEquals(new BigDecimal("1000.00"), accountService.getBalance(b));
+    }
+
+    @Test
+    public void failedTransfersDoNotLoseMoney() throws Exception {
+        var accountService = getAccountService();
+        List<AccountId> accounts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            var account = accountService.createAccount("foo");
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("2.00"));
+            accounts.add(account);
+        }
+
+        // small balances make many transfers fail and roll back while others wait for the same accounts,
+        // a transfer to the same account succeeds and changes nothing
+        var rejected = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                var random = ThreadLocalRandom.current();
+                for (int i = 0; i < 500; i++) {
+                    try {
+                        accountService.moveMoney(accounts.get(random.nextInt(accounts.size())),
+                                accounts.get(random.nextInt(accounts.size())), TransactionId.create(), BigDecimal.ONE);
+                    } catch (NotEnoughMoneyException e) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (var future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        var total = BigDecimal.ZERO;
+        for (var account : accounts) {
+            total = total.add(accountService.getBalance(account));
+        }
+        assertEquals(new BigDecimal("10.00"), total);
+        assertTrue(rejected.get() > 0);
+    }
 }
@@ -0,0 +1,128 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AdjustmentJobsTest {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private Database database;
+    private AccountService ledger;
+    private List<AccountId> accounts;
+
+    @Before
+    public void setUp() {
+        database = Database.initialize("adjustment_" + databases.incrementAndGet(), false);
+        ledger = new AccountService(database.getDataSource());
+        accounts = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            var account = ledger.createAccount("account " + i);
+            if (i % 10 != 0) {
+                ledger.moveMoney(null, account, TransactionId.create(), new BigDecimal(i).add(new BigDecimal("0.55")));
+            }
+            accounts.add(account);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void chargesFeeOnce() throws Exception {
+        try (var jobs = AdjustmentJobs.start(ledger, 2, 1_000_000)) {
+            long sequence = ledger.getCommitLog().getLastSequence();
+            var job = awaitDone(jobs, jobs.create("fee 2026-10", AdjustmentJob.Rule.FEE, new BigDecimal("5.00"), null, null));
+            assertEquals(3, job.getChunks());
+            // accounts without an opening transfer and those with less than 5.00
+            assertEquals(25 + 4, job.getSkipped());
+            assertEquals(250 - 29, job.getAdjusted());
+            assertEquals(new BigDecimal("5.00").multiply(BigDecimal.valueOf(221)), job.getTotal());
+            assertEquals(sequence + 221, ledger.getCommitLog().getLastSequence());
+
+            for (int i = 0; i < accounts.size(); i++) {
+                var account = accounts.get(i);
+                var opening = i % 10 == 0 ? BigDecimal.ZERO : new BigDecimal(i).add(new BigDecimal("0.55"));
+                boolean charged = opening.compareTo(new BigDecimal("5.00")) >= 0;
+                assertEquals(0, (charged ? opening.subtract(new BigDecimal("5.00")) : opening).compareTo(ledger.getBalance(account)));
+                if (charged) {
+                    var fee = ledger.getTransaction(jobs.transactionId(job, account));
+                    assertEquals(account, fee.getFromAccount());
+                    assertNull(fee.getToAccount());
+                }
+            }
+
+            // a repeated request is the same job and changes nothing
+            assertEquals(job.getId(), jobs.create("fee 2026-10", AdjustmentJob.Rule.FEE, new BigDecimal("5"), null, null).getId());
+            assertEquals(sequence + 221, ledger.getCommitLog().getLastSequence());
+            try {
+                jobs.create("fee 2026-10", AdjustmentJob.Rule.FEE, new BigDecimal("6.00"), null, null);
+                fail("Created a job with the name of another one");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void paysInterestInRange() throws Exception {
+        try (var jobs = AdjustmentJobs.start(ledger, 2, 1_000_000)) {
+            var first = accounts.get(95);
+            var last = accounts.get(104);
+            var job = awaitDone(jobs, jobs.create("interest", AdjustmentJob.Rule.INTEREST, new BigDecimal("0.015"), first, last));
+            assertEquals(9, job.getAdjusted());
+            assertEquals(1, job.getSkipped());
+            for (int i = 0; i < accounts.size(); i++) {
+                var opening = i % 10 == 0 ? BigDecimal.ZERO : new BigDecimal(i).add(new BigDecimal("0.55"));
+                var expected = i >= 95 && i <= 104
+                        ? opening.add(opening.multiply(new BigDecimal("0.015")).setScale(2, RoundingMode.DOWN))
+                        : opening;
+                assertEquals(expected.setScale(2), ledger.getBalance(accounts.get(i)).setScale(2));
+            }
+        }
+    }
+
+    @Test
+    public void resumesAfterRestart() throws Exception {
+        AdjustmentJob job;
+        // a chunk per half a second
+        try (var jobs = AdjustmentJobs.start(ledger, 1, 200)) {
+            job = jobs.create("credit", AdjustmentJob.Rule.CREDIT, new BigDecimal("1.00"), null, null);
+            while (jobs.get(job.getId()).getDoneChunks() == 0) {
+                Thread.sleep(10);
+            }
+        }
+        try (var jobs = AdjustmentJobs.start(ledger, 2, 1_000_000)) {
+            assertTrue(jobs.get(job.getId()).getDoneChunks() < 3);
+            job = awaitDone(jobs, job);
+            assertEquals(250, job.getAdjusted());
+        }
+        for (int i = 0; i < accounts.size(); i++) {
+            var opening = i % 10 == 0 ? BigDecimal.ZERO : new BigDecimal(i).add(new BigDecimal("0.55"));
+            assertEquals(0, opening.add(BigDecimal.ONE).compareTo(ledger.getBalance(accounts.get(i))));
+        }
+    }
+
+    private static AdjustmentJob awaitDone(AdjustmentJobs jobs, AdjustmentJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            var current = jobs.get(job.getId());
+            if (current.isDone() && !current.isRunning()) {
+                return current;
+            }
+            Thread.sleep(10);
+        }
+        fail("Job is not done: " + jobs.get(job.getId()));
+        return null;
+    }
+}
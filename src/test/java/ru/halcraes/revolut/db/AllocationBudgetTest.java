@@ -0,0 +1,55 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails when the hot paths of the ledger start allocating noticeably more, young collections caused by them
+ * show up in the slowest responses. Budgets are about 1.5 times what was measured, to leave room for
+ * differences between JVMs, and should go down with allocations that are cut.
+ */
+public class AllocationBudgetTest {
+    private static final int WARMUP = 10_000;
+    private static final int MEASURED = 2_000;
+    private static final long TRANSFER_BUDGET = 40_000;
+    private static final long GET_ACCOUNT_BUDGET = 1_500;
+
+    private static Database database;
+    private static AccountService accountService;
+    private static AccountId first;
+    private static AccountId second;
+
+    @BeforeClass
+    public static void setUp() {
+        database = Database.initialize("allocation_budget", false);
+        accountService = new AccountService(database.getDataSource());
+        first = accountService.createAccount("first");
+        second = accountService.createAccount("second");
+        accountService.moveMoney(null, first, TransactionId.create(), new BigDecimal("1000000.00"));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void transfer() {
+        var money = new BigDecimal("0.01");
+        long bytes = AllocationMeter.perOperation(WARMUP, MEASURED,
+                i -> accountService.moveMoney(first, second, TransactionId.create(), money));
+        assertTrue("moveMoney allocates " + bytes + " bytes, more than " + TRANSFER_BUDGET, bytes <= TRANSFER_BUDGET);
+    }
+
+    @Test
+    public void getAccount() {
+        long bytes = AllocationMeter.perOperation(WARMUP, MEASURED, i -> accountService.getAccount(first));
+        assertTrue("getAccount allocates " + bytes + " bytes, more than " + GET_ACCOUNT_BUDGET,
+                bytes <= GET_ACCOUNT_BUDGET);
+    }
+}
@@ -0,0 +1,49 @@
+package ru.halcraes.revolut.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.IntConsumer;
+
+/**
+ * Bytes allocated per operation, counted by the JVM for each thread.
+ */
+public class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Runs the operation {@code warmup} times, so that it is compiled, and then measures {@code measured} runs.
+     *
+     * @param otherThreads count what other threads allocate meanwhile instead of the current one,
+     *                     for operations that a server does on its threads, like REST calls handled by Jetty
+     */
+    public static long perOperation(int warmup, int measured, boolean otherThreads, IntConsumer operation) {
+        for (int i = 0; i < warmup; i++) {
+            operation.accept(i);
+        }
+        long before = allocated(otherThreads);
+        for (int i = 0; i < measured; i++) {
+            operation.accept(i);
+        }
+        return (allocated(otherThreads) - before) / measured;
+    }
+
+    public static long perOperation(int warmup, int measured, IntConsumer operation) {
+        return perOperation(warmup, measured, false, operation);
+    }
+
+    private static long allocated(boolean otherThreads) {
+        long current = Thread.currentThread().getId();
+        if (!otherThreads) {
+            return threads.getThreadAllocatedBytes(current);
+        }
+        long total = 0;
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != current && bytes[i] > 0) {
+                total += bytes[i];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,57 @@
+package ru.halcraes.revolut.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures backup and restore of a large ledger.
+ * <p>
+ * Run with the number of accounts and transactions, for example {@code 100000 10000000}.
+ * The ledger is filled with SQL, so balances do not match the transactions, which does not matter here.
+ */
+public class BackupBenchmark {
+    public static void main(String[] args) throws Exception {
+        long accounts = args.length > 0 ? Long.parseLong(args[0]) : 100_000;
+        long transactions = args.length > 1 ? Long.parseLong(args[1]) : 1_000_000;
+        var file = Files.createTempFile("ledger", ".backup");
+        try (var source = Database.initialize("backup_benchmark", false);
+             var target = Database.initialize("backup_benchmark_copy", false)
+        ) {
+            long start = System.nanoTime();
+            try (var conn = source.getDataSource().getConnection();
+                 var statement = conn.createStatement()
+            ) {
+                statement.execute("insert into account (id, description, money)" +
+                        " select x, 'benchmark ' || x, 1000.00 from system_range(1, " + accounts + ")");
+                statement.execute("insert into transaction (id, from_acc, to_acc, money, time, seq)" +
+                        " select cast(random_uuid() as binary), mod(x * 7919, " + accounts + ") + 1," +
+                        " mod(x * 104729, " + accounts + ") + 1, 1.00," +
+                        " dateadd('MILLISECOND', x, timestamp '2020-01-01 00:00:00'), x" +
+                        " from system_range(1, " + transactions + ")");
+            }
+            System.out.printf("filled in %,d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            var dataSources = List.of(source.getDataSource());
+            start = System.nanoTime();
+            try (var out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                new LedgerBackup(dataSources, CommitLog.recover(dataSources)).write(out);
+            }
+            long backupNanos = System.nanoTime() - start;
+            long size = Files.size(file);
+            System.out.printf("backup  %,10.0f transactions/s, %,d bytes, %.1f bytes per transaction%n",
+                    transactions / (backupNanos / 1e9), size, size / (double) transactions);
+
+            start = System.nanoTime();
+            try (var in = new BufferedInputStream(Files.newInputStream(file))) {
+                LedgerBackup.restore(in, List.of(target.getDataSource()));
+            }
+            long restoreNanos = System.nanoTime() - start;
+            System.out.printf("restore %,10.0f transactions/s%n", transactions / (restoreNanos / 1e9));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommitLogTest {
+    private final CommitLog commitLog = new CommitLog(0);
+    private final List<Long> delivered = new CopyOnWriteArrayList<>();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        commitLog.addListener(event -> delivered.add(event.getSequence()));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void deliversInSequenceOrderWhileCommittingConcurrently() throws Exception {
+        var writing = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var slow = executor.submit(() -> commit(sequence -> {
+            writing.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+        }));
+        writing.await();
+
+        // the second commit is not held back by the first one, only its delivery is
+        var written = new CountDownLatch(1);
+        var fast = executor.submit(() -> commit(sequence -> written.countDown()));
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(fast.isDone());
+        assertEquals(List.of(), delivered);
+        assertEquals(0, commitLog.getLastSequence());
+
+        release.countDown();
+        assertEquals(1, slow.get().getSequence());
+        assertEquals(2, fast.get().getSequence());
+        assertEquals(List.of(1L, 2L), delivered);
+        assertEquals(2, commitLog.getLastSequence());
+    }
+
+    @Test
+    public void pauseWaitsForCommitsInProgress() throws Exception {
+        var writing = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var slow = executor.submit(() -> commit(sequence -> {
+            writing.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+        }));
+        writing.await();
+
+        var paused = executor.submit(() -> commitLog.whilePaused(() -> List.copyOf(delivered)));
+        Thread.sleep(100);
+        assertFalse(paused.isDone());
+        release.countDown();
+        assertEquals(List.of(1L), paused.get());
+        slow.get();
+    }
+
+    @Test
+    public void failedWriteLeavesNumberUnused() throws Exception {
+        try {
+            commit(sequence -> {
+                throw new SQLException("duplicate");
+            });
+            fail();
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(2, commit(sequence -> { }).getSequence());
+        assertEquals(List.of(2L), delivered);
+        assertEquals(2, commitLog.getLastSequence());
+    }
+
+    private Transaction commit(CommitLog.SequencedWrite write) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:")) {
+            conn.setAutoCommit(false);
+            var transaction = Transaction.builder()
+                    .id(TransactionId.create())
+                    .toAccount(new AccountId(1))
+                    .money(BigDecimal.ONE)
+                    .timestamp(Instant.now())
+                    .build();
+            return commitLog.commitTransfer(conn, transaction, null, transaction.getToAccount(), write);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.StringJoiner;
+
+import static org.junit.Assert.*;
+
+public class DatabaseTest {
+    @Test
+    public void fileDatabaseSurvivesRestart() throws IOException {
+        var properties = new Properties();
+        properties.setProperty("accountdb.db.storage", "file");
+        properties.setProperty("accountdb.db.directory", Files.createTempDirectory("database-test").toString());
+        properties.setProperty("accountdb.db.writeDelayMillis", "0");
+        properties.setProperty("accountdb.db.compress", "true");
+        var config = DatabaseConfig.fromProperties(properties);
+
+        AccountId account;
+        try (var database = Database.initialize(config, "restart", true)) {
+            var accountService = new AccountService(database.getDataSource());
+            account = accountService.createAccount("foo");
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("10.00"));
+        }
+        try (var database = Database.initialize(config, "restart", true)) {
+            var accountService = new AccountService(database.getDataSource());
+            assertEquals(new BigDecimal("10.00"), accountService.getBalance(account));
+            // the demo data is not inserted twice
+            assertEquals(5, accountService.getTransactions(new AccountId(1), null, null, null, null).size());
+            // sequence numbers continue
+            var transaction = accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00"));
+            assertTrue(transaction.getSequence() > 1);
+        }
+    }
+
+    @Test
+    public void schemaUpdateIsSkippedWhenCurrent() throws Exception {
+        var properties = new Properties();
+        properties.setProperty("accountdb.db.storage", "file");
+        properties.setProperty("accountdb.db.directory", Files.createTempDirectory("database-test").toString());
+        var config = DatabaseConfig.fromProperties(properties);
+
+        List<String> changeSets;
+        String checksum;
+        try (var database = Database.initialize(config, "startup", true)) {
+            assertTrue(database.isSchemaUpdated());
+            changeSets = query(database, "select id, dateexecuted from databasechangelog order by orderexecuted");
+            assertFalse(changeSets.isEmpty());
+            checksum = query(database, "select checksum from schema_checksum").get(0);
+        }
+        try (var database = Database.initialize(config, "startup", true)) {
+            assertFalse(database.isSchemaUpdated());
+            assertEquals(changeSets, query(database, "select id, dateexecuted from databasechangelog order by orderexecuted"));
+            assertEquals(List.of(checksum), query(database, "select checksum from schema_checksum"));
+            // as if the change log was changed since the last start
+            try (var conn = database.getDataSource().getConnection()) {
+                conn.createStatement().execute("update schema_checksum set checksum = 'outdated'");
+            }
+        }
+        try (var database = Database.initialize(config, "startup", true)) {
+            assertTrue(database.isSchemaUpdated());
+        }
+        // other contexts mean other change sets
+        try (var database = Database.initialize(config, "startup", false)) {
+            assertTrue(database.isSchemaUpdated());
+        }
+    }
+
+    /**
+     * @return rows with their columns joined by spaces
+     */
+    private static List<String> query(Database database, String sql) throws SQLException {
+        List<String> rows = new ArrayList<>();
+        try (var conn = database.getDataSource().getConnection();
+             var statement = conn.createStatement();
+             var rs = statement.executeQuery(sql)
+        ) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                var row = new StringJoiner(" ");
+                for (int i = 1; i <= columns; i++) {
+                    row.add(rs.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void url() {
+        assertEquals("jdbc:h2:mem:foo;DB_CLOSE_DELAY=-1", DatabaseConfig.inMemory().url("foo"));
+        var config = DatabaseConfig.builder()
+                .storage(DatabaseConfig.Storage.FILE)
+                .cacheSizeKb(1024)
+                .compress(false)
+                .build();
+        assertTrue(config.url("foo").startsWith("jdbc:h2:file:"));
+        assertTrue(config.url("foo").endsWith("foo;CACHE_SIZE=1024;COMPRESS=FALSE"));
+    }
+}
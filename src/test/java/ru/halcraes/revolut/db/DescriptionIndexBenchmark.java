@@ -0,0 +1,81 @@
+package ru.halcraes.revolut.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures indexing of new accounts by {@link DescriptionIndex}, latency of lookups by random prefixes
+ * and loading the same number of accounts from the database, as at startup.
+ * <p>
+ * Run with the number of accounts, for example {@code 10000000}, and a heap that fits them.
+ */
+public class DescriptionIndexBenchmark {
+    public static void main(String[] args) throws Exception {
+        long accounts = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        try (var database = Database.initialize("description_benchmark", false)) {
+            var commitLog = CommitLog.recover(List.of(database.getDataSource()));
+            var index = DescriptionIndex.load(commitLog, List.of(database.getDataSource()));
+            // filling H2 with millions of rows takes too long, so accounts come as commit events,
+            // which also makes the index merge its delta many times
+            String[] syllables = {"Ka", "Lo", "Mi", "Sa", "Te", "Vu", "Ro", "Ne"};
+            String[] endings = {"ri", "na", "to", "lem", "vo", "sky", "dra", "pin"};
+            long start = System.nanoTime();
+            for (long id = 1; id <= accounts; id++) {
+                index.committed(CommitEvent.builder()
+                        .type(CommitEvent.Type.ACCOUNT_CREATED)
+                        .account(new AccountId(id))
+                        .description(syllables[(int) (id % 8)] + endings[(int) (id / 8 % 8)] + ", " + id * 7919 % 1000003)
+                        .build());
+            }
+            while (index.isRebuilding()) {
+                Thread.sleep(10);
+            }
+            System.gc();
+            System.out.printf("indexed %,d in %,d ms, %,d MB used%n", index.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20);
+
+            var random = new Random(1);
+            String[] first = {"ka", "lo", "mi", "sa", "te", "vu", "ro", "ne"};
+            String[] second = {"ri", "na", "to", "lem", "vo", "sky", "dra", "pin"};
+            for (int round = 0; round < 2; round++) {
+                long[] nanos = new long[lookups];
+                long found = 0;
+                for (int i = 0; i < lookups; i++) {
+                    String prefix = first[random.nextInt(8)];
+                    if (random.nextBoolean()) {
+                        prefix += second[random.nextInt(8)] + ", " + random.nextInt(1000);
+                    }
+                    long lookupStart = System.nanoTime();
+                    found += index.find(prefix, null, 20).getAccounts().size();
+                    nanos[i] = System.nanoTime() - lookupStart;
+                }
+                Arrays.sort(nanos);
+                System.out.printf("%s: %,d lookups, %,d found, p50 %,d us, p99 %,d us, max %,d us%n",
+                        round == 0 ? "warmup" : "measured", lookups, found, nanos[lookups / 2] / 1000,
+                        nanos[lookups * 99 / 100] / 1000, nanos[lookups - 1] / 1000);
+            }
+        }
+        try (var database = Database.initialize("description_load_benchmark", false)) {
+            try (var conn = database.getDataSource().getConnection();
+                 var statement = conn.createStatement()
+            ) {
+                // H2 commits the identity sequence for every inserted id above it, so it is moved past them first
+                statement.execute("alter table account alter column id restart with " + (accounts + 1));
+                statement.execute("insert into account (id, description, money)" +
+                        " select x, 'Benchmark ' || mod(x * 7919, 1000003), 0 from system_range(1, " + accounts + ")");
+            }
+            var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            var index = DescriptionIndex.load(new CommitLog(0), List.of(database.getDataSource()));
+            System.out.printf("loaded %,d in %,d ms, %,d MB allocated%n", index.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    (threads.getCurrentThreadAllocatedBytes() - allocated) >> 20);
+        }
+    }
+}
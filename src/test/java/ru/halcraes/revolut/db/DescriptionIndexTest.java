@@ -0,0 +1,105 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class DescriptionIndexTest {
+    private static List<AccountId> findAll(DescriptionIndex index, String prefix, int limit) {
+        List<AccountId> result = new ArrayList<>();
+        String cursor = null;
+        do {
+            var page = index.find(prefix, cursor, limit);
+            assertTrue(page.getAccounts().size() <= limit);
+            result.addAll(page.getAccounts());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return result;
+    }
+
+    @Test
+    public void findsByPrefixIgnoringCase() {
+        try (var database = Database.initialize("description_index", true)) {
+            var accountService = new AccountService(database.getDataSource());
+            var smithJohn = accountService.createAccount("Smith, John");
+            var smithAnna = accountService.createAccount("smith, Anna");
+            var smythe = accountService.createAccount("Smythe");
+            accountService.createAccount(null);
+            var index = DescriptionIndex.load(accountService.getCommitLog(), List.of(database.getDataSource()));
+
+            assertEquals(List.of(smithAnna, smithJohn), findAll(index, "SMITH", 1));
+            assertEquals(List.of(smithAnna, smithJohn, smythe), findAll(index, "Sm", 2));
+            assertEquals(List.of(new AccountId(1)), findAll(index, "john", 10));
+            assertEquals(List.of(), findAll(index, "Smithers", 10));
+
+            // created and updated after loading
+            var smithers = accountService.createAccount("Smithers");
+            accountService.updateAccount(smithJohn, "Doe, John");
+            accountService.updateAccount(smithAnna, null);
+            assertEquals(List.of(smithers), findAll(index, "smith", 1));
+            assertEquals(List.of(smithJohn), findAll(index, "doe", 1));
+        }
+    }
+
+    @Test
+    public void sortsLoadedDescriptions() {
+        try (var database = Database.initialize("description_index_sort", false)) {
+            var accountService = new AccountService(database.getDataSource());
+            List<String> descriptions = new ArrayList<>();
+            Map<String, AccountId> accounts = new HashMap<>();
+            var random = new Random(1);
+            for (int i = 0; i < 1000; i++) {
+                // repeated descriptions are ordered by id, which is the order of creation,
+                // the separator sorts before any character of a description
+                String description = "Account " + random.nextInt(500) + (i % 3 == 0 ? " \u00dc" : "");
+                descriptions.add(description.toLowerCase(Locale.ROOT) + "\u0000" + (10_000 + i));
+                accounts.put(descriptions.get(i), accountService.createAccount(description));
+            }
+            var index = DescriptionIndex.load(accountService.getCommitLog(), List.of(database.getDataSource()));
+
+            Collections.sort(descriptions);
+            var expected = descriptions.stream().map(accounts::get).collect(Collectors.toList());
+            assertEquals(expected, findAll(index, "account", 100));
+        }
+    }
+
+    @Test
+    public void mergesChanges() throws Exception {
+        try (var database = Database.initialize("description_index_merge", false)) {
+            var accountService = new AccountService(database.getDataSource());
+            List<AccountId> accounts = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                accounts.add(accountService.createAccount(String.format("a%03d", i)));
+            }
+            var index = DescriptionIndex.load(accountService.getCommitLog(), List.of(database.getDataSource()), 10);
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 50; i += 2) {
+                    accountService.updateAccount(accounts.get(i), String.format("%s%03d", round % 2 == 0 ? "b" : "a", i));
+                }
+                for (int i = 0; i < 20; i++) {
+                    accounts.add(accountService.createAccount(String.format("a%03d", accounts.size())));
+                }
+            }
+            while (index.isRebuilding()) {
+                Thread.sleep(10);
+            }
+            List<AccountId> expectedA = new ArrayList<>();
+            List<AccountId> expectedB = new ArrayList<>();
+            for (int i = 0; i < accounts.size(); i++) {
+                (i % 2 == 0 && i < 50 ? expectedB : expectedA).add(accounts.get(i));
+            }
+            assertEquals(expectedA, findAll(index, "a", 7));
+            assertEquals(expectedB, findAll(index, "B", 100));
+            assertEquals(accounts.size(), findAll(index, "", 1000).size());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ru.halcraes.revolut.db;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class HotAccountsTest {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private Database database;
+    private AccountService ledger;
+    private TestClock clock;
+    private HotAccounts hotAccounts;
+
+    @Before
+    public void setUp() {
+        database = Database.initialize("hot_accounts_" + databases.incrementAndGet(), false);
+        ledger = new AccountService(database.getDataSource());
+        clock = new TestClock(Instant.parse("2026-10-19T10:00:00Z"));
+        hotAccounts = new HotAccounts(Duration.ofSeconds(60), 3, clock);
+        ledger.trackHotAccounts(hotAccounts);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void ranksAccountsByTransfersInWindow() {
+        List<AccountId> accounts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            accounts.add(ledger.createAccount("account " + i));
+        }
+        for (int i = 0; i < 30; i++) {
+            ledger.moveMoney(null, accounts.get(0), TransactionId.create(), BigDecimal.ONE);
+        }
+        clock.advance(Duration.ofSeconds(30));
+        for (int i = 0; i < 20; i++) {
+            ledger.moveMoney(accounts.get(0), accounts.get(1), TransactionId.create(), BigDecimal.ONE);
+        }
+        for (int i = 2; i < 10; i++) {
+            ledger.moveMoney(null, accounts.get(i), TransactionId.create(), BigDecimal.ONE);
+        }
+
+        var report = hotAccounts.getReport(null, null);
+        assertEquals(60, report.getSeconds());
+        assertEquals(30 + 2 * 20 + 8, report.getChanges());
+        assertEquals(3, report.getActive().size());
+        assertEquals(accounts.get(0), report.getActive().get(0).getAccount());
+        assertEquals(50, report.getActive().get(0).getChanges());
+        assertEquals(accounts.get(1), report.getActive().get(1).getAccount());
+        assertEquals(20, report.getActive().get(1).getChanges());
+        assertArrayEquals(report.getActive().stream().mapToLong(active -> active.getAccount().getValue()).toArray(),
+                hotAccounts.getMostActiveAccounts());
+
+        // the first transfers are out of a shorter window
+        var recent = hotAccounts.getReport(Duration.ofSeconds(10), 1);
+        assertEquals(1, recent.getActive().size());
+        assertEquals(20, recent.getActive().get(0).getChanges());
+
+        clock.advance(Duration.ofSeconds(40));
+        assertEquals(2 * 20 + 8, hotAccounts.getChanges());
+        clock.advance(Duration.ofSeconds(40));
+        assertEquals(0, hotAccounts.getChanges());
+        assertEquals(0, hotAccounts.getMostActiveAccounts().length);
+    }
+
+    @Test
+    public void findsHotAccountsAmongMany() {
+        var many = new HotAccounts(Duration.ofSeconds(60), 5, clock);
+        for (long account = 1; account <= 100_000; account++) {
+            many.committed(transfer(account));
+            if (account % 100 == 0) {
+                for (long hot = 1; hot <= 5; hot++) {
+                    many.committed(transfer(hot * 1000 + 7));
+                }
+            }
+        }
+        var hot = many.getReport(null, null).getActive().stream()
+                .map(active -> active.getAccount().getValue())
+                .sorted()
+                .collect(Collectors.toList());
+        assertEquals(List.of(1007L, 2007L, 3007L, 4007L, 5007L), hot);
+    }
+
+    @Test
+    public void reportsWaitsForLocks() throws Exception {
+        var contended = ledger.createAccount("contended");
+        var other = ledger.createAccount("other");
+        ledger.moveMoney(null, other, TransactionId.create(), BigDecimal.TEN);
+        var locked = new CountDownLatch(1);
+        var executor = Executors.newSingleThreadExecutor();
+        var holder = executor.submit(() -> ledger.changeAccounts(List.of(contended), () -> {
+            locked.countDown();
+            Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+            return null;
+        }));
+        locked.await();
+        ledger.moveMoney(other, contended, TransactionId.create(), BigDecimal.ONE);
+        holder.get();
+        executor.shutdown();
+
+        var report = hotAccounts.getReport(null, null);
+        // the sender is in another stripe and never waited
+        assertEquals(1, report.getContended().size());
+        assertEquals(contended, report.getContended().get(0).getAccount());
+        assertTrue(report.getContended().get(0).getWaitMicros() >= 100_000);
+        assertEquals(report.getContended().get(0).getWaitMicros(), report.getLockWaitMicros());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWindowLongerThanTracked() {
+        hotAccounts.getReport(Duration.ofSeconds(61), null);
+    }
+
+    private static CommitEvent transfer(long account) {
+        return CommitEvent.builder()
+                .type(CommitEvent.Type.TRANSFER)
+                .credited(new AccountId(account))
+                .build();
+    }
+}
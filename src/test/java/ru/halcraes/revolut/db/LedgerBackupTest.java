@@ -0,0 +1,226 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class LedgerBackupTest {
+    private static byte[] backup(List<Database> databases, CommitLog commitLog) throws IOException {
+        var out = new ByteArrayOutputStream();
+        new LedgerBackup(dataSources(databases), commitLog).write(out);
+        return out.toByteArray();
+    }
+
+    private static List<DataSource> dataSources(List<Database> databases) {
+        return databases.stream().map(Database::getDataSource).collect(Collectors.toList());
+    }
+
+    private static Set<String> transactionIndexes(Database database) throws SQLException {
+        try (var conn = database.getDataSource().getConnection();
+             var rs = conn.createStatement().executeQuery("select sql from information_schema.indexes" +
+                     " where table_name = 'TRANSACTION' union select sql from information_schema.constraints" +
+                     " where table_name = 'TRANSACTION'")
+        ) {
+            Set<String> result = new HashSet<>();
+            while (rs.next()) {
+                result.add(rs.getString(1));
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void restoresEverything() throws Exception {
+        try (var database = Database.initialize("backup_source", true);
+             var copy = Database.initialize("backup_copy", true)
+        ) {
+            var accountService = new AccountService(database.getDataSource());
+            var foo = accountService.createAccount("foo");
+            var bar = accountService.createAccount(null);
+            accountService.moveMoney(null, foo, TransactionId.create(), new BigDecimal("100.00"));
+            var last = accountService.moveMoney(foo, bar, TransactionId.create(), new BigDecimal("30.5"));
+
+            byte[] backup = backup(List.of(database), accountService.getCommitLog());
+            assertEquals(last.getSequence(),
+                    LedgerBackup.restore(new ByteArrayInputStream(backup), List.of(copy.getDataSource())));
+
+            var restored = new AccountService(copy.getDataSource());
+            assertEquals(last.getSequence(), restored.getCommitLog().getLastSequence());
+            for (var account : List.of(new AccountId(1), new AccountId(2), foo, bar)) {
+                assertEquals(accountService.getAccount(account), restored.getAccount(account));
+                // demo transactions have the same time, so their order is not defined
+                assertEquals(Set.copyOf(accountService.getTransactions(account, null, null, null, null)),
+                        Set.copyOf(restored.getTransactions(account, null, null, null, null)));
+            }
+            assertEquals(transactionIndexes(database), transactionIndexes(copy));
+            var next = restored.createAccount("next");
+            assertTrue(next.getValue() > bar.getValue());
+
+            try {
+                LedgerBackup.restore(new ByteArrayInputStream(backup), List.of(copy.getDataSource()));
+                fail("Restored into a database with commits");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void failedRestoreKeepsIndexes() throws Exception {
+        try (var database = Database.initialize("backup_truncated_source", true);
+             var copy = Database.initialize("backup_truncated_copy", true)
+        ) {
+            var accountService = new AccountService(database.getDataSource());
+            accountService.moveMoney(null, accountService.createAccount("foo"), TransactionId.create(), BigDecimal.TEN);
+            byte[] backup = backup(List.of(database), accountService.getCommitLog());
+            var indexes = transactionIndexes(copy);
+            try {
+                LedgerBackup.restore(new ByteArrayInputStream(Arrays.copyOf(backup, backup.length / 2)),
+                        List.of(copy.getDataSource()));
+                fail("Restored a truncated backup");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(indexes, transactionIndexes(copy));
+        }
+    }
+
+    @Test
+    public void takesConsistentCutWhileMoneyIsMoved() throws Exception {
+        try (var database = Database.initialize("backup_concurrent", true);
+             var copy = Database.initialize("backup_concurrent_copy", false)
+        ) {
+            var accountService = new AccountService(database.getDataSource());
+            List<AccountId> accounts = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                accounts.add(accountService.createAccount("foo"));
+            }
+            for (int i = 0; i < 20; i++) {
+                accountService.moveMoney(null, accounts.get(i), TransactionId.create(), new BigDecimal("100.00"));
+            }
+            var stop = new AtomicBoolean();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                var thread = new Thread(() -> {
+                    var random = ThreadLocalRandom.current();
+                    while (!stop.get()) {
+                        var from = accounts.get(random.nextInt(20));
+                        var to = accounts.get(random.nextInt(accounts.size()));
+                        try {
+                            accountService.moveMoney(from, to, TransactionId.create(), new BigDecimal("1.00"));
+                        } catch (IllegalArgumentException e) {
+                            // same account or not enough money
+                        }
+                        if (random.nextInt(10) == 0) {
+                            accountService.createAccount("new");
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            byte[] backup;
+            try {
+                Thread.sleep(100);
+                backup = backup(List.of(database), accountService.getCommitLog());
+            } finally {
+                stop.set(true);
+                for (var thread : threads) {
+                    thread.join();
+                }
+            }
+
+            LedgerBackup.restore(new ByteArrayInputStream(backup), List.of(copy.getDataSource()));
+            var restored = new AccountService(copy.getDataSource());
+            var total = BigDecimal.ZERO;
+            for (var account : accounts) {
+                total = total.add(restored.getBalance(account));
+            }
+            assertEquals(new BigDecimal("2000.00"), total);
+            var report = new Reconciliation(List.of(copy.getDataSource()), restored.getCommitLog(), 2).run();
+            assertEquals(List.of(), report.getMismatches());
+        }
+    }
+
+    @Test
+    public void restoresShards() throws Exception {
+        List<Database> databases = new ArrayList<>();
+        List<Database> copies = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            databases.add(Database.initialize("backup_sharded_" + i, i == 0));
+            copies.add(Database.initialize("backup_sharded_copy_" + i, i == 0));
+        }
+        var ledger = new ShardedLedger(databases);
+        ShardedLedger restored = null;
+        try {
+            List<AccountId> accounts = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                var account = ledger.createAccount("foo");
+                ledger.moveMoney(null, account, TransactionId.create(), new BigDecimal("10.00"));
+                accounts.add(account);
+            }
+            for (int i = 0; i < accounts.size(); i++) {
+                ledger.moveMoney(accounts.get(i), accounts.get((i + 1) % accounts.size()),
+                        TransactionId.create(), new BigDecimal("3.00"));
+            }
+            byte[] backup = backup(databases, ledger.getCommitLog());
+            LedgerBackup.restore(new ByteArrayInputStream(backup), dataSources(copies));
+
+            restored = new ShardedLedger(copies);
+            for (var account : accounts) {
+                assertEquals(ledger.getAccount(account), restored.getAccount(account));
+                assertEquals(ledger.getTransactions(account, null, null, null, null),
+                        restored.getTransactions(account, null, null, null, null));
+            }
+            try (var single = Database.initialize("backup_sharded_single", true)) {
+                LedgerBackup.restore(new ByteArrayInputStream(backup), List.of(single.getDataSource()));
+                fail("Restored into fewer shards");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            ledger.close();
+            if (restored != null) {
+                restored.close();
+            }
+            databases.forEach(Database::close);
+            copies.forEach(Database::close);
+        }
+    }
+
+    @Test
+    public void rejectsDamagedBackup() throws Exception {
+        try (var database = Database.initialize("backup_damaged", true);
+             var copy = Database.initialize("backup_damaged_copy", true)
+        ) {
+            var accountService = new AccountService(database.getDataSource());
+            for (int i = 0; i < 100; i++) {
+                var account = accountService.createAccount("account " + i);
+                accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal(i + 1));
+            }
+            byte[] backup = backup(List.of(database), accountService.getCommitLog());
+            try {
+                LedgerBackup.restore(new ByteArrayInputStream(backup, 0, backup.length - 20),
+                        List.of(copy.getDataSource()));
+                fail("Restored a truncated backup");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
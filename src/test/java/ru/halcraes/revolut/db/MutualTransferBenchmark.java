@@ -0,0 +1,84 @@
+package ru.halcraes.revolut.db;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfers back and forth between a few accounts from many threads, the worst case for row locks.
+ * <p>
+ * Run with the number of threads, accounts and seconds as arguments, and optionally a netting window
+ * in milliseconds to send transfers through {@link NettingLedger}. Half of the threads send money
+ * from lower account ids to higher ones and half the other way round. Reports throughput, failed transfers,
+ * retries and whether the total amount of money is the same at the end.
+ */
+public class MutualTransferBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        Long nettingWindow = args.length > 3 ? Long.parseLong(args[3]) : null;
+
+        Database database = Database.initialize("mutual_transfer", false);
+        var retryPolicy = new RetryPolicy();
+        var accountService = new AccountService(database.getDataSource(),
+                CommitLog.recover(List.of(database.getDataSource())), retryPolicy);
+        List<AccountId> ids = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            var account = accountService.createAccount("mutual " + i);
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1000000.00"));
+            ids.add(account);
+        }
+        Ledger ledger = nettingWindow == null ? accountService : NettingLedger.start(accountService, nettingWindow, 1000);
+
+        var transfers = new AtomicLong();
+        var failures = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            boolean forward = t % 2 == 0;
+            int offset = t / 2;
+            futures.add(executor.submit(() -> {
+                int i = offset;
+                while (System.nanoTime() < deadline) {
+                    var a = ids.get(i % accounts);
+                    var b = ids.get((i + 1) % accounts);
+                    i++;
+                    try {
+                        if (forward) {
+                            ledger.moveMoney(a, b, TransactionId.create(), BigDecimal.ONE);
+                        } else {
+                            ledger.moveMoney(b, a, TransactionId.create(), BigDecimal.ONE);
+                        }
+                        transfers.incrementAndGet();
+                    } catch (InternalException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (var future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        if (ledger instanceof NettingLedger) {
+            ((NettingLedger) ledger).close();
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (var id : ids) {
+            total = total.add(accountService.getBalance(id));
+        }
+        System.out.printf("%d threads, %d accounts: %,.0f transfers/s, %,d failed, %,d retries, money %s%n",
+                threads, accounts, transfers.get() / (double) seconds, failures.get(), retryPolicy.getRetries(),
+                total.compareTo(new BigDecimal("1000000.00").multiply(BigDecimal.valueOf(accounts))) == 0
+                        ? "conserved" : "NOT conserved: " + total);
+        database.close();
+    }
+}
@@ -0,0 +1,135 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NettingLedgerTest {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private Database database;
+    private AccountService service;
+    private NettingLedger ledger;
+
+    @Before
+    public void setUp() {
+        database = Database.initialize("netting_" + databases.incrementAndGet(), false);
+        service = new AccountService(database.getDataSource());
+    }
+
+    @After
+    public void tearDown() {
+        if (ledger != null) {
+            ledger.close();
+        }
+        database.close();
+    }
+
+    @Test
+    public void checksTransfersAgainstProjectedBalance() throws Exception {
+        var a = service.createAccount("a");
+        var b = service.createAccount("b");
+        var deposit = service.moveMoney(null, a, TransactionId.create(), new BigDecimal("10.00"));
+        ledger = NettingLedger.start(service, 500, 1000);
+
+        var repeatedId = TransactionId.create();
+        var first = ledger.submit(a, b, repeatedId, new BigDecimal("4.00"));
+        var second = ledger.submit(a, b, TransactionId.create(), new BigDecimal("4.00"));
+        var overdraft = ledger.submit(a, b, TransactionId.create(), new BigDecimal("4.00"));
+        var back = ledger.submit(b, a, TransactionId.create(), new BigDecimal("4.00"));
+        var afterBack = ledger.submit(a, b, TransactionId.create(), new BigDecimal("4.00"));
+        var repeated = ledger.submit(a, b, repeatedId, new BigDecimal("4.00"));
+        var conflicting = ledger.submit(a, b, repeatedId, new BigDecimal("5.00"));
+        var missing = ledger.submit(a, new AccountId(Long.MAX_VALUE), TransactionId.create(), new BigDecimal("1.00"));
+        var storedAgain = ledger.submit(null, a, deposit.getId(), new BigDecimal("10.00"));
+
+        assertEquals(deposit.getSequence() + 1, first.get().getSequence());
+        assertEquals(deposit.getSequence() + 2, second.get().getSequence());
+        assertRejected(overdraft, NotEnoughMoneyException.class);
+        assertEquals(deposit.getSequence() + 3, back.get().getSequence());
+        assertEquals(deposit.getSequence() + 4, afterBack.get().getSequence());
+        assertEquals(first.get(), repeated.get());
+        assertRejected(conflicting, DuplicateTransactionIdException.class);
+        assertRejected(missing, AccountNotFoundException.class);
+        assertEquals(deposit, storedAgain.get());
+        assertEquals(1, ledger.getBatches());
+
+        assertEquals(new BigDecimal("2.00"), ledger.getBalance(a));
+        assertEquals(new BigDecimal("8.00"), ledger.getBalance(b));
+        assertEquals(5, ledger.getTransactions(a, null, null, null, null).size());
+        assertEquals(first.get(), ledger.getTransaction(repeatedId));
+        // a transfer committed in an earlier window is repeated like without netting
+        assertEquals(first.get(), ledger.moveMoney(a, b, repeatedId, new BigDecimal("4.00")));
+    }
+
+    @Test
+    public void concurrentTransfersConserveMoney() throws Exception {
+        List<AccountId> accounts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            var account = service.createAccount("account " + i);
+            service.moveMoney(null, account, TransactionId.create(), new BigDecimal("20.00"));
+            accounts.add(account);
+        }
+        ledger = NettingLedger.start(service, 2, 1000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int offset = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    var from = accounts.get((offset + i) % accounts.size());
+                    var to = accounts.get((offset + i + 1 + offset % 2) % accounts.size());
+                    try {
+                        ledger.moveMoney(from, to, TransactionId.create(), new BigDecimal("3.00"));
+                    } catch (NotEnoughMoneyException e) {
+                        // expected now and then
+                    }
+                }
+            }));
+        }
+        for (var future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(8 * 200, ledger.getTransfers());
+        assertTrue(ledger.getBatches() < ledger.getTransfers());
+        BigDecimal total = BigDecimal.ZERO;
+        for (var account : accounts) {
+            var balance = ledger.getBalance(account);
+            assertTrue(balance.signum() >= 0);
+            total = total.add(balance);
+            BigDecimal fromTransactions = BigDecimal.ZERO;
+            for (var transaction : ledger.getTransactions(account, 10_000, null, null, null)) {
+                fromTransactions = account.equals(transaction.getToAccount())
+                        ? fromTransactions.add(transaction.getMoney())
+                        : fromTransactions.subtract(transaction.getMoney());
+            }
+            assertEquals(balance, fromTransactions);
+        }
+        assertEquals(new BigDecimal("60.00"), total);
+    }
+
+    private static void assertRejected(CompletableFuture<Transaction> result, Class<? extends Exception> expected)
+            throws InterruptedException {
+        try {
+            result.get();
+            fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            assertEquals(expected, e.getCause().getClass());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ReadReplicaTest {
+    private static Database primary;
+    private static Database copy;
+    private static AccountService accountService;
+    private static ReadReplica replica;
+
+    @BeforeClass
+    public static void setUp() {
+        primary = Database.initialize("replica_primary", true);
+        copy = Database.initialize("replica_copy", false);
+        accountService = new AccountService(primary.getDataSource());
+        replica = ReadReplica.start(accountService.getCommitLog(), List.of(primary.getDataSource()), copy);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        replica.close();
+        copy.close();
+        primary.close();
+    }
+
+    @Test
+    public void copiesExistingData() {
+        assertEquals(accountService.getAccount(new AccountId(1)), replica.getLedger().getAccount(new AccountId(1)));
+        // demo transactions have the same time, so their order is not defined
+        assertEquals(Set.copyOf(accountService.getTransactions(new AccountId(2), null, null, null, null)),
+                Set.copyOf(replica.getLedger().getTransactions(new AccountId(2), null, null, null, null)));
+    }
+
+    @Test
+    public void appliesChanges() throws InterruptedException {
+        var accountFrom = accountService.createAccount("foo");
+        var accountTo = accountService.createAccount("bar");
+        accountService.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("100.00"));
+        accountService.updateAccount(accountTo, "baz");
+        var transaction = accountService.moveMoney(accountFrom, accountTo, TransactionId.create(), new BigDecimal("30.00"));
+
+        assertTrue(replica.awaitSequence(transaction.getSequence(), 5000));
+        assertEquals(accountService.getAccount(accountFrom), replica.getLedger().getAccount(accountFrom));
+        assertEquals(accountService.getAccount(accountTo), replica.getLedger().getAccount(accountTo));
+        assertEquals(accountService.getTransactions(accountFrom, null, null, null, null),
+                replica.getLedger().getTransactions(accountFrom, null, null, null, null));
+        assertEquals("baz", replica.getLedger().getAccount(accountTo).getDescription());
+    }
+
+    @Test
+    public void sequenceIsReturnedAndStored() {
+        var account = accountService.createAccount("foo");
+        var first = accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00"));
+        var second = accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00"));
+        assertTrue(first.getSequence() > 0);
+        assertTrue(second.getSequence() > first.getSequence());
+
+        var duplicate = accountService.moveMoney(null, account, second.getId(), new BigDecimal("1.00"));
+        assertEquals(second.getSequence(), duplicate.getSequence());
+    }
+
+    @Test
+    public void status() throws InterruptedException {
+        var account = accountService.createAccount("foo");
+        var transaction = accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00"));
+        assertTrue(replica.awaitSequence(transaction.getSequence(), 5000));
+        var status = replica.getStatus();
+        assertTrue(status.getAppliedSequence() >= transaction.getSequence());
+        assertTrue(status.getCommittedSequence() >= status.getAppliedSequence());
+    }
+
+    @Test
+    public void awaitTimesOut() throws InterruptedException {
+        assertFalse(replica.awaitSequence(Long.MAX_VALUE, 10));
+    }
+}
@@ -0,0 +1,134 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ReconciliationTest {
+    private static final int DEMO_ACCOUNTS = 2;
+
+    private static Set<AccountId> mismatched(ReconciliationReport report) {
+        return report.getMismatches().stream()
+                .map(ReconciliationReport.Mismatch::getAccount)
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void findsWrongBalances() throws Exception {
+        try (var database = Database.initialize("reconciliation", true)) {
+            var accountService = new AccountService(database.getDataSource());
+            var reconciliation = new Reconciliation(
+                    List.of(database.getDataSource()), accountService.getCommitLog(), 4);
+            var foo = accountService.createAccount("foo");
+            var bar = accountService.createAccount("bar");
+            accountService.moveMoney(null, foo, TransactionId.create(), new BigDecimal("100.00"));
+            accountService.moveMoney(foo, bar, TransactionId.create(), new BigDecimal("30.00"));
+
+            var report = reconciliation.run();
+            assertFalse(report.isIncremental());
+            assertEquals(2 + DEMO_ACCOUNTS, report.getAccountsChecked());
+            assertEquals(Set.of(), mismatched(report));
+
+            try (var conn = database.getDataSource().getConnection()) {
+                conn.createStatement().execute("update account set money = 71.00 where id = " + foo.getValue());
+            }
+            // nothing was transferred since the last run
+            report = reconciliation.runIncremental();
+            assertTrue(report.isIncremental());
+            assertEquals(0, report.getAccountsChecked());
+
+            accountService.moveMoney(foo, bar, TransactionId.create(), new BigDecimal("1.00"));
+            report = reconciliation.runIncremental();
+            assertEquals(2, report.getAccountsChecked());
+            assertEquals(Set.of(foo), mismatched(report));
+            var mismatch = report.getMismatches().get(0);
+            assertEquals(new BigDecimal("70.00"), mismatch.getBalance());
+            assertEquals(new BigDecimal("69.00"), mismatch.getExpected());
+            assertEquals(3, mismatch.getTransactions().size());
+
+            assertEquals(Set.of(foo), mismatched(reconciliation.run()));
+        }
+    }
+
+    @Test
+    public void runsWhileMoneyIsMoved() throws Exception {
+        try (var database = Database.initialize("reconciliation_concurrent", true)) {
+            var accountService = new AccountService(database.getDataSource());
+            var reconciliation = new Reconciliation(
+                    List.of(database.getDataSource()), accountService.getCommitLog(), 4);
+            List<AccountId> accounts = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                var account = accountService.createAccount("foo");
+                accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("100.00"));
+                accounts.add(account);
+            }
+            var stop = new AtomicBoolean();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                var thread = new Thread(() -> {
+                    var random = ThreadLocalRandom.current();
+                    while (!stop.get()) {
+                        var from = accounts.get(random.nextInt(accounts.size()));
+                        var to = accounts.get(random.nextInt(accounts.size()));
+                        try {
+                            accountService.moveMoney(from, to, TransactionId.create(), new BigDecimal("1.00"));
+                        } catch (IllegalArgumentException e) {
+                            // same account or not enough money
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            try {
+                for (int i = 0; i < 20; i++) {
+                    var report = i % 2 == 0 ? reconciliation.run() : reconciliation.runIncremental();
+                    assertEquals(Set.of(), mismatched(report));
+                }
+            } finally {
+                stop.set(true);
+                for (var thread : threads) {
+                    thread.join();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checksAllShards() {
+        List<Database> databases = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            databases.add(Database.initialize("reconciliation_sharded_" + i, i == 0));
+        }
+        var ledger = new ShardedLedger(databases);
+        try {
+            var reconciliation = new Reconciliation(
+                    databases.stream().map(Database::getDataSource).collect(Collectors.toList()),
+                    ledger.getCommitLog(), 4);
+            List<AccountId> accounts = new ArrayList<>();
+            for (int i = 0; i < 9; i++) {
+                var account = ledger.createAccount("foo");
+                ledger.moveMoney(null, account, TransactionId.create(), new BigDecimal("10.00"));
+                accounts.add(account);
+            }
+            for (int i = 0; i < accounts.size(); i++) {
+                ledger.moveMoney(accounts.get(i), accounts.get((i + 1) % accounts.size()),
+                        TransactionId.create(), new BigDecimal("3.00"));
+            }
+            var report = reconciliation.run();
+            assertEquals(accounts.size() + DEMO_ACCOUNTS, report.getAccountsChecked());
+            assertEquals(Set.of(), mismatched(report));
+        } finally {
+            ledger.close();
+            databases.forEach(Database::close);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShardedLedgerTest {
+    private static final int SHARDS = 3;
+
+    private static List<Database> databases = new ArrayList<>();
+    private static ShardedLedger ledger;
+
+    @BeforeClass
+    public static void setUp() {
+        for (int i = 0; i < SHARDS; i++) {
+            databases.add(Database.initialize("sharded_" + i, i == 0));
+        }
+        ledger = new ShardedLedger(databases);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        ledger.close();
+        databases.forEach(Database::close);
+    }
+
+    private static int shardOf(AccountId account) {
+        return (int) (account.getValue() >>> ShardedLedger.SHARD_ID_BITS);
+    }
+
+    /**
+     * Creates accounts until one lands in a different shard than {@code other}.
+     */
+    private static AccountId createAccountInOtherShard(AccountId other) {
+        AccountId account;
+        do {
+            account = ledger.createAccount("bar");
+        } while (shardOf(account) == shardOf(other));
+        return account;
+    }
+
+    @Test
+    public void accountsAreSpreadOverShards() {
+        boolean[] used = new boolean[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            used[shardOf(ledger.createAccount("foo"))] = true;
+        }
+        for (boolean shard : used) {
+            assertTrue(shard);
+        }
+    }
+
+    @Test
+    public void getAccountsFromAllShards() {
+        var first = ledger.createAccount("foo");
+        var second = createAccountInOtherShard(first);
+        var outside = new AccountId((long) SHARDS << ShardedLedger.SHARD_ID_BITS);
+        var accounts = ledger.getAccounts(List.of(first, second, outside), true);
+        assertEquals(2, accounts.size());
+        assertEquals("foo", accounts.get(first).getDescription());
+        assertEquals("bar", accounts.get(second).getDescription());
+    }
+
+    @Test
+    public void demoAccountsAreInFirstShard() {
+        assertEquals("John", ledger.getAccount(new AccountId(1)).getDescription());
+        var secondShard = new AccountService(databases.get(1).getDataSource());
+        try {
+            secondShard.getAccount(new AccountId(1));
+            fail("Expected an exception");
+        } catch (AccountNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void moveMoneyBetweenShards() {
+        var accountFrom = ledger.createAccount("foo");
+        var accountTo = createAccountInOtherShard(accountFrom);
+        ledger.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("100.00"));
+
+        var transactionId = TransactionId.create();
+        var transaction = ledger.moveMoney(accountFrom, accountTo, transactionId, new BigDecimal("20.00"));
+        assertEquals(transactionId, transaction.getId());
+        assertEquals(accountFrom, transaction.getFromAccount());
+        assertEquals(accountTo, transaction.getToAccount());
+        assertEquals(new BigDecimal("80.00"), ledger.getBalance(accountFrom));
+        assertEquals(new BigDecimal("20.00"), ledger.getBalance(accountTo));
+
+        // both legs show the other account
+        assertEquals(transaction, ledger.getTransactions(accountFrom, null, null, null, null).get(0));
+        assertEquals(transaction, ledger.getTransactions(accountTo, null, null, null, null).get(0));
+    }
+
+    @Test
+    public void moveMoneyBetweenShardsDuplicate() {
+        var accountFrom = ledger.createAccount("foo");
+        var accountTo = createAccountInOtherShard(accountFrom);
+        ledger.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("100.00"));
+
+        var transactionId = TransactionId.create();
+        var transaction = ledger.moveMoney(accountFrom, accountTo, transactionId, new BigDecimal("20.00"));
+        var transactionCopy = ledger.moveMoney(accountFrom, accountTo, transactionId, new BigDecimal("20.00"));
+        assertEquals(transaction, transactionCopy);
+        assertEquals(new BigDecimal("80.00"), ledger.getBalance(accountFrom));
+        assertEquals(new BigDecimal("20.00"), ledger.getBalance(accountTo));
+
+        try {
+            ledger.moveMoney(accountFrom, accountTo, transactionId, new BigDecimal("19.00"));
+            fail("Expected an exception");
+        } catch (DuplicateTransactionIdException e) {
+            assertEquals(transactionId, e.getTransactionId());
+        }
+    }
+
+    @Test
+    public void moveMoneyBetweenShardsNotEnoughMoney() {
+        var accountFrom = ledger.createAccount("foo");
+        var accountTo = createAccountInOtherShard(accountFrom);
+        try {
+            ledger.moveMoney(accountFrom, accountTo, TransactionId.create(), new BigDecimal("20.00"));
+            fail("Expected an exception");
+        } catch (NotEnoughMoneyException e) {
+            assertEquals(accountFrom, e.getAccount());
+        }
+        assertEquals(BigDecimal.ZERO, ledger.getBalance(accountTo));
+    }
+
+    @Test
+    public void moveMoneyBetweenShardsInvalidTo() {
+        var accountFrom = ledger.createAccount("foo");
+        ledger.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("100.00"));
+        int otherShard = (shardOf(accountFrom) + 1) % SHARDS;
+        var accountTo = new AccountId(((long) otherShard << ShardedLedger.SHARD_ID_BITS) + 999_999);
+        try {
+            ledger.moveMoney(accountFrom, accountTo, TransactionId.create(), new BigDecimal("20.00"));
+            fail("Expected an exception");
+        } catch (AccountNotFoundException e) {
+            assertEquals(accountTo, e.getAccountId());
+        }
+        assertEquals(new BigDecimal("100.00"), ledger.getBalance(accountFrom));
+    }
+
+    @Test
+    public void interruptedTransferIsCompleted() {
+        var accountFrom = ledger.createAccount("foo");
+        var accountTo = createAccountInOtherShard(accountFrom);
+        ledger.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("100.00"));
+
+        // only the first leg, as if the process died right after it
+        var fromShard = new AccountService(databases.get(shardOf(accountFrom)).getDataSource());
+        fromShard.debitLeg(accountFrom, accountTo, TransactionId.create(), new BigDecimal("30.00"));
+        assertEquals(new BigDecimal("70.00"), ledger.getBalance(accountFrom));
+
+        // the background recovery may get there first, but it is idempotent
+        ledger.completePendingTransfers();
+        assertEquals(new BigDecimal("30.00"), ledger.getBalance(accountTo));
+        assertTrue(fromShard.getPendingTransfers().isEmpty());
+    }
+
+    @Test
+    public void transactionIdIsUniqueAcrossShards() {
+        var first = ledger.createAccount("foo");
+        var second = createAccountInOtherShard(first);
+        var transactionId = TransactionId.create();
+        ledger.moveMoney(null, first, transactionId, new BigDecimal("100.00"));
+
+        // a repeated request is recognized though its account is in another shard
+        assertEquals(ledger.getTransaction(transactionId),
+                ledger.moveMoney(null, first, transactionId, new BigDecimal("100.00")));
+        try {
+            ledger.moveMoney(null, second, transactionId, new BigDecimal("100.00"));
+            fail("Expected an exception");
+        } catch (DuplicateTransactionIdException e) {
+            assertEquals(transactionId, e.getTransactionId());
+        }
+        try {
+            ledger.moveMoney(first, second, transactionId, new BigDecimal("10.00"));
+            fail("Expected an exception");
+        } catch (DuplicateTransactionIdException e) {
+            assertEquals(transactionId, e.getTransactionId());
+        }
+        assertEquals(new BigDecimal("100.00"), ledger.getBalance(first));
+        assertEquals(BigDecimal.ZERO, ledger.getBalance(second));
+    }
+
+    @Test
+    public void refusedCreditIsRefunded() {
+        var accountFrom = ledger.createAccount("foo");
+        var accountTo = createAccountInOtherShard(accountFrom);
+        ledger.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("100.00"));
+
+        // the id is taken in the receiver's shard without a claim, like by data stored before ids were claimed
+        var transactionId = TransactionId.create();
+        var toShard = new AccountService(databases.get(shardOf(accountTo)).getDataSource());
+        toShard.moveMoney(null, accountTo, transactionId, new BigDecimal("5.00"));
+
+        try {
+            ledger.moveMoney(accountFrom, accountTo, transactionId, new BigDecimal("20.00"));
+            fail("Expected an exception");
+        } catch (DuplicateTransactionIdException e) {
+            assertEquals(transactionId, e.getTransactionId());
+        }
+        assertEquals(new BigDecimal("100.00"), ledger.getBalance(accountFrom));
+        assertEquals(new BigDecimal("5.00"), ledger.getBalance(accountTo));
+        var fromShard = new AccountService(databases.get(shardOf(accountFrom)).getDataSource());
+        assertTrue(fromShard.getPendingTransfers().isEmpty());
+
+        var history = ledger.getTransactions(accountFrom, null, null, null, null);
+        assertEquals(3, history.size());
+        var refund = history.get(0);
+        assertEquals(ShardedLedger.refundId(transactionId), refund.getId());
+        assertEquals(accountTo, refund.getFromAccount());
+        assertEquals(accountFrom, refund.getToAccount());
+        assertEquals(new BigDecimal("20.00"), refund.getMoney());
+
+        // retrying the refused transfer fails the same way and changes nothing
+        try {
+            ledger.moveMoney(accountFrom, accountTo, transactionId, new BigDecimal("20.00"));
+            fail("Expected an exception");
+        } catch (DuplicateTransactionIdException e) {
+            assertEquals(transactionId, e.getTransactionId());
+        }
+        assertEquals(new BigDecimal("100.00"), ledger.getBalance(accountFrom));
+        assertEquals(3, ledger.getTransactions(accountFrom, null, null, null, null).size());
+    }
+
+    @Test
+    public void transferBetweenShardsIsFinalOnceCredited() {
+        var accountFrom = ledger.createAccount("foo");
+        var accountTo = createAccountInOtherShard(accountFrom);
+        ledger.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("100.00"));
+        var transfer = ledger.moveMoney(accountFrom, accountTo, TransactionId.create(), new BigDecimal("20.00"));
+        assertTrue(ledger.isFinal(transfer));
+
+        // a debit leg whose credit has not been committed yet
+        var pending = transfer.toBuilder().id(TransactionId.create()).build();
+        assertFalse(ledger.isFinal(pending));
+    }
+}
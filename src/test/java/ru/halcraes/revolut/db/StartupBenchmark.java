@@ -0,0 +1,82 @@
+package ru.halcraes.revolut.db;
+
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a file database takes to be ready for transfers, with and without Liquibase.
+ * <p>
+ * Run with the number of rounds, for example {@code 5}. Every round creates a new database, which runs
+ * Liquibase, reopens it, which takes the checksum fast path, and reopens it once more with the stored checksum
+ * invalidated, which runs Liquibase over the existing schema. Only the first round includes class loading.
+ * <p>
+ * To time a start of a new JVM run it with {@code open <directory>} for a database left by
+ * {@code create <directory>}, add {@code outdated} to invalidate the stored checksum first.
+ */
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1) {
+            var properties = new Properties();
+            properties.setProperty("accountdb.db.storage", "file");
+            properties.setProperty("accountdb.db.directory", args[1]);
+            var config = DatabaseConfig.fromProperties(properties);
+            if (args.length > 2 && args[2].equals("outdated")) {
+                invalidateChecksum(config);
+            }
+            long start = System.nanoTime();
+            try (var database = Database.initialize(config, "startup", true)) {
+                new AccountService(database.getDataSource());
+                System.out.printf("%s in %,d ms, Liquibase %s%n", args[0],
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                        database.isSchemaUpdated() ? "ran" : "skipped");
+            }
+            return;
+        }
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        System.out.println("round     create    reopen  liquibase");
+        for (int round = 1; round <= rounds; round++) {
+            var properties = new Properties();
+            properties.setProperty("accountdb.db.storage", "file");
+            properties.setProperty("accountdb.db.directory", Files.createTempDirectory("startup-benchmark").toString());
+            var config = DatabaseConfig.fromProperties(properties);
+
+            long create = open(config, true);
+            long reopen = open(config, false);
+            invalidateChecksum(config);
+            long liquibase = open(config, true);
+            System.out.printf("%5d %,7d ms %,6d ms %,7d ms%n", round,
+                    TimeUnit.NANOSECONDS.toMillis(create),
+                    TimeUnit.NANOSECONDS.toMillis(reopen),
+                    TimeUnit.NANOSECONDS.toMillis(liquibase));
+        }
+    }
+
+    /**
+     * As if the change log was changed since the last start.
+     */
+    private static void invalidateChecksum(DatabaseConfig config) throws SQLException {
+        try (var database = Database.initialize(config, "startup", true);
+             var conn = database.getDataSource().getConnection();
+             var statement = conn.createStatement()
+        ) {
+            statement.execute("update schema_checksum set checksum = 'outdated'");
+        }
+    }
+
+    /**
+     * @return nanoseconds until the ledger has recovered its commit log and can take transfers
+     */
+    private static long open(DatabaseConfig config, boolean expectUpdate) {
+        long start = System.nanoTime();
+        try (var database = Database.initialize(config, "startup", true)) {
+            new AccountService(database.getDataSource());
+            long elapsed = System.nanoTime() - start;
+            if (database.isSchemaUpdated() != expectUpdate) {
+                throw new IllegalStateException("Schema updated: " + database.isSchemaUpdated());
+            }
+            return elapsed;
+        }
+    }
+}
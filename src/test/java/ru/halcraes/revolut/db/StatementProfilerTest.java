@@ -0,0 +1,61 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.*;
+
+public class StatementProfilerTest {
+    @Test
+    public void normalize() {
+        assertEquals("select * from account where id = ? and description = ?",
+                StatementProfiler.normalize("select *\n  from account where id = 42 and description = 'it''s'"));
+        assertEquals("select id from accounts_1 where id in (?)",
+                StatementProfiler.normalize("select id from accounts_1 where id in (?, ?,?)"));
+    }
+
+    @Test
+    public void histogram() {
+        var histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        var snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getSum());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500, snapshot.getP50(), 500 / 8);
+        assertEquals(990, snapshot.getP99(), 990 / 8);
+        assertEquals(1000, snapshot.getBuckets().values().stream().mapToLong(Long::longValue).sum());
+        for (long value : new long[]{0, 15, 16, 17, 1000, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(value <= Histogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > Histogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void profilesStatements() {
+        // every statement is slow, so logging with the plan is exercised as well
+        var profiler = new StatementProfiler(0);
+        try (var database = Database.initialize(DatabaseConfig.inMemory(), "profiler", false, profiler)) {
+            var accountService = new AccountService(database.getDataSource());
+            var from = accountService.createAccount("from");
+            var to = accountService.createAccount("to");
+            accountService.moveMoney(null, from, TransactionId.create(), new BigDecimal("10.00"));
+            accountService.moveMoney(from, to, TransactionId.create(), new BigDecimal("3.00"));
+            assertEquals(2, accountService.getTransactions(from, null, null, null, null).size());
+
+            var profile = profiler.getProfile();
+            assertTrue(profile.getConnectionHoldMicros().getCount() > 0);
+            assertFalse(profile.getStatements().isEmpty());
+            for (var statement : profile.getStatements()) {
+                assertFalse(statement.getSql(), statement.getSql().matches(".*(\\d+\\.\\d+|'[^']*').*"));
+                assertTrue(statement.getMicros().getCount() > 0);
+            }
+            assertTrue(profile.getStatements().stream()
+                    .anyMatch(statement -> statement.getSql().startsWith("select") && statement.getRows().getMax() == 2));
+        }
+    }
+}
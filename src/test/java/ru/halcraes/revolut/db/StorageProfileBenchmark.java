@@ -0,0 +1,105 @@
+package ru.halcraes.revolut.db;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Compares the in-memory database with file-backed storage profiles.
+ * <p>
+ * Run with the number of threads, the number of transfers and paths to profile files, for example
+ * {@code 16 20000 src/main/dist/conf/throughput.properties src/main/dist/conf/durable.properties}.
+ * For each profile it reports transfer throughput, latency of history reads afterwards and the size of the file.
+ * Every profile gets the same number of transfers and the same accounts are read, so that history reads
+ * go over the same number of rows.
+ */
+public class StorageProfileBenchmark {
+    private static final int ACCOUNTS = 1000;
+    private static final int HISTORY_READS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int transfers = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        run("memory", DatabaseConfig.inMemory(), null, threads, transfers);
+        for (String profile : Arrays.asList(args).subList(Math.min(args.length, 2), args.length)) {
+            Path directory = Files.createTempDirectory("storage-benchmark");
+            var properties = new Properties();
+            try (var reader = Files.newBufferedReader(Paths.get(profile))) {
+                properties.load(reader);
+            }
+            properties.setProperty("accountdb.db.directory", directory.toString());
+            String name = Paths.get(profile).getFileName().toString().replace(".properties", "");
+            run(name, DatabaseConfig.fromProperties(properties), directory, threads, transfers);
+        }
+    }
+
+    private static void run(String name, DatabaseConfig config, Path directory, int threads, int transfers)
+            throws Exception {
+        Database database = Database.initialize(config, "storage_" + name, false);
+        var accountService = new AccountService(database.getDataSource());
+        List<AccountId> accounts = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            var account = accountService.createAccount("benchmark " + i);
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1000000.00"));
+            accounts.add(account);
+        }
+
+        var remaining = new AtomicInteger(transfers);
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                var random = ThreadLocalRandom.current();
+                while (remaining.getAndDecrement() > 0) {
+                    int from = random.nextInt(ACCOUNTS);
+                    int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                    accountService.moveMoney(accounts.get(from), accounts.get(to), TransactionId.create(), BigDecimal.ONE);
+                }
+            }));
+        }
+        for (var future : futures) {
+            future.get();
+        }
+        long transferNanos = System.nanoTime() - start;
+        executor.shutdown();
+
+        long[] latencies = new long[HISTORY_READS];
+        var random = new Random(1);
+        for (int i = 0; i < HISTORY_READS; i++) {
+            long readStart = System.nanoTime();
+            accountService.getTransactions(accounts.get(random.nextInt(ACCOUNTS)), 100, 0, null, null);
+            latencies[i] = System.nanoTime() - readStart;
+        }
+        Arrays.sort(latencies);
+        database.close();
+
+        System.out.printf("%-10s %,8.0f transfers/s, history p50 %,6d us, p99 %,6d us, files %,d KiB%n",
+                name, transfers / (transferNanos / 1e9),
+                latencies[HISTORY_READS / 2] / 1000, latencies[HISTORY_READS * 99 / 100] / 1000,
+                directory == null ? 0 : size(directory) / 1024);
+    }
+
+    private static long size(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            long size = 0;
+            for (var file : (Iterable<Path>) files::iterator) {
+                size += Files.size(file);
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    @Test
+    public void expiresItemsAtTheirTicks() {
+        var random = new Random(42);
+        long start = 1_000_000_007L;
+        var wheel = new TimingWheel<Long>(start);
+        List<Long> ticks = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            // near, far and already due
+            long tick = start + (random.nextBoolean() ? random.nextInt(300) : random.nextInt(5_000_000)) - 10;
+            wheel.add(tick, tick);
+            ticks.add(tick);
+        }
+        assertEquals(ticks.size(), wheel.size());
+
+        ticks.sort(null);
+        long now = start;
+        int next = 0;
+        while (wheel.size() > 0) {
+            long until = now + 1 + random.nextInt(random.nextBoolean() ? 3 : 50_000);
+            List<Long> expired = new ArrayList<>();
+            wheel.advance(until, expired::add);
+            // in the order of ticks, except for those that were due when added
+            for (int i = 1; i < expired.size(); i++) {
+                assertTrue(expired.get(i - 1) <= expired.get(i) || expired.get(i - 1) <= start);
+            }
+            expired.sort(null);
+            int end = next;
+            while (end < ticks.size() && ticks.get(end) <= until) {
+                end++;
+            }
+            assertEquals(ticks.subList(next, end), expired);
+            next = end;
+            now = until;
+        }
+        assertEquals(ticks.size(), next);
+    }
+
+    @Test
+    public void addsWhileAdvancing() {
+        var wheel = new TimingWheel<String>(0);
+        wheel.add(5, "a");
+        List<String> expired = new ArrayList<>();
+        wheel.advance(4, expired::add);
+        assertEquals(List.of(), expired);
+        wheel.add(4, "due");
+        wheel.add(64 * 64 + 3, "far");
+        wheel.advance(5, expired::add);
+        assertEquals(List.of("due", "a"), expired);
+        wheel.advance(64 * 64 + 2, expired::add);
+        assertEquals(2, expired.size());
+        wheel.advance(64 * 64 + 3, expired::add);
+        assertEquals(List.of("due", "a", "far"), expired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,97 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransactionFeedTest {
+    private static final int CAPACITY = 4;
+
+    private Database database;
+    private AccountService accountService;
+    private TransactionFeed feed;
+
+    @Before
+    public void setUp() {
+        database = Database.initialize("feed", false);
+        accountService = new AccountService(database.getDataSource());
+        feed = new TransactionFeed(accountService.getCommitLog(), List.of(database.getDataSource()), CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        feed.close();
+        database.close();
+    }
+
+    private List<Transaction> deposit(AccountId account, int count) {
+        List<Transaction> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add(accountService.moveMoney(null, account, TransactionId.create(), BigDecimal.ONE));
+        }
+        return result;
+    }
+
+    private static List<Transaction> transactions(FeedPage page) {
+        List<Transaction> result = new ArrayList<>();
+        page.getEvents().forEach(e -> result.add(e.getTransaction()));
+        return result;
+    }
+
+    @Test
+    public void readsFromBuffer() {
+        var account = accountService.createAccount("foo");
+        var expected = deposit(account, CAPACITY);
+        var page = feed.read(0, null, 100);
+        assertEquals(expected, transactions(page));
+        assertEquals(expected.get(CAPACITY - 1).getSequence(), page.getLastSequence());
+    }
+
+    @Test
+    public void readsFromStorageWhenBehind() {
+        var account = accountService.createAccount("foo");
+        var expected = deposit(account, CAPACITY * 3);
+        assertEquals(expected, transactions(feed.read(0, null, 100)));
+
+        var page = feed.read(0, null, 5);
+        assertEquals(expected.subList(0, 5), transactions(page));
+        assertEquals(expected.subList(5, 10), transactions(feed.read(page.getLastSequence(), null, 5)));
+    }
+
+    @Test
+    public void filtersByAccount() {
+        var foo = accountService.createAccount("foo");
+        var bar = accountService.createAccount("bar");
+        deposit(foo, 1);
+        var expected = deposit(bar, 1);
+        deposit(foo, 1);
+
+        var page = feed.read(0, bar, 100);
+        assertEquals(expected, transactions(page));
+        assertEquals(feed.getLastSequence(), page.getLastSequence());
+    }
+
+    @Test
+    public void awaitsNextTransfer() throws Exception {
+        var account = accountService.createAccount("foo");
+        assertFalse(feed.await(feed.getLastSequence(), 10));
+        long after = feed.getLastSequence();
+        var waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return feed.await(after, 5000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        deposit(account, 1);
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+    }
+}
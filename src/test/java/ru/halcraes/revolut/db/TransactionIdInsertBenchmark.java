@@ -0,0 +1,60 @@
+package ru.halcraes.revolut.db;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Compares random and time-ordered transaction ids as primary keys of a large table.
+ * <p>
+ * Run with the number of rows as the only argument. For each kind of id it reports insert throughput
+ * and the space taken by the table in a file-backed H2 database, where page splits become visible.
+ */
+public class TransactionIdInsertBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        run("random", rows, UUID::randomUUID);
+        run("time-ordered", rows, UuidUtil::createTimeOrdered);
+    }
+
+    private static void run(String name, int rows, Supplier<UUID> ids) throws SQLException, IOException {
+        Path dir = Files.createTempDirectory("txid-benchmark");
+        var dataSource = new JdbcDataSource();
+        dataSource.setUrl("jdbc:h2:file:" + dir.resolve("db") + ";CACHE_SIZE=65536");
+        try (Connection conn = dataSource.getConnection()) {
+            conn.createStatement().execute("create table transaction (id binary(16) not null primary key," +
+                    " from_acc bigint, to_acc bigint, money decimal not null, time timestamp)");
+            conn.setAutoCommit(false);
+            long start = System.nanoTime();
+            try (var statement = conn.prepareStatement("insert into transaction values (?, 1, 2, 10.00, current_timestamp())")) {
+                for (int i = 1; i <= rows; i++) {
+                    statement.setBytes(1, UuidUtil.serialize(ids.get()));
+                    statement.addBatch();
+                    if (i % 1000 == 0) {
+                        statement.executeBatch();
+                        conn.commit();
+                    }
+                }
+                statement.executeBatch();
+                conn.commit();
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            conn.createStatement().execute("checkpoint sync");
+            long size;
+            try (var rs = conn.createStatement().executeQuery("call disk_space_used('TRANSACTION')")) {
+                rs.next();
+                size = rs.getLong(1);
+            }
+            System.out.printf("%-12s %,d rows: %,d ms, %,.0f rows/s, table size %,d KiB, file size %,d KiB%n",
+                    name, rows, elapsedMillis, rows * 1000.0 / Math.max(elapsedMillis, 1), size / 1024,
+                    Files.size(dir.resolve("db.mv.db")) / 1024);
+            conn.createStatement().execute("shutdown");
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.Assert.*;
+
+public class TransferSchedulerTest {
+    private static final Instant START = Instant.parse("2030-01-01T00:00:00Z");
+
+    private Database database;
+    private AccountService accountService;
+    private TestClock clock;
+    private TransferScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        database = Database.initialize();
+        accountService = new AccountService(database.getDataSource());
+        clock = new TestClock(START);
+        scheduler = newScheduler();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+        database.close();
+    }
+
+    private TransferScheduler newScheduler() {
+        return new TransferScheduler(accountService, database.getDataSource(), clock, Duration.ofMinutes(10), 2);
+    }
+
+    private AccountId account(String money) {
+        var account = accountService.createAccount("test");
+        if (new BigDecimal(money).signum() > 0) {
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal(money));
+        }
+        return account;
+    }
+
+    private void assertBalance(String expected, AccountId account) {
+        var balance = accountService.getBalance(account);
+        assertEquals(expected + " != " + balance, 0, new BigDecimal(expected).compareTo(balance));
+    }
+
+    private void advance(Duration duration) {
+        clock.advance(duration);
+        scheduler.tick();
+    }
+
+    @Test
+    public void firesOnce() {
+        var from = account("10.00");
+        var to = account("0");
+        var transfer = scheduler.schedule(from, to, new BigDecimal("3.00"), START.plusSeconds(30), null, null);
+        scheduler.tick();
+        assertEquals(1, scheduler.getPendingCount());
+
+        advance(Duration.ofSeconds(29));
+        assertBalance("0.00", to);
+        advance(Duration.ofSeconds(1));
+        assertBalance("3.00", to);
+        var transactions = accountService.getTransactions(to, null, null, null, null);
+        assertEquals(scheduler.transactionId(transfer), transactions.get(0).getId());
+        assertEquals(0, scheduler.getPendingCount());
+        try {
+            scheduler.get(transfer.getId());
+            fail("A fired transfer is still scheduled");
+        } catch (ScheduledTransferNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void firesRepeatedlyAndSkipsFailures() {
+        var from = account("5.00");
+        var to = account("0");
+        var transfer = scheduler.schedule(from, to, new BigDecimal("2.00"), START, Duration.ofHours(1), 4L);
+        scheduler.tick();
+        for (int i = 0; i < 4; i++) {
+            advance(Duration.ofHours(1));
+        }
+        // the last two firings did not have enough money
+        assertBalance("4.00", to);
+        assertEquals(2, accountService.getTransactions(to, null, null, null, null).size());
+        try {
+            scheduler.get(transfer.getId());
+            fail("A finished transfer is still scheduled");
+        } catch (ScheduledTransferNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void loadsTransfersBeyondHorizonLater() {
+        var to = account("0");
+        var transfer = scheduler.schedule(null, to, new BigDecimal("1.00"), START.plus(Duration.ofDays(2)),
+                Duration.ofDays(1), null);
+        scheduler.tick();
+        assertEquals(0, scheduler.getPendingCount());
+
+        for (int i = 0; i < 2 * 24 * 12; i++) {
+            advance(Duration.ofMinutes(5));
+        }
+        assertBalance("1.00", to);
+        var next = scheduler.get(transfer.getId());
+        assertEquals(START.plus(Duration.ofDays(3)), next.getNextTime());
+        assertEquals(1, next.getOccurrence());
+
+        scheduler.cancel(transfer.getId());
+        advance(Duration.ofDays(1));
+        assertBalance("1.00", to);
+    }
+
+    @Test
+    public void doesNotRepeatFiringThatWasNotRecorded() throws Exception {
+        var to = account("0");
+        var transfer = scheduler.schedule(null, to, new BigDecimal("1.00"), START.plusSeconds(1), null, null);
+        scheduler.tick();
+        advance(Duration.ofSeconds(1));
+        assertBalance("1.00", to);
+
+        // as if the process died between the transfer and recording it
+        try (var conn = database.getDataSource().getConnection();
+             var statement = conn.prepareStatement("insert into scheduled_transfer" +
+                     " (id, to_acc, money, next_time, occurrence) values (?, ?, 1.00, ?, 0)")
+        ) {
+            statement.setLong(1, transfer.getId());
+            statement.setLong(2, to.getValue());
+            statement.setTimestamp(3, Timestamp.from(START.plusSeconds(1)));
+            statement.execute();
+        }
+        scheduler.close();
+        scheduler = newScheduler();
+        scheduler.tick();
+        advance(Duration.ofSeconds(1));
+        assertBalance("1.00", to);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test(expected = AccountNotFoundException.class)
+    public void rejectsUnknownAccount() {
+        scheduler.schedule(null, new AccountId(666), BigDecimal.ONE, START, null, null);
+    }
+}
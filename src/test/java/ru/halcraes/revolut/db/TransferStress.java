@@ -0,0 +1,172 @@
+package ru.halcraes.revolut.db;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Random transfers between a few accounts from many threads, and checks of what must hold afterwards:
+ * the money is all there, no balance is negative, every balance matches its transactions and nothing hung.
+ * <p>
+ * Run with the largest number of threads, accounts and seconds per run as arguments. Runs go with 1, 2, 4...
+ * threads against the same {@link AccountService} and print throughput against the number of threads,
+ * which shows where adding threads stops helping. {@link TransferStressTest} runs it briefly with the tests.
+ */
+public class TransferStress {
+    static final BigDecimal INITIAL_BALANCE = new BigDecimal("100.00");
+    /**
+     * A run that takes this much longer than planned is taken for a deadlock.
+     */
+    private static final long HANG_MILLIS = 30_000;
+
+    private final Database database;
+    private final AccountService accountService;
+    private final List<AccountId> accounts = new ArrayList<>();
+
+    TransferStress(String databaseName, int accountCount) {
+        this.database = Database.initialize(databaseName, false);
+        this.accountService = new AccountService(database.getDataSource(),
+                CommitLog.recover(List.of(database.getDataSource())), new RetryPolicy());
+        for (int i = 0; i < accountCount; i++) {
+            var account = accountService.createAccount("stress " + i);
+            accountService.moveMoney(null, account, TransactionId.create(), INITIAL_BALANCE);
+            accounts.add(account);
+        }
+    }
+
+    /**
+     * Makes transfers for {@code millis} from {@code threads} threads and checks the invariants.
+     *
+     * @throws AssertionError if an invariant does not hold
+     */
+    Result run(int threads, long millis) throws Exception {
+        var transfers = new AtomicLong();
+        var rejected = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(millis);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    var random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        var from = accounts.get(random.nextInt(accounts.size()));
+                        var to = accounts.get(random.nextInt(accounts.size()));
+                        // up to half of the initial balance, so that overdrafts are attempted all the time
+                        var amount = BigDecimal.valueOf(random.nextInt(1, 5000), 2);
+                        try {
+                            accountService.moveMoney(from, to, TransactionId.create(), amount);
+                            transfers.incrementAndGet();
+                        } catch (IllegalArgumentException e) {
+                            // same account or not enough money
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (var future : futures) {
+                try {
+                    future.get(millis + HANG_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    throw new AssertionError("Transfers hung, deadlocked threads: " + deadlockedThreads(), e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long nanos = System.nanoTime() - start;
+        checkInvariants();
+        return new Result(threads, transfers.get(), rejected.get(), nanos);
+    }
+
+    private void checkInvariants() {
+        var total = BigDecimal.ZERO;
+        for (var account : accounts) {
+            var balance = accountService.getBalance(account);
+            if (balance.signum() < 0) {
+                throw new AssertionError("Negative balance of " + account + ": " + balance);
+            }
+            total = total.add(balance);
+        }
+        var expected = INITIAL_BALANCE.multiply(BigDecimal.valueOf(accounts.size()));
+        if (total.compareTo(expected) != 0) {
+            throw new AssertionError("Money is not conserved: " + total + " instead of " + expected);
+        }
+        var mismatches = new Reconciliation(List.of(database.getDataSource()), accountService.getCommitLog(), 1)
+                .run()
+                .getMismatches();
+        if (!mismatches.isEmpty()) {
+            throw new AssertionError("Balances do not match transactions: " + mismatches);
+        }
+    }
+
+    private static String deadlockedThreads() {
+        var threads = ManagementFactory.getThreadMXBean();
+        long[] ids = threads.findDeadlockedThreads();
+        if (ids == null) {
+            return "none";
+        }
+        return Arrays.stream(threads.getThreadInfo(ids, true, true))
+                .map(Object::toString)
+                .collect(Collectors.joining());
+    }
+
+    void close() {
+        database.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        var stress = new TransferStress("transfer_stress", accounts);
+        try {
+            // warm up, not reported
+            stress.run(1, TimeUnit.SECONDS.toMillis(seconds));
+            System.out.printf("%d accounts, %d s per run, %d processors%n",
+                    accounts, seconds, Runtime.getRuntime().availableProcessors());
+            System.out.println("threads  transfers/s  rejected/s  speedup");
+            double single = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                var result = stress.run(threads, TimeUnit.SECONDS.toMillis(seconds));
+                if (threads == 1) {
+                    single = result.throughput();
+                }
+                System.out.printf("%7d  %11.0f  %10.0f  %7.2f%n", threads, result.throughput(),
+                        result.rejected / (result.nanos / 1e9), result.throughput() / single);
+            }
+        } finally {
+            stress.close();
+        }
+    }
+
+    static class Result {
+        final int threads;
+        final long transfers;
+        final long rejected;
+        final long nanos;
+
+        Result(int threads, long transfers, long rejected, long nanos) {
+            this.threads = threads;
+            this.transfers = transfers;
+            this.rejected = rejected;
+            this.nanos = nanos;
+        }
+
+        double throughput() {
+            return transfers / (nanos / 1e9);
+        }
+    }
+}
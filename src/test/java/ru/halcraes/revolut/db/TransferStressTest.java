@@ -0,0 +1,21 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransferStressTest {
+    @Test
+    public void keepsInvariantsUnderContention() throws Exception {
+        // few accounts, so that threads wait for each other and run out of money all the time
+        var stress = new TransferStress("transfer_stress_test", 10);
+        try {
+            for (int threads = 1; threads <= 16; threads *= 2) {
+                var result = stress.run(threads, 300);
+                assertTrue("No transfers with " + threads + " threads", result.transfers > 0);
+            }
+        } finally {
+            stress.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.halcraes.revolut.db;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class UuidUtilTest {
+    @Test
+    public void serializeRoundTrip() {
+        var uuid = UUID.fromString("6459a8df-6a4f-4f9c-bf84-05ea56c7aa5d");
+        byte[] bytes = UuidUtil.serialize(uuid);
+        assertEquals(0x64, bytes[0]);
+        assertEquals(0x5d, bytes[15]);
+        assertEquals(uuid, UuidUtil.deserialize(bytes));
+    }
+
+    @Test
+    public void timeOrderedIsVersion7() {
+        long before = System.currentTimeMillis();
+        var uuid = UuidUtil.createTimeOrdered();
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        long timestamp = uuid.getMostSignificantBits() >>> 16;
+        assertTrue(timestamp >= before);
+        assertTrue(timestamp <= System.currentTimeMillis() + 1);
+    }
+
+    @Test
+    public void timeOrderedIsMonotonic() {
+        var previous = UuidUtil.createTimeOrdered();
+        for (int i = 0; i < 100_000; i++) {
+            var next = UuidUtil.createTimeOrdered();
+            // UUID.compareTo is signed, but the timestamp will not reach the sign bit for a few thousand years
+            assertTrue(previous.compareTo(next) < 0);
+            previous = next;
+        }
+    }
+}
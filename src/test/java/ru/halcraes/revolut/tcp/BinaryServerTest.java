@@ -0,0 +1,120 @@
+package ru.halcraes.revolut.tcp;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ru.halcraes.revolut.db.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class BinaryServerTest {
+    private static Database database;
+    private static AccountService accountService;
+    private static BinaryServer server;
+    private static BinaryClient client;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        database = Database.initialize();
+        accountService = new AccountService(database.getDataSource());
+        server = BinaryServer.start(accountService, 0, 4);
+        client = new BinaryClient("localhost", server.getPort());
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        client.close();
+        server.close();
+        database.close();
+    }
+
+    @Test
+    public void moveMoney() throws Exception {
+        var from = accountService.createAccount("foo");
+        var to = accountService.createAccount("bar");
+        accountService.moveMoney(null, from, TransactionId.create(), new BigDecimal("100.00"));
+
+        var transactionId = client.createTransactionId().get();
+        var transaction = client.moveMoney(from, to, transactionId, new BigDecimal("20.50")).get();
+        assertEquals(transactionId, transaction.getId());
+        assertEquals(from, transaction.getFromAccount());
+        assertEquals(to, transaction.getToAccount());
+        assertEquals(new BigDecimal("20.50"), transaction.getMoney());
+        assertNotNull(transaction.getTimestamp());
+
+        var account = client.getAccount(to).get();
+        assertEquals(to, account.getId());
+        assertEquals("bar", account.getDescription());
+        assertEquals(new BigDecimal("20.50"), account.getBalance());
+    }
+
+    @Test
+    public void pipelining() throws Exception {
+        var account = accountService.createAccount("foo");
+        List<CompletableFuture<Transaction>> futures = new ArrayList<>();
+        // more than the server takes at a time, the rest waits until reading resumes
+        int requests = BinaryServer.MAX_IN_FLIGHT * 20;
+        for (int i = 0; i < requests; i++) {
+            futures.add(client.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00")));
+        }
+        for (var future : futures) {
+            assertEquals(account, future.get().getToAccount());
+        }
+        assertEquals(new BigDecimal(requests).setScale(2), client.getAccount(account).get().getBalance());
+    }
+
+    @Test
+    public void accountNotFound() throws Exception {
+        try {
+            client.getAccount(new AccountId(-666)).get();
+            fail("Expected an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AccountNotFoundException);
+            assertEquals(new AccountId(-666), ((AccountNotFoundException) e.getCause()).getAccountId());
+        }
+    }
+
+    @Test
+    public void notEnoughMoney() throws Exception {
+        var from = accountService.createAccount("foo");
+        var to = accountService.createAccount("bar");
+        try {
+            client.moveMoney(from, to, TransactionId.create(), new BigDecimal("1.00")).get();
+            fail("Expected an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NotEnoughMoneyException);
+            assertEquals(from, ((NotEnoughMoneyException) e.getCause()).getAccount());
+        }
+    }
+
+    @Test
+    public void duplicateTransactionId() throws Exception {
+        var account = accountService.createAccount("foo");
+        var transactionId = TransactionId.create();
+        client.moveMoney(null, account, transactionId, new BigDecimal("1.00")).get();
+        try {
+            client.moveMoney(null, account, transactionId, new BigDecimal("2.00")).get();
+            fail("Expected an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DuplicateTransactionIdException);
+            assertEquals(transactionId, ((DuplicateTransactionIdException) e.getCause()).getTransactionId());
+        }
+    }
+
+    @Test
+    public void badRequest() throws Exception {
+        var account = accountService.createAccount("foo");
+        try {
+            client.moveMoney(null, account, TransactionId.create(), new BigDecimal("-1.00")).get();
+            fail("Expected an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ru.halcraes.revolut.tcp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.halcraes.revolut.db.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReplicationTest {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private Database primaryDatabase;
+    private Database standbyDatabase;
+    private AccountService primary;
+    private ReplicationServer server;
+    private StandbyStore store;
+    private StandbyClient standby;
+
+    @Before
+    public void setUp() {
+        int n = databases.incrementAndGet();
+        primaryDatabase = Database.initialize("replication_primary_" + n, false);
+        standbyDatabase = Database.initialize("replication_standby_" + n, false);
+        primary = new AccountService(primaryDatabase.getDataSource());
+        store = new StandbyStore(standbyDatabase.getDataSource());
+    }
+
+    @After
+    public void tearDown() {
+        if (standby != null) {
+            standby.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        primaryDatabase.close();
+        standbyDatabase.close();
+    }
+
+    private void start(boolean synchronous) {
+        server = ReplicationServer.start(primary.getCommitLog(),
+                new LedgerBackup(List.of(primaryDatabase.getDataSource()), primary.getCommitLog()), 0, synchronous, 10_000);
+        standby = StandbyClient.start(store, "localhost", server.getPort());
+    }
+
+    @Test
+    public void synchronousWritesAreOnStandby() {
+        var before = primary.createAccount("before");
+        primary.moveMoney(null, before, TransactionId.create(), new BigDecimal("100.00"));
+        start(true);
+        var ledger = server.wrap(primary);
+        var copy = new AccountService(store.getDataSource());
+
+        var account = ledger.createAccount("after");
+        assertEquals("after", copy.getAccount(account).getDescription());
+        var transaction = ledger.moveMoney(before, account, TransactionId.create(), new BigDecimal("30.00"));
+        assertEquals(new BigDecimal("70.00"), copy.getBalance(before));
+        assertEquals(new BigDecimal("30.00"), copy.getBalance(account));
+        assertEquals(transaction.getSequence(), store.getAppliedSequence());
+        ledger.updateAccount(account, "renamed");
+        assertEquals("renamed", copy.getAccount(account).getDescription());
+        assertEquals(server.getStatus().getCommittedPosition(), server.getStatus().getAcknowledgedPosition());
+    }
+
+    @Test
+    public void promotedStandbyTakesOver() throws Exception {
+        List<AccountId> accounts = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            var account = primary.createAccount("account " + i);
+            primary.moveMoney(null, account, TransactionId.create(), new BigDecimal("1000.00"));
+            accounts.add(account);
+        }
+        // transfers go on while the standby copies the ledger, some of them get to it twice
+        var writer = new Thread(() -> {
+            for (int i = 0; i < 500; i++) {
+                primary.moveMoney(accounts.get(i % 4), accounts.get((i + 1) % 4), TransactionId.create(), new BigDecimal("1.00"));
+            }
+        });
+        writer.start();
+        start(false);
+        writer.join();
+        var extra = primary.createAccount("extra");
+        long sequence = primary.moveMoney(accounts.get(0), extra, TransactionId.create(), new BigDecimal("5.00")).getSequence();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (store.getAppliedSequence() < sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // the primary is gone
+        server.close();
+        var status = standby.promote();
+        assertTrue(status.isPromoted());
+        assertEquals(sequence, status.getAppliedSequence());
+
+        var promoted = new AccountService(store.getDataSource());
+        assertEquals(sequence, promoted.getCommitLog().getLastSequence());
+        for (var account : accounts) {
+            assertEquals(primary.getBalance(account), promoted.getBalance(account));
+            assertEquals(primary.getTransactions(account, 1000, null, null, null).size(),
+                    promoted.getTransactions(account, 1000, null, null, null).size());
+        }
+        assertEquals(new BigDecimal("5.00"), promoted.getBalance(extra));
+        var created = promoted.createAccount("new");
+        assertTrue(created.getValue() > extra.getValue());
+        var transaction = promoted.moveMoney(extra, created, TransactionId.create(), new BigDecimal("2.00"));
+        assertEquals(sequence + 1, transaction.getSequence());
+    }
+}
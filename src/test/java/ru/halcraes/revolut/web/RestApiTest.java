@@ -11,17 +11,31 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import ru.halcraes.revolut.db.AccountId;
 import ru.halcraes.revolut.db.AccountService;
+import ru.halcraes.revolut.db.AccountVersions;
+import ru.halcraes.revolut.db.AllocationBudgetTest;
+import ru.halcraes.revolut.db.AllocationMeter;
 import ru.halcraes.revolut.db.Database;
+import ru.halcraes.revolut.db.DescriptionIndex;
+import ru.halcraes.revolut.db.TransactionFeed;
 import ru.halcraes.revolut.db.TransactionId;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.util.List;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.*;
 import static spark.Spark.*;
 
 public class RestApiTest {
+    private static final int ALLOCATION_WARMUP = 5_000;
+    private static final int ALLOCATION_MEASURED = 1_000;
+    private static final long SEND_BUDGET = 56_000;
+    private static final long GET_ACCOUNT_BUDGET = 15_000;
+
     private static Database database;
     private static AccountService accountService;
     private static RestApi restApi;
@@ -32,7 +46,11 @@ public class RestApiTest {
     public static void setUp() {
         database = Database.initialize();
         accountService = new AccountService(database.getDataSource());
-        restApi = new RestApi(accountService);
+        restApi = new RestApi(accountService)
+                .withFeed(new TransactionFeed(accountService.getCommitLog(), List.of(database.getDataSource()), 1000))
+                .withVersions(new AccountVersions(accountService.getCommitLog(), 1024))
+                .withTransactionCache(new TransactionCache(accountService.getCommitLog(), 1 << 20))
+                .withDescriptionIndex(DescriptionIndex.load(accountService.getCommitLog(), List.of(database.getDataSource())));
         restApi.configure();
         init();
         awaitInitialization();
@@ -91,12 +109,185 @@ public class RestApiTest {
         assertEquals(new BigDecimal("123.45"), response.getBalance());
     }
 
+    @Test
+    public void getTransactions() throws IOException {
+        var account = accountService.createAccount("test");
+        for (int i = 0; i < 50; i++) {
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00"));
+        }
+
+        String json = getJson("transaction?account=" + account.serialize());
+        var response = objectMapper.readValue(json, TransactionListResponse.class);
+        assertEquals(50, response.getTransactions().size());
+        for (var transaction : response.getTransactions()) {
+            assertEquals(new BigDecimal("1.00"), transaction.getAmount());
+            assertNull(transaction.getOtherAccount());
+        }
+    }
+
+    @Test
+    public void getAccountsBatch() throws IOException {
+        var first = accountService.createAccount("first");
+        var second = accountService.createAccount("second");
+        accountService.moveMoney(null, second, TransactionId.create(), new BigDecimal("7.50"));
+        String request = "{\"ids\": [" + second.serialize() + ", 999999, " + first.serialize() + "], \"consistent\": true}";
+        var result = objectMapper.readValue(postJson("account/batch", request, HttpStatus.OK_200), AccountBatchResponse.class);
+        assertEquals(3, result.getAccounts().size());
+        var account = result.getAccounts().get(0);
+        assertEquals(second, account.getId());
+        assertTrue(account.isFound());
+        assertEquals(0, new BigDecimal("7.50").compareTo(account.getBalance()));
+        assertEquals("second", account.getDescription());
+        assertFalse(result.getAccounts().get(1).isFound());
+        assertEquals("first", result.getAccounts().get(2).getDescription());
+
+        postJson("account/batch", "{\"ids\": []}", HttpStatus.BAD_REQUEST_400);
+    }
+
+    @Test
+    public void findAccounts() throws IOException {
+        var first = accountService.createAccount("Prefix search 1");
+        var second = accountService.createAccount("prefix search 2");
+
+        var page = objectMapper.readValue(getJson("account?description=PREFIX%20S&limit=1"), AccountListResponse.class);
+        assertEquals(1, page.getAccounts().size());
+        assertEquals(first, page.getAccounts().get(0).getId());
+        assertEquals("Prefix search 1", page.getAccounts().get(0).getDescription());
+        assertNotNull(page.getNextCursor());
+
+        page = objectMapper.readValue(getJson("account?description=PREFIX%20S&limit=1&cursor=" + page.getNextCursor()),
+                AccountListResponse.class);
+        assertEquals(List.of(second), page.getAccounts().stream().map(AccountResponse::getId).collect(Collectors.toList()));
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void getAccountNotModified() throws IOException {
+        var account = accountService.createAccount("test");
+        String path = "account/" + account.serialize();
+        String tag;
+        try (var response = get(path, null, null)) {
+            assertEquals(HttpStatus.OK_200, response.code());
+            tag = response.header("ETag");
+            assertNotNull(tag);
+        }
+        try (var response = get(path, tag, null)) {
+            assertEquals(HttpStatus.NOT_MODIFIED_304, response.code());
+            assertEquals(tag, response.header("ETag"));
+        }
+
+        accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00"));
+        try (var response = get(path, tag, null)) {
+            assertEquals(HttpStatus.OK_200, response.code());
+            assertNotEquals(tag, response.header("ETag"));
+            tag = response.header("ETag");
+        }
+        accountService.updateAccount(account, "changed");
+        try (var response = get(path, tag, null)) {
+            assertEquals(HttpStatus.OK_200, response.code());
+            assertEquals("changed", objectMapper.readValue(response.body().string(), AccountResponse.class)
+                    .getDescription());
+        }
+    }
+
+    @Test
+    public void getTransactionsCompressed() throws IOException {
+        var account = accountService.createAccount("test");
+        for (int i = 0; i < 30; i++) {
+            accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("1.00"));
+        }
+        String path = "transaction?account=" + account.serialize();
+        String tag;
+        try (var response = get(path, null, "deflate, gzip;q=0.5")) {
+            assertEquals(HttpStatus.OK_200, response.code());
+            assertEquals("gzip", response.header("Content-Encoding"));
+            tag = response.header("ETag");
+            var json = new GZIPInputStream(response.body().byteStream());
+            assertEquals(30, objectMapper.readValue(json, TransactionListResponse.class).getTransactions().size());
+        }
+        try (var response = get(path, tag, "gzip")) {
+            assertEquals(HttpStatus.NOT_MODIFIED_304, response.code());
+        }
+        try (var response = get(path, null, "gzip;q=0")) {
+            assertNull(response.header("Content-Encoding"));
+            assertEquals(30, objectMapper.readValue(response.body().string(), TransactionListResponse.class)
+                    .getTransactions().size());
+        }
+    }
+
+    @Test
+    public void importAccounts() throws IOException {
+        var csv = "ref,description,balance\n" +
+                "c-1,\"Smith, John\",10.00\n" +
+                "\n" +
+                "c-2,\"Say \"\"hi\"\"\",\n";
+        var lines = send("account/import", csv, "text/csv", HttpStatus.OK_200).split("\n");
+        assertEquals(2, lines.length);
+        var first = objectMapper.readValue(lines[0], ImportAccountResponse.class);
+        assertEquals(2, first.getLine());
+        assertEquals("c-1", first.getRef());
+        var account = accountService.getAccount(first.getId());
+        assertEquals("Smith, John", account.getDescription());
+        assertEquals(new BigDecimal("10.00"), account.getBalance());
+        var second = objectMapper.readValue(lines[1], ImportAccountResponse.class);
+        assertEquals(4, second.getLine());
+        assertEquals("Say \"hi\"", accountService.getAccount(second.getId()).getDescription());
+
+        var ndjson = "{\"ref\": \"n-1\", \"balance\": 5}\n{\"ref\": \"n-2\", \"balance\": -5}\n";
+        var error = objectMapper.readValue(send("account/import", ndjson, "application/x-ndjson", HttpStatus.BAD_REQUEST_400),
+                ErrorResponse.class);
+        assertEquals("Line 2: opening balance must not be negative, found -5", error.getMessage());
+
+        // a later chunk fails after the first one is committed
+        var many = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            many.append("{\"ref\": \"m-").append(i).append("\"}\n");
+        }
+        many.append("{\"ref\": \"m-bad\", \"balance\": -1}\n");
+        lines = send("account/import", many.toString(), "application/x-ndjson", HttpStatus.OK_200).split("\n");
+        assertEquals(1001, lines.length);
+        var last = objectMapper.readValue(lines[1000], ImportAccountResponse.class);
+        assertEquals(1001, last.getLine());
+        assertEquals(Long.valueOf(1000), last.getLastCommittedLine());
+        assertNotNull(last.getError());
+    }
+
+    @Test
+    public void getFeed() throws IOException {
+        var account = accountService.createAccount("test");
+        long after = accountService.getCommitLog().getLastSequence();
+        var transaction = accountService.moveMoney(null, account, TransactionId.create(), new BigDecimal("5.00"));
+
+        String json = getJson("feed?after=" + after + "&account=" + account.serialize());
+        var response = objectMapper.readValue(json, FeedResponse.class);
+        assertEquals(1, response.getTransactions().size());
+        var entry = response.getTransactions().get(0);
+        assertEquals(transaction.getId(), entry.getId());
+        assertEquals(transaction.getSequence(), entry.getSequence());
+        assertEquals(account, entry.getTo());
+        assertTrue(response.getLastSequence() >= transaction.getSequence());
+
+        // nothing new for this account, the long poll times out empty
+        json = getJson("feed?after=" + response.getLastSequence() + "&account=" + account.serialize() + "&wait=50");
+        assertTrue(objectMapper.readValue(json, FeedResponse.class).getTransactions().isEmpty());
+    }
+
     @Test
     public void generateTransactionId() throws IOException {
         String notReallyJson = postJson("transaction/id", "", HttpStatus.OK_200);
         assertNotNull(UUID.fromString(notReallyJson));
     }
 
+    @Test
+    public void generateTransactionIds() throws IOException {
+        String json = postJson("transaction/id/batch?count=10", "", HttpStatus.OK_200);
+        TransactionId[] ids = objectMapper.readValue(json, TransactionId[].class);
+        assertEquals(10, ids.length);
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i - 1].getValue().compareTo(ids[i].getValue()) < 0);
+        }
+    }
+
     @Test
     public void sendFromExternal() throws IOException {
         var account = accountService.createAccount("test");
@@ -114,6 +305,7 @@ public class RestApiTest {
         assertNull(result.getFrom());
         assertEquals(account, result.getTo());
         assertNotNull(result.getTimestamp());
+        assertTrue(result.getSequence() > 0);
     }
 
     @Test
@@ -157,6 +349,33 @@ public class RestApiTest {
         assertNotNull(result.getTimestamp());
     }
 
+    @Test
+    public void getTransaction() throws IOException {
+        var account = accountService.createAccount("test");
+        TransactionId tid = TransactionId.create();
+        String request = "{"
+                + "\"id\": \"" + tid.asString() + "\","
+                + "\"from\": null,"
+                + "\"to\": " + account.serialize() + ","
+                + "\"amount\": 10.00"
+                + "}";
+        var created = postJson("transaction", request, HttpStatus.CREATED_201);
+        assertEquals(created, getJson("transaction/" + tid.asString()));
+
+        // not made through the API, so read from the database
+        var t = accountService.moveMoney(account, null, TransactionId.create(), new BigDecimal("3.00"));
+        var result = objectMapper.readValue(getJson("transaction/" + t.getId().asString()), CreateTransactionResponse.class);
+        assertEquals(t.getId(), result.getId());
+        assertEquals(account, result.getFrom());
+        assertNull(result.getTo());
+        assertEquals(0, new BigDecimal("3.00").compareTo(result.getAmount()));
+        assertEquals(t.getSequence(), result.getSequence());
+
+        try (var response = get("transaction/" + TransactionId.create().asString(), null, null)) {
+            assertEquals(HttpStatus.NOT_FOUND_404, response.code());
+        }
+    }
+
     @Test
     public void sendInternalNotEnoughMoney() throws IOException {
         var accountFrom = accountService.createAccount("test");
@@ -192,14 +411,66 @@ public class RestApiTest {
         assertNotNull(result.getMessage());
     }
 
+    /**
+     * Counts what the server threads allocate to parse, run and render a transfer, budgets work as in
+     * {@link AllocationBudgetTest}. The client allocates on the test thread, which is not counted.
+     */
+    @Test
+    public void sendAllocationBudget() {
+        var accountFrom = accountService.createAccount("test");
+        accountService.moveMoney(null, accountFrom, TransactionId.create(), new BigDecimal("1000000"));
+        var accountTo = accountService.createAccount("test");
+        long bytes = AllocationMeter.perOperation(ALLOCATION_WARMUP, ALLOCATION_MEASURED, true, i -> {
+            String request = "{"
+                    + "\"id\": \"" + TransactionId.create().asString() + "\","
+                    + "\"from\": " + accountFrom.serialize() + ","
+                    + "\"to\": " + accountTo.serialize() + ","
+                    + "\"amount\": 0.01"
+                    + "}";
+            postJsonUnchecked("transaction", request, HttpStatus.CREATED_201);
+        });
+        assertTrue("POST /transaction allocates " + bytes + " bytes, more than " + SEND_BUDGET, bytes <= SEND_BUDGET);
+    }
+
+    @Test
+    public void getAccountAllocationBudget() {
+        var account = accountService.createAccount("test");
+        long bytes = AllocationMeter.perOperation(ALLOCATION_WARMUP, ALLOCATION_MEASURED, true, i -> {
+            try {
+                getJson("account/" + account.serialize());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertTrue("GET /account/:id allocates " + bytes + " bytes, more than " + GET_ACCOUNT_BUDGET,
+                bytes <= GET_ACCOUNT_BUDGET);
+    }
+
     private static String postJson(String path, String json, int expectedStatus) throws IOException {
         return sendJson("POST", path, json, expectedStatus);
     }
 
+    private static void postJsonUnchecked(String path, String json, int expectedStatus) {
+        try {
+            postJson(path, json, expectedStatus);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private static String sendJson(String method, String path, String json, int expectedStatus) throws IOException {
+        return send(method, path, json, "application/json", expectedStatus);
+    }
+
+    private static String send(String path, String content, String contentType, int expectedStatus) throws IOException {
+        return send("POST", path, content, contentType, expectedStatus);
+    }
+
+    private static String send(String method, String path, String content, String contentType, int expectedStatus)
+            throws IOException {
         var request = new Request.Builder()
                 .url("http://localhost:" + port() + "/api/v1/" + path)
-                .method(method, RequestBody.create(json, MediaType.get("application/json")))
+                .method(method, RequestBody.create(content, MediaType.get(contentType)))
                 .build();
         var response = httpClient.newCall(request).execute();
         assertEquals(expectedStatus, response.code());
@@ -208,6 +479,22 @@ public class RestApiTest {
         return body.string();
     }
 
+    /**
+     * Unlike {@link #getJson(String)} leaves status, headers and decoding to the caller.
+     */
+    private static okhttp3.Response get(String path, String ifNoneMatch, String acceptEncoding) throws IOException {
+        var request = new Request.Builder()
+                .url("http://localhost:" + port() + "/api/v1/" + path)
+                .get();
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        if (acceptEncoding != null) {
+            request.header("Accept-Encoding", acceptEncoding);
+        }
+        return httpClient.newCall(request.build()).execute();
+    }
+
     private static String getJson(String path) throws IOException {
         var request = new Request.Builder()
                 .url("http://localhost:" + port() + "/api/v1/" + path)
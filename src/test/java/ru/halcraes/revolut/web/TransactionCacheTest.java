@@ -0,0 +1,63 @@
+package ru.halcraes.revolut.web;
+
+import org.junit.Test;
+import ru.halcraes.revolut.db.AccountId;
+import ru.halcraes.revolut.db.CommitEvent;
+import ru.halcraes.revolut.db.CommitLog;
+import ru.halcraes.revolut.db.Transaction;
+import ru.halcraes.revolut.db.TransactionId;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import static org.junit.Assert.*;
+
+public class TransactionCacheTest {
+    private static final AccountId FIRST = new AccountId(1);
+    private static final AccountId SECOND = new AccountId(2);
+
+    private final TransactionCache cache = new TransactionCache(new CommitLog(0), 1 << 20);
+
+    private static byte[] render(Transaction transaction) {
+        return transaction.getId().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static CommitEvent transfer(Transaction transaction, AccountId debited, AccountId credited) {
+        return CommitEvent.builder()
+                .type(CommitEvent.Type.TRANSFER)
+                .sequence(1)
+                .transaction(transaction)
+                .debited(debited)
+                .credited(credited)
+                .build();
+    }
+
+    private static Transaction transaction() {
+        return Transaction.builder()
+                .id(TransactionId.create())
+                .fromAccount(FIRST)
+                .toAccount(SECOND)
+                .money(new BigDecimal("1.00"))
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    @Test
+    public void localTransferAndCreditLegAreCached() {
+        var local = transaction();
+        cache.committed(transfer(local, FIRST, SECOND));
+        assertArrayEquals(render(local), cache.get(local.getId(), TransactionCacheTest::render));
+
+        var credit = transaction();
+        cache.committed(transfer(credit, null, SECOND));
+        assertArrayEquals(render(credit), cache.get(credit.getId(), TransactionCacheTest::render));
+    }
+
+    @Test
+    public void debitLegIsNotCached() {
+        var debit = transaction();
+        cache.committed(transfer(debit, FIRST, null));
+        assertNull(cache.get(debit.getId(), TransactionCacheTest::render));
+    }
+}